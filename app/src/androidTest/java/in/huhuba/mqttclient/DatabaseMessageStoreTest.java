@@ -0,0 +1,169 @@
+package in.huhuba.mqttclient;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import in.huhuba.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Stores and discards arrived messages in a {@link DatabaseMessageStore}
+ * backed by a real SQLite database on the device.
+ */
+public class DatabaseMessageStoreTest extends AndroidTestCase {
+    private static final String DATABASE_NAME = "mqttAndroidService.db";
+    private static final String TABLE_NAME = "MqttArrivedMessageTable";
+    // how many stores DatabaseMessageStore collects before writing them
+    private static final int FLUSH_COUNT = 64;
+
+    private DatabaseMessageStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        store = newStore();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testStoredMessagesAreReadBack() {
+        MqttMessage retained = message("one", 1);
+        retained.setRetained(true);
+        String first = store.storeArrived("a", "topic/1", retained);
+        String second = store.storeArrived("a", "topic/2", message("two", 2));
+        store.storeArrived("b", "topic/3", message("three", 0));
+
+        List<MessageStore.StoredMessage> stored = messages("a");
+        assertEquals(2, stored.size());
+        MessageStore.StoredMessage one = find(stored, first);
+        assertEquals("a", one.getClientHandle());
+        assertEquals("topic/1", one.getTopic());
+        assertTrue(Arrays.equals("one".getBytes(), one.getMessage().getPayload()));
+        assertEquals(1, one.getMessage().getQos());
+        assertTrue(one.getMessage().isRetained());
+        MessageStore.StoredMessage two = find(stored, second);
+        assertEquals(2, two.getMessage().getQos());
+        assertFalse(two.getMessage().isRetained());
+
+        assertEquals(3, messages(null).size());
+    }
+
+    public void testDiscardBeforeAndAfterWriting() {
+        String unwritten = store.storeArrived("a", "t", message("x", 1));
+        assertTrue(store.discardArrived("a", unwritten));
+
+        String written = store.storeArrived("a", "t", message("y", 1));
+        store.flush();
+        assertTrue(store.discardArrived("a", written));
+        assertTrue(messages("a").isEmpty());
+
+        // Another client's handle does not discard it
+        String other = store.storeArrived("a", "t", message("z", 1));
+        store.flush();
+        assertFalse(store.discardArrived("b", other));
+        assertEquals(1, messages("a").size());
+    }
+
+    public void testMessagesSurviveClosing() {
+        String kept = store.storeArrived("a", "t", message("kept", 1));
+        String discarded = store.storeArrived("a", "t", message("gone", 1));
+        store.flush();
+        store.discardArrived("a", discarded);
+        store.close();
+
+        store = newStore();
+        List<MessageStore.StoredMessage> stored = messages("a");
+        assertEquals(1, stored.size());
+        assertEquals(kept, stored.get(0).getMessageId());
+
+        // Stored before this store was opened, so discarded straight away
+        assertTrue(store.discardArrived("a", kept));
+        assertTrue(messages("a").isEmpty());
+    }
+
+    public void testClearForOneClient() {
+        store.storeArrived("a", "t", message("1", 1));
+        store.flush();
+        store.storeArrived("a", "t", message("2", 1));
+        store.storeArrived("b", "t", message("3", 1));
+        store.clearArrivedMessages("a");
+        assertTrue(messages("a").isEmpty());
+        assertEquals(1, messages("b").size());
+
+        store.clearArrivedMessages(null);
+        assertTrue(messages(null).isEmpty());
+    }
+
+    public void testStoresWaitToBeWrittenTogether() throws Exception {
+        // Opens the database, so that another connection can watch it
+        messages(null);
+        SQLiteDatabase reader = SQLiteDatabase.openDatabase(
+                getContext().getDatabasePath(DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            for (int i = 1; i < FLUSH_COUNT; i++) {
+                store.storeArrived("a", "t", message("m" + i, 1));
+            }
+            assertEquals(0, rows(reader));
+
+            // The last store that fills the batch writes them all, in one
+            // transaction, before it returns
+            store.storeArrived("a", "t", message("m" + FLUSH_COUNT, 1));
+            assertEquals(FLUSH_COUNT, rows(reader));
+
+            // Fewer are written once the first has waited long enough
+            store.storeArrived("a", "t", message("late", 1));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (rows(reader) == FLUSH_COUNT && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(FLUSH_COUNT + 1, rows(reader));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private DatabaseMessageStore newStore() {
+        return new DatabaseMessageStore(new MqttService(), getContext());
+    }
+
+    private List<MessageStore.StoredMessage> messages(String clientHandle) {
+        List<MessageStore.StoredMessage> list = new ArrayList<MessageStore.StoredMessage>();
+        Iterator<MessageStore.StoredMessage> messages = store.getAllArrivedMessages(clientHandle);
+        while (messages.hasNext()) {
+            list.add(messages.next());
+        }
+        return list;
+    }
+
+    private static long rows(SQLiteDatabase database) {
+        return DatabaseUtils.queryNumEntries(database, TABLE_NAME);
+    }
+
+    private static MessageStore.StoredMessage find(List<MessageStore.StoredMessage> stored, String id) {
+        for (MessageStore.StoredMessage message : stored) {
+            if (message.getMessageId().equals(id)) {
+                return message;
+            }
+        }
+        fail("no message " + id);
+        return null;
+    }
+
+    private static MqttMessage message(String payload, int qos) {
+        MqttMessage message = new MqttMessage(payload.getBytes());
+        message.setQos(qos);
+        return message;
+    }
+}
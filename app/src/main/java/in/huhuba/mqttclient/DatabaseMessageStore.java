@@ -12,7 +12,14 @@
  */
 package in.huhuba.mqttclient;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import in.huhuba.paho.client.mqttv3.MqttMessage;
 
@@ -22,10 +29,23 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 /**
  * Implementation of the {@link MessageStore} interface, using a SQLite database
- *
+ * <p>
+ * Stores and discards are not written one at a time. They are collected and
+ * written together in one transaction, using compiled statements, once
+ * {@link #FLUSH_COUNT} of them are waiting or {@link #FLUSH_INTERVAL}
+ * milliseconds after the first of them, whichever comes first. A message
+ * discarded before it has been written is never written at all. Reading or
+ * clearing the stored messages writes anything waiting first.
+ * </p>
+ * <p>
+ * A message stored less than {@link #FLUSH_INTERVAL} milliseconds before the
+ * process dies may therefore be lost, unless {@link #flush()} has been called
+ * since.
+ * </p>
  */
 class DatabaseMessageStore implements MessageStore {
 
@@ -39,6 +59,31 @@ class DatabaseMessageStore implements MessageStore {
     // the name of the table in the database to which we will save messages
     private static final String ARRIVED_MESSAGE_TABLE_NAME = "MqttArrivedMessageTable";
 
+    // the index used to find the messages of a client in arrival order
+    private static final String ARRIVED_MESSAGE_INDEX_NAME = "MqttArrivedMessageIndex";
+
+    // the number of stores and discards waiting which causes them to be written
+    private static final int FLUSH_COUNT = 64;
+
+    // the longest time, in milliseconds, a store or discard waits to be written
+    private static final long FLUSH_INTERVAL = 200;
+
+    private static final String INSERT_STATEMENT = "INSERT INTO "
+            + ARRIVED_MESSAGE_TABLE_NAME + "("
+            + MqttServiceConstants.MESSAGE_ID + ", "
+            + MqttServiceConstants.CLIENT_HANDLE + ", "
+            + MqttServiceConstants.DESTINATION_NAME + ", "
+            + MqttServiceConstants.PAYLOAD + ", "
+            + MqttServiceConstants.QOS + ", "
+            + MqttServiceConstants.RETAINED + ", "
+            + MqttServiceConstants.DUPLICATE + ", " + MTIMESTAMP
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String DELETE_STATEMENT = "DELETE FROM "
+            + ARRIVED_MESSAGE_TABLE_NAME + " WHERE "
+            + MqttServiceConstants.MESSAGE_ID + "=? AND "
+            + MqttServiceConstants.CLIENT_HANDLE + "=?";
+
     // the database
     private SQLiteDatabase db = null;
 
@@ -48,6 +93,24 @@ class DatabaseMessageStore implements MessageStore {
     // a place to send trace data
     private MqttTraceHandler traceHandler = null;
 
+    // compiled statements, valid while db is open
+    private SQLiteStatement insertStatement = null;
+    private SQLiteStatement deleteStatement = null;
+
+    // messages stored but not yet written, by id, in arrival order
+    private LinkedHashMap<String, PendingMessage> pendingInserts = new LinkedHashMap<String, PendingMessage>();
+
+    // ids and client handles of written messages waiting to be deleted
+    private ArrayList<String[]> pendingDeletes = new ArrayList<String[]>();
+
+    // ids and client handles of messages written since the store was opened,
+    // and not yet discarded
+    private HashMap<String, String> writtenMessages = new HashMap<String, String>();
+
+    // writes the stores and discards waiting, when the first has waited long enough
+    private Timer flushTimer = null;
+    private boolean flushScheduled = false;
+
     /**
      * We need a SQLiteOpenHelper to handle database creation and updating
      *
@@ -59,8 +122,8 @@ class DatabaseMessageStore implements MessageStore {
         private static final String DATABASE_NAME = "mqttAndroidService.db";
 
         // database version, used to recognise when we need to upgrade
-        // (delete and recreate)
-        private static final int DATABASE_VERSION = 1;
+        // (add the index to version 1, otherwise delete and recreate)
+        private static final int DATABASE_VERSION = 2;
 
         // a place to send trace data
         private MqttTraceHandler traceHandler = null;
@@ -76,6 +139,17 @@ class DatabaseMessageStore implements MessageStore {
             this.traceHandler = traceHandler;
         }
 
+        /**
+         * Use write-ahead logging, so that writing a batch of messages does
+         * not block readers, and needs fewer syncs
+         *
+         * @param database
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase database) {
+            database.enableWriteAheadLogging();
+        }
+
         /**
          * When the database is (re)created, create our table
          *
@@ -102,15 +176,37 @@ class DatabaseMessageStore implements MessageStore {
                 traceHandler.traceException(TAG, "onCreate", e);
                 throw e;
             }
+            createIndex(database);
+        }
+
+        /**
+         * Create the index on client handle and arrival time
+         *
+         * @param database
+         */
+        private void createIndex(SQLiteDatabase database) {
+            String createIndexStatement = "CREATE INDEX IF NOT EXISTS "
+                    + ARRIVED_MESSAGE_INDEX_NAME + " ON "
+                    + ARRIVED_MESSAGE_TABLE_NAME + "("
+                    + MqttServiceConstants.CLIENT_HANDLE + ", " + MTIMESTAMP
+                    + ");";
+            try {
+                database.execSQL(createIndexStatement);
+                traceHandler.traceDebug(TAG, "created the index");
+            } catch (SQLException e) {
+                traceHandler.traceException(TAG, "createIndex", e);
+                throw e;
+            }
         }
 
         /**
-         * To upgrade the database, drop and recreate our table
+         * To upgrade the database from version 1, add the index. From any
+         * other version, drop and recreate our table
          *
          * @param db
          *            the database
          * @param oldVersion
-         *            ignored
+         *            the version the database has
          * @param newVersion
          *            ignored
          */
@@ -118,6 +214,11 @@ class DatabaseMessageStore implements MessageStore {
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             traceHandler.traceDebug(TAG, "onUpgrade");
+            if (oldVersion == 1) {
+                createIndex(db);
+                traceHandler.traceDebug(TAG, "onUpgrade complete");
+                return;
+            }
             try {
                 db.execSQL("DROP TABLE IF EXISTS " + ARRIVED_MESSAGE_TABLE_NAME);
             } catch (SQLException e) {
@@ -150,6 +251,20 @@ class DatabaseMessageStore implements MessageStore {
         traceHandler.traceDebug(TAG, "DatabaseMessageStore<init> complete");
     }
 
+    /**
+     * Open the database, if it is not open, and compile our statements
+     *
+     * @return the database
+     */
+    private SQLiteDatabase getDatabase() {
+        if (db == null) {
+            db = mqttDb.getWritableDatabase();
+            insertStatement = db.compileStatement(INSERT_STATEMENT);
+            deleteStatement = db.compileStatement(DELETE_STATEMENT);
+        }
+        return db;
+    }
+
     /**
      * Store an MQTT message
      *
@@ -162,60 +277,19 @@ class DatabaseMessageStore implements MessageStore {
      * @return an identifier for the message, so that it can be removed when appropriate
      */
     @Override
-    public String storeArrived(String clientHandle, String topic,
-                               MqttMessage message) {
-
-        db = mqttDb.getWritableDatabase();
+    public synchronized String storeArrived(String clientHandle, String topic,
+                                            MqttMessage message) {
 
         traceHandler.traceDebug(TAG, "storeArrived{" + clientHandle + "}, {"
                 + message.toString() + "}");
 
-        byte[] payload = message.getPayload();
-        int qos = message.getQos();
-        boolean retained = message.isRetained();
-        boolean duplicate = message.isDuplicate();
-
-        ContentValues values = new ContentValues();
         String id = java.util.UUID.randomUUID().toString();
-        values.put(MqttServiceConstants.MESSAGE_ID, id);
-        values.put(MqttServiceConstants.CLIENT_HANDLE, clientHandle);
-        values.put(MqttServiceConstants.DESTINATION_NAME, topic);
-        values.put(MqttServiceConstants.PAYLOAD, payload);
-        values.put(MqttServiceConstants.QOS, qos);
-        values.put(MqttServiceConstants.RETAINED, retained);
-        values.put(MqttServiceConstants.DUPLICATE, duplicate);
-        values.put(MTIMESTAMP, System.currentTimeMillis());
-        try {
-            db.insertOrThrow(ARRIVED_MESSAGE_TABLE_NAME, null, values);
-        } catch (SQLException e) {
-            traceHandler.traceException(TAG, "onUpgrade", e);
-            throw e;
-        }
-        int count = getArrivedRowCount(clientHandle);
-        traceHandler
-                .traceDebug(
-                        TAG,
-                        "storeArrived: inserted message with id of {"
-                                + id
-                                + "} - Number of messages in database for this clientHandle = "
-                                + count);
+        pendingInserts.put(id, new PendingMessage(clientHandle, topic, message,
+                System.currentTimeMillis()));
+        scheduleFlush();
         return id;
     }
 
-    private int getArrivedRowCount(String clientHandle) {
-        String[] cols = new String[1];
-        cols[0] = "COUNT(*)";
-        Cursor c = db.query(ARRIVED_MESSAGE_TABLE_NAME, cols,
-                MqttServiceConstants.CLIENT_HANDLE + "='" + clientHandle + "'",
-                null, null, null, null);
-        int count = 0;
-        if (c.moveToFirst()) {
-            count = c.getInt(0);
-        }
-        c.close();
-        return count;
-    }
-
     /**
      * Delete an MQTT message.
      *
@@ -227,18 +301,32 @@ class DatabaseMessageStore implements MessageStore {
      * @return true if the message was found and deleted
      */
     @Override
-    public boolean discardArrived(String clientHandle, String id) {
-
-        db = mqttDb.getWritableDatabase();
+    public synchronized boolean discardArrived(String clientHandle, String id) {
 
         traceHandler.traceDebug(TAG, "discardArrived{" + clientHandle + "}, {"
                 + id + "}");
+
+        PendingMessage pending = pendingInserts.get(id);
+        if (pending != null && pending.clientHandle.equals(clientHandle)) {
+            // never written, so nothing to delete
+            pendingInserts.remove(id);
+            return true;
+        }
+        if (clientHandle.equals(writtenMessages.get(id))) {
+            // known to be in the database, so the delete can wait
+            writtenMessages.remove(id);
+            pendingDeletes.add(new String[] { id, clientHandle });
+            scheduleFlush();
+            return true;
+        }
+
+        // stored before the store was opened, or not at all
+        getDatabase();
         int rows;
         try {
-            rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME,
-                    MqttServiceConstants.MESSAGE_ID + "='" + id + "' AND "
-                            + MqttServiceConstants.CLIENT_HANDLE + "='"
-                            + clientHandle + "'", null);
+            deleteStatement.bindString(1, id);
+            deleteStatement.bindString(2, clientHandle);
+            rows = deleteStatement.executeUpdateDelete();
         } catch (SQLException e) {
             traceHandler.traceException(TAG, "discardArrived", e);
             throw e;
@@ -249,15 +337,89 @@ class DatabaseMessageStore implements MessageStore {
                             + "} from database: Rows affected = " + rows);
             return false;
         }
-        int count = getArrivedRowCount(clientHandle);
-        traceHandler
-                .traceDebug(
-                        TAG,
-                        "discardArrived - Message deleted successfully. - messages in db for this clientHandle "
-                                + count);
+        traceHandler.traceDebug(TAG,
+                "discardArrived - Message deleted successfully.");
         return true;
     }
 
+    /**
+     * Arrange for the stores and discards waiting to be written, now if
+     * enough of them are waiting, otherwise after {@link #FLUSH_INTERVAL}
+     */
+    private void scheduleFlush() {
+        if (pendingInserts.size() + pendingDeletes.size() >= FLUSH_COUNT) {
+            flush();
+            return;
+        }
+        if (flushScheduled) {
+            return;
+        }
+        if (flushTimer == null) {
+            flushTimer = new Timer("MqttMessageStore", true);
+        }
+        flushTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (DatabaseMessageStore.this) {
+                    try {
+                        flush();
+                    } catch (SQLException e) {
+                        // left waiting, to be tried again on the next flush
+                        traceHandler.traceException(TAG, "flush", e);
+                    }
+                }
+            }
+        }, FLUSH_INTERVAL);
+        flushScheduled = true;
+    }
+
+    /**
+     * Write all the stores and discards waiting, in one transaction
+     */
+    @Override
+    public synchronized void flush() {
+        flushScheduled = false;
+        if (pendingInserts.isEmpty() && pendingDeletes.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase database = getDatabase();
+        int deleted = 0;
+        database.beginTransaction();
+        try {
+            for (Map.Entry<String, PendingMessage> entry : pendingInserts.entrySet()) {
+                PendingMessage pending = entry.getValue();
+                MqttMessage message = pending.message;
+                insertStatement.bindString(1, entry.getKey());
+                insertStatement.bindString(2, pending.clientHandle);
+                insertStatement.bindString(3, pending.topic);
+                insertStatement.bindBlob(4, message.getPayload());
+                insertStatement.bindLong(5, message.getQos());
+                insertStatement.bindString(6, String.valueOf(message.isRetained()));
+                insertStatement.bindString(7, String.valueOf(message.isDuplicate()));
+                insertStatement.bindLong(8, pending.timestamp);
+                insertStatement.executeInsert();
+            }
+            for (String[] delete : pendingDeletes) {
+                deleteStatement.bindString(1, delete[0]);
+                deleteStatement.bindString(2, delete[1]);
+                deleted += deleteStatement.executeUpdateDelete();
+            }
+            database.setTransactionSuccessful();
+        } catch (SQLException e) {
+            traceHandler.traceException(TAG, "flush", e);
+            throw e;
+        } finally {
+            database.endTransaction();
+        }
+        traceHandler.traceDebug(TAG, "flush: inserted " + pendingInserts.size()
+                + ", deleted " + deleted + " of " + pendingDeletes.size());
+        for (Map.Entry<String, PendingMessage> entry : pendingInserts.entrySet()) {
+            writtenMessages.put(entry.getKey(), entry.getValue().clientHandle);
+        }
+        pendingInserts.clear();
+        pendingDeletes.clear();
+    }
+
     /**
      * Get an iterator over all messages stored (optionally for a specific client)
      *
@@ -267,25 +429,40 @@ class DatabaseMessageStore implements MessageStore {
      * @return iterator of all the arrived MQTT messages
      */
     @Override
-    public Iterator<StoredMessage> getAllArrivedMessages(
+    public synchronized Iterator<StoredMessage> getAllArrivedMessages(
             final String clientHandle) {
+        flush();
         return new Iterator<StoredMessage>() {
             private Cursor c;
             private boolean hasNext;
+            private int messageIdColumn;
+            private int clientHandleColumn;
+            private int topicColumn;
+            private int payloadColumn;
+            private int qosColumn;
+            private int retainedColumn;
+            private int duplicateColumn;
 
             {
-                db = mqttDb.getWritableDatabase();
+                getDatabase();
                 // anonymous initialiser to start a suitable query
                 // and position at the first row, if one exists
                 if (clientHandle == null) {
                     c = db.query(ARRIVED_MESSAGE_TABLE_NAME, null, null, null,
-                            null, null, "mtimestamp ASC");
+                            null, null, "mtimestamp ASC, rowid ASC");
                 } else {
                     c = db.query(ARRIVED_MESSAGE_TABLE_NAME, null,
-                            MqttServiceConstants.CLIENT_HANDLE + "='"
-                                    + clientHandle + "'", null, null, null,
-                            "mtimestamp ASC");
+                            MqttServiceConstants.CLIENT_HANDLE + "=?",
+                            new String[] { clientHandle }, null, null,
+                            "mtimestamp ASC, rowid ASC");
                 }
+                messageIdColumn = c.getColumnIndex(MqttServiceConstants.MESSAGE_ID);
+                clientHandleColumn = c.getColumnIndex(MqttServiceConstants.CLIENT_HANDLE);
+                topicColumn = c.getColumnIndex(MqttServiceConstants.DESTINATION_NAME);
+                payloadColumn = c.getColumnIndex(MqttServiceConstants.PAYLOAD);
+                qosColumn = c.getColumnIndex(MqttServiceConstants.QOS);
+                retainedColumn = c.getColumnIndex(MqttServiceConstants.RETAINED);
+                duplicateColumn = c.getColumnIndex(MqttServiceConstants.DUPLICATE);
                 hasNext = c.moveToFirst();
             }
 
@@ -299,19 +476,13 @@ class DatabaseMessageStore implements MessageStore {
 
             @Override
             public StoredMessage next() {
-                String messageId = c.getString(c
-                        .getColumnIndex(MqttServiceConstants.MESSAGE_ID));
-                String clientHandle = c.getString(c
-                        .getColumnIndex(MqttServiceConstants.CLIENT_HANDLE));
-                String topic = c.getString(c
-                        .getColumnIndex(MqttServiceConstants.DESTINATION_NAME));
-                byte[] payload = c.getBlob(c
-                        .getColumnIndex(MqttServiceConstants.PAYLOAD));
-                int qos = c.getInt(c.getColumnIndex(MqttServiceConstants.QOS));
-                boolean retained = Boolean.parseBoolean(c.getString(c
-                        .getColumnIndex(MqttServiceConstants.RETAINED)));
-                boolean dup = Boolean.parseBoolean(c.getString(c
-                        .getColumnIndex(MqttServiceConstants.DUPLICATE)));
+                String messageId = c.getString(messageIdColumn);
+                String clientHandle = c.getString(clientHandleColumn);
+                String topic = c.getString(topicColumn);
+                byte[] payload = c.getBlob(payloadColumn);
+                int qos = c.getInt(qosColumn);
+                boolean retained = Boolean.parseBoolean(c.getString(retainedColumn));
+                boolean dup = Boolean.parseBoolean(c.getString(duplicateColumn));
 
                 // build the result
                 MqttMessageHack message = new MqttMessageHack(payload);
@@ -349,10 +520,23 @@ class DatabaseMessageStore implements MessageStore {
      *            If null, all messages are deleted
      */
     @Override
-    public void clearArrivedMessages(String clientHandle) {
+    public synchronized void clearArrivedMessages(String clientHandle) {
 
-        db = mqttDb.getWritableDatabase();
+        // messages not yet written need not be
+        Iterator<PendingMessage> pending = pendingInserts.values().iterator();
+        while (pending.hasNext()) {
+            if (clientHandle == null || clientHandle.equals(pending.next().clientHandle)) {
+                pending.remove();
+            }
+        }
+        flush();
+        if (clientHandle == null) {
+            writtenMessages.clear();
+        } else {
+            writtenMessages.values().removeAll(Collections.singleton(clientHandle));
+        }
 
+        getDatabase();
         int rows = 0;
         if (clientHandle == null) {
             traceHandler.traceDebug(TAG,
@@ -363,14 +547,32 @@ class DatabaseMessageStore implements MessageStore {
                     "clearArrivedMessages: clearing the table of "
                             + clientHandle + " messages");
             rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME,
-                    MqttServiceConstants.CLIENT_HANDLE + "='" + clientHandle
-                            + "'", null);
+                    MqttServiceConstants.CLIENT_HANDLE + "=?",
+                    new String[] { clientHandle });
         }
         traceHandler.traceDebug(TAG, "clearArrivedMessages: rows affected = "
                 + rows);
         return;
     }
 
+    /**
+     * A message stored but not yet written
+     */
+    private static class PendingMessage {
+        private String clientHandle;
+        private String topic;
+        private MqttMessage message;
+        private long timestamp;
+
+        PendingMessage(String clientHandle, String topic, MqttMessage message,
+                       long timestamp) {
+            this.clientHandle = clientHandle;
+            this.topic = topic;
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+    }
+
     private class DbStoredData implements StoredMessage {
         private String messageId;
         private String clientHandle;
@@ -380,6 +582,7 @@ class DatabaseMessageStore implements MessageStore {
         DbStoredData(String messageId, String clientHandle, String topic,
                      MqttMessage message) {
             this.messageId = messageId;
+            this.clientHandle = clientHandle;
             this.topic = topic;
             this.message = message;
         }
@@ -421,10 +624,23 @@ class DatabaseMessageStore implements MessageStore {
     }
 
     @Override
-    public void close() {
-        if (this.db!=null)
-            this.db.close();
-
+    public synchronized void close() {
+        if (flushTimer != null) {
+            flushTimer.cancel();
+            flushTimer = null;
+        }
+        try {
+            flush();
+        } finally {
+            flushScheduled = false;
+            writtenMessages.clear();
+            if (this.db!=null) {
+                insertStatement.close();
+                deleteStatement.close();
+                this.db.close();
+                this.db = null;
+            }
+        }
     }
 
 }
\ No newline at end of file
@@ -30,9 +30,11 @@ import in.huhuba.paho.client.mqttv3.MqttMessage;
  * consumer, {@link MessageStore#getAllArrivedMessages(String)} is used.
  * <li>When a clean session is started {@link #clearArrivedMessages(String)} is
  * used.
+ * <li>Before an arrived message is acknowledged to the server,
+ * {@link #flush()} should be called.
  * </ul>
  */
-interface MessageStore {
+public interface MessageStore {
 
     /**
      * External representation of a stored message
@@ -100,5 +102,11 @@ interface MessageStore {
      */
     public void clearArrivedMessages(String clientHandle);
 
+    /**
+     * Make sure every message stored so far will still be stored if the
+     * process ends, so that it is safe to acknowledge them
+     */
+    public void flush();
+
     public void close();
 }
@@ -11,6 +11,7 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.text.TextUtils;
@@ -27,14 +28,17 @@ import in.huhuba.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
 import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGE;
 
-public class MqttService extends Service implements MqttCallback {
+public class MqttService extends Service implements MqttCallback, MqttTraceHandler {
 
     /************************************************************************/
     /*    CONSTANTS                                                         */
@@ -49,12 +53,18 @@ public class MqttService extends Service implements MqttCallback {
     public static final String MQTT_MSG_RECEIVED_INTENT = "com.huhuba.mqtt.MSGRECVD";
     public static final String MQTT_MSG_RECEIVED_TOPIC  = "com.huhuba.mqtt.MSGRECVD_TOPIC";
     public static final String MQTT_MSG_RECEIVED_MSG    = "com.huhuba.mqtt.MSGRECVD_MSGBODY";
+    public static final String MQTT_MSG_RECEIVED_ID     = "com.huhuba.mqtt.MSGRECVD_ID";
 
     // constants used to notify the Service of messages to send
     public static final String MQTT_PUBLISH_MSG_INTENT = "com.huhuba.services.mqtt.SENDMSG";
     public static final String MQTT_PUBLISH_MSG_TOPIC  = "com.huhuba.services.mqtt.SENDMSG_TOPIC";
     public static final String MQTT_PUBLISH_MSG    = "com.huhuba.services.mqtt.SENDMSG_MSG";
 
+    // constants used to tell the Service that received messages have been
+    //   handled, and need not be kept any longer
+    public static final String MQTT_ACK_MSG_INTENT = "com.huhuba.services.mqtt.ACKMSG";
+    public static final String MQTT_ACK_MSG_IDS    = "com.huhuba.services.mqtt.ACKMSG_IDS";
+
     // constants used to tell the Activity UI the connection status
     public static final String MQTT_STATUS_INTENT = "com.huhuba.services.mqtt.STATUS";
     public static final String MQTT_STATUS_CODE    = "com.huhuba.services.mqtt.STATUS_CODE";
@@ -86,6 +96,9 @@ public class MqttService extends Service implements MqttCallback {
     // MQTT constants
     public static final int MAX_MQTT_CLIENTID_LENGTH = 22;
 
+    // the most received messages passed to a bound handler at once
+    private static final int DELIVERY_BATCH_SIZE = 100;
+
     /************************************************************************/
     /*    VARIABLES used to maintain state                                  */
     /************************************************************************/
@@ -156,6 +169,28 @@ public class MqttService extends Service implements MqttCallback {
     // receiver that wakes the Service up when it's time to ping the server
     private PingSender pingSender;
 
+    // received messages are kept here until the app confirms it has them
+    private MessageStore messageStore;
+
+    // identifies our messages in the message store
+    private String clientHandle;
+
+    // received messages waiting to be passed to the bound handler, which
+    //   is called on the main thread
+    private final Object deliveryLock = new Object();
+    private Handler deliveryHandler;
+    private MqttServiceDelegate.ArrivedMessageHandler arrivedMessageHandler;
+    private List<MessageStore.StoredMessage> pendingDeliveries = new ArrayList<MessageStore.StoredMessage>();
+    private boolean deliveryScheduled = false;
+
+    // messages arriving while those stored before the handler was
+    //   registered are read are held back behind them; the ids read are
+    //   kept, so that a message stored while they were read is not passed
+    //   on twice
+    private boolean loadingStored = false;
+    private Set<String> storedIds = null;
+    private int handlerGeneration = 0;
+
     /************************************************************************/
     /*    METHODS - core Service lifecycle methods                          */
     /************************************************************************/
@@ -183,7 +218,8 @@ public class MqttService extends Service implements MqttCallback {
         topicName = "test";
 
         mMqttPersistence = new MqttDefaultFilePersistence(getMqttPersistenceFile());
-//        messageStore = new DatabaseMessageStore(this, this);
+        messageStore = new DatabaseMessageStore(this, this);
+        deliveryHandler = new Handler();
 
         // register to be notified whenever the user changes their preferences
         //  relating to background data use - so that we can respect the current
@@ -323,6 +359,12 @@ public class MqttService extends Service implements MqttCallback {
         if(action.equalsIgnoreCase(MQTT_PUBLISH_MSG_INTENT)){
             Log.d("handleStartAction", "action == MQTT_PUBLISH_MSG_INTENT");
             handlePublishMessageIntent(intent);
+        } else if(action.equalsIgnoreCase(MQTT_ACK_MSG_INTENT)){
+            Log.d("handleStartAction", "action == MQTT_ACK_MSG_INTENT");
+            String[] messageIds = intent.getStringArrayExtra(MQTT_ACK_MSG_IDS);
+            if (messageIds != null) {
+                acknowledgeArrived(messageIds);
+            }
         }
 
         return true;
@@ -373,6 +415,15 @@ public class MqttService extends Service implements MqttCallback {
             mBinder.close();
             mBinder = null;
         }
+
+        synchronized (deliveryLock) {
+            arrivedMessageHandler = null;
+            pendingDeliveries.clear();
+            storedIds = null;
+        }
+        if (messageStore != null) {
+            messageStore.close();
+        }
         super.onDestroy();
     }
 
@@ -395,15 +446,18 @@ public class MqttService extends Service implements MqttCallback {
         sendBroadcast(broadcastIntent);
     }
 
-    private void broadcastReceivedMessage(String topic, String message) {
-        LOGD(TAG, "BROADCAST RECEIVED "+"topic: "+topic+", msg="+message);
+    private void broadcastReceivedMessage(String messageId, String topic, byte[] payload) {
+        LOGD(TAG, "BROADCAST RECEIVED "+"topic: "+topic+", id="+messageId);
         // pass a message received from the MQTT server on to the Activity UI
         //   (for times when it is running / active) so that it can be displayed
         //   in the app GUI
+        // the id lets the receiver confirm it has the message, so that we
+        //   stop keeping it
         Intent broadcastIntent = new Intent();
         broadcastIntent.setAction(MQTT_MSG_RECEIVED_INTENT);
         broadcastIntent.putExtra(MQTT_MSG_RECEIVED_TOPIC, topic);
-        broadcastIntent.putExtra(MQTT_MSG_RECEIVED_MSG,   message.getBytes());
+        broadcastIntent.putExtra(MQTT_MSG_RECEIVED_MSG,   payload);
+        broadcastIntent.putExtra(MQTT_MSG_RECEIVED_ID,    messageId);
         sendBroadcast(broadcastIntent);
     }
 
@@ -485,6 +539,87 @@ public class MqttService extends Service implements MqttCallback {
         broadcastServiceStatus(status);
     }
 
+    /**
+     * Register the handler to be passed received messages, in batches on
+     * the main thread. Any handler registered before is replaced.
+     * <p>
+     * Every message received and not yet confirmed with
+     * {@link #acknowledgeArrived(String[])} is passed to the handler first,
+     * including any passed to an earlier handler, in the order they arrived.
+     * They are read from the message store on another thread, so this
+     * returns before they are passed on.
+     * </p>
+     */
+    public void registerArrivedMessageHandler(MqttServiceDelegate.ArrivedMessageHandler handler) {
+        final int generation;
+        synchronized (deliveryLock) {
+            arrivedMessageHandler = handler;
+            pendingDeliveries.clear();
+            storedIds = null;
+            loadingStored = true;
+            generation = ++handlerGeneration;
+        }
+        // reading every stored message can take a while, so it is not done
+        //  on the main thread, which this is usually called on
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loadStoredMessages(generation);
+            }
+        }, "MQTTstored").start();
+    }
+
+    public void unregisterArrivedMessageHandler(MqttServiceDelegate.ArrivedMessageHandler handler) {
+        synchronized (deliveryLock) {
+            if (arrivedMessageHandler == handler) {
+                arrivedMessageHandler = null;
+                pendingDeliveries.clear();
+                storedIds = null;
+                loadingStored = false;
+            }
+        }
+    }
+
+    /*
+     * Pass the messages stored before the handler was registered to it,
+     *  ahead of those that have arrived since
+     */
+    private void loadStoredMessages(int generation) {
+        List<MessageStore.StoredMessage> stored = new ArrayList<MessageStore.StoredMessage>();
+        Set<String> ids = new HashSet<String>();
+        Iterator<MessageStore.StoredMessage> messages = messageStore.getAllArrivedMessages(clientHandle);
+        while (messages.hasNext()) {
+            MessageStore.StoredMessage message = messages.next();
+            stored.add(message);
+            ids.add(message.getMessageId());
+        }
+        synchronized (deliveryLock) {
+            if (generation != handlerGeneration || arrivedMessageHandler == null) {
+                // replaced or unregistered while the messages were read
+                return;
+            }
+            for (MessageStore.StoredMessage message : pendingDeliveries) {
+                if (!ids.remove(message.getMessageId())) {
+                    stored.add(message);
+                }
+            }
+            pendingDeliveries = stored;
+            storedIds = ids;
+            loadingStored = false;
+            scheduleDelivery();
+        }
+    }
+
+    /**
+     * Confirm that the app has the received messages with the given ids,
+     * so they need not be kept or passed on again
+     */
+    public void acknowledgeArrived(String[] messageIds) {
+        for (String messageId : messageIds) {
+            messageStore.discardArrived(clientHandle, messageId);
+        }
+    }
+
     public void disconnect() {
         disconnectFromBroker();
 
@@ -505,6 +640,7 @@ public class MqttService extends Service implements MqttCallback {
      */
     private void defineConnectionToBroker(String brokerHostName) {
         String mqttConnSpec = "tcp://" + brokerHostName + ":" + brokerPortNumber;
+        clientHandle = mqttConnSpec + ":" + generateClientId();
         try {
             // define the connection to the broker
             //TODO: define persistence
@@ -544,6 +680,12 @@ public class MqttService extends Service implements MqttCallback {
                 // try to connect
                 mqttClient.connect(options);
 
+                // a clean session will not be sent again what we were sent
+                //   before, so there is nothing to keep
+                if (cleanStart) {
+                    messageStore.clearArrivedMessages(clientHandle);
+                }
+
                 //
                 // inform the app that the app has successfully connected
                 broadcastServiceStatus("Connected");
@@ -862,30 +1004,103 @@ public class MqttService extends Service implements MqttCallback {
         }
     }
 
-    private Hashtable<String, String> dataCache = new Hashtable<String, String>();
-    private boolean addReceivedMessageToStore(String key, String value) {
-        String previousValue = null;
-        if (value.length() == 0) {
-            previousValue = dataCache.remove(key);
-        } else {
-            previousValue = dataCache.put(key, value);
+    // provide a public interface, so Activities that bind to the Service can
+    //  request access to previously received messages - those the app has
+    //  not yet confirmed
+    public void rebroadcastReceivedMessages() {
+        Iterator<MessageStore.StoredMessage> stored = messageStore.getAllArrivedMessages(clientHandle);
+        while (stored.hasNext()) {
+            MessageStore.StoredMessage message = stored.next();
+            broadcastReceivedMessage(message.getMessageId(), message.getTopic(),
+                    message.getMessage().getPayload());
         }
+    }
 
-        // is this a new value? or am I receiving something I already knew?
-        //  we return true if this is something new
-        return ((previousValue == null) ||
-                (!previousValue.equals(value)));
+    /*
+     * Pass a received message on to the bound handler, if there is one
+     */
+    private void deliverArrivedMessage(MessageStore.StoredMessage message) {
+        synchronized (deliveryLock) {
+            if (arrivedMessageHandler == null) {
+                return;
+            }
+            if (storedIds != null && storedIds.remove(message.getMessageId())) {
+                // already read from the store, and passed on with the rest
+                return;
+            }
+            pendingDeliveries.add(message);
+            scheduleDelivery();
+        }
     }
 
-    // provide a public interface, so Activities that bind to the Service can
-    //  request access to previously received messages
-    public void rebroadcastReceivedMessages() {
-        Enumeration<String> e = dataCache.keys();
-        while(e.hasMoreElements()) {
-            String nextKey = e.nextElement();
-            String nextValue = dataCache.get(nextKey);
+    /*
+     * Arrange for the messages waiting to be passed to the bound handler on
+     *  the main thread. Messages arriving before then go in the same batch.
+     *  Called holding deliveryLock.
+     */
+    private void scheduleDelivery() {
+        if (!deliveryScheduled && !loadingStored && !pendingDeliveries.isEmpty()) {
+            deliveryScheduled = true;
+            deliveryHandler.post(deliveryRunnable);
+        }
+    }
+
+    private final Runnable deliveryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            MqttServiceDelegate.ArrivedMessageHandler handler;
+            List<MessageStore.StoredMessage> batch;
+            synchronized (deliveryLock) {
+                deliveryScheduled = false;
+                handler = arrivedMessageHandler;
+                if (handler == null || loadingStored || pendingDeliveries.isEmpty()) {
+                    return;
+                }
+                List<MessageStore.StoredMessage> next = pendingDeliveries.subList(0,
+                        Math.min(pendingDeliveries.size(), DELIVERY_BATCH_SIZE));
+                batch = new ArrayList<MessageStore.StoredMessage>(next);
+                next.clear();
+                scheduleDelivery();
+            }
+            handler.handleMessages(batch);
+        }
+    };
+
+    /*
+     * A received message, as passed to the bound handler
+     */
+    private static class ArrivedMessage implements MessageStore.StoredMessage {
+        private String messageId;
+        private String clientHandle;
+        private String topic;
+        private MqttMessage message;
+
+        ArrivedMessage(String messageId, String clientHandle, String topic,
+                       MqttMessage message) {
+            this.messageId = messageId;
+            this.clientHandle = clientHandle;
+            this.topic = topic;
+            this.message = message;
+        }
+
+        @Override
+        public String getMessageId() {
+            return messageId;
+        }
+
+        @Override
+        public String getClientHandle() {
+            return clientHandle;
+        }
+
+        @Override
+        public String getTopic() {
+            return topic;
+        }
 
-            broadcastReceivedMessage(nextKey, nextValue);
+        @Override
+        public MqttMessage getMessage() {
+            return message;
         }
     }
 
@@ -975,16 +1190,24 @@ public class MqttService extends Service implements MqttCallback {
         PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MQTT");
         wl.acquire();
 
-        String messageBody = new String(mqttMessage.getPayload());
-
-        broadcastReceivedMessage(topic, messageBody);
-        notifyUser("New data received", topic, messageBody);
-        scheduleNextPing();
+        try {
+            // the message is acknowledged to the server when we return,
+            //  so it must be stored by then - if storing fails, the
+            //  exception stops it being acknowledged, and it is sent again
+            String messageId = messageStore.storeArrived(clientHandle, topic, mqttMessage);
+            if (mqttMessage.getQos() > 0) {
+                messageStore.flush();
+            }
+            deliverArrivedMessage(new ArrivedMessage(messageId, clientHandle, topic, mqttMessage));
 
-        if(wl.isHeld()) {
-            wl.release();
+            broadcastReceivedMessage(messageId, topic, mqttMessage.getPayload());
+            notifyUser("New data received", "MQTT", topic);
+            scheduleNextPing();
+        } finally {
+            if(wl.isHeld()) {
+                wl.release();
+            }
         }
-
     }
 
     @Override
@@ -992,4 +1215,23 @@ public class MqttService extends Service implements MqttCallback {
         LOGD(TAG, "DeliveryComplete");
     }
 
+    /************************************************************************/
+    /*    METHODS - trace, used by the message store                        */
+    /************************************************************************/
+
+    @Override
+    public void traceDebug(String source, String message) {
+        LOGD(source, message);
+    }
+
+    @Override
+    public void traceError(String source, String message) {
+        LOGE(source, message);
+    }
+
+    @Override
+    public void traceException(String source, String message, Exception e) {
+        LOGE(source, message, e);
+    }
+
 }
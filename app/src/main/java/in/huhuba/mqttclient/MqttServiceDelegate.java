@@ -16,6 +16,16 @@ public class MqttServiceDelegate {
         public void handleMessage(String topic, byte[] payload);
     }
 
+    /**
+     * Receives the messages that have arrived, in batches, when registered
+     * with {@link MqttService#registerArrivedMessageHandler}. Each message
+     * is delivered again, when a handler is next registered, until it is
+     * confirmed with {@link MqttService#acknowledgeArrived}.
+     */
+    public interface ArrivedMessageHandler{
+        public void handleMessages(List<MessageStore.StoredMessage> messages);
+    }
+
     public interface StatusHandler{
         public void handleStatus(MqttService.MQTTConnectionStatus status, String reason);
     }
@@ -39,6 +49,14 @@ public class MqttServiceDelegate {
         context.startService(actionIntent);
     }
 
+    public static void acknowledge(Context context, String[] messageIds)
+    {
+        Intent actionIntent = new Intent(context, MqttService.class);
+        actionIntent.setAction(MqttService.MQTT_ACK_MSG_INTENT);
+        actionIntent.putExtra(MqttService.MQTT_ACK_MSG_IDS, messageIds);
+        context.startService(actionIntent);
+    }
+
     public static class StatusReceiver extends BroadcastReceiver
     {
         private List<StatusHandler> statusHandlers = new ArrayList<StatusHandler>();
@@ -109,10 +127,16 @@ public class MqttServiceDelegate {
             Bundle notificationData = intent.getExtras();
             String topic = notificationData.getString(MqttService.MQTT_MSG_RECEIVED_TOPIC);
             byte[] payload  = notificationData.getByteArray(MqttService.MQTT_MSG_RECEIVED_MSG);
+            String messageId = notificationData.getString(MqttService.MQTT_MSG_RECEIVED_ID);
 
             for(MessageHandler messageHandler : messageHandlers){
                 messageHandler.handleMessage(topic, payload);
             }
+
+            // once handled, the service need not keep the message any longer
+            if(messageId != null && hasHandlers()){
+                acknowledge(context, new String[] { messageId });
+            }
         }
     }
 }
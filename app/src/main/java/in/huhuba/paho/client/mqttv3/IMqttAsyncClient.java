@@ -646,6 +646,101 @@ public interface IMqttAsyncClient {
 	public IMqttToken subscribe(String[] topicFilters, int[] qos, Object userContext, IMqttActionListener callback)
 			throws MqttException;
 
+	/**
+	 * Subscribe to a topic, which may include wildcards, and give the
+	 * messages that arrive on it to a listener of their own.
+	 *
+	 * @see #subscribe(String[], int[], Object, IMqttActionListener, IMqttMessageListener[])
+	 *
+	 * @param topicFilter the topic to subscribe to, which can include wildcards.
+	 * @param qos the maximum quality of service at which to subscribe. Messages
+	 * published at a lower quality of service will be received at the published
+	 * QoS.  Messages published at a higher quality of service will be received using
+	 * the QoS specified on the subscribe.
+	 * @param messageListener the listener the messages are given to
+	 * @return token used to track and wait for the subscribe to complete. The token
+	 * will be passed to callback methods if set.
+	 * @throws MqttException if there was an error registering the subscription.
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos, IMqttMessageListener messageListener)
+			throws MqttException;
+
+	/**
+	 * Subscribe to a topic, which may include wildcards, and give the
+	 * messages that arrive on it to a listener of their own.
+	 *
+	 * @see #subscribe(String[], int[], Object, IMqttActionListener, IMqttMessageListener[])
+	 *
+	 * @param topicFilter the topic to subscribe to, which can include wildcards.
+	 * @param qos the maximum quality of service at which to subscribe. Messages
+	 * published at a lower quality of service will be received at the published
+	 * QoS.  Messages published at a higher quality of service will be received using
+	 * the QoS specified on the subscribe.
+	 * @param userContext optional object used to pass context to the callback. Use
+	 * null if not required.
+	 * @param callback optional listener that will be notified when subscribe
+	 * has completed
+	 * @param messageListener the listener the messages are given to
+	 * @return token used to track and wait for the subscribe to complete. The token
+	 * will be passed to callback methods if set.
+	 * @throws MqttException if there was an error registering the subscription.
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos, Object userContext, IMqttActionListener callback,
+			IMqttMessageListener messageListener) throws MqttException;
+
+	/**
+	 * Subscribe to multiple topics, each of which may include wildcards, and
+	 * give the messages that arrive on each to a listener of its own.
+	 *
+	 * @see #subscribe(String[], int[], Object, IMqttActionListener, IMqttMessageListener[])
+	 *
+	 * @param topicFilters one or more topics to subscribe to, which can include wildcards
+	 * @param qos the maximum quality of service at which to subscribe. Messages
+	 * published at a lower quality of service will be received at the published
+	 * QoS.  Messages published at a higher quality of service will be received using
+	 * the QoS specified on the subscribe.
+	 * @param messageListeners the listener for each topic filter
+	 * @return token used to track and wait for the subscribe to complete. The token
+	 * will be passed to callback methods if set.
+	 * @throws MqttException if there was an error registering the subscription.
+	 */
+	public IMqttToken subscribe(String[] topicFilters, int[] qos, IMqttMessageListener[] messageListeners)
+			throws MqttException;
+
+	/**
+	 * Subscribes to multiple topics, each of which may include wildcards, and
+	 * gives the messages that arrive on each to a listener of its own.
+	 * <p>
+	 * A message is given to every listener whose topic filter matches its
+	 * topic, and to the {@link MqttCallback} only if none do. The listeners
+	 * are set before the subscribe is sent, so they get any retained
+	 * messages, and stay set until the topic filters are unsubscribed from.
+	 * Subscribing to a topic filter again replaces its listener.</p>
+	 * <p>
+	 * Matching a topic against the listeners' topic filters takes time that
+	 * depends on the number of levels in the topic, not on the number of
+	 * topic filters.</p>
+	 *
+	 * @see #subscribe(String[], int[], Object, IMqttActionListener)
+	 *
+	 * @param topicFilters one or more topics to subscribe to, which can include wildcards
+	 * @param qos the maximum quality of service to subscribe each topic at.Messages
+	 * published at a lower quality of service will be received at the published
+	 * QoS.  Messages published at a higher quality of service will be received using
+	 * the QoS specified on the subscribe.
+	 * @param userContext optional object used to pass context to the callback. Use
+	 * null if not required.
+	 * @param callback optional listener that will be notified when subscribe
+	 * has completed
+	 * @param messageListeners the listener for each topic filter
+	 * @return token used to track and wait for the subscribe to complete. The token
+	 * will be passed to callback methods if set.
+	 * @throws MqttException if there was an error registering the subscription.
+	 * @throws IllegalArgumentException if the supplied arrays are not the same size.
+	 */
+	public IMqttToken subscribe(String[] topicFilters, int[] qos, Object userContext, IMqttActionListener callback,
+			IMqttMessageListener[] messageListeners) throws MqttException;
+
 	/**
 	 * Requests the server unsubscribe the client from a topic.
 	 *
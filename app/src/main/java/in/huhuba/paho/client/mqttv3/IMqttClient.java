@@ -303,6 +303,45 @@ public IMqttToken connectWithResult(MqttConnectOptions options) throws MqttSecur
 	 */
   public void subscribe(String[] topicFilters, int[] qos) throws MqttException;
 
+	/**
+	 * Subscribe to a topic, which may include wildcards, and give the
+	 * messages that arrive on it to a listener of their own.
+	 *
+	 * @see #subscribe(String[], int[], IMqttMessageListener[])
+	 *
+	 * @param topicFilter the topic to subscribe to, which can include wildcards.
+	 * @param qos the maximum quality of service at which to subscribe. Messages
+	 * published at a lower quality of service will be received at the published
+	 * QoS.  Messages published at a higher quality of service will be received using
+	 * the QoS specified on the subscribe.
+	 * @param messageListener the listener the messages are given to
+	 * @throws MqttException if there was an error registering the subscription.
+	 */
+  public void subscribe(String topicFilter, int qos, IMqttMessageListener messageListener) throws MqttException;
+
+	/**
+	 * Subscribes to multiple topics, each of which may include wildcards, and
+	 * gives the messages that arrive on each to a listener of its own.
+	 * <p>
+	 * A message is given to every listener whose topic filter matches its
+	 * topic, and to the {@link MqttCallback} only if none do. The listeners
+	 * stay set until the topic filters are unsubscribed from.</p>
+	 *
+	 * <p>This is a blocking method that returns once subscribe completes</p>
+	 *
+	 * @see #subscribe(String[], int[])
+	 *
+	 * @param topicFilters one or more topics to subscribe to, which can include wildcards.
+	 * @param qos the maximum quality of service to subscribe each topic at.Messages
+	 * published at a lower quality of service will be received at the published
+	 * QoS.  Messages published at a higher quality of service will be received using
+	 * the QoS specified on the subscribe.
+	 * @param messageListeners the listener for each topic filter
+	 * @throws MqttException if there was an error registering the subscription.
+	 * @throws IllegalArgumentException if the supplied arrays are not the same size.
+	 */
+  public void subscribe(String[] topicFilters, int[] qos, IMqttMessageListener[] messageListeners) throws MqttException;
+
 	/**
 	 * Requests the server unsubscribe the client from a topic.
 	 *
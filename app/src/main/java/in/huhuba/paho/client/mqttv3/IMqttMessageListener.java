@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3;
+
+/**
+ * Implementors of this interface are given the messages that arrive on the
+ * topics matching the topic filter they were subscribed with (see
+ * {@link IMqttAsyncClient#subscribe(String, int, IMqttMessageListener)}).
+ * <p>
+ * A message is given to every listener whose topic filter its topic
+ * matches. Messages that match none are given to the client's
+ * {@link MqttCallback} instead. Listeners are called on the thread that
+ * delivers messages to the callback, and the message is acknowledged once
+ * all of them have returned.</p>
+ */
+public interface IMqttMessageListener {
+	/**
+	 * This method is called when a message arrives on a topic matching the
+	 * topic filter this listener was subscribed with.
+	 * <p>
+	 * Throwing an exception from this method shuts down the client, as it
+	 * does from {@link MqttCallback#messageArrived(String, MqttMessage)}.</p>
+	 *
+	 * @param topic name of the topic on the message was published to
+	 * @param message the actual message.
+	 * @throws Exception if a terminal error has occurred, and the client should be
+	 * shut down.
+	 */
+	public void messageArrived(String topic, MqttMessage message) throws Exception;
+}
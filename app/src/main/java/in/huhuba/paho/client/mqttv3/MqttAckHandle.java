@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3;
+
+/**
+ * Acknowledges one arrived message, given to a
+ * {@link MqttManualAckCallback} along with the message.
+ * <p>
+ * Until it is acknowledged the server does not consider the message
+ * delivered, and it counts against the client's receive window (see
+ * {@link MqttConnectOptions#setReceiveWindow(int)}).</p>
+ */
+public interface MqttAckHandle {
+	/**
+	 * Acknowledges the message to the server: a QoS 1 message is sent its
+	 * PUBACK, a QoS 2 message its PUBCOMP. May be called from any thread,
+	 * and more than once, though only the first call has an effect.
+	 * <p>
+	 * If the connection the message arrived on has since been lost, nothing
+	 * is sent. The server delivers a QoS 1 or 2 message again when the
+	 * client reconnects without a clean session.</p>
+	 *
+	 * @throws MqttException if the acknowledgement could not be queued
+	 */
+	public void ack() throws MqttException;
+
+	/**
+	 * Returns whether {@link #ack()} has been called.
+	 * @return true once the message has been acknowledged.
+	 */
+	public boolean isAcked();
+}
@@ -23,6 +23,7 @@ import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 
 import in.huhuba.paho.client.mqttv3.internal.ClientComms;
+import in.huhuba.paho.client.mqttv3.internal.ClientState;
 import in.huhuba.paho.client.mqttv3.internal.ConnectActionListener;
 import in.huhuba.paho.client.mqttv3.internal.ExceptionHelper;
 import in.huhuba.paho.client.mqttv3.internal.LocalNetworkModule;
@@ -712,6 +713,60 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 		return token;
 	}
 
+	/* (non-Javadoc)
+	 * @see IMqttAsyncClient#subscribe(java.lang.String, int, IMqttMessageListener)
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos, IMqttMessageListener messageListener) throws MqttException {
+		return this.subscribe(new String[] {topicFilter}, new int[] {qos}, null, null, new IMqttMessageListener[] {messageListener});
+	}
+
+	/* (non-Javadoc)
+	 * @see IMqttAsyncClient#subscribe(java.lang.String, int, java.lang.Object, IMqttActionListener, IMqttMessageListener)
+	 */
+	public IMqttToken subscribe(String topicFilter, int qos, Object userContext, IMqttActionListener callback,
+			IMqttMessageListener messageListener) throws MqttException {
+		return this.subscribe(new String[] {topicFilter}, new int[] {qos}, userContext, callback, new IMqttMessageListener[] {messageListener});
+	}
+
+	/* (non-Javadoc)
+	 * @see IMqttAsyncClient#subscribe(java.lang.String[], int[], IMqttMessageListener[])
+	 */
+	public IMqttToken subscribe(String[] topicFilters, int[] qos, IMqttMessageListener[] messageListeners) throws MqttException {
+		return this.subscribe(topicFilters, qos, null, null, messageListeners);
+	}
+
+	/* (non-Javadoc)
+	 * @see IMqttAsyncClient#subscribe(java.lang.String[], int[], java.lang.Object, IMqttActionListener, IMqttMessageListener[])
+	 */
+	public IMqttToken subscribe(String[] topicFilters, int[] qos, Object userContext, IMqttActionListener callback,
+			IMqttMessageListener[] messageListeners) throws MqttException {
+		if (topicFilters.length != qos.length || messageListeners.length != topicFilters.length) {
+			throw new IllegalArgumentException();
+		}
+		for (int i=0;i<topicFilters.length;i++) {
+			MqttTopic.validate(topicFilters[i], true/*allow wildcards*/);
+		}
+		// Set before subscribing, so that no message arrives before them
+		IMqttMessageListener[] previous = new IMqttMessageListener[topicFilters.length];
+		for (int i=0;i<topicFilters.length;i++) {
+			previous[i] = comms.setMessageListener(topicFilters[i], messageListeners[i]);
+		}
+		try {
+			return this.subscribe(topicFilters, qos, userContext, callback);
+		} catch (MqttException ex) {
+			// Put back the listeners replaced, last first in case a filter
+			// was given more than once
+			for (int i=topicFilters.length-1;i>=0;i--) {
+				if (previous[i] != null) {
+					comms.setMessageListener(topicFilters[i], previous[i]);
+				} else {
+					comms.removeMessageListener(topicFilters[i]);
+				}
+			}
+			throw ex;
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see IMqttAsyncClient#unsubscribe(java.lang.String, java.lang.Object, IMqttActionListener)
 	 */
@@ -760,6 +815,11 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 		token.setUserContext(userContext);
 		token.internalTok.setTopics(topicFilters);
 
+		// Any messages still arriving go to the callback
+		for (int i=0;i<topicFilters.length;i++) {
+			comms.removeMessageListener(topicFilters[i]);
+		}
+
 		MqttUnsubscribe unregister = new MqttUnsubscribe(topicFilters);
 
 		comms.sendNoWait(unregister, token);
@@ -841,7 +901,14 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 		token.setMessage(message);
 		token.internalTok.setTopics(new String[] {topic});
 
-		MqttPublish pubMsg = new MqttPublish(topic, message);
+		// The token keeps the message as published, while a compressed
+		// copy is sent and persisted
+		MqttMessage wireMessage = message;
+		MqttConnectOptions options = comms.getConOptions();
+		if (options != null && options.getCompression() != null) {
+			wireMessage = options.getCompression().compress(topic, message);
+		}
+		MqttPublish pubMsg = new MqttPublish(topic, wireMessage);
 		comms.sendNoWait(pubMsg, token);
 
 		//@TRACE 112=<
@@ -850,6 +917,78 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 		return token;
 	}
 
+	/**
+	 * Connects to the server using the given options, returning a future
+	 * that finishes when the connect does.
+	 * @see #connect(MqttConnectOptions)
+	 * @see MqttFuture
+	 */
+	public MqttFuture connectAsync(MqttConnectOptions options) throws MqttException, MqttSecurityException {
+		return new MqttFuture(connect(options, null, null));
+	}
+
+	/**
+	 * Disconnects from the server, returning a future that finishes when
+	 * the disconnect does.
+	 * @see #disconnect()
+	 * @see MqttFuture
+	 */
+	public MqttFuture disconnectAsync() throws MqttException {
+		return new MqttFuture(disconnect(null, null));
+	}
+
+	/**
+	 * Publishes a message to a topic on the server, returning a future that
+	 * finishes when delivery does.
+	 * @see #publish(String, MqttMessage)
+	 * @see MqttFuture
+	 */
+	public MqttFuture publishAsync(String topic, MqttMessage message) throws MqttException,
+			MqttPersistenceException {
+		return new MqttFuture(publish(topic, message, null, null));
+	}
+
+	/**
+	 * Subscribes to a topic, returning a future that finishes when the
+	 * subscribe does.
+	 * @see #subscribe(String, int)
+	 * @see MqttFuture
+	 */
+	public MqttFuture subscribeAsync(String topicFilter, int qos) throws MqttException {
+		return new MqttFuture(subscribe(new String[] {topicFilter}, new int[] {qos}, null, null));
+	}
+
+	/**
+	 * Subscribes to multiple topics, returning a future that finishes when
+	 * the subscribe does.
+	 * @see #subscribe(String[], int[])
+	 * @see MqttFuture
+	 */
+	public MqttFuture subscribeAsync(String[] topicFilters, int[] qos) throws MqttException {
+		return new MqttFuture(subscribe(topicFilters, qos, null, null));
+	}
+
+	/**
+	 * Subscribes to multiple topics with a message listener for each,
+	 * returning a future that finishes when the subscribe does.
+	 * @see #subscribe(String[], int[], IMqttMessageListener[])
+	 * @see MqttFuture
+	 */
+	public MqttFuture subscribeAsync(String[] topicFilters, int[] qos, IMqttMessageListener[] messageListeners)
+			throws MqttException {
+		return new MqttFuture(subscribe(topicFilters, qos, null, null, messageListeners));
+	}
+
+	/**
+	 * Unsubscribes from one or more topics, returning a future that
+	 * finishes when the unsubscribe does.
+	 * @see #unsubscribe(String[])
+	 * @see MqttFuture
+	 */
+	public MqttFuture unsubscribeAsync(String[] topicFilters) throws MqttException {
+		return new MqttFuture(unsubscribe(topicFilters, null, null));
+	}
+
 	/* (non-Javadoc)
 	 * @see IMqttAsyncClient#close()
 	 */
@@ -870,4 +1009,60 @@ public class MqttAsyncClient implements IMqttAsyncClient { // DestinationProvide
 		return new Debug(clientId,comms);
 	}
 
+	/**
+	 * Returns a snapshot of the inflight window: how many messages may be
+	 * in flight at the moment, and the round trip times, in milliseconds,
+	 * of QoS 1 and 2 publishes since connecting.
+	 * @see MqttConnectOptions#setAdaptiveInflight(boolean)
+	 */
+	public Properties getInflightStats() {
+		return comms.getClientState().getInflightWindow().getDebug();
+	}
+
+	/**
+	 * Returns how long published messages have taken to be acknowledged
+	 * since the client was created or the statistics were last reset. The
+	 * time runs from the message being written to the network to the
+	 * PUBACK for QoS 1 (<code>qos1</code>), and to the PUBREC
+	 * (<code>qos2PubRec</code>) and the PUBCOMP (<code>qos2</code>) for
+	 * QoS 2. Each holds the count and the mean, maximum, 50th, 99th and
+	 * 99.9th percentile latencies in milliseconds.
+	 * @see #getLatencyPercentile(int, double)
+	 */
+	public Properties getLatencyStats() {
+		ClientState state = comms.getClientState();
+		Properties props = new Properties();
+		props.put("qos1", state.getLatency(1).getDebug());
+		props.put("qos2PubRec", state.getPubRecLatency().getDebug());
+		props.put("qos2", state.getLatency(2).getDebug());
+		return props;
+	}
+
+	/**
+	 * Returns the time in milliseconds within which the given percentage
+	 * of published messages of a QoS were acknowledged, or 0 if none have
+	 * been yet.
+	 * @param qos the QoS of the messages, 1 or 2
+	 * @param percentile the percentage of messages, for example 99.9
+	 * @throws IllegalArgumentException if the QoS is not 1 or 2
+	 * @see #getLatencyStats()
+	 */
+	public double getLatencyPercentile(int qos, double percentile) {
+		if (qos != 1 && qos != 2) {
+			throw new IllegalArgumentException();
+		}
+		return comms.getClientState().getLatency(qos).getPercentile(percentile);
+	}
+
+	/**
+	 * Clears the latencies recorded so far.
+	 * @see #getLatencyStats()
+	 */
+	public void resetLatencyStats() {
+		ClientState state = comms.getClientState();
+		state.getLatency(1).reset();
+		state.getPubRecLatency().reset();
+		state.getLatency(2).reset();
+	}
+
 }
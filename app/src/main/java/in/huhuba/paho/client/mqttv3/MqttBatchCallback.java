@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3;
+
+/**
+ * A callback that is given arrived messages several at a time, so that an
+ * application can handle them together, for instance writing them to a
+ * database in one transaction.
+ * <p>
+ * When the callback set on a client implements this interface,
+ * {@link #messagesArrived(String[], MqttMessage[])} is called in place of
+ * {@link MqttCallback#messageArrived(String, MqttMessage)}. Each call is
+ * given the messages waiting to be delivered, up to
+ * {@link MqttConnectOptions#setMaxArrivedBatchSize(int)} of them, after
+ * waiting up to {@link MqttConnectOptions#setArrivedLinger(int)} milliseconds
+ * for more to arrive.</p>
+ */
+public interface MqttBatchCallback extends MqttCallback {
+	/**
+	 * This method is called when messages arrive from the server.
+	 *
+	 * <p>
+	 * The messages are in the order they arrived, and with several callback
+	 * threads they all have the same dispatch key. Acknowledgments for all
+	 * of them are sent together once this method returns cleanly.</p>
+	 * <p>
+	 * If an implementation of this method throws an <code>Exception</code>, then
+	 * the client will be shut down, and none of the messages are
+	 * acknowledged. When the client is next re-connected, any QoS 1 or 2
+	 * messages will be redelivered by the server.</p>
+	 *
+	 * @param topics the topic each message was published to
+	 * @param messages the messages, as many as there are topics
+	 * @throws Exception if a terminal error has occurred, and the client should be
+	 * shut down.
+	 */
+	public void messagesArrived(String[] topics, MqttMessage[] messages) throws Exception;
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A persistent data store that can take and return data as
+ * {@link ByteBuffer}s, so that data need not be copied in and out of byte
+ * arrays on its way to and from storage. The buffers may be heap, direct or
+ * memory mapped ones.
+ * <p>
+ * The client uses these methods in place of
+ * {@link #put(String, MqttPersistable)} and {@link #get(String)} when the
+ * persistence implements this interface. Data stored through either set of
+ * methods can be read through the other.</p>
+ */
+public interface MqttBufferPersistence extends MqttClientPersistence {
+	/**
+	 * Puts the specified data into the persistent store. The bytes stored
+	 * are those from the position to the limit of each buffer; the buffers'
+	 * positions are not changed.
+	 * @param key the key for the data, which will be used later to retrieve it.
+	 * @param header the header bytes
+	 * @param payload the payload bytes, or null if there are none
+	 * @throws MqttPersistenceException if there was a problem putting the data
+	 * into the persistent store.
+	 */
+	public void putBuffer(String key, ByteBuffer header, ByteBuffer payload) throws MqttPersistenceException;
+
+	/**
+	 * Gets the specified data out of the persistent store, the header
+	 * followed by the payload, from the position to the limit of the buffer
+	 * returned. The buffer may share the store's own memory, but what it
+	 * holds must not change until the key is removed or stored again, as
+	 * the client may read it while the store is in use.
+	 * @param key the key for the data, which was used when originally saving it.
+	 * @return the data, or null if there is none with the key.
+	 * @throws MqttPersistenceException if there was a problem getting the data
+	 * from the persistent store.
+	 */
+	public ByteBuffer getBuffer(String key) throws MqttPersistenceException;
+
+	/**
+	 * Puts several pieces of data into the persistent store in one go, as
+	 * {@link #putBuffer(String, ByteBuffer, ByteBuffer)} would one at a
+	 * time.
+	 * <p>
+	 * If an exception is thrown, the data before the one that failed may
+	 * or may not have been stored.</p>
+	 * @param keys the keys for the data
+	 * @param headers the header bytes for each key
+	 * @param payloads the payload bytes for each key, any of which may be null
+	 * @throws MqttPersistenceException if there was a problem putting the data
+	 * into the persistent store.
+	 */
+	public void putAll(String[] keys, ByteBuffer[] headers, ByteBuffer[] payloads) throws MqttPersistenceException;
+
+	/**
+	 * Removes the data for several keys in one go.
+	 * <p>
+	 * If an exception is thrown, the data before the one that failed may
+	 * or may not have been removed.</p>
+	 * @param keys the keys for the data
+	 */
+	public void removeAll(String[] keys) throws MqttPersistenceException;
+}
@@ -328,6 +328,31 @@ public class MqttClient implements IMqttClient { //), DestinationProvider {
 		}
 	}
 
+	/*
+	 * @see IMqttClient#subscribe(String, int, IMqttMessageListener)
+	 */
+	public void subscribe(String topicFilter, int qos, IMqttMessageListener messageListener) throws MqttException {
+		this.subscribe(new String[] {topicFilter}, new int[] {qos}, new IMqttMessageListener[] {messageListener});
+	}
+
+	/*
+	 * @see IMqttClient#subscribe(String[], int[], IMqttMessageListener[])
+	 */
+	public void subscribe(String[] topicFilters, int[] qos, IMqttMessageListener[] messageListeners) throws MqttException {
+		IMqttToken tok = aClient.subscribe(topicFilters, qos, null, null, messageListeners);
+		tok.waitForCompletion(getTimeToWait());
+		int[] grantedQos = tok.getGrantedQos();
+		for (int i = 0; i < grantedQos.length; ++i) {
+			qos[i] = grantedQos[i];
+		}
+		if (grantedQos.length == 1 && qos[0] == 0x80) {
+			for (int i = 0; i < topicFilters.length; i++) {
+				aClient.comms.removeMessageListener(topicFilters[i]);
+			}
+			throw new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED);
+		}
+	}
+
 	/*
 	 * @see IMqttClient#unsubscribe(String)
 	 */
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3;
+
+/**
+ * Implementors of this interface will be notified when a
+ * {@link MqttGroupCommitPersistence} has committed records to disk.
+ * <p>
+ * The listener is called on the thread that did the commit, which may be
+ * the persistence's own thread or one storing data. It should return
+ * quickly. Calls may be made from several threads at once, so they need
+ * not arrive in sequence order.</p>
+ */
+public interface MqttCommitListener {
+	/**
+	 * This method is invoked when records have been committed.
+	 * @param sequence the sequence number of the last record committed
+	 */
+	public void committed(long sequence);
+
+	/**
+	 * This method is invoked when records could not be committed. Records
+	 * after the last one reported committed may have been lost, and no more
+	 * will be committed until the persistence is closed and opened again.
+	 * @param cause why the records could not be committed
+	 */
+	public void commitFailed(MqttPersistenceException cause);
+}
@@ -0,0 +1,487 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import in.huhuba.paho.client.mqttv3.internal.wire.MqttReceivedMessage;
+import in.huhuba.paho.client.mqttv3.logging.LogUtils;
+import in.huhuba.paho.client.mqttv3.util.Debug;
+
+import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
+
+/**
+ * Compresses the payloads of messages published, and decompresses those
+ * of messages received, on chosen topics. Set it on the connect options
+ * with {@link MqttConnectOptions#setCompression(MqttCompression)}; both
+ * ends of a topic must use it.
+ * <p>
+ * Payloads of at least {@link #getThreshold()} bytes published on a topic
+ * matching one of the topic filters are deflated, and sent and stored in
+ * persistence compressed if that makes them smaller. A compressed payload
+ * starts with a two byte marker, the first of which can never start UTF-8
+ * text, followed by a zlib stream. Received payloads on matching topics
+ * that start with the marker are inflated before they are delivered; any
+ * that cannot be are delivered as they are.</p>
+ * <p>
+ * A preset dictionary of strings common in the payloads, such as JSON
+ * field names, makes small payloads compress much better. Both ends must
+ * set the same one.</p>
+ * <p>
+ * Delivery tokens of publishes restored from persistence after a restart
+ * hold the compressed message.</p>
+ */
+public class MqttCompression {
+	private static final String TAG = LogUtils.makeLogTag(MqttCompression.class);
+
+	/**
+	 * The default smallest payload compressed, in bytes
+	 */
+	public static final int THRESHOLD_DEFAULT = 256;
+	/**
+	 * The default compression level, zlib's own default
+	 */
+	public static final int LEVEL_DEFAULT = Deflater.DEFAULT_COMPRESSION;
+
+	// 0xFE is not valid anywhere in UTF-8. The second byte is the format.
+	private static final byte MARKER = (byte) 0xFE;
+	private static final byte MARKER_VERSION = 1;
+	private static final int MARKER_LENGTH = 2;
+	// Contexts kept for reuse, of each kind
+	private static final int POOL_SIZE = 4;
+	private static final int MIN_BUFFER_SIZE = 1024;
+	private static final int MAX_KEPT_BUFFER = 64 * 1024;
+	// Largest payload an MQTT packet can carry
+	private static final int MAX_PAYLOAD = 256 * 1024 * 1024;
+
+	private int threshold = THRESHOLD_DEFAULT;
+	private String[] topicFilters = new String[] {MqttTopic.MULTI_LEVEL_WILDCARD};
+	private int level = LEVEL_DEFAULT;
+	private byte[] dictionary = null;
+	private long dictionaryId = 0;
+	// Changed with the settings, so that contexts made for the old ones
+	// are not reused
+	private int generation = 0;
+
+	// Idle contexts, each with the buffer it works in
+	private Vector<Context> deflaters = new Vector<Context>();
+	private Vector<Context> inflaters = new Vector<Context>();
+
+	private long compressedCount = 0;
+	private long uncompressedBytes = 0;
+	private long compressedBytes = 0;
+	private long compressTime = 0;
+	private long skippedCount = 0;
+	private long decompressedCount = 0;
+	private long decompressTime = 0;
+	private long failedCount = 0;
+
+	private static class Context {
+		int generation;
+		byte[] dictionary;
+		Deflater deflater;
+		Inflater inflater;
+		byte[] buffer = new byte[MIN_BUFFER_SIZE];
+	}
+
+	/**
+	 * Returns the smallest payload compressed.
+	 * @see #setThreshold(int)
+	 */
+	public synchronized int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets the smallest payload, in bytes, that is compressed. Small
+	 * payloads rarely get smaller.
+	 * <p>The default value is 256.</p>
+	 * @param threshold the size in bytes, at least 0.
+	 * @throws IllegalArgumentException if the size is negative
+	 */
+	public synchronized void setThreshold(int threshold) throws IllegalArgumentException {
+		if (threshold < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Returns the topic filters whose messages are compressed.
+	 * @see #setTopicFilters(String[])
+	 */
+	public synchronized String[] getTopicFilters() {
+		return topicFilters.clone();
+	}
+
+	/**
+	 * Sets the topic filters whose messages are compressed and
+	 * decompressed. Filters may contain wildcards.
+	 * <p>The default value is "#", every topic.</p>
+	 * @param topicFilters the filters
+	 * @throws IllegalArgumentException if any filter is invalid
+	 */
+	public synchronized void setTopicFilters(String[] topicFilters) throws IllegalArgumentException {
+		if (topicFilters == null) {
+			throw new IllegalArgumentException();
+		}
+		for (int i = 0; i < topicFilters.length; i++) {
+			MqttTopic.validate(topicFilters[i], true);
+		}
+		this.topicFilters = topicFilters.clone();
+	}
+
+	/**
+	 * Returns the compression level.
+	 * @see #setLevel(int)
+	 */
+	public synchronized int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Sets the compression level, from 1, the fastest, to 9, the smallest.
+	 * <p>The default value is {@link #LEVEL_DEFAULT}.</p>
+	 * @param level the level, or {@link #LEVEL_DEFAULT}
+	 * @throws IllegalArgumentException if the level is out of range
+	 */
+	public synchronized void setLevel(int level) throws IllegalArgumentException {
+		if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) && level != LEVEL_DEFAULT) {
+			throw new IllegalArgumentException();
+		}
+		this.level = level;
+		generation++;
+		endContexts(deflaters);
+	}
+
+	/**
+	 * Returns the preset dictionary, or null if there is none.
+	 * @see #setDictionary(byte[])
+	 */
+	public synchronized byte[] getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Sets a preset dictionary: bytes that commonly appear in the payloads,
+	 * the most common last. The receiver must set the same dictionary.
+	 * Streams say which dictionary they need, so payloads compressed with
+	 * no dictionary, or another, are still recognised.
+	 * @param dictionary the dictionary, or null for none
+	 */
+	public synchronized void setDictionary(byte[] dictionary) {
+		this.dictionary = dictionary;
+		if (dictionary != null) {
+			Adler32 adler = new Adler32();
+			adler.update(dictionary);
+			dictionaryId = adler.getValue();
+		}
+		generation++;
+		endContexts(deflaters);
+	}
+
+	/**
+	 * Returns whether messages on the topic are compressed.
+	 */
+	public boolean isCompressed(String topic) {
+		String[] filters;
+		synchronized (this) {
+			filters = topicFilters;
+		}
+		for (int i = 0; i < filters.length; i++) {
+			if (MqttTopic.isMatched(filters[i], topic)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the message to send in place of one published on the given
+	 * topic: the same message if it is not to be compressed, otherwise a
+	 * copy with its payload compressed. This is done by the client.
+	 */
+	public MqttMessage compress(String topic, MqttMessage message) {
+		final String methodName = "compress";
+		int length = message.getPayloadLength();
+		if (length < getThreshold() || !isCompressed(topic)) {
+			return message;
+		}
+
+		long start = System.nanoTime();
+		byte[] payload = message.getPayload();
+		Context context = takeDeflater();
+		int compressed;
+		try {
+			// Deflate into the buffer for as long as the result is smaller
+			// than the payload
+			if (context.buffer.length < length) {
+				context.buffer = new byte[length];
+			}
+			byte[] buffer = context.buffer;
+			buffer[0] = MARKER;
+			buffer[1] = MARKER_VERSION;
+			compressed = MARKER_LENGTH;
+			Deflater deflater = context.deflater;
+			if (context.dictionary != null) {
+				deflater.setDictionary(context.dictionary);
+			}
+			deflater.setInput(payload, 0, length);
+			deflater.finish();
+			while (!deflater.finished() && compressed < length) {
+				compressed += deflater.deflate(buffer, compressed, length - compressed);
+			}
+			if (!deflater.finished() || compressed >= length) {
+				compressed = -1;
+			}
+		} finally {
+			context.deflater.reset();
+		}
+
+		MqttMessage result = null;
+		if (compressed > 0) {
+			byte[] bytes = new byte[compressed];
+			System.arraycopy(context.buffer, 0, bytes, 0, compressed);
+			result = new MqttMessage(bytes);
+			result.setQos(message.getQos());
+			result.setRetained(message.isRetained());
+		}
+		giveBack(deflaters, context);
+		long time = System.nanoTime() - start;
+
+		synchronized (this) {
+			compressTime += time;
+			if (result == null) {
+				skippedCount++;
+				return message;
+			}
+			compressedCount++;
+			uncompressedBytes += length;
+			compressedBytes += result.getPayloadLength();
+		}
+		//@TRACE 120=compressed topic={0} from={1} to={2}
+		LOGD(TAG, methodName+" 120");
+		return result;
+	}
+
+	/**
+	 * Returns the message to deliver in place of one received on the given
+	 * topic: a copy with its payload decompressed if it was compressed,
+	 * otherwise the same message. This is done by the client.
+	 */
+	public MqttMessage decompress(String topic, MqttMessage message) {
+		final String methodName = "decompress";
+		int length = message.getPayloadLength();
+		if (length <= MARKER_LENGTH || !isCompressed(topic)) {
+			return message;
+		}
+		ByteBuffer view = message.getPayloadBuffer();
+		if (view.get(view.position()) != MARKER || view.get(view.position() + 1) != MARKER_VERSION) {
+			return message;
+		}
+
+		long start = System.nanoTime();
+		byte[] payload = message.getPayload();
+		Context context = takeInflater();
+		byte[] bytes = null;
+		try {
+			Inflater inflater = context.inflater;
+			inflater.setInput(payload, MARKER_LENGTH, length - MARKER_LENGTH);
+			int inflated = 0;
+			while (!inflater.finished()) {
+				if (inflated == context.buffer.length) {
+					if (inflated >= MAX_PAYLOAD) {
+						throw new DataFormatException();
+					}
+					byte[] larger = new byte[Math.min(inflated * 2, MAX_PAYLOAD)];
+					System.arraycopy(context.buffer, 0, larger, 0, inflated);
+					context.buffer = larger;
+				}
+				int count = inflater.inflate(context.buffer, inflated, context.buffer.length - inflated);
+				inflated += count;
+				if (count == 0 && inflater.needsDictionary()) {
+					byte[] dictionary = getDictionary();
+					if (dictionary == null || (inflater.getAdler() & 0xFFFFFFFFL) != dictionaryId) {
+						throw new DataFormatException();
+					}
+					inflater.setDictionary(dictionary);
+				} else if (count == 0 && inflater.needsInput()) {
+					// The stream is cut short
+					throw new DataFormatException();
+				}
+			}
+			bytes = new byte[inflated];
+			System.arraycopy(context.buffer, 0, bytes, 0, inflated);
+		} catch (DataFormatException ex) {
+			//@TRACE 121=could not decompress topic={0}
+			LOGD(TAG, methodName+" 121", ex);
+		} finally {
+			context.inflater.reset();
+		}
+		giveBack(inflaters, context);
+		long time = System.nanoTime() - start;
+
+		synchronized (this) {
+			decompressTime += time;
+			if (bytes == null) {
+				failedCount++;
+				return message;
+			}
+			decompressedCount++;
+		}
+
+		MqttMessage result;
+		if (message instanceof MqttReceivedMessage) {
+			MqttReceivedMessage received = new MqttReceivedMessage();
+			received.setMessageId(((MqttReceivedMessage) message).getMessageId());
+			result = received;
+		} else {
+			result = new MqttMessage();
+		}
+		result.setPayload(bytes);
+		result.setQos(message.getQos());
+		result.setRetained(message.isRetained());
+		result.setDuplicate(message.isDuplicate());
+		return result;
+	}
+
+	private Context takeDeflater() {
+		synchronized (deflaters) {
+			if (!deflaters.isEmpty()) {
+				return deflaters.remove(deflaters.size() - 1);
+			}
+		}
+		Context context = new Context();
+		synchronized (this) {
+			context.generation = generation;
+			context.dictionary = dictionary;
+			context.deflater = new Deflater(level);
+		}
+		return context;
+	}
+
+	private Context takeInflater() {
+		synchronized (inflaters) {
+			if (!inflaters.isEmpty()) {
+				return inflaters.remove(inflaters.size() - 1);
+			}
+		}
+		Context context = new Context();
+		context.inflater = new Inflater();
+		return context;
+	}
+
+	private void giveBack(Vector<Context> pool, Context context) {
+		if (context.buffer.length > MAX_KEPT_BUFFER) {
+			// Do not hold on to a buffer grown for one exceptionally large payload
+			context.buffer = new byte[MIN_BUFFER_SIZE];
+		}
+		synchronized (this) {
+			synchronized (pool) {
+				boolean current = (context.deflater == null) || (context.generation == generation);
+				if (current && pool.size() < POOL_SIZE) {
+					pool.addElement(context);
+					return;
+				}
+			}
+		}
+		end(context);
+	}
+
+	private void endContexts(Vector<Context> pool) {
+		synchronized (pool) {
+			for (int i = 0; i < pool.size(); i++) {
+				end(pool.elementAt(i));
+			}
+			pool.clear();
+		}
+	}
+
+	private static void end(Context context) {
+		if (context.deflater != null) {
+			context.deflater.end();
+		}
+		if (context.inflater != null) {
+			context.inflater.end();
+		}
+	}
+
+	/**
+	 * Returns how many payloads have been compressed.
+	 */
+	public synchronized long getCompressedCount() {
+		return compressedCount;
+	}
+
+	/**
+	 * Returns how many payloads have been decompressed.
+	 */
+	public synchronized long getDecompressedCount() {
+		return decompressedCount;
+	}
+
+	/**
+	 * Returns the size of the payloads compressed before and after
+	 * compression, as a ratio, or 0 if none have been.
+	 */
+	public synchronized double getRatio() {
+		if (compressedBytes == 0) {
+			return 0;
+		}
+		return (double) uncompressedBytes / compressedBytes;
+	}
+
+	/**
+	 * Returns the time spent compressing, in nanoseconds. This includes
+	 * payloads that did not get smaller and so were sent as they were.
+	 */
+	public synchronized long getCompressTime() {
+		return compressTime;
+	}
+
+	/**
+	 * Returns the time spent decompressing, in nanoseconds.
+	 */
+	public synchronized long getDecompressTime() {
+		return decompressTime;
+	}
+
+	public synchronized Properties getDebug() {
+		Properties p = new Properties();
+		p.put("Threshold", new Integer(threshold));
+		p.put("Level", new Integer(level));
+		p.put("Dictionary", (dictionary == null) ? "null" : new Integer(dictionary.length));
+		p.put("compressed", new Long(compressedCount));
+		p.put("notSmaller", new Long(skippedCount));
+		p.put("uncompressedBytes", new Long(uncompressedBytes));
+		p.put("compressedBytes", new Long(compressedBytes));
+		p.put("compressMicros", new Long(compressTime / 1000));
+		p.put("decompressed", new Long(decompressedCount));
+		p.put("decompressFailed", new Long(failedCount));
+		p.put("decompressMicros", new Long(decompressTime / 1000));
+		return p;
+	}
+
+	public String toString() {
+		return Debug.dumpProperties(getDebug(), "Compression");
+	}
+}
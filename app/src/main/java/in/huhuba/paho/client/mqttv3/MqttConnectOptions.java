@@ -47,6 +47,59 @@ public class MqttConnectOptions {
 	public static final int MQTT_VERSION_DEFAULT = 0;
 	public static final int MQTT_VERSION_3_1 = 3;
 	public static final int MQTT_VERSION_3_1_1 = 4;
+	/**
+	 * The default time in milliseconds the client waits for more messages
+	 * before flushing a batch: none, so each batch is flushed straight away
+	 */
+	public static final int SEND_LINGER_DEFAULT = 0;
+	/**
+	 * The default maximum number of messages written per flush
+	 */
+	public static final int MAX_SEND_BATCH_SIZE_DEFAULT = 64;
+	/**
+	 * The largest maximum number of messages written per flush
+	 */
+	public static final int MAX_SEND_BATCH_SIZE_LIMIT = 1024;
+	/**
+	 * The default maximum number of bytes written per flush
+	 */
+	public static final int MAX_SEND_BATCH_BYTES_DEFAULT = 64 * 1024;
+	/**
+	 * The default maximum number of QoS 1 and 2 messages in flight
+	 */
+	public static final int MAX_INFLIGHT_DEFAULT = 10;
+	/**
+	 * The default is a fixed inflight window
+	 */
+	public static final boolean ADAPTIVE_INFLIGHT_DEFAULT = false;
+	/**
+	 * The default is to write to persistence on the calling thread
+	 */
+	public static final boolean ASYNC_PERSISTENCE_DEFAULT = false;
+	/**
+	 * The default is to deliver arrived messages on a single thread
+	 */
+	public static final int CALLBACK_THREADS_DEFAULT = 1;
+	/**
+	 * The default maximum number of arrived messages waiting to be
+	 * delivered on each thread
+	 */
+	public static final int INBOUND_QUEUE_SIZE_DEFAULT = 10;
+	/**
+	 * The default maximum number of messages given to a
+	 * {@link MqttBatchCallback} at once
+	 */
+	public static final int MAX_ARRIVED_BATCH_SIZE_DEFAULT = 64;
+	/**
+	 * The default time in milliseconds a {@link MqttBatchCallback} waits for
+	 * more messages: none, so it is given those already waiting
+	 */
+	public static final int ARRIVED_LINGER_DEFAULT = 0;
+	/**
+	 * The default maximum number of arrived messages a
+	 * {@link MqttManualAckCallback} may leave unacknowledged
+	 */
+	public static final int RECEIVE_WINDOW_DEFAULT = 100;
 
 	protected static final int URI_TYPE_TCP = 0;
 	protected static final int URI_TYPE_SSL = 1;
@@ -63,6 +116,19 @@ public class MqttConnectOptions {
 	private int connectionTimeout = CONNECTION_TIMEOUT_DEFAULT;
 	private String[] serverURIs = null;
 	private int MqttVersion = MQTT_VERSION_DEFAULT;
+	private int sendLinger = SEND_LINGER_DEFAULT;
+	private int maxSendBatchSize = MAX_SEND_BATCH_SIZE_DEFAULT;
+	private int maxSendBatchBytes = MAX_SEND_BATCH_BYTES_DEFAULT;
+	private int maxInflight = MAX_INFLIGHT_DEFAULT;
+	private boolean adaptiveInflight = ADAPTIVE_INFLIGHT_DEFAULT;
+	private boolean asyncPersistence = ASYNC_PERSISTENCE_DEFAULT;
+	private MqttCompression compression = null;
+	private int callbackThreads = CALLBACK_THREADS_DEFAULT;
+	private int inboundQueueSize = INBOUND_QUEUE_SIZE_DEFAULT;
+	private MqttDispatchKey dispatchKey = null;
+	private int maxArrivedBatchSize = MAX_ARRIVED_BATCH_SIZE_DEFAULT;
+	private int arrivedLinger = ARRIVED_LINGER_DEFAULT;
+	private int receiveWindow = RECEIVE_WINDOW_DEFAULT;
 
 	/**
 	 * Constructs a new <code>MqttConnectOptions</code> object using the
@@ -492,6 +558,336 @@ public class MqttConnectOptions {
 		this.MqttVersion = MqttVersion;
 	}
 
+	/**
+	 * Returns the send linger time.
+	 * @see #setSendLinger(int)
+	 * @return the send linger time in milliseconds.
+	 */
+	public int getSendLinger() {
+		return sendLinger;
+	}
+
+	/**
+	 * Sets the send linger time.
+	 * The client writes all the messages that are ready to be sent before
+	 * flushing them to the network together. This value, measured in
+	 * milliseconds, is how long the client waits for further messages to
+	 * add to a batch before flushing it. A small value such as 1 to 5
+	 * milliseconds improves throughput when publishing many messages, at
+	 * the cost of delaying each one by up to that time.
+	 * <p>The default value is 0, which flushes as soon as no more messages
+	 * are ready.</p>
+	 *
+	 * @param sendLinger the linger time in milliseconds, must be >= 0.
+	 */
+	public void setSendLinger(int sendLinger) throws IllegalArgumentException {
+		if (sendLinger < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.sendLinger = sendLinger;
+	}
+
+	/**
+	 * Returns the maximum number of messages written per flush.
+	 * @see #setMaxSendBatchSize(int)
+	 * @return the maximum number of messages in a batch.
+	 */
+	public int getMaxSendBatchSize() {
+		return maxSendBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of messages written to the network before
+	 * they are flushed. A value of 1 flushes after every message.
+	 * <p>The default value is 64, and the largest allowed is
+	 * {@link #MAX_SEND_BATCH_SIZE_LIMIT}.</p>
+	 *
+	 * @param maxSendBatchSize the number of messages, must be > 0 and no
+	 * more than {@link #MAX_SEND_BATCH_SIZE_LIMIT}.
+	 */
+	public void setMaxSendBatchSize(int maxSendBatchSize) throws IllegalArgumentException {
+		if (maxSendBatchSize <= 0 || maxSendBatchSize > MAX_SEND_BATCH_SIZE_LIMIT) {
+			throw new IllegalArgumentException();
+		}
+		this.maxSendBatchSize = maxSendBatchSize;
+	}
+
+	/**
+	 * Returns the maximum number of bytes written per flush.
+	 * @see #setMaxSendBatchBytes(int)
+	 * @return the maximum number of bytes in a batch.
+	 */
+	public int getMaxSendBatchBytes() {
+		return maxSendBatchBytes;
+	}
+
+	/**
+	 * Sets the number of bytes after which a batch of messages is flushed
+	 * to the network, even if more messages are ready to be sent.
+	 * <p>The default value is 64 KB.</p>
+	 *
+	 * @param maxSendBatchBytes the number of bytes, must be > 0.
+	 */
+	public void setMaxSendBatchBytes(int maxSendBatchBytes) throws IllegalArgumentException {
+		if (maxSendBatchBytes <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxSendBatchBytes = maxSendBatchBytes;
+	}
+
+	/**
+	 * Returns the maximum number of messages in flight.
+	 * @see #setMaxInflight(int)
+	 * @return the maximum number of QoS 1 and 2 messages in flight.
+	 */
+	public int getMaxInflight() {
+		return maxInflight;
+	}
+
+	/**
+	 * Sets the maximum number of QoS 1 and 2 messages that may be sent
+	 * to the server without having been acknowledged. Messages beyond this
+	 * wait to be sent, and once this many are waiting further publishes
+	 * fail with {@link MqttException#REASON_CODE_MAX_INFLIGHT}.
+	 * A larger value raises throughput over links with a long round trip
+	 * time.
+	 * <p>The default value is 10.</p>
+	 *
+	 * @param maxInflight the number of messages, must be > 0.
+	 */
+	public void setMaxInflight(int maxInflight) throws IllegalArgumentException {
+		if (maxInflight <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxInflight = maxInflight;
+	}
+
+	/**
+	 * Returns whether the inflight window adapts to the network.
+	 * @see #setAdaptiveInflight(boolean)
+	 * @return true if the inflight window is adaptive.
+	 */
+	public boolean isAdaptiveInflight() {
+		return adaptiveInflight;
+	}
+
+	/**
+	 * Sets whether the number of messages in flight adapts to the time the
+	 * server takes to acknowledge them. When set, the client sends more
+	 * messages at once while acknowledgements arrive promptly and fewer
+	 * when they slow down, up to the maximum set with
+	 * {@link #setMaxInflight(int)}.
+	 * <p>The default value is false, which always allows the maximum.</p>
+	 *
+	 * @param adaptiveInflight true for an adaptive inflight window.
+	 */
+	public void setAdaptiveInflight(boolean adaptiveInflight) {
+		this.adaptiveInflight = adaptiveInflight;
+	}
+
+	/**
+	 * Returns whether persistence is written on a thread of its own.
+	 * @see #setAsyncPersistence(boolean)
+	 * @return true if persistence is written asynchronously.
+	 */
+	public boolean isAsyncPersistence() {
+		return asyncPersistence;
+	}
+
+	/**
+	 * Sets whether messages are written to persistence on a thread of its
+	 * own. When set, publishing does not wait for the message to be stored,
+	 * and neither does the thread reading from the network. A message is
+	 * still only sent, and a received QoS 2 message only acknowledged, once
+	 * it has been stored. If a publish cannot be stored its delivery token
+	 * completes with the exception, rather than the publish call throwing it.
+	 * <p>The default value is false, which writes on the calling thread.</p>
+	 *
+	 * @param asyncPersistence true to write to persistence asynchronously.
+	 */
+	public void setAsyncPersistence(boolean asyncPersistence) {
+		this.asyncPersistence = asyncPersistence;
+	}
+
+	/**
+	 * Returns how message payloads are compressed.
+	 * @see #setCompression(MqttCompression)
+	 * @return the compression, or null if payloads are not compressed.
+	 */
+	public MqttCompression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Sets payloads published on chosen topics to be sent and persisted
+	 * compressed, and those received on them to be decompressed before
+	 * they are delivered. The same compression object can be shared by
+	 * several clients, and keeps count of what it has done.
+	 * <p>The default value is null, which leaves payloads as they are.</p>
+	 *
+	 * @param compression the topics and settings to compress with, or null.
+	 */
+	public void setCompression(MqttCompression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Returns the number of threads arrived messages are delivered on.
+	 * @see #setCallbackThreads(int)
+	 * @return the number of threads.
+	 */
+	public int getCallbackThreads() {
+		return callbackThreads;
+	}
+
+	/**
+	 * Sets the number of threads {@link MqttCallback#messageArrived} is
+	 * called on. Messages with the same key, by default those on the same
+	 * topic, are delivered in the order they arrived on one thread, while
+	 * those with different keys are delivered at the same time, so a slow
+	 * callback for one topic does not hold up others. Each message is still
+	 * only acknowledged once its callback has returned.
+	 * <p>With more than one thread the callback must be safe to call from
+	 * several threads at once. A number of threads equal to
+	 * <code>Runtime.getRuntime().availableProcessors()</code> suits callbacks
+	 * that compute, more suits callbacks that wait.</p>
+	 * <p>The default value is 1, which delivers every message in order on
+	 * a single thread.</p>
+	 *
+	 * @param callbackThreads the number of threads, must be > 0.
+	 * @see #setDispatchKey(MqttDispatchKey)
+	 */
+	public void setCallbackThreads(int callbackThreads) throws IllegalArgumentException {
+		if (callbackThreads <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.callbackThreads = callbackThreads;
+	}
+
+	/**
+	 * Returns the maximum number of arrived messages waiting on each
+	 * delivery thread.
+	 * @see #setInboundQueueSize(int)
+	 * @return the number of messages.
+	 */
+	public int getInboundQueueSize() {
+		return inboundQueueSize;
+	}
+
+	/**
+	 * Sets the maximum number of arrived messages waiting to be delivered
+	 * on each delivery thread. Once a thread has this many waiting, the
+	 * client stops reading from the network until one has been delivered.
+	 * A larger value absorbs longer bursts, at the cost of memory.
+	 * <p>The default value is 10.</p>
+	 *
+	 * @param inboundQueueSize the number of messages, must be > 0.
+	 */
+	public void setInboundQueueSize(int inboundQueueSize) throws IllegalArgumentException {
+		if (inboundQueueSize <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.inboundQueueSize = inboundQueueSize;
+	}
+
+	/**
+	 * Returns what orders arrived messages delivered on several threads.
+	 * @see #setDispatchKey(MqttDispatchKey)
+	 * @return the key, or null if messages are ordered by topic.
+	 */
+	public MqttDispatchKey getDispatchKey() {
+		return dispatchKey;
+	}
+
+	/**
+	 * Sets what chooses the thread each arrived message is delivered on,
+	 * when there is more than one. Messages with equal keys are delivered
+	 * in order.
+	 * <p>The default value is null, which keeps the messages on each topic
+	 * in order.</p>
+	 *
+	 * @param dispatchKey the key, or null to use the topic.
+	 */
+	public void setDispatchKey(MqttDispatchKey dispatchKey) {
+		this.dispatchKey = dispatchKey;
+	}
+
+	/**
+	 * Returns the maximum number of messages given to a batch callback at once.
+	 * @see #setMaxArrivedBatchSize(int)
+	 * @return the number of messages.
+	 */
+	public int getMaxArrivedBatchSize() {
+		return maxArrivedBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of arrived messages given to a
+	 * {@link MqttBatchCallback} in one call. A batch can hold no more than
+	 * the messages waiting, so the inbound queue size should be at least as
+	 * large (see {@link #setInboundQueueSize(int)}).
+	 * <p>The default value is 64.</p>
+	 *
+	 * @param maxArrivedBatchSize the number of messages, must be > 0.
+	 */
+	public void setMaxArrivedBatchSize(int maxArrivedBatchSize) throws IllegalArgumentException {
+		if (maxArrivedBatchSize <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxArrivedBatchSize = maxArrivedBatchSize;
+	}
+
+	/**
+	 * Returns how long a batch callback waits for more messages.
+	 * @see #setArrivedLinger(int)
+	 * @return the time in milliseconds.
+	 */
+	public int getArrivedLinger() {
+		return arrivedLinger;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, the client waits for more messages to
+	 * arrive before calling a {@link MqttBatchCallback} with fewer than the
+	 * maximum batch size. Waiting gives larger batches when messages
+	 * trickle in, at the cost of delivering them later.
+	 * <p>The default value is 0, which delivers the messages waiting
+	 * straight away.</p>
+	 *
+	 * @param arrivedLinger the time in milliseconds, must be >= 0.
+	 */
+	public void setArrivedLinger(int arrivedLinger) throws IllegalArgumentException {
+		if (arrivedLinger < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.arrivedLinger = arrivedLinger;
+	}
+
+	/**
+	 * Returns the maximum number of unacknowledged arrived messages.
+	 * @see #setReceiveWindow(int)
+	 * @return the number of messages.
+	 */
+	public int getReceiveWindow() {
+		return receiveWindow;
+	}
+
+	/**
+	 * Sets the maximum number of arrived messages, counting those waiting
+	 * to be delivered, that a {@link MqttManualAckCallback} may have left
+	 * unacknowledged. Once there are this many, the client stops reading
+	 * from the network until one is acknowledged.
+	 * <p>The default value is 100.</p>
+	 *
+	 * @param receiveWindow the number of messages, must be > 0.
+	 */
+	public void setReceiveWindow(int receiveWindow) throws IllegalArgumentException {
+		if (receiveWindow <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.receiveWindow = receiveWindow;
+	}
+
 	public Properties getDebug() {
 		final String strNull="null";
 		Properties p = new Properties();
@@ -499,6 +895,17 @@ public class MqttConnectOptions {
 		p.put("CleanSession", Boolean.valueOf(isCleanSession()));
 		p.put("ConTimeout", new Integer(getConnectionTimeout()));
 		p.put("KeepAliveInterval", new Integer(getKeepAliveInterval()));
+		p.put("SendLinger", new Integer(getSendLinger()));
+		p.put("MaxSendBatchSize", new Integer(getMaxSendBatchSize()));
+		p.put("MaxSendBatchBytes", new Integer(getMaxSendBatchBytes()));
+		p.put("MaxInflight", new Integer(getMaxInflight()));
+		p.put("AdaptiveInflight", Boolean.valueOf(isAdaptiveInflight()));
+		p.put("AsyncPersistence", Boolean.valueOf(isAsyncPersistence()));
+		p.put("CallbackThreads", new Integer(getCallbackThreads()));
+		p.put("InboundQueueSize", new Integer(getInboundQueueSize()));
+		p.put("MaxArrivedBatchSize", new Integer(getMaxArrivedBatchSize()));
+		p.put("ArrivedLinger", new Integer(getArrivedLinger()));
+		p.put("ReceiveWindow", new Integer(getReceiveWindow()));
 		p.put("UserName", (getUserName() == null) ? strNull : getUserName());
 		p.put("WillDestination", (getWillDestination() == null) ? strNull : getWillDestination());
 		if (getSocketFactory()==null) {
@@ -511,6 +918,16 @@ public class MqttConnectOptions {
 		} else {
 			p.put("SSLProperties", getSSLProperties());
 		}
+		if (getCompression()==null) {
+			p.put("Compression", strNull);
+		} else {
+			p.put("Compression", getCompression().getDebug());
+		}
+		if (getDispatchKey()==null) {
+			p.put("DispatchKey", strNull);
+		} else {
+			p.put("DispatchKey", getDispatchKey());
+		}
 		return p;
 	}
 
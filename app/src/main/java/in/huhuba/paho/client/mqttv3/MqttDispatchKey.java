@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3;
+
+/**
+ * Implementors of this interface choose which arrived messages must be
+ * delivered in the order they arrived, when the client delivers messages on
+ * several threads (see {@link MqttConnectOptions#setCallbackThreads(int)}).
+ * <p>
+ * Messages with equal keys are delivered one at a time, in order, on the
+ * same thread. Messages with different keys may be delivered at the same
+ * time. When no key is set, the topic is used.</p>
+ * <p>
+ * The key is chosen on the thread reading from the network, as each
+ * message arrives, so it should be quick to compute. The message is as it
+ * arrived, and has not yet been decompressed.</p>
+ */
+public interface MqttDispatchKey {
+	/**
+	 * Returns the key that orders the given message.
+	 * @param topic the topic the message arrived on
+	 * @param message the message
+	 * @return the key, whose hash code chooses the thread, or null to use
+	 * the topic
+	 */
+	public Object getDispatchKey(String topic, MqttMessage message);
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *   
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3;
+
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous action, such as a publish or subscribe,
+ * that applications can either wait for or be told of.
+ * <p>
+ * A future is made from the token the action returns, and finishes when
+ * the token does. Listeners added to it are called once it has, on the
+ * thread that finished it or on an executor of their own, so any number of
+ * actions can be outstanding without a thread waiting for each. A listener
+ * added after the action has finished is called straight away.</p>
+ * <p>
+ * {@link #get()} returns the token if the action succeeded, and throws an
+ * <code>ExecutionException</code> holding the token's exception if it
+ * failed. MQTT actions cannot be cancelled.</p>
+ *
+ * @see MqttAsyncClient#publishAsync(String, MqttMessage)
+ */
+public class MqttFuture implements Future<IMqttToken> {
+	private MqttToken token;
+	private boolean done = false;
+	private MqttException exception = null;
+	// Listeners, each followed by its executor or null, until done
+	private Vector<Object> listeners = new Vector<Object>();
+
+	/**
+	 * Makes a future that finishes when the given token does.
+	 * @param token a token returned by an {@link IMqttAsyncClient}
+	 */
+	public MqttFuture(IMqttToken token) {
+		this.token = (MqttToken) token;
+		this.token.internalTok.addCompletionHook(new Runnable() {
+			public void run() {
+				complete();
+			}
+		});
+	}
+
+	private void complete() {
+		Vector<Object> listeners;
+		synchronized (this) {
+			done = true;
+			exception = token.getException();
+			listeners = this.listeners;
+			this.listeners = null;
+			notifyAll();
+		}
+		for (int i = 0; i < listeners.size(); i += 2) {
+			call((IMqttActionListener) listeners.elementAt(i), (Executor) listeners.elementAt(i + 1));
+		}
+	}
+
+	private void call(final IMqttActionListener listener, Executor executor) {
+		Runnable call = new Runnable() {
+			public void run() {
+				if (exception == null) {
+					listener.onSuccess(token);
+				} else {
+					listener.onFailure(token, exception);
+				}
+			}
+		};
+		if (executor == null) {
+			call.run();
+		} else {
+			executor.execute(call);
+		}
+	}
+
+	/**
+	 * Calls the listener when the action finishes, on the thread that
+	 * finishes it. That is normally the client's callback thread, so the
+	 * listener should return quickly.
+	 * @param listener the listener to call
+	 * @return this future
+	 */
+	public MqttFuture addListener(IMqttActionListener listener) {
+		return addListener(listener, null);
+	}
+
+	/**
+	 * Calls the listener when the action finishes, on the given executor.
+	 * @param listener the listener to call
+	 * @param executor the executor to call it on, or null to call it on
+	 * the thread that finishes the action
+	 * @return this future
+	 */
+	public MqttFuture addListener(IMqttActionListener listener, Executor executor) {
+		if (listener == null) {
+			throw new IllegalArgumentException();
+		}
+		synchronized (this) {
+			if (!done) {
+				listeners.addElement(listener);
+				listeners.addElement(executor);
+				return this;
+			}
+		}
+		call(listener, executor);
+		return this;
+	}
+
+	public IMqttToken getToken() {
+		return token;
+	}
+
+	/**
+	 * Always returns false, as MQTT actions cannot be cancelled.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized IMqttToken get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return getResult();
+	}
+
+	public synchronized IMqttToken get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long remaining;
+		while (!done) {
+			remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+
+	private IMqttToken getResult() throws ExecutionException {
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		return token;
+	}
+
+	public String toString() {
+		return "MqttFuture[done=" + isDone() + ", token=" + token + "]";
+	}
+}
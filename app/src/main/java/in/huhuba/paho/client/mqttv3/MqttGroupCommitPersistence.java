@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3;
+
+/**
+ * A persistent data store that can sync data to disk in groups, rather than
+ * once for every {@link #put(String, MqttPersistable)}.
+ * <p>
+ * The client stores outbound messages with
+ * {@link #putUncommitted(String, MqttPersistable)}, which does not wait for
+ * the disk, so that a message can be sent while it is being synced. Each
+ * record stored gets a sequence number, and records are committed in
+ * sequence order. The client only reports a message as delivered once its
+ * record has been committed.</p>
+ * <p>
+ * {@link #put(String, MqttPersistable)} must still not return until the
+ * data has been committed.</p>
+ */
+public interface MqttGroupCommitPersistence extends MqttClientPersistence {
+	/**
+	 * Puts the specified data into the persistent store without waiting for
+	 * it to be committed.
+	 * @param key the key for the data, which will be used later to retrieve it.
+	 * @param persistable the data to persist
+	 * @return the sequence number of the record
+	 * @throws MqttPersistenceException if there was a problem putting the data
+	 * into the persistent store.
+	 */
+	public long putUncommitted(String key, MqttPersistable persistable) throws MqttPersistenceException;
+
+	/**
+	 * Returns the sequence number of the last record committed. All
+	 * records with a lower sequence number have been committed too.
+	 */
+	public long getCommittedSequence();
+
+	/**
+	 * Sets the listener to tell when records have been committed.
+	 * @param listener the listener, or null for none
+	 */
+	public void setCommitListener(MqttCommitListener listener);
+}
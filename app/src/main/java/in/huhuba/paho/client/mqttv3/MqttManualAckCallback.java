@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3;
+
+/**
+ * A callback that acknowledges arrived messages itself, when it has
+ * finished with them, rather than when it returns. This lets an
+ * application hand messages on to be processed elsewhere, possibly many at
+ * once, and still only acknowledge each once its processing is durable.
+ * <p>
+ * When the callback set on a client implements this interface,
+ * {@link #messageArrived(String, MqttMessage, MqttAckHandle)} is called in
+ * place of {@link MqttCallback#messageArrived(String, MqttMessage)}, and of
+ * {@link MqttBatchCallback#messagesArrived(String[], MqttMessage[])}.
+ * Once the client has as many messages unacknowledged as its receive window
+ * (see {@link MqttConnectOptions#setReceiveWindow(int)}), it stops reading
+ * from the network until one is acknowledged.</p>
+ */
+public interface MqttManualAckCallback extends MqttCallback {
+	/**
+	 * This method is called when a message arrives from the server.
+	 *
+	 * <p>
+	 * Nothing is sent to the server for the message until
+	 * {@link MqttAckHandle#ack()} is called, which may be after this method
+	 * returns, and from any thread. Every message, whatever its QoS, should
+	 * be acknowledged, to free its place in the receive window.</p>
+	 * <p>
+	 * If an implementation of this method throws an <code>Exception</code>, then the
+	 * client will be shut down.</p>
+	 *
+	 * @param topic name of the topic on the message was published to
+	 * @param message the actual message.
+	 * @param ack acknowledges the message
+	 * @throws Exception if a terminal error has occurred, and the client should be
+	 * shut down.
+	 */
+	public void messageArrived(String topic, MqttMessage message, MqttAckHandle ack) throws Exception;
+}
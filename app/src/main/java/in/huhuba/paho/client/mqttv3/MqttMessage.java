@@ -15,6 +15,8 @@
  */
 package in.huhuba.paho.client.mqttv3;
 
+import java.nio.ByteBuffer;
+
 /**
  * An MQTT message holds the application payload and options
  * specifying how the message is to be delivered
@@ -25,6 +27,10 @@ public class MqttMessage {
 
 	private boolean mutable = true;
 	private byte[] payload;
+	// Read-only view of a received payload that has not been copied into
+	// an array yet. A received message may be read by several threads, so
+	// the two payload fields are only used while synchronized.
+	private ByteBuffer payloadBuffer;
 	private int qos = 1;
 	private boolean retained = false;
 	private boolean dup = false;
@@ -63,20 +69,57 @@ public class MqttMessage {
 
 	/**
 	 * Returns the payload as a byte array.
+	 * For a received message the payload is copied out of the network buffer
+	 * the first time this method is called.
 	 *
 	 * @return the payload as a byte array.
 	 */
-	public byte[] getPayload() {
+	public synchronized byte[] getPayload() {
+		if (payload == null) {
+			ByteBuffer view = payloadBuffer.duplicate();
+			byte[] copy = new byte[view.remaining()];
+			view.get(copy);
+			payload = copy;
+			payloadBuffer = null;
+		}
 		return payload;
 	}
 
+	/**
+	 * Returns a read-only view of the payload. For a received message this
+	 * refers directly to the bytes read from the network, so no copy is made.
+	 *
+	 * @return the payload as a read-only buffer positioned at its first byte.
+	 */
+	public synchronized ByteBuffer getPayloadBuffer() {
+		ByteBuffer view = payloadBuffer;
+		if (view == null) {
+			return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+		}
+		return view.duplicate();
+	}
+
+	/**
+	 * Returns the length of the payload in bytes, without copying it.
+	 *
+	 * @return the payload length.
+	 */
+	public synchronized int getPayloadLength() {
+		ByteBuffer view = payloadBuffer;
+		if (view == null) {
+			return payload.length;
+		}
+		return view.remaining();
+	}
+
 	/**
 	 * Clears the payload, resetting it to be empty.
 	 * @throws IllegalStateException if this message cannot be edited
 	 */
-	public void clearPayload() {
+	public synchronized void clearPayload() {
 		checkMutable();
 		this.payload = new byte[] {};
+		this.payloadBuffer = null;
 	}
 
 	/**
@@ -86,12 +129,29 @@ public class MqttMessage {
 	 * @throws IllegalStateException if this message cannot be edited
 	 * @throws NullPointerException if no payload is provided
 	 */
-	public void setPayload(byte[] payload) {
+	public synchronized void setPayload(byte[] payload) {
 		checkMutable();
 		if (payload == null) {
 			throw new NullPointerException();
 		}
 		this.payload = payload;
+		this.payloadBuffer = null;
+	}
+
+	/**
+	 * Sets the payload of this message to a view of a buffer, deferring any
+	 * copy until {@link #getPayload()} is called.
+	 *
+	 * @param payload the bytes between position and limit form the payload.
+	 * @throws IllegalStateException if this message cannot be edited
+	 */
+	protected synchronized void setPayload(ByteBuffer payload) {
+		checkMutable();
+		if (payload == null) {
+			throw new NullPointerException();
+		}
+		this.payloadBuffer = payload.slice().asReadOnlyBuffer();
+		this.payload = null;
 	}
 
 	/**
@@ -184,7 +244,7 @@ public class MqttMessage {
 	 * @return a string representation of this message.
 	 */
 	public String toString() {
-		return new String(payload);
+		return new String(getPayload());
 	}
 
 	/**
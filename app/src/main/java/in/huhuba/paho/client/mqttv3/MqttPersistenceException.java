@@ -24,6 +24,8 @@ public class MqttPersistenceException extends MqttException {
 
 	/** Persistence is already being used by another client. */
 	public static final short REASON_CODE_PERSISTENCE_IN_USE	= 32200;
+	/** Persistence has no room left for the data. */
+	public static final short REASON_CODE_PERSISTENCE_FULL	= 32203;
 	
 	/**
 	 * Constructs a new <code>MqttPersistenceException</code>
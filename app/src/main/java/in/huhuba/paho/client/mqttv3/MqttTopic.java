@@ -225,5 +225,57 @@ public class MqttTopic {
             }
         }
     }
+
+	/**
+	 * Returns whether a topic name matches a topic filter, as the server
+	 * decides which subscriptions a message is delivered to. A filter
+	 * starting with a wildcard does not match a topic name starting with
+	 * '$'.
+	 * 
+	 * @param topicFilter the topic filter, which may contain wildcards
+	 * @param topicName the topic name, which must not
+	 * @return true if the name matches the filter
+	 */
+	public static boolean isMatched(String topicFilter, String topicName) {
+		char separator = TOPIC_LEVEL_SEPARATOR.charAt(0);
+		char multiLevel = MULTI_LEVEL_WILDCARD.charAt(0);
+		char singleLevel = SINGLE_LEVEL_WILDCARD.charAt(0);
+		if (topicName.length() > 0 && topicName.charAt(0) == '$' && topicFilter.length() > 0
+				&& (topicFilter.charAt(0) == multiLevel || topicFilter.charAt(0) == singleLevel)) {
+			return false;
+		}
+
+		// Start of the current level in each, past the end once used up
+		int filterStart = 0;
+		int nameStart = 0;
+		while (true) {
+			int filterEnd = topicFilter.indexOf(separator, filterStart);
+			if (filterEnd < 0) {
+				filterEnd = topicFilter.length();
+			}
+			boolean wildcard = (filterEnd - filterStart == 1);
+			if (wildcard && topicFilter.charAt(filterStart) == multiLevel) {
+				// Matches this level and all below, or none at all
+				return true;
+			}
+			if (nameStart > topicName.length()) {
+				return false;
+			}
+			int nameEnd = topicName.indexOf(separator, nameStart);
+			if (nameEnd < 0) {
+				nameEnd = topicName.length();
+			}
+			if (!(wildcard && topicFilter.charAt(filterStart) == singleLevel)
+					&& (filterEnd - filterStart != nameEnd - nameStart
+					|| !topicFilter.regionMatches(filterStart, topicName, nameStart, nameEnd - nameStart))) {
+				return false;
+			}
+			filterStart = filterEnd + 1;
+			nameStart = nameEnd + 1;
+			if (filterStart > topicFilter.length()) {
+				return nameStart > topicName.length();
+			}
+		}
+	}
 	
 }
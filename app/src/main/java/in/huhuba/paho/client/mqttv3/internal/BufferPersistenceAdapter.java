@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+
+import in.huhuba.paho.client.mqttv3.MqttBufferPersistence;
+import in.huhuba.paho.client.mqttv3.MqttClientPersistence;
+import in.huhuba.paho.client.mqttv3.MqttPersistable;
+import in.huhuba.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * Presents a persistence that only takes and returns
+ * {@link MqttPersistable}s as a {@link MqttBufferPersistence}, so that the
+ * client can use the one interface for either.
+ * <p>
+ * Heap buffers are passed on without copying their bytes. Data is only
+ * copied where the wrapped persistence cannot take or return it as it is:
+ * direct buffers being put, and data returned as a separate header and
+ * payload.</p>
+ */
+public class BufferPersistenceAdapter implements MqttBufferPersistence {
+	private MqttClientPersistence persistence;
+
+	public BufferPersistenceAdapter(MqttClientPersistence persistence) {
+		this.persistence = persistence;
+	}
+
+	/**
+	 * Returns the given persistence as a {@link MqttBufferPersistence},
+	 * adapting it only if it does not implement the interface itself.
+	 */
+	public static MqttBufferPersistence adapt(MqttClientPersistence persistence) {
+		if (persistence instanceof MqttBufferPersistence) {
+			return (MqttBufferPersistence) persistence;
+		}
+		return new BufferPersistenceAdapter(persistence);
+	}
+
+	/**
+	 * Makes the bytes remaining in the given buffers into a persistable.
+	 */
+	public static MqttPersistable toPersistable(String key, ByteBuffer header, ByteBuffer payload) {
+		byte[] payloadBytes = null;
+		int payloadOffset = 0;
+		int payloadLength = 0;
+		if (payload != null && payload.hasRemaining()) {
+			payload = toHeap(payload);
+			payloadBytes = payload.array();
+			payloadOffset = payload.arrayOffset() + payload.position();
+			payloadLength = payload.remaining();
+		}
+		header = toHeap(header);
+		return new MqttPersistentData(key, header.array(), header.arrayOffset() + header.position(),
+				header.remaining(), payloadBytes, payloadOffset, payloadLength);
+	}
+
+	/**
+	 * Returns a buffer over the header bytes of a persistable.
+	 */
+	public static ByteBuffer getHeader(MqttPersistable data) throws MqttPersistenceException {
+		return ByteBuffer.wrap(data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength());
+	}
+
+	/**
+	 * Returns a buffer over the payload bytes of a persistable, or null if
+	 * it has none.
+	 */
+	public static ByteBuffer getPayload(MqttPersistable data) throws MqttPersistenceException {
+		byte[] payload = data.getPayloadBytes();
+		if (payload == null) {
+			return null;
+		}
+		return ByteBuffer.wrap(payload, data.getPayloadOffset(), data.getPayloadLength());
+	}
+
+	private static ByteBuffer toHeap(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			return buffer;
+		}
+		byte[] copy = new byte[buffer.remaining()];
+		buffer.duplicate().get(copy);
+		return ByteBuffer.wrap(copy);
+	}
+
+	public void putBuffer(String key, ByteBuffer header, ByteBuffer payload) throws MqttPersistenceException {
+		persistence.put(key, toPersistable(key, header, payload));
+	}
+
+	public ByteBuffer getBuffer(String key) throws MqttPersistenceException {
+		MqttPersistable data = persistence.get(key);
+		if (data == null) {
+			return null;
+		}
+		byte[] payload = data.getPayloadBytes();
+		int payloadLength = (payload == null) ? 0 : data.getPayloadLength();
+		ByteBuffer header = ByteBuffer.wrap(data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength());
+		if (payloadLength == 0) {
+			return header.slice();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(header.remaining() + payloadLength);
+		buffer.put(header);
+		buffer.put(payload, data.getPayloadOffset(), payloadLength);
+		buffer.flip();
+		return buffer;
+	}
+
+	public void putAll(String[] keys, ByteBuffer[] headers, ByteBuffer[] payloads) throws MqttPersistenceException {
+		for (int i = 0; i < keys.length; i++) {
+			putBuffer(keys[i], headers[i], payloads[i]);
+		}
+	}
+
+	public void removeAll(String[] keys) throws MqttPersistenceException {
+		for (int i = 0; i < keys.length; i++) {
+			persistence.remove(keys[i]);
+		}
+	}
+
+	public void open(String clientId, String serverURI) throws MqttPersistenceException {
+		persistence.open(clientId, serverURI);
+	}
+
+	public void close() throws MqttPersistenceException {
+		persistence.close();
+	}
+
+	public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		persistence.put(key, persistable);
+	}
+
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		return persistence.get(key);
+	}
+
+	public void remove(String key) throws MqttPersistenceException {
+		persistence.remove(key);
+	}
+
+	public Enumeration<?> keys() throws MqttPersistenceException {
+		return persistence.keys();
+	}
+
+	public void clear() throws MqttPersistenceException {
+		persistence.clear();
+	}
+
+	public boolean containsKey(String key) throws MqttPersistenceException {
+		return persistence.containsKey(key);
+	}
+}
@@ -15,11 +15,13 @@
  */
 package in.huhuba.paho.client.mqttv3.internal;
 
+import java.nio.channels.GatheringByteChannel;
 import java.util.Enumeration;
 import java.util.Properties;
 import java.util.Vector;
 
 import in.huhuba.paho.client.mqttv3.IMqttAsyncClient;
+import in.huhuba.paho.client.mqttv3.IMqttMessageListener;
 import in.huhuba.paho.client.mqttv3.MqttCallback;
 import in.huhuba.paho.client.mqttv3.MqttClientPersistence;
 import in.huhuba.paho.client.mqttv3.MqttConnectOptions;
@@ -58,6 +60,7 @@ public class ClientComms {
     private NetworkModule[]			networkModules;
     private CommsReceiver 			receiver;
     private CommsSender 			sender;
+    private CommsPersister 			persister;
     private CommsCallback 			callback;
     private ClientState	 			clientState;
     private MqttConnectOptions conOptions;
@@ -213,6 +216,7 @@ public class ClientComms {
 
                 this.clientState.setKeepAliveSecs(options.getKeepAliveInterval());
                 this.clientState.setCleanSession(options.isCleanSession());
+                this.clientState.setMaxInflight(options.getMaxInflight(), options.isAdaptiveInflight());
 
                 tokenStore.open();
                 ConnectBG conbg = new ConnectBG(this, token, connect);
@@ -305,6 +309,13 @@ public class ClientComms {
         // Stop the thread that handles inbound work from the network
         if (receiver != null) {receiver.stop();}
 
+        // Finish the writes still queued for persistence while it is open
+        if (persister != null) {
+            persister.stop();
+            clientState.setPersister(null);
+            persister = null;
+        }
+
         // Stop any new tokens being saved by app and throwing an exception if they do
         tokenStore.quiesce(new MqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING));
 
@@ -423,7 +434,7 @@ public class ClientComms {
                 //@TRACE 219=failed: already disconnecting
                 LOGD(TAG, methodName+" 219");
                 throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING);
-            } else if (Thread.currentThread() == callback.getThread()) {
+            } else if (callback.isCallbackThread(Thread.currentThread())) {
                 //@TRACE 210=failed: called on callback thread
                 LOGD(TAG, methodName+" 210");
                 // Not allowed to call disconnect() from the callback, as it will deadlock.
@@ -496,6 +507,14 @@ public class ClientComms {
         this.callback.setCallback(mqttCallback);
     }
 
+    public IMqttMessageListener setMessageListener(String topicFilter, IMqttMessageListener messageListener) {
+        return this.callback.setMessageListener(topicFilter, messageListener);
+    }
+
+    public void removeMessageListener(String topicFilter) {
+        this.callback.removeMessageListener(topicFilter);
+    }
+
     protected MqttTopic getTopic(String topic) {
         return new MqttTopic(topic, this);
     }
@@ -586,10 +605,22 @@ public class ClientComms {
                 // start the background processing threads before sending the connect
                 // packet.
                 NetworkModule networkModule = networkModules[networkModuleIndex];
+                // Carry on loading a restored session while connecting
+                clientState.startRestore();
                 networkModule.start();
+                if (conOptions.isAsyncPersistence()) {
+                    persister = new CommsPersister(persistence);
+                    clientState.setPersister(persister);
+                    persister.start("MQTT Per: "+getClient().getClientId());
+                }
                 receiver = new CommsReceiver(clientComms, clientState, tokenStore, networkModule.getInputStream());
                 receiver.start("MQTT Rec: "+getClient().getClientId());
-                sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream());
+                GatheringByteChannel channel = null;
+                if (networkModule instanceof TCPNetworkModule) {
+                    channel = ((TCPNetworkModule) networkModule).getOutputChannel();
+                }
+                sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream(), channel);
+                sender.setBatching(conOptions.getMaxSendBatchSize(), conOptions.getMaxSendBatchBytes(), conOptions.getSendLinger());
                 sender.start("MQTT Snd: "+getClient().getClientId());
                 callback.start("MQTT Call: "+getClient().getClientId());
                 internalSend(conPacket, conToken);
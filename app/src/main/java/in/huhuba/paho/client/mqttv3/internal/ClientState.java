@@ -16,14 +16,23 @@
 package in.huhuba.paho.client.mqttv3.internal;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+import in.huhuba.paho.client.mqttv3.MqttBufferPersistence;
 import in.huhuba.paho.client.mqttv3.MqttClientPersistence;
+import in.huhuba.paho.client.mqttv3.MqttCommitListener;
+import in.huhuba.paho.client.mqttv3.MqttConnectOptions;
 import in.huhuba.paho.client.mqttv3.MqttDeliveryToken;
 import in.huhuba.paho.client.mqttv3.MqttException;
+import in.huhuba.paho.client.mqttv3.MqttGroupCommitPersistence;
 import in.huhuba.paho.client.mqttv3.MqttMessage;
 import in.huhuba.paho.client.mqttv3.MqttPersistable;
 import in.huhuba.paho.client.mqttv3.MqttPersistenceException;
@@ -59,26 +68,26 @@ import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
  * 
  * 2) When the client or specifically ClientState is instantiated the messages are 
  * read from the persistent store into:
- * - outboundqos2 hashtable if a QoS 2 PUBLISH or PUBREL
- * - outboundqos1 hashtable if a QoS 1 PUBLISH
+ * - the outbound inflight table, indexed by message ID, if a QoS 1 or 2 PUBLISH
+ *   or a PUBREL
  * (see restoreState)
  * 
- * 3) On Connect, copy messages from the outbound hashtables to the pendingMessages or 
- * pendingFlows vector in messageid order.
+ * 3) On Connect, copy messages from the outbound table to the pendingMessages or 
+ * pendingFlows queue in messageid order.
  * - Initial message publish goes onto the pendingmessages buffer. 
  * - PUBREL goes onto the pendingflows buffer
  * (see restoreInflightMessages)
  * 
  * 4) Sender thread reads messages from the pendingflows and pendingmessages buffer
  * one at a time.  The message is removed from the pendingbuffer but remains on the 
- * outbound* hashtable.  The hashtable is the place where the full set of outstanding 
+ * outbound table.  The table is the place where the full set of outstanding 
  * messages are stored in memory. (Persistence is only used at start up)
  *  
  * 5) Receiver thread - receives wire messages: 
- *  - if QoS 1 then remove from persistence and outboundqos1
- *  - if QoS 2 PUBREC send PUBREL. Updating the outboundqos2 entry with the PUBREL
+ *  - if QoS 1 then remove from persistence and the outbound table
+ *  - if QoS 2 PUBREC send PUBREL. Updating the outbound table entry with the PUBREL
  *    and update persistence.
- *  - if QoS 2 PUBCOMP remove from persistence and outboundqos2  
+ *  - if QoS 2 PUBCOMP remove from persistence and the outbound table  
  * 
  * Notes:
  * because of the multithreaded nature of the client it is vital that any changes to this
@@ -94,14 +103,29 @@ public class ClientState {
 	private static final String PERSISTENCE_CONFIRMED_PREFIX = "sc-";
 	private static final String PERSISTENCE_RECEIVED_PREFIX = "r-";
 	
-	private static final int DEFAULT_MAX_INFLIGHT = 10;
-	private static final int MIN_MSG_ID = 1;		// Lowest possible MQTT message ID to use
-	private static final int MAX_MSG_ID = 65535;	// Highest possible MQTT message ID to use
-	private int nextMsgId = MIN_MSG_ID - 1;			// The next available message ID to use
-	private Hashtable inUseMsgIds;					// Used to store a set of in-use message IDs
-
-	volatile private Vector pendingMessages;
-	volatile private Vector pendingFlows;
+	private static final int MAX_MSG_ID = MessageIdAllocator.MAX_MSG_ID;	// Highest possible MQTT message ID to use
+	// Restored sessions with more outbound publishes than this are loaded
+	// in the background, by this many threads
+	private static final int RESTORE_INLINE_MAX = 256;
+	private static final int RESTORE_THREADS = 4;
+	private MessageIdAllocator inUseMsgIds;			// Used to store a set of in-use message IDs
+
+	// Outbound queues. Any thread may add to them but only the CommsSender
+	// takes from them, without locking. Flows (acks, pubrels and pings) go
+	// ahead of publishes, and connects and pings go ahead of other flows.
+	volatile private ConcurrentLinkedQueue<MqttWireMessage> pendingMessages;
+	volatile private ConcurrentLinkedQueue<MqttWireMessage> pendingFlows;
+	volatile private ConcurrentLinkedQueue<MqttWireMessage> urgentFlows;
+	// Places taken by send() for publishes not yet taken by the sender,
+	// including those still being persisted. A place is only taken while
+	// it leaves these and the publishes in flight within maxInflight, and
+	// is given back if the publish is not queued after all. Restored
+	// publishes are not counted, so taking one may take the place of a
+	// later publish, and the queue never holds more than maxInflight
+	// publishes beyond those restored.
+	private AtomicInteger queuedMessages = new AtomicInteger(0);
+	// The sender thread while it is parked waiting for work
+	volatile private Thread waitingSender = null;
 	
 	private CommsTokenStore tokenStore;
 	private ClientComms clientComms = null;
@@ -109,14 +133,37 @@ public class ClientState {
 	private long keepAlive;
 	private boolean cleanSession;
 	private MqttClientPersistence persistence;
+	// The persistence as seen through the buffer interface
+	private MqttBufferPersistence bufferPersistence;
+	// Set when the persistence syncs outbound messages in groups. Acks for
+	// messages whose records are not yet committed wait in uncommittedAcks.
+	private MqttGroupCommitPersistence groupCommit = null;
+	private Vector<MqttAck> uncommittedAcks = new Vector<MqttAck>();
+	// Set when writes to persistence are made on their own thread. Messages
+	// join the outbound queues once the persister has stored them.
+	volatile private CommsPersister persister = null;
+	// Loads the outbound publishes of a restored session. While it does,
+	// new publishes are held back to be sent after them.
+	volatile private RestoreLoader restoreLoader = null;
+	private Vector<MqttWireMessage> heldMessages = new Vector<MqttWireMessage>();
+	// The message ID the restored publishes are sent from
+	private int restoreStartId = 0;
 	
-	private int maxInflight = DEFAULT_MAX_INFLIGHT;	
-	private int actualInFlight = 0;
-	private int inFlightPubRels = 0;
+	private int maxInflight = MqttConnectOptions.MAX_INFLIGHT_DEFAULT;
+	// How many of maxInflight may be in flight at the moment
+	private InflightWindow inflightWindow = new InflightWindow(maxInflight, false);
+	// Time from sending a publish to its PUBACK, PUBREC and PUBCOMP
+	private LatencyHistogram pubAckLatency = new LatencyHistogram();
+	private LatencyHistogram pubRecLatency = new LatencyHistogram();
+	private LatencyHistogram pubCompLatency = new LatencyHistogram();
+	private AtomicInteger actualInFlight = new AtomicInteger(0);
+	private AtomicInteger inFlightPubRels = new AtomicInteger(0);
 	
+	// Serializes changes to the connection state, such as restoring the
+	// queues on connect, with each other. The queues do not need it.
 	private Object queueLock = new Object();
 	private Object quiesceLock = new Object();
-	private boolean quiescing = false;
+	volatile private boolean quiescing = false;
 	
 	private long lastOutboundActivity = 0;
 	private long lastInboundActivity = 0;
@@ -125,33 +172,46 @@ public class ClientState {
 	private Object pingOutstandingLock = new Object();
 	private int pingOutstanding = 0;
 
-	private boolean connected = false;
+	volatile private boolean connected = false;
 	
-	private Hashtable outboundQoS2 = null;
-	private Hashtable outboundQoS1 = null;
-	private Hashtable inboundQoS2 = null;
+	// QoS 1 and 2 publishes and pubrels in flight to the server, with the
+	// QoS of each, and QoS 2 publishes received but not yet released
+	private InflightTable outbound = null;
+	private InflightTable inboundQoS2 = null;
 	
 	private MqttPingSender pingSender = null;
 
 	protected ClientState(MqttClientPersistence persistence, CommsTokenStore tokenStore, 
 			CommsCallback callback, ClientComms clientComms, MqttPingSender pingSender) throws MqttException {
 
-        inUseMsgIds = new Hashtable();
-		pendingMessages = new Vector(this.maxInflight);
-		pendingFlows = new Vector();
-		outboundQoS2 = new Hashtable();
-		outboundQoS1 = new Hashtable();
-		inboundQoS2 = new Hashtable();
+        inUseMsgIds = new MessageIdAllocator();
+		pendingMessages = new ConcurrentLinkedQueue<MqttWireMessage>();
+		pendingFlows = new ConcurrentLinkedQueue<MqttWireMessage>();
+		urgentFlows = new ConcurrentLinkedQueue<MqttWireMessage>();
+		outbound = new InflightTable();
+		inboundQoS2 = new InflightTable();
 		pingCommand = new MqttPingReq();
-		inFlightPubRels = 0;
-		actualInFlight = 0;
 		
 		this.persistence = persistence;
+		this.bufferPersistence = BufferPersistenceAdapter.adapt(persistence);
 		this.callback = callback;
 		this.tokenStore = tokenStore;
 		this.clientComms = clientComms;
 		this.pingSender = pingSender;
 		
+		if (persistence instanceof MqttGroupCommitPersistence) {
+			groupCommit = (MqttGroupCommitPersistence) persistence;
+			groupCommit.setCommitListener(new MqttCommitListener() {
+				public void committed(long sequence) {
+					releaseCommittedAcks(sequence);
+				}
+
+				public void commitFailed(MqttPersistenceException cause) {
+					shutdownOnCommitFailure(cause);
+				}
+			});
+		}
+		
 		restoreState();
 	}
 
@@ -164,6 +224,32 @@ public class ClientState {
 	protected void setCleanSession(boolean cleanSession) {
 		this.cleanSession = cleanSession;
 	}
+	protected void setMaxInflight(int maxInflight, boolean adaptive) {
+		this.maxInflight = maxInflight;
+		this.inflightWindow.configure(maxInflight, adaptive);
+	}
+	protected void setPersister(CommsPersister persister) {
+		this.persister = persister;
+	}
+	public InflightWindow getInflightWindow() {
+		return this.inflightWindow;
+	}
+	
+	/**
+	 * Returns the latencies of QoS 1 or 2 publishes, from being written to
+	 * the network to being acknowledged. For QoS 2 that is the PUBCOMP.
+	 */
+	public LatencyHistogram getLatency(int qos) {
+		return (qos == 2) ? pubCompLatency : pubAckLatency;
+	}
+	
+	/**
+	 * Returns the latencies of QoS 2 publishes from being written to the
+	 * network to the PUBREC arriving.
+	 */
+	public LatencyHistogram getPubRecLatency() {
+		return pubRecLatency;
+	}
 	
 	private String getSendPersistenceKey(MqttWireMessage message) {
 		return PERSISTENCE_SENT_PREFIX + message.getMessageId();
@@ -177,27 +263,57 @@ public class ClientState {
 		return PERSISTENCE_RECEIVED_PREFIX + message.getMessageId();
 	}
 	
+	/**
+	 * Waits for the writes queued on the persister to finish, so that none
+	 * lands after the state is cleared. Must not be called holding
+	 * queueLock, which the persister takes as each write finishes.
+	 */
+	private void flushPersister() {
+		CommsPersister persister = this.persister;
+		if (persister != null) {
+			persister.flush();
+		}
+	}
+
+	/**
+	 * Clears the session state. The persister must have been flushed first.
+	 * @see #flushPersister()
+	 */
 	protected void clearState() throws MqttException {
 		final String methodName = "clearState";
 		//@TRACE 603=clearState
         LOGD(TAG, methodName+" >");
 
+		cancelRestore();
 		persistence.clear();
 		inUseMsgIds.clear();
 		pendingMessages.clear();
+		queuedMessages.set(0);
 		pendingFlows.clear();
-		outboundQoS2.clear();
-		outboundQoS1.clear();
+		urgentFlows.clear();
+		outbound.clear();
 		inboundQoS2.clear();
+		uncommittedAcks.clear();
 		tokenStore.clear();
 	}
 	
-	private MqttWireMessage restoreMessage(String key, MqttPersistable persistable) throws MqttException {
+	/**
+	 * Reads a message from persistence and decodes it, in place if the
+	 * persistence returns it in a heap buffer.
+	 * @return the message, or null if it is missing or corrupt
+	 */
+	private MqttWireMessage restoreMessage(String key) throws MqttException {
 		final String methodName = "restoreMessage";
 		MqttWireMessage message = null;
 
 		try {
-			message = MqttWireMessage.createWireMessage(persistable);
+			ByteBuffer data = bufferPersistence.getBuffer(key);
+			if (data == null) {
+				//@TRACE 664=key={0} missing
+				LOGD(TAG, methodName+" 664");
+				return null;
+			}
+			message = MqttWireMessage.createWireMessage(data);
 		}
 		catch (MqttException ex) {
 			//@TRACE 602=key={0} exception
@@ -218,189 +334,391 @@ public class ClientState {
 	}
 
 	/**
-	 * Inserts a new message to the list, ensuring that list is ordered from lowest to highest in terms of the message id's.
-	 * @param list the list to insert the message into
-	 * @param newMsg the message to insert into the list
+	 * Produces a new list with the messages properly ordered according to their message id's.
+	 * @param list the list containing the messages to produce a new reordered list for 
+	 * - this will not be modified or replaced, i.e., be read-only to this method
+	 * @return a new reordered list
 	 */
-	private void insertInOrder(Vector list, MqttWireMessage newMsg) {
-		int newMsgId = newMsg.getMessageId();
+	private Vector<MqttWireMessage> reOrder(Vector<MqttWireMessage> list) {
+		int[] msgIds = new int[list.size()];
 		for (int i = 0; i < list.size(); i++) {
-			MqttWireMessage otherMsg = (MqttWireMessage) list.elementAt(i);
-			int otherMsgId = otherMsg.getMessageId();
-			if (otherMsgId > newMsgId) {
-				list.insertElementAt(newMsg, i);
-				return;
-			}
+			msgIds[i] = list.elementAt(i).getMessageId();
 		}
-		list.addElement(newMsg);
+		return rotate(list, getOrderStart(msgIds));
 	}
-
+	
 	/**
-	 * Produces a new list with the messages properly ordered according to their message id's.
-	 * @param list the list containing the messages to produce a new reordered list for 
-	 * - this will not be modified or replaced, i.e., be read-only to this method
-	 * @return a new reordered list
+	 * Produces a new list with the messages ordered according to their
+	 * message id's, starting from the first at or after the given one.
 	 */
-	private Vector reOrder(Vector list) {
-
-		// here up the new list
-		Vector newList = new Vector();
-
-		if (list.size() == 0) {
-			return newList; // nothing to reorder
+	private Vector<MqttWireMessage> reOrder(Vector<MqttWireMessage> list, int startMsgId) {
+		int start = 0;
+		while (start < list.size() && list.elementAt(start).getMessageId() < startMsgId) {
+			start++;
+		}
+		return rotate(list, (start == list.size()) ? 0 : start);
+	}
+	
+	/**
+	 * Works out where in a list of message IDs in ascending order sending
+	 * should start: after the largest gap between them, which is where the
+	 * IDs wrapped round.
+	 * @return the position in the list to start from
+	 */
+	private static int getOrderStart(int[] msgIds) {
+		if (msgIds.length == 0) {
+			return 0; // nothing to reorder
 		}
 		
 		int previousMsgId = 0;
 		int largestGap = 0;
 		int largestGapMsgIdPosInList = 0;
-		for (int i = 0; i < list.size(); i++) {
-			int currentMsgId = ((MqttWireMessage) list.elementAt(i)).getMessageId();
+		for (int i = 0; i < msgIds.length; i++) {
+			int currentMsgId = msgIds[i];
 			if (currentMsgId - previousMsgId > largestGap) {
 				largestGap = currentMsgId - previousMsgId;
 				largestGapMsgIdPosInList = i;
 			}
 			previousMsgId = currentMsgId;
 		}
-		int lowestMsgId = ((MqttWireMessage) list.elementAt(0)).getMessageId();
+		int lowestMsgId = msgIds[0];
 		int highestMsgId = previousMsgId; // last in the sorted list
 		
 		// we need to check that the gap after highest msg id to the lowest msg id is not beaten
 		if (MAX_MSG_ID - highestMsgId + lowestMsgId > largestGap) {
 			largestGapMsgIdPosInList = 0;
 		}
-		
+		return largestGapMsgIdPosInList;
+	}
+	
+	private static Vector<MqttWireMessage> rotate(Vector<MqttWireMessage> list, int start) {
+		Vector<MqttWireMessage> newList = new Vector<MqttWireMessage>(list.size());
 		// starting message has been located, let's start from this point on
-		for (int i = largestGapMsgIdPosInList; i < list.size(); i++) {
+		for (int i = start; i < list.size(); i++) {
 			newList.addElement(list.elementAt(i));
 		}
-	
 		// and any wrapping back to the beginning
-		for (int i = 0; i < largestGapMsgIdPosInList; i++) {
+		for (int i = 0; i < start; i++) {
 			newList.addElement(list.elementAt(i));
 		}
-		
 		return newList;
 	}
 	
 	/**
 	 * Restores the state information from persistence.
+	 * <p>
+	 * The keys are listed once, and give the message IDs in use and the
+	 * order to send the outbound publishes in without reading any records.
+	 * Received QoS 2 publishes and PUBRELs are read straight away. The
+	 * outbound publishes are read by a {@link RestoreLoader}: straight away
+	 * if there are few, otherwise in the background while connecting, and
+	 * those loaded are sent while the rest are still being read. Until they
+	 * all are, their delivery tokens are not all known.</p>
 	 */
 	protected void restoreState() throws MqttException {
 		final String methodName = "restoreState";
-		Enumeration messageKeys = persistence.keys();
-		MqttPersistable persistable;
-		String key;
-		int highestMsgId = nextMsgId;
-		Vector orphanedPubRels = new Vector();
 		//@TRACE 600=>
         LOGD(TAG, methodName+" 600");
-		
+
+		Hashtable<String, String> keys = new Hashtable<String, String>();
+		Vector<String> received = new Vector<String>();
+		Vector<String> confirms = new Vector<String>();
+		Vector<String> sent = new Vector<String>();
+		Enumeration<?> messageKeys = persistence.keys();
 		while (messageKeys.hasMoreElements()) {
-			key = (String) messageKeys.nextElement();
-			persistable = persistence.get(key);
-			MqttWireMessage message = restoreMessage(key, persistable);
+			String key = (String) messageKeys.nextElement();
+			keys.put(key, key);
+			if (key.startsWith(PERSISTENCE_RECEIVED_PREFIX)) {
+				received.addElement(key);
+			} else if (key.startsWith(PERSISTENCE_SENT_PREFIX)) {
+				sent.addElement(key);
+			} else if (key.startsWith(PERSISTENCE_CONFIRMED_PREFIX)) {
+				confirms.addElement(key);
+			}
+		}
+
+		for (int i = 0; i < received.size(); i++) {
+			String key = received.elementAt(i);
+			MqttWireMessage message = restoreMessage(key);
 			if (message != null) {
-				if (key.startsWith(PERSISTENCE_RECEIVED_PREFIX)) {
-					//@TRACE 604=inbound QoS 2 publish key={0} message={1}
-                    LOGD(TAG, methodName+" 604");
-
-					// The inbound messages that we have persisted will be QoS 2 
-					inboundQoS2.put(message.getMessageId(),message);
-				} else if (key.startsWith(PERSISTENCE_SENT_PREFIX)) {
-					MqttPublish sendMessage = (MqttPublish) message;
-					highestMsgId = Math.max(sendMessage.getMessageId(), highestMsgId);
-					if (persistence.containsKey(getSendConfirmPersistenceKey(sendMessage))) {
-						MqttPersistable persistedConfirm = persistence.get(getSendConfirmPersistenceKey(sendMessage));
-						// QoS 2, and CONFIRM has already been sent...
-						// NO DUP flag is allowed for 3.1.1 spec while it's not clear for 3.1 spec
-						// So we just remove DUP
-						MqttPubRel confirmMessage = (MqttPubRel) restoreMessage(key, persistedConfirm);
-						if (confirmMessage != null) {
-							// confirmMessage.setDuplicate(true); // REMOVED
-							//@TRACE 605=outbound QoS 2 pubrel key={0} message={1}
-                            LOGD(TAG, methodName+" 605");
-
-							outboundQoS2.put(confirmMessage.getMessageId(), confirmMessage);
-						} else {
-							//@TRACE 606=outbound QoS 2 completed key={0} message={1}
-                            LOGD(TAG, methodName+" 606");
-						}
-					} else {
-						// QoS 1 or 2, with no CONFIRM sent...
-						// Put the SEND to the list of pending messages, ensuring message ID ordering...
-						sendMessage.setDuplicate(true);
-						if (sendMessage.getMessage().getQos() == 2) {
-							//@TRACE 607=outbound QoS 2 publish key={0} message={1}
-                            LOGD(TAG, methodName+" 607");
-							
-							outboundQoS2.put(Integer.valueOf(sendMessage.getMessageId()),sendMessage);
-						} else {
-							//@TRACE 608=outbound QoS 1 publish key={0} message={1}
-							LOGD(TAG, methodName+" 608");
-
-							outboundQoS1.put(Integer.valueOf(sendMessage.getMessageId()),sendMessage);
-						}
-					}
-					MqttDeliveryToken tok = tokenStore.restoreToken(sendMessage);
-					tok.internalTok.setClient(clientComms.getClient());
-					inUseMsgIds.put(Integer.valueOf(sendMessage.getMessageId()),Integer.valueOf(sendMessage.getMessageId()));
-				}
-				else if (key.startsWith(PERSISTENCE_CONFIRMED_PREFIX)) {
-					MqttPubRel pubRelMessage = (MqttPubRel) message;
-					if (!persistence.containsKey(getSendPersistenceKey(pubRelMessage))) {
-						orphanedPubRels.addElement(key);
-					}
-				}
+				//@TRACE 604=inbound QoS 2 publish key={0} message={1}
+                LOGD(TAG, methodName+" 604");
+
+				// The inbound messages that we have persisted will be QoS 2 
+				inboundQoS2.put(message.getMessageId(), message, 2);
 			}
 		}
 
-		messageKeys = orphanedPubRels.elements();
-		while(messageKeys.hasMoreElements()) {
-			key = (String) messageKeys.nextElement();
-			//@TRACE 609=removing orphaned pubrel key={0}
-            LOGD(TAG, methodName+" 606");
+		for (int i = 0; i < confirms.size(); i++) {
+			String key = confirms.elementAt(i);
+			if (!keys.containsKey(PERSISTENCE_SENT_PREFIX + key.substring(PERSISTENCE_CONFIRMED_PREFIX.length()))) {
+				//@TRACE 609=removing orphaned pubrel key={0}
+                LOGD(TAG, methodName+" 609");
 
-			persistence.remove(key);
+				persistence.remove(key);
+				continue;
+			}
+			// QoS 2, and CONFIRM has already been sent...
+			// NO DUP flag is allowed for 3.1.1 spec while it's not clear for 3.1 spec
+			// So we just remove DUP
+			MqttPubRel confirmMessage = (MqttPubRel) restoreMessage(key);
+			if (confirmMessage != null) {
+				//@TRACE 605=outbound QoS 2 pubrel key={0} message={1}
+                LOGD(TAG, methodName+" 605");
+
+				outbound.put(confirmMessage.getMessageId(), confirmMessage, 2);
+			} else {
+				//@TRACE 606=outbound QoS 2 completed key={0} message={1}
+                LOGD(TAG, methodName+" 606");
+			}
+		}
+
+		// Sort the outbound publishes by message ID once, from the keys
+		int highestMsgId = inUseMsgIds.getLastMsgId();
+		int[] msgIds = new int[sent.size()];
+		int count = 0;
+		for (int i = 0; i < sent.size(); i++) {
+			try {
+				msgIds[count] = Integer.parseInt(sent.elementAt(i).substring(PERSISTENCE_SENT_PREFIX.length()));
+				count++;
+			} catch (NumberFormatException ex) {
+				// Not a key this class wrote
+			}
+		}
+		if (count < msgIds.length) {
+			int[] valid = new int[count];
+			System.arraycopy(msgIds, 0, valid, 0, count);
+			msgIds = valid;
+		}
+		Arrays.sort(msgIds);
+		if (msgIds.length > 0) {
+			highestMsgId = Math.max(msgIds[msgIds.length - 1], highestMsgId);
+		}
+		inUseMsgIds.setLastMsgId(highestMsgId);
+		if (msgIds.length == 0) {
+			return;
+		}
+
+		int start = getOrderStart(msgIds);
+		String[] orderedKeys = new String[msgIds.length];
+		boolean[] confirmed = new boolean[msgIds.length];
+		for (int i = 0; i < msgIds.length; i++) {
+			int msgId = msgIds[(start + i) % msgIds.length];
+			inUseMsgIds.markInUse(msgId);
+			orderedKeys[i] = PERSISTENCE_SENT_PREFIX + msgId;
+			confirmed[i] = keys.containsKey(PERSISTENCE_CONFIRMED_PREFIX + msgId);
+		}
+		restoreStartId = msgIds[start];
+
+		RestoreLoader loader = new RestoreLoader(this, orderedKeys, confirmed);
+		synchronized (queueLock) {
+			restoreLoader = loader;
+		}
+		if (msgIds.length <= RESTORE_INLINE_MAX) {
+			loader.start(null, 0);
+		}
+		// Otherwise persistence is closed once the client is constructed,
+		// so loading starts when it is reopened to connect
+	}
+	
+	/**
+	 * Starts or carries on loading restored publishes in the background,
+	 * once persistence has been reopened to connect.
+	 */
+	protected void startRestore() {
+		RestoreLoader loader = restoreLoader;
+		if (loader != null && !cleanSession) {
+			loader.start("MQTT Restore: " + clientComms.getClient().getClientId(), RESTORE_THREADS);
+		}
+	}
+	
+	/**
+	 * Reads and decodes a restored outbound publish, for the
+	 * {@link RestoreLoader}.
+	 * @return the publish, or null if it is corrupt
+	 */
+	protected MqttWireMessage loadRestoredMessage(String key) throws MqttException {
+		if (persistence == null) {
+			return null;
+		}
+		return restoreMessage(key);
+	}
+	
+	/**
+	 * Called by the {@link RestoreLoader} with each outbound publish in
+	 * sending order. If connected the publish is queued to be sent now.
+	 * @param confirmed whether its PUBREL has been restored instead
+	 */
+	protected void restored(RestoreLoader loader, MqttWireMessage message, boolean confirmed) {
+		final String methodName = "restored";
+		MqttPublish sendMessage = (MqttPublish) message;
+		boolean queued = false;
+		synchronized (queueLock) {
+			if (loader != restoreLoader) {
+				return;
+			}
+			if (!confirmed) {
+				// QoS 1 or 2, with no CONFIRM sent...
+				sendMessage.setDuplicate(true);
+				if (sendMessage.getMessage().getQos() == 2) {
+					//@TRACE 607=outbound QoS 2 publish key={0} message={1}
+                    LOGD(TAG, methodName+" 607");
+					
+					outbound.put(sendMessage.getMessageId(), sendMessage, 2);
+				} else {
+					//@TRACE 608=outbound QoS 1 publish key={0} message={1}
+					LOGD(TAG, methodName+" 608");
+
+					outbound.put(sendMessage.getMessageId(), sendMessage, 1);
+				}
+				if (connected) {
+					// Sending has started, so this joins the end of the queue
+					pendingMessages.offer(sendMessage);
+					queued = true;
+				}
+			}
+			MqttDeliveryToken tok = tokenStore.restoreToken(sendMessage);
+			tok.internalTok.setClient(clientComms.getClient());
+		}
+		if (queued) {
+			wakeSender();
+		}
+	}
+	
+	/**
+	 * Called by the {@link RestoreLoader} in place of {@link #restored}
+	 * for a publish that could not be read.
+	 */
+	protected void restoreFailed(RestoreLoader loader, String key) {
+		synchronized (queueLock) {
+			if (loader == restoreLoader) {
+				releaseMessageId(Integer.parseInt(key.substring(PERSISTENCE_SENT_PREFIX.length())));
+			}
+		}
+	}
+	
+	/**
+	 * Called by the {@link RestoreLoader} once every publish has been
+	 * handed over. The publishes held back meanwhile are now queued.
+	 */
+	protected void restoreComplete(RestoreLoader loader) {
+		final String methodName = "restoreComplete";
+		synchronized (queueLock) {
+			if (loader != restoreLoader) {
+				return;
+			}
+			//@TRACE 662=restore complete
+			LOGD(TAG, methodName+" 662");
+			restoreLoader = null;
+			if (connected) {
+				pendingMessages.addAll(heldMessages);
+			} else {
+				dequeued(heldMessages.size());
+			}
+			heldMessages.clear();
+		}
+		wakeSender();
+	}
+	
+	/**
+	 * Stops loading restored publishes, for when the state is cleared.
+	 */
+	private void cancelRestore() {
+		synchronized (queueLock) {
+			if (restoreLoader != null) {
+				restoreLoader.cancel();
+				restoreLoader = null;
+			}
+			dequeued(heldMessages.size());
+			heldMessages.clear();
+		}
+	}
+	
+	/**
+	 * Queues a publish to be sent, behind any restored publishes still
+	 * being loaded. Its place has already been taken with
+	 * {@link #reserveQueued()}.
+	 */
+	private void queueMessage(MqttWireMessage message) {
+		if (restoreLoader != null) {
+			synchronized (queueLock) {
+				if (restoreLoader != null) {
+					heldMessages.addElement(message);
+					return;
+				}
+			}
+		}
+		pendingMessages.offer(message);
+	}
+	
+	/**
+	 * Takes a place on queuedMessages for a publish, if with those queued
+	 * and in flight it stays within maxInflight. The check and the
+	 * increment are one step, so senders racing for the last place cannot
+	 * both take it.
+	 * @return false if there is no room
+	 */
+	private boolean reserveQueued() {
+		while (true) {
+			int queued = queuedMessages.get();
+			if (actualInFlight.get() + queued >= this.maxInflight) {
+				return false;
+			}
+			if (queuedMessages.compareAndSet(queued, queued + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Takes publishes that have left the queues off queuedMessages, which
+	 * is not taken below zero.
+	 */
+	private void dequeued(int count) {
+		while (true) {
+			int queued = queuedMessages.get();
+			if (queued == 0 || queuedMessages.compareAndSet(queued, Math.max(0, queued - count))) {
+				return;
+			}
 		}
-		
-		nextMsgId = highestMsgId;
 	}
 	
 	private void restoreInflightMessages() {
 		final String methodName = "restoreInflightMessages";
-		pendingMessages = new Vector(this.maxInflight);
-		pendingFlows = new Vector();
+		Vector<MqttWireMessage> messages = new Vector<MqttWireMessage>(this.maxInflight);
+		Vector<MqttWireMessage> flows = new Vector<MqttWireMessage>();
 
-		Enumeration keys = outboundQoS2.keys();
-		while (keys.hasMoreElements()) {
-			Object key = keys.nextElement();
-			MqttWireMessage msg = (MqttWireMessage) outboundQoS2.get(key);
+		// The table returns the messages in message ID order
+		Enumeration<Object> elements = outbound.values().elements();
+		while (elements.hasMoreElements()) {
+			MqttWireMessage msg = (MqttWireMessage) elements.nextElement();
 			if (msg instanceof MqttPublish) {
-				//@TRACE 610=QoS 2 publish key={0}
-                LOGD(TAG, methodName+" 610");
+				if (((MqttPublish) msg).getMessage().getQos() == 2) {
+					//@TRACE 610=QoS 2 publish key={0}
+					LOGD(TAG, methodName+" 610");
+				} else {
+					//@TRACE 612=QoS 1 publish key={0}
+					LOGD(TAG, methodName+" 612");
+				}
                 // set DUP flag only for PUBLISH, but NOT for PUBREL (spec 3.1.1)
 				msg.setDuplicate(true);  
-				insertInOrder(pendingMessages, (MqttPublish)msg);
+				messages.addElement(msg);
 			} else if (msg instanceof MqttPubRel) {
 				//@TRACE 611=QoS 2 pubrel key={0}
 				LOGD(TAG, methodName+" 611");
 
-				insertInOrder(pendingFlows, (MqttPubRel)msg);
+				flows.addElement(msg);
 			}
 		}
-		keys = outboundQoS1.keys();
-		while (keys.hasMoreElements()) {
-			Object key = keys.nextElement();
-			MqttPublish msg = (MqttPublish)outboundQoS1.get(key);
-			msg.setDuplicate(true);
-			//@TRACE 612=QoS 1 publish key={0}
-            LOGD(TAG, methodName+" 612");
-
-			insertInOrder(pendingMessages, msg);
-		}
 		
-		this.pendingFlows = reOrder(pendingFlows);
-		this.pendingMessages = reOrder(pendingMessages);
+		pendingFlows.clear();
+		pendingFlows.addAll(reOrder(flows));
+		pendingMessages.clear();
+		// Only the publishes held back are left counted
+		queuedMessages.set(heldMessages.size());
+		// While restored publishes are loading, the order they are loaded
+		// in is kept
+		pendingMessages.addAll((restoreLoader == null) ? reOrder(messages) : reOrder(messages, restoreStartId));
 	}
 	
 	/**
@@ -425,64 +743,242 @@ public class ClientState {
 		}
 			
 		if (message instanceof MqttPublish) {
-			synchronized (queueLock) {
-				if (actualInFlight >= this.maxInflight) {
-					//@TRACE 613= sending {0} msgs at max inflight window
-                    LOGD(TAG, methodName+" 613");
+			if (!reserveQueued()) {
+				//@TRACE 613= sending {0} msgs at max inflight window
+                LOGD(TAG, methodName+" 613");
+
+				throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+			}
+			
+			MqttMessage innerMessage = ((MqttPublish) message).getMessage();
+			//@TRACE 628=pending publish key={0} qos={1} message={2}
+            LOGD(TAG, methodName+" 628");
 
-					throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+			boolean queued = false;
+			try {
+				CommsPersister persister = this.persister;
+				if (persister != null) {
+					// Queued, or its place given back, once it is stored
+					sendPersisted(persister, (MqttPublish) message, token);
+					queued = true;
+					return;
 				}
-				
-				MqttMessage innerMessage = ((MqttPublish) message).getMessage();
-				//@TRACE 628=pending publish key={0} qos={1} message={2}
-                LOGD(TAG, methodName+" 628");
 
 				switch(innerMessage.getQos()) {
 					case 2:
-						outboundQoS2.put(new Integer(message.getMessageId()), message);
-						persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
+						outbound.put(message.getMessageId(), message, 2);
+						persistOutbound(getSendPersistenceKey(message), (MqttPublish) message, token);
 						break;
 					case 1:
-						outboundQoS1.put(new Integer(message.getMessageId()), message);
-						persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
+						outbound.put(message.getMessageId(), message, 1);
+						persistOutbound(getSendPersistenceKey(message), (MqttPublish) message, token);
 						break;
 				}
+				// The token must be saved before the sender can see the message
 				tokenStore.saveToken(token, message);
-				pendingMessages.addElement(message);
-				queueLock.notifyAll();
+				queueMessage(message);
+				queued = true;
+			} finally {
+				if (!queued) {
+					dequeued(1);
+				}
 			}
+			wakeSender();
 		} else {
 			//@TRACE 615=pending send key={0} message {1}
             LOGD(TAG, methodName+" 615");
 			
 			if (message instanceof MqttConnect) {
-				synchronized (queueLock) {
-					// Add the connect action at the head of the pending queue ensuring it jumps
-					// ahead of any of other pending actions.
-					tokenStore.saveToken(token, message);
-					pendingFlows.insertElementAt(message,0);
-					queueLock.notifyAll();
-				}
+				// Add the connect action to the urgent queue ensuring it jumps
+				// ahead of any of other pending actions.
+				tokenStore.saveToken(token, message);
+				urgentFlows.offer(message);
+				wakeSender();
 			} else {
+				CommsPersister persister = this.persister;
+				if (persister != null && (message instanceof MqttPubRel || message instanceof MqttPubComp)) {
+					if (message instanceof MqttPubRel) {
+						tokenStore.saveToken(token, message);
+						sendFlowPersisted(persister, message, getSendConfirmPersistenceKey(message), (MqttPubRel) message);
+					} else {
+						sendFlowPersisted(persister, message, getReceivedPersistenceKey(message), null);
+					}
+					return;
+				}
 				if (message instanceof MqttPingReq) {
 					this.pingCommand = message;
 				}
 				else if (message instanceof MqttPubRel) {
-					outboundQoS2.put(new Integer(message.getMessageId()), message);
-					persistence.put(getSendConfirmPersistenceKey(message), (MqttPubRel) message);
+					outbound.put(message.getMessageId(), message, 2);
+					persistOutbound(getSendConfirmPersistenceKey(message), (MqttPubRel) message, token);
 				}
 				else if (message instanceof MqttPubComp)  {
 					persistence.remove(getReceivedPersistenceKey(message));
 				}
 				
+				if ( !(message instanceof MqttAck )) {
+					tokenStore.saveToken(token, message);
+				}
+				pendingFlows.offer(message);
+				wakeSender();
+			}
+		}
+	}
+	
+	/**
+	 * Queues the acknowledgements for several arrived messages, waking the
+	 * sender only once they are all queued so that it can write them
+	 * together.
+	 *
+	 * @param acks PUBACKs and PUBCOMPs
+	 * @throws MqttException
+	 */
+	public void sendAcks(MqttAck[] acks) throws MqttException {
+		final String methodName = "sendAcks";
+		//@TRACE 665=pending acks count={0}
+		LOGD(TAG, methodName+" 665");
+		CommsPersister persister = this.persister;
+		ConcurrentLinkedQueue<MqttWireMessage> pendingFlows = this.pendingFlows;
+		if (pendingFlows == null) {
+			// Closed, the server sends the messages again
+			return;
+		}
+		for (int i = 0; i < acks.length; i++) {
+			if (acks[i] instanceof MqttPubComp) {
+				if (persister != null) {
+					sendFlowPersisted(persister, acks[i], getReceivedPersistenceKey(acks[i]), null);
+					continue;
+				}
+				persistence.remove(getReceivedPersistenceKey(acks[i]));
+			}
+			pendingFlows.offer(acks[i]);
+		}
+		wakeSender();
+	}
+	
+	/**
+	 * Persists an outbound publish or pubrel. If the persistence commits in
+	 * groups this does not wait for the disk, and the token records which
+	 * commit it must wait for before it can complete.
+	 */
+	private void persistOutbound(String key, MqttPersistable message, MqttToken token) throws MqttPersistenceException {
+		if (groupCommit != null) {
+			long sequence = groupCommit.putUncommitted(key, message);
+			if (token != null) {
+				token.internalTok.setCommitSequence(sequence);
+			}
+		} else {
+			putMessage(key, message);
+		}
+	}
+	
+	/**
+	 * Stores a message through the buffer interface, straight from the
+	 * message's own bytes.
+	 */
+	private void putMessage(String key, MqttPersistable message) throws MqttPersistenceException {
+		bufferPersistence.putBuffer(key, BufferPersistenceAdapter.getHeader(message),
+				BufferPersistenceAdapter.getPayload(message));
+	}
+	
+	/**
+	 * Queues a publish behind its write to persistence, so that the caller
+	 * does not wait for the write. QoS 0 publishes are queued too, to keep
+	 * their place among the others.
+	 */
+	private void sendPersisted(CommsPersister persister, final MqttPublish message, final MqttToken token) throws MqttException {
+		final int qos = message.getMessage().getQos();
+		tokenStore.saveToken(token, message);
+		String key = (qos == 0) ? null : getSendPersistenceKey(message);
+		persister.enqueue(new CommsPersister.Operation(key, (qos == 0) ? null : message) {
+			protected void done(MqttPersistenceException failure) {
+				publishPersisted(message, token, qos, failure);
+			}
+		});
+	}
+	
+	/**
+	 * Called by the persister once a publish has been stored. The publish
+	 * now joins the outbound queues or, if it could not be stored, its
+	 * token fails.
+	 */
+	private void publishPersisted(MqttPublish message, MqttToken token, int qos, MqttPersistenceException failure) {
+		final String methodName = "publishPersisted";
+		synchronized (queueLock) {
+			CommsTokenStore store = tokenStore;
+			if (store == null) {
+				// Closed while it was being stored
+				return;
+			}
+			if (qos > 0 && store.getToken(message) != token) {
+				// Undone while it was being stored
+				dequeued(1);
+				return;
+			}
+			if (failure == null) {
+				if (qos > 0) {
+					outbound.put(message.getMessageId(), message, qos);
+				}
+				queueMessage(message);
+			} else {
+				dequeued(1);
+				if (qos > 0) {
+					store.removeToken(message);
+					releaseMessageId(message.getMessageId());
+				}
+			}
+		}
+		if (failure == null) {
+			wakeSender();
+			return;
+		}
+		//@TRACE 653=publish could not be persisted key={0}
+        LOGD(TAG, methodName+" 653", failure);
+		token.internalTok.markComplete(null, failure);
+		CommsCallback callback = this.callback;
+		if (callback != null) {
+			callback.asyncOperationComplete(token);
+		}
+	}
+	
+	/**
+	 * Queues a PUBREL or PUBCOMP behind the write to persistence that must
+	 * come first: storing the PUBREL, or removing the received publish.
+	 * @param data the data to put, or null to remove the key
+	 */
+	private void sendFlowPersisted(CommsPersister persister, final MqttWireMessage flow, String key, MqttPersistable data) {
+		final String methodName = "sendFlowPersisted";
+		persister.enqueue(new CommsPersister.Operation(key, data) {
+			protected void done(MqttPersistenceException failure) {
+				if (failure != null) {
+					// Not sent, the server repeats its part of the flow on reconnect
+					//@TRACE 654=flow could not be persisted key={0}
+                    LOGD(TAG, methodName+" 654", failure);
+					return;
+				}
 				synchronized (queueLock) {
-					if ( !(message instanceof MqttAck )) {
-						tokenStore.saveToken(token, message);
+					if (outbound == null) {
+						return;
+					}
+					if (flow instanceof MqttPubRel) {
+						outbound.put(flow.getMessageId(), flow, 2);
 					}
-					pendingFlows.addElement(message);
-					queueLock.notifyAll();
+					pendingFlows.offer(flow);
 				}
+				wakeSender();
 			}
+		});
+	}
+	
+	/**
+	 * Removes a key from persistence, through the persister if there is one.
+	 */
+	private void removePersisted(String key) throws MqttPersistenceException {
+		CommsPersister persister = this.persister;
+		if (persister != null) {
+			persister.remove(key);
+		} else {
+			persistence.remove(key);
 		}
 	}
 	
@@ -497,13 +993,11 @@ public class ClientState {
 			//@TRACE 618=key={0} QoS={1} 
 			LOGD(TAG, methodName+" 618");
 			
-			if (message.getMessage().getQos() == 1) {
-				outboundQoS1.remove(new Integer(message.getMessageId()));
-			} else {
-				outboundQoS2.remove(new Integer(message.getMessageId()));
+			outbound.remove(message.getMessageId());
+			if (pendingMessages.remove(message) || heldMessages.removeElement(message)) {
+				dequeued(1);
 			}
-			pendingMessages.removeElement(message);
-			persistence.remove(getSendPersistenceKey(message));
+			removePersisted(getSendPersistenceKey(message));
 			tokenStore.removeToken(message);
 			checkQuiesceLock();
 		}
@@ -591,11 +1085,11 @@ public class ClientState {
                     // lastPing = time;    // it will be set after the ping has been written on the wire                                                                                                             
                     token = new MqttToken(clientComms.getClient().getClientId());
                     tokenStore.saveToken(token, pingCommand);
-                    pendingFlows.insertElementAt(pingCommand, 0);
+                    urgentFlows.offer(pingCommand);
 
                     nextPingTime = getKeepAlive();
 
-                    //Wake sender thread since it may be in wait state (in ClientState.get())                                                                                                                             
+                    //Wake sender thread since it may be parked (in ClientState.get())                                                                                                                             
                     notifyQueueLock();
                 }
                 else {
@@ -625,77 +1119,171 @@ public class ClientState {
 		final String methodName = "get";
 		MqttWireMessage result = null;
 
-		synchronized (queueLock) {
-			while (result == null) {
+		while (result == null) {
+			
+			// If there is no work wait until there is work.
+			// If the inflight window is full and no flows are pending wait until space is freed.
+			// In both cases the sender will be woken.
+			if (!hasWork()) {
+				//@TRACE 644=wait for new work or for space in the inflight window 
+                LOGD(TAG, methodName+" 644");
+
+				parkSender(0);
+				// Interrupts were always ignored here
+				Thread.interrupted();
 				
-				// If there is no work wait until there is work.
-				// If the inflight window is full and no flows are pending wait until space is freed.
-				// In both cases queueLock will be notified.
-				if ((pendingMessages.isEmpty() && pendingFlows.isEmpty()) || 
-					(pendingFlows.isEmpty() && actualInFlight >= this.maxInflight)) {
-					try {
-						//@TRACE 644=wait for new work or for space in the inflight window 
-                        LOGD(TAG, methodName+" 644");
- 
-						queueLock.wait();
-						
-						//@TRACE 647=new work or ping arrived 
-                        LOGD(TAG, methodName+" 647");
-					} catch (InterruptedException e) {
-					}
-				}
+				//@TRACE 647=new work or ping arrived 
+                LOGD(TAG, methodName+" 647");
+			}
+			
+			// Handle the case where not connected. This should only be the case if: 
+			// - in the process of disconnecting / shutting down
+			// - in the process of connecting
+			if (!connected && !isConnectPending()) {
+				//@TRACE 621=no outstanding flows and not connected
+                LOGD(TAG, methodName+" 621");
 				
-				// Handle the case where not connected. This should only be the case if: 
-				// - in the process of disconnecting / shutting down
-				// - in the process of connecting
-				if (!connected && 
-						(pendingFlows.isEmpty() || !((MqttWireMessage)pendingFlows.elementAt(0) instanceof MqttConnect))) {
-					//@TRACE 621=no outstanding flows and not connected
-                    LOGD(TAG, methodName+" 621");
-					
-					return null;
-				}
+				return null;
+			}
 
-				// Check if there is a need to send a ping to keep the session alive. 
-				// Note this check is done before processing messages. If not done first
-				// an app that only publishes QoS 0 messages will prevent keepalive processing
-				// from functioning. 
-//				checkForActivity(); //Use pinger, don't check here
-				
-				// Now process any queued flows or messages
-				if (!pendingFlows.isEmpty()) {
-					// Process the first "flow" in the queue
-					result = (MqttWireMessage)pendingFlows.remove(0);
-					if (result instanceof MqttPubRel) {
-						inFlightPubRels++;
-
-						//@TRACE 617=+1 inflightpubrels={0}
-                        LOGD(TAG, methodName+" 617");
-					}
-		
-					checkQuiesceLock();
-				} else if (!pendingMessages.isEmpty()) {
-					// If the inflight window is full then messages are not 
-					// processed until the inflight window has space. 
-					if (actualInFlight < this.maxInflight) {
-						// The in flight window is not full so process the 
-						// first message in the queue
-						result = (MqttWireMessage)pendingMessages.elementAt(0);
-						pendingMessages.removeElementAt(0);
-						actualInFlight++;
+			// Check if there is a need to send a ping to keep the session alive. 
+			// Note this check is done before processing messages. If not done first
+			// an app that only publishes QoS 0 messages will prevent keepalive processing
+			// from functioning. 
+//			checkForActivity(); //Use pinger, don't check here
+			
+			result = takeNext();
+		}
+		return result;
+	}
 	
-						//@TRACE 623=+1 actualInFlight={0}
-                        LOGD(TAG, methodName+" 623");
-					} else {
-						//@TRACE 622=inflight window full
-                        LOGD(TAG, methodName+" 622");
-					}
-				}			
+	/**
+	 * Returns the next message to send, waiting at most the given time for
+	 * one to become available. Unlike {@link #get()} this returns null
+	 * rather than blocking when there is no work, so that the sender can
+	 * add it to a batch that is already being built.
+	 * @param timeout the longest time to wait in milliseconds, 0 to not wait
+	 * @return the next message, or null if there is none
+	 */
+	protected MqttWireMessage poll(long timeout) {
+		final String methodName = "poll";
+		MqttWireMessage result = null;
+
+		long deadline = System.currentTimeMillis() + timeout;
+		while (result == null) {
+			if (!connected && !isConnectPending()) {
+				break;
+			}
+			result = takeNext();
+			if (result == null) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					break;
+				}
+				//@TRACE 648=wait for more work to add to the batch
+                LOGD(TAG, methodName+" 648");
+				parkSender(wait);
+				if (Thread.interrupted()) {
+					break;
+				}
 			}
 		}
 		return result;
 	}
 	
+	/**
+	 * Removes the next flow or message to send from the queues, if there is
+	 * one that may be sent now. Only the sender thread may call this.
+	 */
+	private MqttWireMessage takeNext() {
+		final String methodName = "takeNext";
+
+		// Now process any queued flows or messages
+		MqttWireMessage result = urgentFlows.poll();
+		if (result == null) {
+			result = pendingFlows.poll();
+		}
+		if (result != null) {
+			if (result instanceof MqttPubRel) {
+				inFlightPubRels.incrementAndGet();
+
+				//@TRACE 617=+1 inflightpubrels={0}
+                LOGD(TAG, methodName+" 617");
+			}
+
+			checkQuiesceLock();
+		} else if (!pendingMessages.isEmpty()) {
+			// If the inflight window is full then messages are not 
+			// processed until the inflight window has space. Only this
+			// thread increments actualInFlight, so the window cannot be
+			// filled by someone else between the check and the increment.
+			if (actualInFlight.get() < inflightWindow.getWindow()) {
+				// The in flight window is not full so process the 
+				// first message in the queue
+				result = pendingMessages.poll();
+				if (result != null) {
+					actualInFlight.incrementAndGet();
+					dequeued(1);
+
+					//@TRACE 623=+1 actualInFlight={0}
+                    LOGD(TAG, methodName+" 623");
+				}
+			} else {
+				//@TRACE 622=inflight window full
+                LOGD(TAG, methodName+" 622");
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns whether takeNext() would return a message.
+	 */
+	private boolean hasWork() {
+		return !urgentFlows.isEmpty() || !pendingFlows.isEmpty() ||
+			(!pendingMessages.isEmpty() && actualInFlight.get() < inflightWindow.getWindow());
+	}
+	
+	/**
+	 * Returns whether a connect is waiting to be sent, which is the only
+	 * thing the sender may send while not connected.
+	 */
+	private boolean isConnectPending() {
+		return urgentFlows.peek() instanceof MqttConnect;
+	}
+	
+	/**
+	 * Parks the sender thread until there is work for it, it is woken by
+	 * {@link #wakeSender()}, or the timeout expires.
+	 * @param timeout the longest time to park in milliseconds, 0 for no limit
+	 */
+	private void parkSender(long timeout) {
+		waitingSender = Thread.currentThread();
+		try {
+			// Check again now waitingSender is visible, as work added before
+			// that will not have woken this thread
+			if (!hasWork()) {
+				if (timeout > 0) {
+					LockSupport.parkNanos(this, timeout * 1000000L);
+				} else {
+					LockSupport.park(this);
+				}
+			}
+		} finally {
+			waitingSender = null;
+		}
+	}
+	
+	/**
+	 * Wakes the sender thread if it is parked waiting for work.
+	 */
+	private void wakeSender() {
+		Thread sender = waitingSender;
+		if (sender != null) {
+			LockSupport.unpark(sender);
+		}
+	}
+	
 	public void setKeepAliveInterval(long interval) {
 		this.keepAlive = interval;
 	}
@@ -711,53 +1299,63 @@ public class ClientState {
 
 	
 	/**
-	 * Called by the CommsSender when a message has been sent
+	 * Called by the CommsSender, with the message's token locked, before
+	 * the message is written. Its ack cannot be processed until this
+	 * returns.
+	 * @param message
+	 * @param token the message's token
+	 */
+	protected void notifySending(MqttWireMessage message, MqttToken token) {
+		final String methodName = "notifySending";
+		token.internalTok.notifySending();
+        if (message instanceof MqttPingReq) {
+            synchronized (pingOutstandingLock) {
+                lastPing = System.currentTimeMillis();
+                pingOutstanding++;
+                //@TRACE 635=ping sent. pingOutstanding: {0}                                                                                                                                                                  
+                LOGD(TAG, methodName+" 635");
+            }
+        }
+        else if (message instanceof MqttPublish && ((MqttPublish)message).getMessage().getQos() > 0) {
+			// Time the round trip to the PUBACK, PUBREC and PUBCOMP
+			token.internalTok.setSentTime(System.nanoTime());
+		}
+	}
+
+	/**
+	 * Called by the CommsSender when a message has been sent. Its ack may
+	 * already have been processed.
 	 * @param message
+	 * @param token the message's token
 	 */
-	protected void notifySent(MqttWireMessage message) {
+	protected void notifySent(MqttWireMessage message, MqttToken token) {
 		final String methodName = "notifySent";
 		
 		this.lastOutboundActivity = System.currentTimeMillis();
 		//@TRACE 625=key={0}
         LOGD(TAG, methodName+" 625");
 		
-		MqttToken token = tokenStore.getToken(message);
 		token.internalTok.notifySent();
-        if (message instanceof MqttPingReq) {
-            synchronized (pingOutstandingLock) {
-            	long time = System.currentTimeMillis();
-                synchronized (pingOutstandingLock) {
-                	lastPing = time;
-                	pingOutstanding++;
-                }
-                //@TRACE 635=ping sent. pingOutstanding: {0}                                                                                                                                                                  
-                LOGD(TAG, methodName+" 635");
-            }
-        }
-        else if (message instanceof MqttPublish) {
-			if (((MqttPublish)message).getMessage().getQos() == 0) {
-				// once a QoS 0 message is sent we can clean up its records straight away as
-				// we won't be hearing about it again
-				token.internalTok.markComplete(null, null);
-				callback.asyncOperationComplete(token);
-				decrementInFlight();
-				releaseMessageId(message.getMessageId());
-				tokenStore.removeToken(message);
-				checkQuiesceLock();
-			}
+		if (message instanceof MqttPublish && ((MqttPublish)message).getMessage().getQos() == 0) {
+			// once a QoS 0 message is sent we can clean up its records straight away as
+			// we won't be hearing about it again
+			token.internalTok.markComplete(null, null);
+			callback.asyncOperationComplete(token);
+			decrementInFlight();
+			releaseMessageId(message.getMessageId());
+			tokenStore.removeToken(message);
+			checkQuiesceLock();
 		}
 	}
 
 	private void decrementInFlight() {
 		final String methodName = "decrementInFlight";
-		synchronized (queueLock) {
-			actualInFlight--;
-			//@TRACE 646=-1 actualInFlight={0}
-            LOGD(TAG, methodName+" 646");
-			
-			if (!checkQuiesceLock()) {
-				queueLock.notifyAll();
-			}
+		actualInFlight.decrementAndGet();
+		//@TRACE 646=-1 actualInFlight={0}
+        LOGD(TAG, methodName+" 646");
+		
+		if (!checkQuiesceLock()) {
+			wakeSender();
 		}
 	}
 	
@@ -765,7 +1363,7 @@ public class ClientState {
 		final String methodName = "checkQuiesceLock";
 //		if (quiescing && actualInFlight == 0 && pendingFlows.size() == 0 && inFlightPubRels == 0 && callback.isQuiesced()) {
 		int tokC = tokenStore.count();
-		if (quiescing && tokC == 0 && pendingFlows.size() == 0 && callback.isQuiesced()) {
+		if (quiescing && tokC == 0 && pendingFlows.isEmpty() && urgentFlows.isEmpty() && callback.isQuiesced()) {
 			//@TRACE 626=quiescing={0} actualInFlight={1} pendingFlows={2} inFlightPubRels={3} callbackQuiesce={4} tokens={5}
             LOGD(TAG, methodName+" 626");
 			synchronized (quiesceLock) {
@@ -802,6 +1400,10 @@ public class ClientState {
 		MqttException mex = null;
 
 		if (ack instanceof MqttPubRec) {
+			// The PUBREC ends a QoS 2 publish's round trip to the server,
+			// so the window is sampled here rather than at the PUBCOMP
+			long now = recordLatency(pubRecLatency, token);
+			inflightWindow.onAck(token.internalTok.getSentTime(), now);
 			// Complete the QoS 2 flow. Unlike all other
 			// flows, QoS is a 2 phase flow. The second phase sends a
 			// PUBREL - the operation is not complete until a PUBCOMP
@@ -809,9 +1411,17 @@ public class ClientState {
 			MqttPubRel rel = new MqttPubRel((MqttPubRec) ack);
 			this.send(rel, token);
 		} else if (ack instanceof MqttPubAck || ack instanceof MqttPubComp) {
+			if (ack instanceof MqttPubAck) {
+				long now = recordLatency(pubAckLatency, token);
+				inflightWindow.onAck(token.internalTok.getSentTime(), now);
+			} else {
+				recordLatency(pubCompLatency, token);
+			}
 			// QoS 1 & 2 notify users of result before removing from
-			// persistence
-			notifyResult(ack, token, mex);
+			// persistence, once the message has been committed to it
+			if (!deferUntilCommitted(ack, token)) {
+				notifyResult(ack, token, mex);
+			}
 			// Do not remove publish / delivery token at this stage
 			// do this when the persistence is removed later 
 		} else if (ack instanceof MqttPingResp) {
@@ -827,6 +1437,9 @@ public class ClientState {
 		} else if (ack instanceof MqttConnack) {
 			int rc = ((MqttConnack) ack).getReturnCode();
 			if (rc == 0) {
+				if (cleanSession) {
+					flushPersister();
+				}
 				synchronized (queueLock) {
 					if (cleanSession) {
 						clearState();
@@ -834,8 +1447,8 @@ public class ClientState {
 						// notified when connect completes.
 						tokenStore.saveToken(token,ack);
 					}
-					inFlightPubRels = 0;
-					actualInFlight = 0;
+					inFlightPubRels.set(0);
+					actualInFlight.set(0);
 					restoreInflightMessages();
 					connected();
 				}
@@ -849,9 +1462,7 @@ public class ClientState {
 			tokenStore.removeToken(ack);
 
 			// Notify the sender thread that there maybe work for it to do now
-			synchronized (queueLock) {
-				queueLock.notifyAll();
-			}
+			notifyQueueLock();
 		} else {
 			// Sub ack or unsuback
 			notifyResult(ack, token, mex);
@@ -862,6 +1473,87 @@ public class ClientState {
 		checkQuiesceLock();
 	}
 
+	/**
+	 * Holds back the ack of a message whose record in persistence has not
+	 * been committed yet, until it is.
+	 * @return whether the ack was held back
+	 */
+	private boolean deferUntilCommitted(MqttAck ack, MqttToken token) {
+		if (groupCommit == null) {
+			return false;
+		}
+		synchronized (uncommittedAcks) {
+			// Checked holding the lock so that the commit cannot be missed
+			if (token.internalTok.getCommitSequence() <= groupCommit.getCommittedSequence()) {
+				return false;
+			}
+			//@TRACE 652=ack waiting for commit key={0}
+            LOGD(TAG, "deferUntilCommitted 652");
+			uncommittedAcks.addElement(ack);
+			return true;
+		}
+	}
+	
+	/**
+	 * Called by the persistence when records cannot be committed. The acks
+	 * waiting for them never will be released, so the connection is shut
+	 * down with the cause, which fails their tokens and tells the
+	 * application.
+	 */
+	private void shutdownOnCommitFailure(MqttPersistenceException cause) {
+		final String methodName = "shutdownOnCommitFailure";
+		//@TRACE 666=commit failed, shutting down
+		LOGD(TAG, methodName+" 666");
+		ClientComms clientComms = this.clientComms;
+		if (clientComms != null) {
+			clientComms.shutdownConnection(null, cause);
+		}
+	}
+
+	/**
+	 * Called by the persistence when records have been committed, to notify
+	 * the results of the acks that were waiting for them.
+	 */
+	private void releaseCommittedAcks(long sequence) {
+		Vector<MqttAck> acks = new Vector<MqttAck>();
+		Vector<MqttToken> tokens = new Vector<MqttToken>();
+		synchronized (uncommittedAcks) {
+			CommsTokenStore store = tokenStore;
+			if (store == null) {
+				return;
+			}
+			for (int i = 0; i < uncommittedAcks.size(); ) {
+				MqttAck ack = uncommittedAcks.elementAt(i);
+				MqttToken token = store.getToken(ack);
+				if (token == null) {
+					uncommittedAcks.removeElementAt(i);
+				} else if (token.internalTok.getCommitSequence() <= sequence) {
+					uncommittedAcks.removeElementAt(i);
+					acks.addElement(ack);
+					tokens.addElement(token);
+				} else {
+					i++;
+				}
+			}
+		}
+		for (int i = 0; i < acks.size(); i++) {
+			notifyResult(acks.elementAt(i), tokens.elementAt(i), null);
+		}
+	}
+	
+	/**
+	 * Records the time since the token's publish was sent.
+	 * @return the current {@link System#nanoTime()}
+	 */
+	private long recordLatency(LatencyHistogram histogram, MqttToken token) {
+		long now = System.nanoTime();
+		long sentTime = (token == null) ? 0 : token.internalTok.getSentTime();
+		if (sentTime != 0) {
+			histogram.record(now - sentTime);
+		}
+		return now;
+	}
+
 	/**
 	 * Called by the CommsReceiver when a message has been received.
 	 * Handles inbound messages and other flows such as PUBREL. 
@@ -887,9 +1579,13 @@ public class ClientState {
 					}
 					break;
 				case 2:
-					persistence.put(getReceivedPersistenceKey(message),
-							(MqttPublish) message);
-					inboundQoS2.put(new Integer(send.getMessageId()), send);
+					CommsPersister persister = this.persister;
+					if (persister != null) {
+						receivePersisted(persister, send);
+						break;
+					}
+					putMessage(getReceivedPersistenceKey(message), (MqttPublish) message);
+					inboundQoS2.put(send.getMessageId(), send, 2);
 					this.send(new MqttPubRec(send), null);
 					break;
 
@@ -897,8 +1593,7 @@ public class ClientState {
 					//should NOT reach here
 				}
 			} else if (message instanceof MqttPubRel) {
-				MqttPublish sendMsg = (MqttPublish) inboundQoS2
-						.get(new Integer(message.getMessageId()));
+				MqttPublish sendMsg = (MqttPublish) inboundQoS2.get(message.getMessageId());
 				if (sendMsg != null) {
 					if (callback != null) {
 						callback.messageArrived(sendMsg);
@@ -914,6 +1609,32 @@ public class ClientState {
 	}
 
 	
+	/**
+	 * Stores a received QoS 2 publish on the persister thread, and only then
+	 * acknowledges it with a PUBREC, so the receiver does not wait for the write.
+	 */
+	private void receivePersisted(CommsPersister persister, final MqttPublish send) {
+		final String methodName = "receivePersisted";
+		persister.enqueue(new CommsPersister.Operation(getReceivedPersistenceKey(send), send) {
+			protected void done(MqttPersistenceException failure) {
+				InflightTable inbound = inboundQoS2;
+				if (failure != null || inbound == null) {
+					// Not acknowledged, so the server sends it again
+					//@TRACE 655=received publish could not be persisted key={0}
+                    LOGD(TAG, methodName+" 655", failure);
+					return;
+				}
+				inbound.put(send.getMessageId(), send, 2);
+				try {
+					ClientState.this.send(new MqttPubRec(send), null);
+				} catch (MqttException ex) {
+					//@TRACE 656=PUBREC not sent key={0}
+                    LOGD(TAG, methodName+" 656", ex);
+				}
+			}
+		});
+	}
+	
 	/**
 	 * Called when waiters and callbacks have processed the message. For
 	 * messages where delivery is complete the message can be removed from
@@ -936,8 +1657,8 @@ public class ClientState {
 
 			if (ack instanceof MqttPubAck) {
 				// QoS 1 - user notified now remove from persistence...
-				persistence.remove(getSendPersistenceKey(message));
-				outboundQoS1.remove(Integer.valueOf(ack.getMessageId()));
+				removePersisted(getSendPersistenceKey(message));
+				outbound.remove(ack.getMessageId());
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
 				tokenStore.removeToken(message);
@@ -945,11 +1666,11 @@ public class ClientState {
                 LOGD(TAG, methodName+" 650");
 			} else if (ack instanceof MqttPubComp) {
 				// QoS 2 - user notified now remove from persistence...
-				persistence.remove(getSendPersistenceKey(message));
-				persistence.remove(getSendConfirmPersistenceKey(message));
-				outboundQoS2.remove(Integer.valueOf(ack.getMessageId()));
+				removePersisted(getSendPersistenceKey(message));
+				removePersisted(getSendConfirmPersistenceKey(message));
+				outbound.remove(ack.getMessageId());
 
-				inFlightPubRels--;
+				inFlightPubRels.decrementAndGet();
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
 				tokenStore.removeToken(message);
@@ -1047,14 +1768,19 @@ public class ClientState {
         LOGD(TAG, methodName+" 633");
 
 		this.connected = false;
+		inflightWindow.onConnectionLost(actualInFlight.get() > 0);
 
 		try {
 			if (cleanSession) {
+				flushPersister();
 				clearState();
 			}
 
 			pendingMessages.clear();
+			heldMessages.clear();
+			queuedMessages.set(0);
 			pendingFlows.clear();
+			urgentFlows.clear();
 			synchronized (pingOutstandingLock) {
 				// Reset pingOutstanding to allow reconnects to assume no previous ping.
 			    pingOutstanding = 0;
@@ -1070,8 +1796,8 @@ public class ClientState {
 	 * 
 	 * @param msgId A message ID that can be freed up for re-use.
 	 */
-	private synchronized void releaseMessageId(int msgId) {
-		inUseMsgIds.remove(new Integer(msgId));
+	private void releaseMessageId(int msgId) {
+		inUseMsgIds.release(msgId);
 	}
 
 	/**
@@ -1080,26 +1806,8 @@ public class ClientState {
 	 * 
 	 * @return the next MQTT message ID to use
 	 */
-	private synchronized int getNextMessageId() throws MqttException {
-		int startingMessageId = nextMsgId;
-		// Allow two complete passes of the message ID range. This gives
-		// any asynchronous releases a chance to occur
-		int loopCount = 0;
-	    do {
-	        nextMsgId++;
-	        if ( nextMsgId > MAX_MSG_ID ) {
-	            nextMsgId = MIN_MSG_ID;
-	        }
-	        if (nextMsgId == startingMessageId) {
-	        	loopCount++;
-	        	if (loopCount == 2) {
-	        		throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
-	        	}
-	        }
-	    } while( inUseMsgIds.containsKey( new Integer(nextMsgId) ) );
-	    Integer id = new Integer(nextMsgId);
-	    inUseMsgIds.put(id, id);
-	    return nextMsgId;
+	private int getNextMessageId() throws MqttException {
+		return inUseMsgIds.allocate();
 	}
 	
 	/**
@@ -1127,7 +1835,7 @@ public class ClientState {
 					// if pending flows is not zero there is outstanding work to complete and
 					// if call back is not quiseced there it needs to complete. 
 					int tokc = tokenStore.count();
-					if (tokc > 0 || pendingFlows.size() >0 || !callback.isQuiesced()) {
+					if (tokc > 0 || !pendingFlows.isEmpty() || !urgentFlows.isEmpty() || !callback.isQuiesced()) {
 						//@TRACE 639=wait for outstanding: actualInFlight={0} pendingFlows={1} inFlightPubRels={2} tokens={3}
                         LOGD(TAG, methodName+" 639");
 
@@ -1145,9 +1853,11 @@ public class ClientState {
 			// vectors are cleared ready for disconnect to be sent as the final flow.
 			synchronized (queueLock) {
 				pendingMessages.clear();				
+				heldMessages.clear();
+				queuedMessages.set(0);
 				pendingFlows.clear();
 				quiescing = false;
-				actualInFlight = 0;
+				actualInFlight.set(0);
 			}
 			//@TRACE 640=finished
             LOGD(TAG, methodName+" 640");
@@ -1156,11 +1866,9 @@ public class ClientState {
 
 	public void notifyQueueLock() {
 		final String methodName = "notifyQueueLock";
-		synchronized (queueLock) {
-			//@TRACE 638=notifying queueLock holders
-            LOGD(TAG, methodName+" 638");
-			queueLock.notifyAll();
-		}
+		//@TRACE 638=notifying queueLock holders
+        LOGD(TAG, methodName+" 638");
+		wakeSender();
 	}
 
 	protected void deliveryComplete(MqttPublish message) throws MqttPersistenceException {
@@ -1169,7 +1877,7 @@ public class ClientState {
 		//@TRACE 641=remove publish from persistence. key={0}
         LOGD(TAG, methodName+" 641");
 		
-		persistence.remove(getReceivedPersistenceKey(message));
+		removePersisted(getReceivedPersistenceKey(message));
 		inboundQoS2.remove(message.getMessageId());
 	}
 	
@@ -1179,18 +1887,24 @@ public class ClientState {
 	 * disconnect / connect cycle. 
 	 */
 	protected void close() {
+		if (groupCommit != null) {
+			groupCommit.setCommitListener(null);
+		}
+		uncommittedAcks.clear();
+		persister = null;
+		cancelRestore();
 		inUseMsgIds.clear();
 		pendingMessages.clear();
 		pendingFlows.clear();
-		outboundQoS2.clear();
-		outboundQoS1.clear();
+		urgentFlows.clear();
+		outbound.clear();
 		inboundQoS2.clear();
 		tokenStore.clear();
 		inUseMsgIds = null;
 		pendingMessages = null;
 		pendingFlows = null;
-		outboundQoS2 = null;
-		outboundQoS1 = null;
+		urgentFlows = null;
+		outbound = null;
 		inboundQoS2 = null;
 		tokenStore = null;
 		callback = null;
@@ -1204,16 +1918,33 @@ public class ClientState {
 		props.put("In use msgids", inUseMsgIds);
 		props.put("pendingMessages", pendingMessages);
 		props.put("pendingFlows", pendingFlows);
+		props.put("urgentFlows", urgentFlows);
 		props.put("maxInflight", new Integer(maxInflight));
-		props.put("nextMsgID", new Integer(nextMsgId));
-		props.put("actualInFlight", new Integer(actualInFlight));
-		props.put("inFlightPubRels", new Integer(inFlightPubRels));
+		props.put("inflightWindow", inflightWindow.getDebug());
+		props.put("pubAckLatency", pubAckLatency.getDebug());
+		props.put("pubRecLatency", pubRecLatency.getDebug());
+		props.put("pubCompLatency", pubCompLatency.getDebug());
+		CommsPersister persister = this.persister;
+		if (persister != null) {
+			props.put("persisterQueue", new Integer(persister.getQueueSize()));
+		}
+		RestoreLoader loader = restoreLoader;
+		if (loader != null) {
+			props.put("restoring", loader.getLoadedCount() + "/" + loader.size());
+		}
+		props.put("nextMsgID", new Integer(inUseMsgIds.getLastMsgId()));
+		props.put("msgIdAllocations", new Long(inUseMsgIds.getAllocationCount()));
+		props.put("msgIdExhaustions", new Long(inUseMsgIds.getExhaustionCount()));
+		props.put("actualInFlight", new Integer(actualInFlight.get()));
+		props.put("queuedMessages", new Integer(queuedMessages.get()));
+		props.put("inFlightPubRels", new Integer(inFlightPubRels.get()));
+		props.put("uncommittedAcks", new Integer(uncommittedAcks.size()));
 		props.put("quiescing", Boolean.valueOf(quiescing));
 		props.put("pingoutstanding", new Integer(pingOutstanding));
 		props.put("lastOutboundActivity", new Long(lastOutboundActivity));
 		props.put("lastInboundActivity", new Long(lastInboundActivity));
-		props.put("outboundQoS2", outboundQoS2);
-		props.put("outboundQoS1", outboundQoS1);
+		props.put("outboundQoS2", outbound.values(2));
+		props.put("outboundQoS1", outbound.values(1));
 		props.put("inboundQoS2", inboundQoS2);
 		props.put("tokens", tokenStore);
 		return props;
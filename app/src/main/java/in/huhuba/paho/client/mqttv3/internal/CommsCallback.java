@@ -18,10 +18,18 @@ package in.huhuba.paho.client.mqttv3.internal;
 import java.util.Vector;
 
 import in.huhuba.paho.client.mqttv3.IMqttActionListener;
+import in.huhuba.paho.client.mqttv3.IMqttMessageListener;
+import in.huhuba.paho.client.mqttv3.MqttAckHandle;
+import in.huhuba.paho.client.mqttv3.MqttBatchCallback;
 import in.huhuba.paho.client.mqttv3.MqttCallback;
+import in.huhuba.paho.client.mqttv3.MqttConnectOptions;
 import in.huhuba.paho.client.mqttv3.MqttDeliveryToken;
+import in.huhuba.paho.client.mqttv3.MqttDispatchKey;
 import in.huhuba.paho.client.mqttv3.MqttException;
+import in.huhuba.paho.client.mqttv3.MqttManualAckCallback;
+import in.huhuba.paho.client.mqttv3.MqttMessage;
 import in.huhuba.paho.client.mqttv3.MqttToken;
+import in.huhuba.paho.client.mqttv3.internal.wire.MqttAck;
 import in.huhuba.paho.client.mqttv3.internal.wire.MqttPubAck;
 import in.huhuba.paho.client.mqttv3.internal.wire.MqttPubComp;
 import in.huhuba.paho.client.mqttv3.internal.wire.MqttPublish;
@@ -33,15 +41,32 @@ import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
  * Bridge between Receiver and the external API. This class gets called by
  * Receiver, and then converts the comms-centric MQTT message objects into ones
  * understood by the external API.
+ * <p>
+ * Arrived messages are normally delivered on the callback thread. When the
+ * connect options ask for more than one callback thread, each arrived
+ * message is instead given to one of several lanes, chosen by its dispatch
+ * key, and each lane delivers its messages in order on a thread of its own.
+ * </p>
+ * <p>
+ * A {@link MqttManualAckCallback} acknowledges messages itself, through
+ * handles that stay valid only while the connection they arrived on lasts.
+ * The messages arrived and not yet acknowledged are limited to the receive
+ * window.
+ * </p>
+ * <p>
+ * An arrived message whose topic matches the filters of any message
+ * listeners is given to those listeners rather than to the callback, and
+ * acknowledged once they have returned.
+ * </p>
  */
 public class CommsCallback implements Runnable {
 	private static final String TAG = LogUtils.makeLogTag(CommsCallback.class);
 
-	private static final int INBOUND_QUEUE_SIZE = 10;
 	private MqttCallback mqttCallback;
+	private TopicRouter messageListeners = new TopicRouter();
 	private ClientComms clientComms;
-	private Vector messageQueue;
-	private Vector completeQueue;
+	private Vector<MqttPublish> messageQueue;
+	private Vector<MqttToken> completeQueue;
 	public boolean running = false;
 	private boolean quiescing = false;
 	private Object lifecycle = new Object();
@@ -49,11 +74,23 @@ public class CommsCallback implements Runnable {
 	private Object workAvailable = new Object();
 	private Object spaceAvailable = new Object();
 	private ClientState clientState;
+	private int inboundQueueSize = MqttConnectOptions.INBOUND_QUEUE_SIZE_DEFAULT;
+	private MqttDispatchKey dispatchKey = null;
+	private int maxArrivedBatchSize = MqttConnectOptions.MAX_ARRIVED_BATCH_SIZE_DEFAULT;
+	private int arrivedLinger = MqttConnectOptions.ARRIVED_LINGER_DEFAULT;
+	private int receiveWindow = MqttConnectOptions.RECEIVE_WINDOW_DEFAULT;
+	// Messages given to a manual ack callback, or waiting to be, and not
+	// yet acknowledged. Guarded by spaceAvailable, as is connection.
+	private int unacked = 0;
+	// Counts connections, so that handles from an earlier one can be told
+	private int connection = 0;
+	// Null unless messages are delivered on lanes of their own
+	volatile private Lane[] lanes = null;
 
 	CommsCallback(ClientComms clientComms) {
 		this.clientComms = clientComms;
-		this.messageQueue = new Vector(INBOUND_QUEUE_SIZE);
-		this.completeQueue = new Vector(INBOUND_QUEUE_SIZE);
+		this.messageQueue = new Vector<MqttPublish>(inboundQueueSize);
+		this.completeQueue = new Vector<MqttToken>(inboundQueueSize);
 	}
 
 	public void setClientState(ClientState clientState) {
@@ -71,10 +108,36 @@ public class CommsCallback implements Runnable {
 				messageQueue.clear();
 				completeQueue.clear();
 
+				int threads = MqttConnectOptions.CALLBACK_THREADS_DEFAULT;
+				MqttConnectOptions options = clientComms.getConOptions();
+				if (options != null) {
+					threads = options.getCallbackThreads();
+					inboundQueueSize = options.getInboundQueueSize();
+					dispatchKey = options.getDispatchKey();
+					maxArrivedBatchSize = options.getMaxArrivedBatchSize();
+					arrivedLinger = options.getArrivedLinger();
+					receiveWindow = options.getReceiveWindow();
+				}
+				synchronized (spaceAvailable) {
+					// Handles from the last connection no longer count
+					connection++;
+					unacked = 0;
+				}
+
 				running = true;
 				quiescing = false;
 				callbackThread = new Thread(this, threadName);
 				callbackThread.start();
+				lanes = null;
+				if (threads > 1) {
+					Lane[] lanes = new Lane[threads];
+					for (int i = 0; i < threads; i++) {
+						lanes[i] = new Lane();
+						lanes[i].thread = new Thread(lanes[i], threadName + " " + i);
+						lanes[i].thread.start();
+					}
+					this.lanes = lanes;
+				}
 			}
 		}
 	}
@@ -103,6 +166,25 @@ public class CommsCallback implements Runnable {
 					} catch (InterruptedException ex) {
 					}
 				}
+				synchronized (spaceAvailable) {
+					// Handles can no longer acknowledge on this connection
+					connection++;
+					unacked = 0;
+				}
+				Lane[] lanes = this.lanes;
+				if (lanes != null) {
+					for (int i = 0; i < lanes.length; i++) {
+						synchronized (lanes[i]) {
+							lanes[i].notifyAll();
+						}
+						if (!Thread.currentThread().equals(lanes[i].thread)) {
+							try {
+								lanes[i].thread.join();
+							} catch (InterruptedException ex) {
+							}
+						}
+					}
+				}
 			}
 			callbackThread = null;
 			// @TRACE 703=stopped
@@ -114,6 +196,14 @@ public class CommsCallback implements Runnable {
 		this.mqttCallback = mqttCallback;
 	}
 
+	public IMqttMessageListener setMessageListener(String topicFilter, IMqttMessageListener messageListener) {
+		return this.messageListeners.put(topicFilter, messageListener);
+	}
+
+	public void removeMessageListener(String topicFilter) {
+		this.messageListeners.remove(topicFilter);
+	}
+
 	public void run() {
 		final String methodName = "run";
 		while (running) {
@@ -137,7 +227,7 @@ public class CommsCallback implements Runnable {
 					synchronized (completeQueue) {
 					    if (!completeQueue.isEmpty()) {
 						    // First call the delivery arrived callback if needed
-						    token = (MqttToken) completeQueue.elementAt(0);
+						    token = completeQueue.elementAt(0);
 						    completeQueue.removeElementAt(0);
 					    }
 					}
@@ -146,20 +236,7 @@ public class CommsCallback implements Runnable {
 					}
 					
 					// Check for messageArrived callbacks...
-					MqttPublish message = null;
-					synchronized (messageQueue) {
-					    if (!messageQueue.isEmpty()) {
-						    // Note, there is a window on connect where a publish
-						    // could arrive before we've
-						    // finished the connect logic.
-							message = (MqttPublish) messageQueue.elementAt(0);
-
-							messageQueue.removeElementAt(0);
-					    }
-					}
-					if (null != message) {
-						handleMessage(message);
-					}
+					deliverFrom(messageQueue, workAvailable);
 				}
 
 				if (quiescing) {
@@ -288,13 +365,29 @@ public class CommsCallback implements Runnable {
 	 */
 	public void messageArrived(MqttPublish sendMessage) {
 		final String methodName = "messageArrived";
-		if (mqttCallback != null) {
+		if (mqttCallback != null || !messageListeners.isEmpty()) {
+			Vector<MqttPublish> messageQueue = this.messageQueue;
+			Lane lane = null;
+			Lane[] lanes = this.lanes;
+			if (lanes != null) {
+				Object key = null;
+				if (dispatchKey != null) {
+					key = dispatchKey.getDispatchKey(sendMessage.getTopicName(), sendMessage.getMessage());
+				}
+				if (key == null) {
+					key = sendMessage.getTopicName();
+				}
+				lane = lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+				messageQueue = lane.messageQueue;
+			}
 			// If we already have enough messages queued up in memory, wait
 			// until some more queue space becomes available. This helps 
 			// the client protect itself from getting flooded by messages 
 			// from the server.
+			boolean manualAcks = mqttCallback instanceof MqttManualAckCallback;
 			synchronized (spaceAvailable) {
-				while (running && !quiescing && messageQueue.size() >= INBOUND_QUEUE_SIZE) {
+				while (running && !quiescing && (messageQueue.size() >= inboundQueueSize
+						|| (manualAcks && unacked >= receiveWindow))) {
 					try {
 						// @TRACE 709=wait for spaceAvailable
                         LOGD(TAG, methodName+" 709");
@@ -304,12 +397,25 @@ public class CommsCallback implements Runnable {
 				}
 			}
 			if (!quiescing) {
+				if (manualAcks) {
+					synchronized (spaceAvailable) {
+						unacked++;
+					}
+				}
 				messageQueue.addElement(sendMessage);
-				// Notify the CommsCallback thread that there's work to do...
-				synchronized (workAvailable) {
-					// @TRACE 710=new msg avail, notify workAvailable
-                    LOGD(TAG, methodName+" 710");
-					workAvailable.notifyAll();
+				// Notify the thread that delivers it that there's work to do...
+				if (lane != null) {
+					synchronized (lane) {
+						// @TRACE 721=new msg avail, notify lane
+						LOGD(TAG, methodName+" 721");
+						lane.notifyAll();
+					}
+				} else {
+					synchronized (workAvailable) {
+						// @TRACE 710=new msg avail, notify workAvailable
+						LOGD(TAG, methodName+" 710");
+						workAvailable.notifyAll();
+					}
 				}
 			}
 		}
@@ -332,22 +438,187 @@ public class CommsCallback implements Runnable {
 	}
 
 	public boolean isQuiesced() {
+		synchronized (spaceAvailable) {
+			if (unacked > 0) {
+				// Give the application the chance to acknowledge them
+				return false;
+			}
+		}
 		if (quiescing && completeQueue.size() == 0 && messageQueue.size() == 0) {
+			Lane[] lanes = this.lanes;
+			if (lanes != null) {
+				for (int i = 0; i < lanes.length; i++) {
+					if (lanes[i].messageQueue.size() > 0) {
+						return false;
+					}
+				}
+			}
 			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * Delivers the next message waiting on the given queue or, to a batch
+	 * callback, the next batch of them. More messages are waited for on the
+	 * given monitor, which is notified when one is queued.
+	 */
+	private void deliverFrom(Vector<MqttPublish> messageQueue, Object monitor) throws Exception {
+		if (!(mqttCallback instanceof MqttBatchCallback) || mqttCallback instanceof MqttManualAckCallback) {
+			MqttPublish message = null;
+			synchronized (messageQueue) {
+				if (!messageQueue.isEmpty()) {
+					// Note, there is a window on connect where a publish
+					// could arrive before we've
+					// finished the connect logic.
+					message = messageQueue.elementAt(0);
+
+					messageQueue.removeElementAt(0);
+				}
+			}
+			if (null != message) {
+				handleMessage(message);
+			}
+			return;
+		}
+
+		MqttPublish[] batch = takeBatch(messageQueue, monitor);
+		if (batch != null) {
+			handleMessages(batch);
+		}
+	}
+
+	/**
+	 * Takes up to the batch size of messages from the queue. If fewer are
+	 * waiting, waits up to the linger time for more, unless the client is
+	 * stopping or there are completions to call back.
+	 *
+	 * @return the messages, or null if there are none
+	 */
+	private MqttPublish[] takeBatch(Vector<MqttPublish> messageQueue, Object monitor) {
+		final String methodName = "takeBatch";
+		// No more can be waiting than the queue holds
+		int size = Math.min(maxArrivedBatchSize, inboundQueueSize);
+		long deadline = System.currentTimeMillis() + arrivedLinger;
+		long remaining;
+		while (messageQueue.size() < size && (remaining = deadline - System.currentTimeMillis()) > 0
+				&& running && !quiescing && completeQueue.isEmpty()) {
+			synchronized (monitor) {
+				if (messageQueue.size() < size) {
+					try {
+						// @TRACE 724=wait for batch
+						LOGD(TAG, methodName+" 724");
+						monitor.wait(remaining);
+					} catch (InterruptedException ex) {
+					}
+				}
+			}
+		}
+		synchronized (messageQueue) {
+			int count = Math.min(messageQueue.size(), size);
+			if (count == 0) {
+				return null;
+			}
+			MqttPublish[] batch = new MqttPublish[count];
+			for (int i = 0; i < count; i++) {
+				batch[i] = messageQueue.elementAt(i);
+			}
+			// Removes the first count elements
+			messageQueue.subList(0, count).clear();
+			return batch;
+		}
+	}
+
+	/**
+	 * Returns the message as it should be delivered.
+	 */
+	private MqttMessage getMessage(MqttPublish publishMessage) throws MqttException {
+		MqttMessage message = publishMessage.getMessage();
+		MqttConnectOptions options = clientComms.getConOptions();
+		if (options != null && options.getCompression() != null) {
+			message = options.getCompression().decompress(publishMessage.getTopicName(), message);
+		}
+		return message;
+	}
+
+	private void handleMessages(MqttPublish[] publishMessages) throws Exception {
+		final String methodName = "handleMessages";
+		String[] topics = new String[publishMessages.length];
+		MqttMessage[] messages = new MqttMessage[publishMessages.length];
+		int count = 0;
+		int acks = 0;
+		for (int i = 0; i < publishMessages.length; i++) {
+			String topic = publishMessages[i].getTopicName();
+			MqttMessage message = getMessage(publishMessages[i]);
+			if (messageListeners.deliver(topic, message) == 0) {
+				// Batch up those no listener took
+				topics[count] = topic;
+				messages[count++] = message;
+			}
+			if (publishMessages[i].getMessage().getQos() > 0) {
+				acks++;
+			}
+		}
+
+		if (count > 0) {
+			if (count < publishMessages.length) {
+				String[] batchTopics = new String[count];
+				MqttMessage[] batchMessages = new MqttMessage[count];
+				System.arraycopy(topics, 0, batchTopics, 0, count);
+				System.arraycopy(messages, 0, batchMessages, 0, count);
+				topics = batchTopics;
+				messages = batchMessages;
+			}
+			// @TRACE 723=call messagesArrived count={0}
+			LOGD(TAG, methodName+" 723");
+			((MqttBatchCallback) mqttCallback).messagesArrived(topics, messages);
+		}
+		if (acks == 0) {
+			return;
+		}
+		MqttAck[] ackMessages = new MqttAck[acks];
+		acks = 0;
+		for (int i = 0; i < publishMessages.length; i++) {
+			if (publishMessages[i].getMessage().getQos() == 1) {
+				ackMessages[acks++] = new MqttPubAck(publishMessages[i]);
+			} else if (publishMessages[i].getMessage().getQos() == 2) {
+				this.clientComms.deliveryComplete(publishMessages[i]);
+				ackMessages[acks++] = new MqttPubComp(publishMessages[i]);
+			}
+		}
+		clientState.sendAcks(ackMessages);
+	}
+
 	private void handleMessage(MqttPublish publishMessage)
 			throws MqttException, Exception {
 		final String methodName = "handleMessage";
 		// If quisecing process any pending messages. 
-		if (mqttCallback != null) {
+		MqttCallback mqttCallback = this.mqttCallback;
+		if (mqttCallback != null || !messageListeners.isEmpty()) {
 			String destName = publishMessage.getTopicName();
+			MqttMessage message = getMessage(publishMessage);
 
 			// @TRACE 713=call messageArrived key={0} topic={1}
             LOGD(TAG, methodName+" 713");
-			mqttCallback.messageArrived(destName, publishMessage.getMessage());
+			if (messageListeners.deliver(destName, message) > 0) {
+				if (mqttCallback instanceof MqttManualAckCallback) {
+					// Acknowledged below, so takes no room in the window
+					synchronized (spaceAvailable) {
+						unacked--;
+						spaceAvailable.notifyAll();
+					}
+				}
+			} else if (mqttCallback instanceof MqttManualAckCallback) {
+				int connection;
+				synchronized (spaceAvailable) {
+					connection = this.connection;
+				}
+				((MqttManualAckCallback) mqttCallback).messageArrived(destName, message,
+						new AckHandle(publishMessage, connection));
+				return;
+			} else if (mqttCallback != null) {
+				mqttCallback.messageArrived(destName, message);
+			}
 			if (publishMessage.getMessage().getQos() == 1) {
 				this.clientComms.internalSend(new MqttPubAck(publishMessage),
 						new MqttToken(clientComms.getClient().getClientId()));
@@ -393,4 +664,122 @@ public class CommsCallback implements Runnable {
 	protected Thread getThread() {
 		return callbackThread;
 	}
+
+	/**
+	 * Returns whether the given thread is one this callback calls the
+	 * application on.
+	 */
+	protected boolean isCallbackThread(Thread thread) {
+		if (thread == callbackThread) {
+			return true;
+		}
+		Lane[] lanes = this.lanes;
+		if (lanes != null) {
+			for (int i = 0; i < lanes.length; i++) {
+				if (thread == lanes[i].thread) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Acknowledges a message given to a manual ack callback, on whichever
+	 * thread the application calls it.
+	 */
+	private class AckHandle implements MqttAckHandle {
+		private MqttPublish publishMessage;
+		private int connection;
+		private boolean acked = false;
+
+		AckHandle(MqttPublish publishMessage, int connection) {
+			this.publishMessage = publishMessage;
+			this.connection = connection;
+		}
+
+		public void ack() throws MqttException {
+			final String methodName = "ack";
+			synchronized (this) {
+				if (acked) {
+					return;
+				}
+				acked = true;
+			}
+			synchronized (spaceAvailable) {
+				if (connection != CommsCallback.this.connection) {
+					// The server sends the message again, so must not have
+					// this acknowledgement on the new connection
+					// @TRACE 725=ack from an earlier connection ignored
+					LOGD(TAG, methodName+" 725");
+					return;
+				}
+				unacked--;
+				spaceAvailable.notifyAll();
+			}
+			int qos = publishMessage.getMessage().getQos();
+			if (qos == 1) {
+				clientState.sendAcks(new MqttAck[] { new MqttPubAck(publishMessage) });
+			} else if (qos == 2) {
+				clientComms.deliveryComplete(publishMessage);
+				clientState.sendAcks(new MqttAck[] { new MqttPubComp(publishMessage) });
+			}
+			if (quiescing) {
+				clientState.checkQuiesceLock();
+			}
+		}
+
+		public synchronized boolean isAcked() {
+			return acked;
+		}
+	}
+
+	/**
+	 * Delivers, in order, the arrived messages whose dispatch keys choose
+	 * it, and sends their acknowledgements. Waits on itself for work.
+	 */
+	private class Lane implements Runnable {
+		private Vector<MqttPublish> messageQueue = new Vector<MqttPublish>(inboundQueueSize);
+		private Thread thread;
+
+		public void run() {
+			final String methodName = "run";
+			while (running) {
+				try {
+					// If no work is currently available, then wait until there is some...
+					try {
+						synchronized (this) {
+							if (running && messageQueue.isEmpty()) {
+								// @TRACE 722=lane wait for work
+								LOGD(TAG, methodName+" 722");
+								wait();
+							}
+						}
+					} catch (InterruptedException e) {
+					}
+
+					if (running) {
+						deliverFrom(messageQueue, this);
+					}
+
+					if (quiescing) {
+						clientState.checkQuiesceLock();
+					}
+
+				} catch (Throwable ex) {
+					// @TRACE 714=callback threw exception
+					LOGD(TAG, methodName+" 714");
+					running = false;
+					clientComms.shutdownConnection(null, new MqttException(ex));
+
+				} finally {
+					synchronized (spaceAvailable) {
+						// @TRACE 706=notify spaceAvailable
+						LOGD(TAG, methodName+" 706");
+						spaceAvailable.notifyAll();
+					}
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.internal;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Vector;
+
+import in.huhuba.paho.client.mqttv3.MqttBufferPersistence;
+import in.huhuba.paho.client.mqttv3.MqttClientPersistence;
+import in.huhuba.paho.client.mqttv3.MqttGroupCommitPersistence;
+import in.huhuba.paho.client.mqttv3.MqttPersistable;
+import in.huhuba.paho.client.mqttv3.MqttPersistenceException;
+import in.huhuba.paho.client.mqttv3.logging.LogUtils;
+
+import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
+
+/**
+ * Writes to the client's persistence on a thread of its own, so that
+ * neither the application nor the network threads wait for storage.
+ * <p>
+ * Puts and removes are queued and performed in order. Every operation
+ * waiting when the thread looks at the queue is performed as one batch
+ * and, with a persistence that commits in groups, committed together.
+ * Otherwise each run of puts, or of removes, in a batch is made with one
+ * call to the persistence.
+ * Each operation is told when it is done, in order, so that what depends
+ * on it, such as sending the message that was stored, can go ahead.</p>
+ */
+public class CommsPersister implements Runnable {
+	private static final String TAG = LogUtils.makeLogTag(CommsPersister.class);
+	// The most operations performed in one batch
+	private static final int MAX_BATCH_SIZE = 64;
+
+	/**
+	 * A put, a remove, or with no key nothing at all, waiting to be done.
+	 */
+	public static class Operation {
+		private final String key;
+		private final MqttPersistable data;
+		private MqttPersistenceException failure = null;
+
+		/**
+		 * @param key the key to put or remove, or null to do nothing but
+		 * keep this operation's place in the queue
+		 * @param data the data to put, or null to remove the key
+		 */
+		public Operation(String key, MqttPersistable data) {
+			this.key = key;
+			this.data = data;
+		}
+
+		/**
+		 * Called on the persister thread when the operation is done. A put
+		 * has been committed by then.
+		 * @param failure why it failed, or null if it succeeded
+		 */
+		protected void done(MqttPersistenceException failure) {
+		}
+	}
+
+	private MqttClientPersistence persistence;
+	private MqttBufferPersistence bufferPersistence;
+	private MqttGroupCommitPersistence groupCommit = null;
+	private Vector<Operation> queue = new Vector<Operation>();
+	// Operations taken from the queue and not yet done
+	private int inProgress = 0;
+	private boolean running = false;
+	private boolean stopping = false;
+	private Object lifecycle = new Object();
+	private Thread perThread = null;
+
+	public CommsPersister(MqttClientPersistence persistence) {
+		this.persistence = persistence;
+		this.bufferPersistence = BufferPersistenceAdapter.adapt(persistence);
+		if (persistence instanceof MqttGroupCommitPersistence) {
+			this.groupCommit = (MqttGroupCommitPersistence) persistence;
+		}
+	}
+
+	/**
+	 * Starts up the Persister's thread.
+	 */
+	public void start(String threadName) {
+		final String methodName = "start";
+		//@TRACE 870=starting
+		LOGD(TAG, methodName+" 870");
+		synchronized (lifecycle) {
+			if (!running) {
+				synchronized (queue) {
+					running = true;
+					stopping = false;
+				}
+				perThread = new Thread(this, threadName);
+				perThread.start();
+			}
+		}
+	}
+
+	/**
+	 * Stops the Persister's thread once everything queued has been done.
+	 * This call will block.
+	 */
+	public void stop() {
+		final String methodName = "stop";
+		synchronized (lifecycle) {
+			//@TRACE 871=stopping
+			LOGD(TAG, methodName+" 871");
+			if (running) {
+				synchronized (queue) {
+					stopping = true;
+					queue.notifyAll();
+				}
+				if (!Thread.currentThread().equals(perThread)) {
+					try {
+						// Wait for the thread to finish.
+						perThread.join();
+					}
+					catch (InterruptedException ex) {
+					}
+				}
+			}
+		}
+		perThread = null;
+		//@TRACE 872=stopped
+		LOGD(TAG, methodName+" 872");
+	}
+
+	public void put(String key, MqttPersistable data) {
+		enqueue(new Operation(key, data));
+	}
+
+	public void remove(String key) {
+		enqueue(new Operation(key, null));
+	}
+
+	/**
+	 * Queues an operation. If the thread is not running the operation is
+	 * done straight away on the caller's thread instead.
+	 */
+	public void enqueue(Operation operation) {
+		synchronized (queue) {
+			if (running) {
+				queue.addElement(operation);
+				queue.notifyAll();
+				return;
+			}
+		}
+		Vector<Operation> batch = new Vector<Operation>(1);
+		batch.addElement(operation);
+		perform(batch);
+	}
+
+	/**
+	 * Waits until every operation queued so far has been done.
+	 */
+	public void flush() {
+		synchronized (queue) {
+			while (running && (!queue.isEmpty() || inProgress > 0)
+					&& !Thread.currentThread().equals(perThread)) {
+				try {
+					queue.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	public int getQueueSize() {
+		synchronized (queue) {
+			return queue.size() + inProgress;
+		}
+	}
+
+	/**
+	 * Run loop to perform the queued operations, until stopped and the
+	 * queue is empty.
+	 */
+	public void run() {
+		final String methodName = "run";
+		Vector<Operation> batch = new Vector<Operation>(MAX_BATCH_SIZE);
+		while (true) {
+			synchronized (queue) {
+				while (queue.isEmpty() && !stopping) {
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						// Only stop() ends the thread
+					}
+				}
+				if (queue.isEmpty()) {
+					running = false;
+					queue.notifyAll();
+					break;
+				}
+				List<Operation> taken = queue.subList(0, Math.min(queue.size(), MAX_BATCH_SIZE));
+				batch.addAll(taken);
+				taken.clear();
+				inProgress = batch.size();
+			}
+
+			//@TRACE 873=performing a batch of persistence operations
+			LOGD(TAG, methodName+" 873");
+			perform(batch);
+			batch.clear();
+
+			synchronized (queue) {
+				inProgress = 0;
+				queue.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Does a batch of operations in order and then tells each one it is
+	 * done.
+	 */
+	private void perform(Vector<Operation> batch) {
+		final String methodName = "perform";
+		if (groupCommit != null) {
+			performGroup(batch);
+		} else {
+			for (int i = 0; i < batch.size(); ) {
+				i = performRun(batch, i);
+			}
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			Operation operation = batch.elementAt(i);
+			try {
+				operation.done(operation.failure);
+			} catch (RuntimeException ex) {
+				//@TRACE 874=operation completion failed
+				LOGD(TAG, methodName+" 874", ex);
+			}
+		}
+	}
+
+	/**
+	 * Does the run of puts, or of removes, starting at the given place in
+	 * the batch with one call to the persistence. If that fails, they are
+	 * done again one at a time to find out which failed.
+	 * @return the place in the batch after the run
+	 */
+	private int performRun(Vector<Operation> batch, int start) {
+		final String methodName = "performRun";
+		Vector<Operation> run = new Vector<Operation>();
+		boolean put = false;
+		int end;
+		for (end = start; end < batch.size(); end++) {
+			Operation operation = batch.elementAt(end);
+			if (operation.key == null) {
+				continue;
+			}
+			if (run.isEmpty()) {
+				put = (operation.data != null);
+			} else if ((operation.data != null) != put) {
+				break;
+			}
+			run.addElement(operation);
+		}
+
+		if (run.size() > 1) {
+			String[] keys = new String[run.size()];
+			try {
+				if (put) {
+					ByteBuffer[] headers = new ByteBuffer[keys.length];
+					ByteBuffer[] payloads = new ByteBuffer[keys.length];
+					for (int i = 0; i < keys.length; i++) {
+						Operation operation = run.elementAt(i);
+						keys[i] = operation.key;
+						headers[i] = BufferPersistenceAdapter.getHeader(operation.data);
+						payloads[i] = BufferPersistenceAdapter.getPayload(operation.data);
+					}
+					bufferPersistence.putAll(keys, headers, payloads);
+				} else {
+					for (int i = 0; i < keys.length; i++) {
+						keys[i] = (run.elementAt(i)).key;
+					}
+					bufferPersistence.removeAll(keys);
+				}
+				return end;
+			} catch (MqttPersistenceException ex) {
+				//@TRACE 875=run of operations failed, doing them one at a time
+				LOGD(TAG, methodName+" 875", ex);
+			}
+		}
+
+		for (int i = 0; i < run.size(); i++) {
+			Operation operation = run.elementAt(i);
+			try {
+				if (put) {
+					persistence.put(operation.key, operation.data);
+				} else {
+					persistence.remove(operation.key);
+				}
+			} catch (MqttPersistenceException ex) {
+				operation.failure = ex;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Does a batch of operations with a persistence that commits in groups.
+	 * Only the last put waits for its commit, which covers all the others.
+	 */
+	private void performGroup(Vector<Operation> batch) {
+		int lastPut = -1;
+		for (int i = batch.size() - 1; i >= 0 && lastPut < 0; i--) {
+			Operation operation = batch.elementAt(i);
+			if (operation.key != null && operation.data != null) {
+				lastPut = i;
+			}
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			Operation operation = batch.elementAt(i);
+			if (operation.key == null) {
+				continue;
+			}
+			try {
+				if (operation.data == null) {
+					persistence.remove(operation.key);
+				} else if (i < lastPut) {
+					groupCommit.putUncommitted(operation.key, operation.data);
+				} else {
+					persistence.put(operation.key, operation.data);
+				}
+			} catch (MqttPersistenceException ex) {
+				operation.failure = ex;
+				if (i == lastPut) {
+					// The commit the earlier puts relied on failed too
+					for (int j = 0; j < i; j++) {
+						Operation earlier = batch.elementAt(j);
+						if (earlier.key != null && earlier.data != null && earlier.failure == null) {
+							earlier.failure = ex;
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -17,6 +17,7 @@ package in.huhuba.paho.client.mqttv3.internal;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Vector;
 
 import in.huhuba.paho.client.mqttv3.MqttException;
 import in.huhuba.paho.client.mqttv3.MqttToken;
@@ -91,38 +92,44 @@ public class CommsReceiver implements Runnable {
 	}
 	
 	/**
-	 * Run loop to receive messages from the server.
+	 * Run loop to receive messages from the server. Each pass reads every
+	 * complete packet the network has delivered so far and processes them
+	 * in order.
 	 */
 	public void run() {
 		final String methodName = "run";
 		MqttToken token = null;
+		Vector<MqttWireMessage> batch = new Vector<MqttWireMessage>();
 		
 		while (running && (in != null)) {
 			try {
 				//@TRACE 852=network read message
 				LOGD(TAG, methodName+" 851");
 				receiving = in.available() > 0;
-				MqttWireMessage message = in.readMqttWireMessage();
+				in.readMqttWireMessages(batch);
 				receiving = false;
 				
-				if (message instanceof MqttAck) {
-					token = tokenStore.getToken(message);
-					if (token!=null) {
-						synchronized (token) {
-							// Ensure the notify processing is done under a lock on the token
-							// This ensures that the send processing can complete  before the 
-							// receive processing starts! ( request and ack and ack processing
-							// can occur before request processing is complete if not!
-							clientState.notifyReceivedAck((MqttAck)message);
+				for (int i = 0; i < batch.size(); i++) {
+					MqttWireMessage message = batch.elementAt(i);
+					if (message instanceof MqttAck) {
+						token = tokenStore.getToken(message);
+						if (token!=null) {
+							synchronized (token) {
+								// Ensure the notify processing is done under a lock on the token
+								// This ensures that the send processing can complete  before the 
+								// receive processing starts! ( request and ack and ack processing
+								// can occur before request processing is complete if not!
+								clientState.notifyReceivedAck((MqttAck)message);
+							}
+						} else {
+							// It its an ack and there is no token then something is not right.
+							// An ack should always have a token assoicated with it.
+							throw new MqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR);
 						}
 					} else {
-						// It its an ack and there is no token then something is not right.
-						// An ack should always have a token assoicated with it.
-						throw new MqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR);
+						// A new message has arrived
+						clientState.notifyReceivedMsg(message);
 					}
-				} else {
-					// A new message has arrived
-					clientState.notifyReceivedMsg(message);
 				}
 			}
 			catch (MqttException ex) {
@@ -146,6 +153,7 @@ public class CommsReceiver implements Runnable {
 			}
 			finally {
 				receiving = false;
+				batch.clear();
 			}
 		}
 		
@@ -17,7 +17,10 @@ package in.huhuba.paho.client.mqttv3.internal;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Vector;
 
+import in.huhuba.paho.client.mqttv3.MqttConnectOptions;
 import in.huhuba.paho.client.mqttv3.MqttException;
 import in.huhuba.paho.client.mqttv3.MqttToken;
 import in.huhuba.paho.client.mqttv3.internal.wire.MqttAck;
@@ -40,13 +43,36 @@ public class CommsSender implements Runnable {
 	private CommsTokenStore tokenStore = null;
 	private Thread 	sendThread		= null;
 	
+	// Limits on how much is written between flushes
+	private int maxBatchSize = MqttConnectOptions.MAX_SEND_BATCH_SIZE_DEFAULT;
+	private int maxBatchBytes = MqttConnectOptions.MAX_SEND_BATCH_BYTES_DEFAULT;
+	private long linger = MqttConnectOptions.SEND_LINGER_DEFAULT;
+	// Messages written since the last flush, and their tokens
+	private Vector<MqttWireMessage> batch = new Vector<MqttWireMessage>();
+	private Vector<MqttToken> batchTokens = new Vector<MqttToken>();
+	
 	public CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, OutputStream out) {
-		this.out = new MqttOutputStream(clientState, out);
+		this(clientComms, clientState, tokenStore, out, null);
+	}
+	
+	public CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, OutputStream out, GatheringByteChannel channel) {
+		this.out = new MqttOutputStream(clientState, out, channel);
 		this.clientComms = clientComms;
 		this.clientState = clientState;
 		this.tokenStore = tokenStore;
 	}
 	
+	/**
+	 * Sets how many messages, and how many bytes, may be written before the
+	 * stream is flushed, and how long to wait for more messages to fill a
+	 * batch. A linger of 0 flushes as soon as no more messages are queued.
+	 */
+	public void setBatching(int maxBatchSize, int maxBatchBytes, long linger) {
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchBytes = maxBatchBytes;
+		this.linger = linger;
+	}
+	
 	/**
 	 * Starts up the Sender thread.
 	 */
@@ -95,33 +121,20 @@ public class CommsSender implements Runnable {
 			try {
 				message = clientState.get();
 				if (message != null) {
-					//@TRACE 802=network send key={0} msg={1}
-					LOGD(TAG, methodName+" 802");
-
-					if (message instanceof MqttAck) {
-						out.write(message);
-						out.flush();
-					} else {
-						MqttToken token = tokenStore.getToken(message);
-						// While quiescing the tokenstore can be cleared so need 
-						// to check for null for the case where clear occurs
-						// while trying to send a message.
-						if (token != null) {
-							synchronized (token) {
-								out.write(message);
-								try {
-									out.flush();
-								} catch (IOException ex) {
-									// The flush has been seen to fail on disconnect of a SSL socket
-									// as disconnect is in progress this should not be treated as an error
-									if (!(message instanceof MqttDisconnect)) {
-										throw ex;
-									}
-								}
-								clientState.notifySent(message);
-							}
+					// Take whatever else is ready to go, waiting up to the
+					// linger time for more, so it can all share one flush
+					long deadline = System.currentTimeMillis() + linger;
+					int bytes = 0;
+					while (message != null) {
+						batch.addElement(message);
+						bytes += message.getEncodedLength();
+						if (batch.size() >= maxBatchSize || bytes >= maxBatchBytes) {
+							break;
 						}
+						long wait = (linger > 0) ? deadline - System.currentTimeMillis() : 0;
+						message = clientState.poll(Math.max(wait, 0));
 					}
+					sendBatch();
 				} else { // null message
 					//@TRACE 803=get message returned null, stopping}
 					LOGD(TAG, methodName+" 803");
@@ -132,6 +145,9 @@ public class CommsSender implements Runnable {
 				handleRunException(message, me);
 			} catch (Exception ex) {		
 				handleRunException(message, ex);	
+			} finally {
+				batch.clear();
+				batchTokens.clear();
 			}
 		} // end while
 		
@@ -140,6 +156,60 @@ public class CommsSender implements Runnable {
 
 	}
 
+	/**
+	 * Writes the messages in the batch, then flushes and notifies that they
+	 * have been sent. Before any is written, each is noted as being sent
+	 * while its token is locked, so that the receiver cannot process an ack
+	 * for a message before that has been done. A message other than an ack
+	 * whose token has been cleared is not written.
+	 */
+	private void sendBatch() throws IOException, MqttException {
+		final String methodName = "sendBatch";
+		for (int i = 0; i < batch.size(); i++) {
+			MqttWireMessage message = batch.elementAt(i);
+			MqttToken token = null;
+			if (!(message instanceof MqttAck)) {
+				// While quiescing the tokenstore can be cleared so need 
+				// to check for null for the case where clear occurs
+				// while trying to send a message.
+				token = tokenStore.getToken(message);
+				if (token != null) {
+					synchronized (token) {
+						clientState.notifySending(message, token);
+					}
+				}
+			}
+			batchTokens.addElement(token);
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			MqttWireMessage message = batch.elementAt(i);
+			if (batchTokens.elementAt(i) == null && !(message instanceof MqttAck)) {
+				// Its token was cleared, so it is not sent
+				continue;
+			}
+			//@TRACE 802=network send key={0} msg={1}
+			LOGD(TAG, methodName+" 802");
+			out.write(message);
+		}
+		try {
+			out.flush();
+		} catch (IOException ex) {
+			// The flush has been seen to fail on disconnect of a SSL socket
+			// as disconnect is in progress this should not be treated as an error
+			if (!(batch.lastElement() instanceof MqttDisconnect)) {
+				throw ex;
+			}
+		}
+		// Notify in the order the messages were sent
+		for (int i = 0; i < batch.size(); i++) {
+			MqttToken token = batchTokens.elementAt(i);
+			if (token != null) {
+				clientState.notifySent(batch.elementAt(i), token);
+			}
+		}
+	}
+
 	private void handleRunException(MqttWireMessage message, Exception ex) {
 		final String methodName = "handleRunException";
 		//@TRACE 804=exception
@@ -43,17 +43,23 @@ import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
  * Note:
  *   Ping, connect and disconnect do not have a unique message id as
  *   only one outstanding request of each type is allowed to be outstanding
+ *   Tokens for all other messages are looked up directly by message id,
+ *   without building a key string.
  */
 public class CommsTokenStore {
 	private static final String TAG = LogUtils.makeLogTag(CommsTokenStore.class);
-	// Maps message-specific data (usually message IDs) to tokens
+	// Maps the fixed keys of ping, connect and disconnect to tokens. Also
+	// the lock for the whole store.
 	private Hashtable tokens;
+	// Tokens for messages that have a message ID, indexed by the ID
+	private InflightTable idTokens;
 	private String logContext;
 	private MqttException closedResponse = null;
 
 	public CommsTokenStore(String logContext) {
 		final String methodName = "<Init>";
 		this.tokens = new Hashtable();
+		this.idTokens = new InflightTable();
 		this.logContext = logContext;
 		//@TRACE 308=<>
         LOGD(TAG, methodName+" 308");
@@ -67,23 +73,38 @@ public class CommsTokenStore {
 	 * @return token for the requested message
 	 */
 	public MqttToken getToken(MqttWireMessage message) {
+		if (message.isMessageIdRequired()) {
+			return (MqttToken)idTokens.get(message.getMessageId());
+		}
 		String key = message.getKey(); 
 		return (MqttToken)tokens.get(key);
 	}
 
 	public MqttToken getToken(String key) {
+		int msgId = parseMessageId(key);
+		if (msgId >= 0) {
+			return (MqttToken)idTokens.get(msgId);
+		}
 		return (MqttToken)tokens.get(key);
 	}
 
 	
 	public MqttToken removeToken(MqttWireMessage message) {
 		if (message != null) {
+			if (message.isMessageIdRequired()) {
+				return removeToken(message.getMessageId());
+			}
 			return removeToken(message.getKey());
 		}
 		return null;
 	}
 	
 	public MqttToken removeToken(String key) {
+		int msgId = parseMessageId(key);
+		if (msgId >= 0) {
+			return removeToken(msgId);
+		}
+
 		final String methodName = "removeToken";
 		//@TRACE 306=key={0}
         LOGD(TAG, methodName+" 306");
@@ -94,6 +115,35 @@ public class CommsTokenStore {
 		
 		return null;
 	}
+	
+	public MqttToken removeToken(int msgId) {
+		final String methodName = "removeToken";
+		//@TRACE 306=key={0}
+        LOGD(TAG, methodName+" 306");
+
+		synchronized(tokens) {
+			return (MqttToken) idTokens.remove(msgId);
+		}
+	}
+	
+	/**
+	 * Returns the message ID a token key stands for, or -1 if it is one of
+	 * the fixed keys.
+	 */
+	private static int parseMessageId(String key) {
+		if (key == null || key.length() == 0 || key.length() > 5) {
+			return -1;
+		}
+		int msgId = 0;
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			msgId = msgId * 10 + (c - '0');
+		}
+		return (msgId <= MessageIdAllocator.MAX_MSG_ID) ? msgId : -1;
+	}
 		
 	/**
 	 * Restores a token after a client restart.  This method could be called
@@ -104,15 +154,15 @@ public class CommsTokenStore {
 		final String methodName = "restoreToken";
 		MqttDeliveryToken token;
 		synchronized(tokens) {
-			String key = new Integer(message.getMessageId()).toString();
-			if (this.tokens.containsKey(key)) {
-				token = (MqttDeliveryToken)this.tokens.get(key);
+			int msgId = message.getMessageId();
+			token = (MqttDeliveryToken)this.idTokens.get(msgId);
+			if (token != null) {
 				//@TRACE 302=existing key={0} message={1} token={2}
                 LOGD(TAG, methodName+" 302");
 			} else {
 				token = new MqttDeliveryToken(logContext);
-				token.internalTok.setKey(key);
-				this.tokens.put(key, token);
+				token.internalTok.setKey(Integer.toString(msgId));
+				this.idTokens.put(msgId, token);
 				//@TRACE 303=creating new token key={0} message={1} token={2}
                 LOGD(TAG, methodName+" 303");
 			}
@@ -127,11 +177,16 @@ public class CommsTokenStore {
 
 		synchronized(tokens) {
 			if (closedResponse == null) {
-				String key = message.getKey();
 				//@TRACE 300=key={0} message={1}
                 LOGD(TAG, methodName+" 300");
 				
-				saveToken(token,key);
+				if (message.isMessageIdRequired()) {
+					int msgId = message.getMessageId();
+					token.internalTok.setKey(Integer.toString(msgId));
+					this.idTokens.put(msgId, token);
+				} else {
+					saveToken(token, message.getKey());
+				}
 			} else {
 				throw closedResponse;
 			}
@@ -145,7 +200,12 @@ public class CommsTokenStore {
 			//@TRACE 307=key={0} token={1}
             LOGD(TAG, methodName+" 307");
 			token.internalTok.setKey(key);
-			this.tokens.put(key, token);
+			int msgId = parseMessageId(key);
+			if (msgId >= 0) {
+				this.idTokens.put(msgId, token);
+			} else {
+				this.tokens.put(key, token);
+			}
 		}
 	}
 
@@ -179,7 +239,7 @@ public class CommsTokenStore {
             LOGD(TAG, methodName+" 311");
 
 			Vector list = new Vector();
-			Enumeration enumeration = tokens.elements();
+			Enumeration enumeration = getAllTokens().elements();
 			MqttToken token;
 			while(enumeration.hasMoreElements()) {
 				token = (MqttToken)enumeration.nextElement();
@@ -203,17 +263,21 @@ public class CommsTokenStore {
 			//@TRACE 312=>
             LOGD(TAG, methodName+" 312");
 
-			Vector list = new Vector();
-			Enumeration enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-				if (token != null) {
-						list.addElement(token);
-				}
-			}
-			return list;
+			return getAllTokens();
+		}
+	}
+	
+	/**
+	 * Returns the tokens of both kinds in a new list. Must be called
+	 * holding the tokens lock.
+	 */
+	private Vector getAllTokens() {
+		Vector list = idTokens.values();
+		Enumeration enumeration = tokens.elements();
+		while(enumeration.hasMoreElements()) {
+			list.addElement(enumeration.nextElement());
 		}
+		return list;
 	}
 
 	/**
@@ -225,19 +289,20 @@ public class CommsTokenStore {
         LOGD(TAG, methodName+" 305");
 		synchronized(tokens) {
 			tokens.clear();
+			idTokens.clear();
 		}
 	}
 	
 	public int count() {
 		synchronized(tokens) {
-			return tokens.size();
+			return tokens.size() + idTokens.size();
 		}
 	}
 	public String toString() {
 		String lineSep = System.getProperty("line.separator","\n");
 		StringBuffer toks = new StringBuffer();
 		synchronized(tokens) {
-			Enumeration enumeration = tokens.elements();
+			Enumeration enumeration = getAllTokens().elements();
 			MqttToken token;
 			while(enumeration.hasMoreElements()) {
 				token = (MqttToken)enumeration.nextElement();
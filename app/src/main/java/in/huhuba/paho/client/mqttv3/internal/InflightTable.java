@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.internal;
+
+import java.util.Vector;
+
+/**
+ * A table of objects indexed directly by MQTT message ID, used in place of
+ * a Hashtable keyed by boxed IDs for messages and tokens that are in flight.
+ * Each entry also carries a small state value, such as the QoS of the flow
+ * it belongs to.
+ * <p>
+ * The 65536 possible IDs are split into pages of 256 slots, and a page is
+ * only allocated while it holds an entry. As IDs are allocated in sequence,
+ * the IDs in flight at any time fall in only a few pages.</p>
+ */
+public class InflightTable {
+	private static final int PAGE_BITS = 8;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	private static final int PAGE_COUNT = (MessageIdAllocator.MAX_MSG_ID + 1) / PAGE_SIZE;
+
+	private Object[][] values = new Object[PAGE_COUNT][];
+	private byte[][] states = new byte[PAGE_COUNT][];
+	private int[] pageCounts = new int[PAGE_COUNT];
+	private int size = 0;
+
+	/**
+	 * Returns the entry for the given message ID, or null if there is none.
+	 */
+	public synchronized Object get(int msgId) {
+		Object[] page = values[(msgId >>> PAGE_BITS) & (PAGE_COUNT - 1)];
+		return (page == null) ? null : page[msgId & PAGE_MASK];
+	}
+
+	/**
+	 * Returns the state stored with the entry for the given message ID, or
+	 * 0 if there is no entry.
+	 */
+	public synchronized int getState(int msgId) {
+		byte[] page = states[(msgId >>> PAGE_BITS) & (PAGE_COUNT - 1)];
+		return (page == null) ? 0 : page[msgId & PAGE_MASK];
+	}
+
+	/**
+	 * Stores an entry, with a state of 0, against the given message ID.
+	 * @return the entry previously stored against the ID, or null
+	 */
+	public Object put(int msgId, Object value) {
+		return put(msgId, value, 0);
+	}
+
+	/**
+	 * Stores an entry and its state against the given message ID.
+	 * @return the entry previously stored against the ID, or null
+	 */
+	public synchronized Object put(int msgId, Object value, int state) {
+		int pageIndex = (msgId >>> PAGE_BITS) & (PAGE_COUNT - 1);
+		Object[] page = values[pageIndex];
+		if (page == null) {
+			page = new Object[PAGE_SIZE];
+			values[pageIndex] = page;
+			states[pageIndex] = new byte[PAGE_SIZE];
+		}
+		int slot = msgId & PAGE_MASK;
+		Object previous = page[slot];
+		page[slot] = value;
+		states[pageIndex][slot] = (byte) state;
+		if (previous == null) {
+			pageCounts[pageIndex]++;
+			size++;
+		}
+		return previous;
+	}
+
+	/**
+	 * Removes the entry for the given message ID.
+	 * @return the entry removed, or null if there was none
+	 */
+	public synchronized Object remove(int msgId) {
+		int pageIndex = (msgId >>> PAGE_BITS) & (PAGE_COUNT - 1);
+		Object[] page = values[pageIndex];
+		if (page == null) {
+			return null;
+		}
+		int slot = msgId & PAGE_MASK;
+		Object previous = page[slot];
+		if (previous != null) {
+			page[slot] = null;
+			states[pageIndex][slot] = 0;
+			size--;
+			if (--pageCounts[pageIndex] == 0) {
+				// Let the empty page go
+				values[pageIndex] = null;
+				states[pageIndex] = null;
+			}
+		}
+		return previous;
+	}
+
+	/**
+	 * Returns the number of entries in the table.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns all the entries, in message ID order.
+	 */
+	public synchronized Vector<Object> values() {
+		Vector<Object> list = new Vector<Object>(size);
+		for (int p = 0; p < PAGE_COUNT; p++) {
+			Object[] page = values[p];
+			if (page != null) {
+				for (int s = 0; s < PAGE_SIZE; s++) {
+					if (page[s] != null) {
+						list.addElement(page[s]);
+					}
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the entries with the given state, in message ID order.
+	 */
+	public synchronized Vector<Object> values(int state) {
+		Vector<Object> list = new Vector<Object>();
+		for (int p = 0; p < PAGE_COUNT; p++) {
+			Object[] page = values[p];
+			if (page != null) {
+				for (int s = 0; s < PAGE_SIZE; s++) {
+					if (page[s] != null && states[p][s] == state) {
+						list.addElement(page[s]);
+					}
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Removes every entry.
+	 */
+	public synchronized void clear() {
+		for (int p = 0; p < PAGE_COUNT; p++) {
+			values[p] = null;
+			states[p] = null;
+			pageCounts[p] = 0;
+		}
+		size = 0;
+	}
+
+	public String toString() {
+		return values().toString();
+	}
+}
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.internal;
+
+import java.util.Properties;
+
+/**
+ * Decides how many QoS 1 and 2 publishes may be in flight to the server at
+ * once, from the time taken for each to be acknowledged. A QoS 2 publish
+ * is timed to its PUBREC, which takes one round trip as a QoS 1 PUBACK
+ * does, rather than to its PUBCOMP, which takes two.
+ * <p>
+ * With a fixed window the limit is always the configured maximum, and the
+ * round trip times are only measured. With an adaptive window the limit
+ * starts small and follows the network: it doubles every round trip while
+ * acks come back as fast as they ever have, grows by one a round trip
+ * while only a few messages appear to be queued on the path, and shrinks
+ * by one when more are. An ack much slower than usual, or losing the
+ * connection with messages in flight, is taken as congestion and halves
+ * the window. The window is never larger than the configured maximum and
+ * never smaller than one message.</p>
+ */
+public class InflightWindow {
+	private static final int MIN_WINDOW = 1;
+	// Where an adaptive window starts, the same as the old fixed window
+	private static final int INITIAL_WINDOW = 10;
+	// Below this many messages queued on the path the window grows, above
+	// BETA it shrinks
+	private static final double ALPHA = 2;
+	private static final double BETA = 4;
+	// Lower bound on the ack time taken as congestion, in nanoseconds
+	private static final long MIN_TIMEOUT = 200 * 1000000L;
+
+	private int maxWindow;
+	private boolean adaptive;
+	private double window;
+	private boolean slowStart;
+	// Read by the sender without taking the lock
+	volatile private int limit;
+
+	// Round trip times in nanoseconds
+	private long baseRtt = 0;		// The fastest since connecting
+	private long smoothedRtt = 0;
+	private long rttVariation = 0;
+	private long lastRtt = 0;
+	private long lastDecrease = 0;
+	// Acks for messages sent before this time belong to an older connection
+	private long epoch = System.nanoTime();
+
+	private long sampleCount = 0;
+	private long increaseCount = 0;
+	private long decreaseCount = 0;
+	private long timeoutCount = 0;
+
+	public InflightWindow(int maxWindow, boolean adaptive) {
+		configure(maxWindow, adaptive);
+	}
+
+	/**
+	 * Sets the largest window, and whether the window adapts to the round
+	 * trip time or stays at the largest.
+	 */
+	public synchronized void configure(int maxWindow, boolean adaptive) {
+		if (maxWindow < MIN_WINDOW) {
+			throw new IllegalArgumentException();
+		}
+		this.maxWindow = maxWindow;
+		this.adaptive = adaptive;
+		this.window = adaptive ? Math.min(maxWindow, INITIAL_WINDOW) : maxWindow;
+		this.slowStart = adaptive;
+		update();
+	}
+
+	/**
+	 * Returns the number of messages that may be in flight at the moment.
+	 */
+	public int getWindow() {
+		return limit;
+	}
+
+	public int getMaxWindow() {
+		return maxWindow;
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * Called when a publish has been acknowledged.
+	 * @param sentTime the {@link System#nanoTime()} at which it was sent
+	 * @param now the {@link System#nanoTime()} at which the ack arrived
+	 */
+	public synchronized void onAck(long sentTime, long now) {
+		if (sentTime == 0 || sentTime - epoch < 0) {
+			// Not sent on this connection, so says nothing about it
+			return;
+		}
+		long rtt = Math.max(1, now - sentTime);
+		lastRtt = rtt;
+		sampleCount++;
+
+		boolean timeout = false;
+		if (smoothedRtt == 0) {
+			smoothedRtt = rtt;
+			rttVariation = rtt / 2;
+		} else {
+			// Well beyond both the usual variation and normal queueing
+			timeout = rtt > Math.max(MIN_TIMEOUT,
+					smoothedRtt + Math.max(smoothedRtt, 4 * rttVariation));
+			// As for TCP retransmission timers (RFC 6298)
+			rttVariation += (Math.abs(smoothedRtt - rtt) - rttVariation) / 4;
+			smoothedRtt += (rtt - smoothedRtt) / 8;
+		}
+		if (baseRtt == 0 || rtt < baseRtt) {
+			baseRtt = rtt;
+		}
+
+		if (!adaptive) {
+			return;
+		}
+		if (timeout) {
+			// Only back off once per round trip, as the acks of the other
+			// messages sent with this one are likely to be as late
+			if (now - lastDecrease > smoothedRtt) {
+				timeoutCount++;
+				decrease(now);
+			}
+			return;
+		}
+
+		// The number of messages the window holds beyond what the path
+		// carries when nothing is queued, as in TCP Vegas
+		double queued = window * (rtt - baseRtt) / rtt;
+		if (queued < ALPHA) {
+			window += slowStart ? 1 : 1 / window;
+			increaseCount++;
+		} else if (queued > BETA) {
+			slowStart = false;
+			window -= 1 / window;
+			decreaseCount++;
+		} else {
+			slowStart = false;
+		}
+		update();
+	}
+
+	/**
+	 * Called when the connection has been lost.
+	 * @param inFlight whether any messages were waiting to be acknowledged
+	 */
+	public synchronized void onConnectionLost(boolean inFlight) {
+		if (adaptive && inFlight) {
+			timeoutCount++;
+			decrease(System.nanoTime());
+		}
+		// The next connection may take a different route
+		epoch = System.nanoTime();
+		baseRtt = 0;
+		smoothedRtt = 0;
+		rttVariation = 0;
+	}
+
+	private void decrease(long now) {
+		slowStart = false;
+		window = window / 2;
+		lastDecrease = now;
+		decreaseCount++;
+		update();
+	}
+
+	private void update() {
+		window = Math.max(MIN_WINDOW, Math.min(maxWindow, window));
+		limit = (int) window;
+	}
+
+	/**
+	 * Returns a snapshot of the window and the round trip times, in
+	 * milliseconds, measured since connecting.
+	 */
+	public synchronized Properties getDebug() {
+		Properties props = new Properties();
+		props.put("window", new Integer(limit));
+		props.put("maxWindow", new Integer(maxWindow));
+		props.put("adaptive", Boolean.valueOf(adaptive));
+		props.put("slowStart", Boolean.valueOf(slowStart));
+		props.put("baseRtt", new Double(baseRtt / 1000000.0));
+		props.put("smoothedRtt", new Double(smoothedRtt / 1000000.0));
+		props.put("rttVariation", new Double(rttVariation / 1000000.0));
+		props.put("lastRtt", new Double(lastRtt / 1000000.0));
+		props.put("samples", new Long(sampleCount));
+		props.put("increases", new Long(increaseCount));
+		props.put("decreases", new Long(decreaseCount));
+		props.put("timeouts", new Long(timeoutCount));
+		return props;
+	}
+
+	public String toString() {
+		return getDebug().toString();
+	}
+}
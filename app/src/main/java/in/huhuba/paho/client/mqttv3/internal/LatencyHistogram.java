@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.internal;
+
+import java.util.Properties;
+
+/**
+ * Counts latencies in a fixed set of buckets, so that recording one never
+ * allocates and percentiles can be read at any time.
+ * <p>
+ * Latencies are held in microseconds. Below 64 each value has a bucket of
+ * its own; above that every power of two range is split into 32 equal
+ * buckets, so a reported percentile is within about 3% of the true value.
+ * Anything over about 19 hours is counted as 19 hours. The buckets take
+ * 8 KB.</p>
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+	private static final long MAX_VALUE = (1L << 36) - 1;
+	private static final int BUCKET_COUNT = getIndex(MAX_VALUE) + 1;
+
+	private final long[] counts = new long[BUCKET_COUNT];
+	private long totalCount = 0;
+	private long totalValue = 0;
+	private long minValue = Long.MAX_VALUE;
+	private long maxValue = 0;
+
+	/**
+	 * Records a latency.
+	 * @param nanos the latency in nanoseconds
+	 */
+	public synchronized void record(long nanos) {
+		long value = Math.min(MAX_VALUE, Math.max(0, nanos / 1000));
+		counts[getIndex(value)]++;
+		totalCount++;
+		totalValue += value;
+		if (value < minValue) {
+			minValue = value;
+		}
+		if (value > maxValue) {
+			maxValue = value;
+		}
+	}
+
+	/**
+	 * Returns the latency that the given percentage of recorded latencies
+	 * do not exceed.
+	 * @param percentile the percentage, from 0 to 100
+	 * @return the latency in milliseconds, or 0 if nothing has been
+	 * recorded
+	 */
+	public synchronized double getPercentile(double percentile) {
+		if (totalCount == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * totalCount);
+		target = Math.max(1, target);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				// The top of the bucket, but never beyond what was recorded
+				return Math.min(getHighestValue(i), maxValue) / 1000.0;
+			}
+		}
+		return maxValue / 1000.0;
+	}
+
+	public synchronized long getCount() {
+		return totalCount;
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = 0;
+		}
+		totalCount = 0;
+		totalValue = 0;
+		minValue = Long.MAX_VALUE;
+		maxValue = 0;
+	}
+
+	private static int getIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		// The number of low bits that do not fit in a sub-bucket
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the highest value that is counted in the given bucket.
+	 */
+	private static long getHighestValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_BUCKET_HALF - 1;
+		long lowest = (long) (index - shift * SUB_BUCKET_HALF) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Returns the count and the main percentiles, in milliseconds.
+	 */
+	public synchronized Properties getDebug() {
+		Properties props = new Properties();
+		props.put("count", new Long(totalCount));
+		props.put("min", new Double(totalCount == 0 ? 0 : minValue / 1000.0));
+		props.put("max", new Double(maxValue / 1000.0));
+		props.put("mean", new Double(totalCount == 0 ? 0 : (double) totalValue / totalCount / 1000.0));
+		props.put("p50", new Double(getPercentile(50)));
+		props.put("p99", new Double(getPercentile(99)));
+		props.put("p999", new Double(getPercentile(99.9)));
+		return props;
+	}
+
+	public String toString() {
+		return getDebug().toString();
+	}
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.internal;
+
+import in.huhuba.paho.client.mqttv3.MqttException;
+
+/**
+ * Hands out MQTT message IDs, keeping track of those in use in a bitset of
+ * one bit per possible ID (8 KB in all).
+ * <p>
+ * IDs are allocated in ascending order, wrapping round after the highest,
+ * so a released ID is not reused straight away. Free IDs are found a 64-bit
+ * word at a time, so allocating costs at most one scan of the bitset even
+ * when nearly every ID is in use, and running out is detected without
+ * scanning at all.</p>
+ */
+public class MessageIdAllocator {
+	public static final int MIN_MSG_ID = 1;		// Lowest possible MQTT message ID to use
+	public static final int MAX_MSG_ID = 65535;	// Highest possible MQTT message ID to use
+
+	private static final int ID_COUNT = MAX_MSG_ID - MIN_MSG_ID + 1;
+	private static final int WORD_COUNT = (MAX_MSG_ID + 1) / 64;
+
+	// Bit n is set while ID n is in use. ID 0 is never valid, so its bit is
+	// always set.
+	private final long[] inUse = new long[WORD_COUNT];
+	private int lastMsgId = MIN_MSG_ID - 1;		// The most recently allocated ID
+	private int inUseCount = 0;
+	private long allocationCount = 0;
+	private long exhaustionCount = 0;
+
+	public MessageIdAllocator() {
+		clear();
+	}
+
+	/**
+	 * Returns the next message ID that is not already in use, and marks it
+	 * as now being in use.
+	 * @throws MqttException if every message ID is in use
+	 */
+	public synchronized int allocate() throws MqttException {
+		if (inUseCount == ID_COUNT) {
+			exhaustionCount++;
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+		}
+
+		int start = (lastMsgId >= MAX_MSG_ID) ? MIN_MSG_ID : lastMsgId + 1;
+		int word = start >>> 6;
+		// Ignore the IDs below the starting point in its word the first time
+		long free = ~inUse[word] & (-1L << (start & 63));
+		// As an ID is known to be free, at most every word and then the
+		// starting word again need looking at
+		while (free == 0) {
+			word = (word + 1) % WORD_COUNT;
+			free = ~inUse[word];
+		}
+		int msgId = (word << 6) + Long.numberOfTrailingZeros(free);
+
+		inUse[word] |= 1L << (msgId & 63);
+		inUseCount++;
+		allocationCount++;
+		lastMsgId = msgId;
+		return msgId;
+	}
+
+	/**
+	 * Marks the given message ID as being in use, for instance because a
+	 * message restored from persistence holds it.
+	 */
+	public synchronized void markInUse(int msgId) {
+		if (msgId < MIN_MSG_ID || msgId > MAX_MSG_ID) {
+			return;
+		}
+		long bit = 1L << (msgId & 63);
+		if ((inUse[msgId >>> 6] & bit) == 0) {
+			inUse[msgId >>> 6] |= bit;
+			inUseCount++;
+		}
+	}
+
+	/**
+	 * Releases a message ID back into the pool of available message IDs.
+	 * If the supplied message ID is not in use, then nothing will happen.
+	 */
+	public synchronized void release(int msgId) {
+		if (msgId < MIN_MSG_ID || msgId > MAX_MSG_ID) {
+			return;
+		}
+		long bit = 1L << (msgId & 63);
+		if ((inUse[msgId >>> 6] & bit) != 0) {
+			inUse[msgId >>> 6] &= ~bit;
+			inUseCount--;
+		}
+	}
+
+	/**
+	 * Returns whether the given message ID is in use.
+	 */
+	public synchronized boolean isInUse(int msgId) {
+		return (inUse[msgId >>> 6] & (1L << (msgId & 63))) != 0;
+	}
+
+	/**
+	 * Releases every message ID. The allocation and exhaustion counts are
+	 * kept.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < WORD_COUNT; i++) {
+			inUse[i] = 0;
+		}
+		inUse[0] = 1L;
+		inUseCount = 0;
+	}
+
+	/**
+	 * Returns the most recently allocated message ID. The next allocation
+	 * starts looking for a free ID just after it.
+	 */
+	public synchronized int getLastMsgId() {
+		return lastMsgId;
+	}
+
+	/**
+	 * Sets where the next allocation starts looking for a free ID from.
+	 */
+	public synchronized void setLastMsgId(int msgId) {
+		this.lastMsgId = msgId;
+	}
+
+	/**
+	 * Returns the number of message IDs currently in use.
+	 */
+	public synchronized int getInUseCount() {
+		return inUseCount;
+	}
+
+	/**
+	 * Returns the number of message IDs allocated since this was created.
+	 */
+	public synchronized long getAllocationCount() {
+		return allocationCount;
+	}
+
+	/**
+	 * Returns the number of times an ID was asked for when none was free.
+	 */
+	public synchronized long getExhaustionCount() {
+		return exhaustionCount;
+	}
+
+	public String toString() {
+		return "inUse:" + getInUseCount() + " allocations:" + getAllocationCount() +
+			" exhaustions:" + getExhaustionCount();
+	}
+}
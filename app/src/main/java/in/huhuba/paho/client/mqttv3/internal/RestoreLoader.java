@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import in.huhuba.paho.client.mqttv3.MqttException;
+import in.huhuba.paho.client.mqttv3.MqttPersistenceException;
+import in.huhuba.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import in.huhuba.paho.client.mqttv3.logging.LogUtils;
+
+import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
+
+/**
+ * Loads the outbound publishes of a restored session from persistence in
+ * the background, so the client can start sending the first of them while
+ * the rest are still being read.
+ * <p>
+ * The keys are given in the order the publishes are to be sent. Several
+ * threads read and decode them at once, and each publish is handed to the
+ * {@link ClientState} in that order as soon as it and all before it have
+ * been loaded.</p>
+ * <p>
+ * If persistence cannot be read, for instance because it has been closed,
+ * loading stops and carries on from the same place when next started.</p>
+ */
+public class RestoreLoader implements Runnable {
+	private static final String TAG = LogUtils.makeLogTag(RestoreLoader.class);
+	// Stands in for a publish that could not be loaded
+	private static final Object FAILED = new Object();
+
+	private ClientState clientState;
+	private String[] keys;
+	private boolean[] confirmed;
+	private Object[] loaded;
+	private AtomicInteger next = new AtomicInteger(0);
+	// The publishes before this one have been handed over
+	private int released = 0;
+	private boolean releasing = false;
+	// Threads currently loading
+	private int running = 0;
+	volatile private boolean paused = false;
+	volatile private boolean cancelled = false;
+
+	/**
+	 * @param clientState where to hand the publishes to
+	 * @param keys the persistence keys of the publishes, in sending order
+	 * @param confirmed for each key, whether its PUBREL has been stored
+	 */
+	public RestoreLoader(ClientState clientState, String[] keys, boolean[] confirmed) {
+		this.clientState = clientState;
+		this.keys = keys;
+		this.confirmed = confirmed;
+		this.loaded = new Object[keys.length];
+	}
+
+	/**
+	 * Starts the given number of threads to load the publishes, or loads
+	 * them all on the calling thread if the number is 0. Does nothing if
+	 * they are already being loaded.
+	 */
+	public void start(String threadName, int threads) {
+		synchronized (loaded) {
+			if (cancelled || running > 0 || released == keys.length) {
+				return;
+			}
+			paused = false;
+			next.set(released);
+			running = Math.max(threads, 1);
+		}
+		if (threads <= 0) {
+			run();
+			return;
+		}
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(this, threadName + " " + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops loading. Publishes already being handed over may still be.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public int getLoadedCount() {
+		synchronized (loaded) {
+			return released;
+		}
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	public boolean isPaused() {
+		return paused;
+	}
+
+	public void run() {
+		final String methodName = "run";
+		int index;
+		try {
+			while (!cancelled && !paused && (index = next.getAndIncrement()) < keys.length) {
+				synchronized (loaded) {
+					if (loaded[index] != null) {
+						// Loaded before loading last stopped
+						continue;
+					}
+				}
+				Object message = null;
+				try {
+					message = clientState.loadRestoredMessage(keys[index]);
+				} catch (MqttPersistenceException ex) {
+					//@TRACE 663=loading stopped key={0}
+					LOGD(TAG, methodName+" 663", ex);
+					paused = true;
+					break;
+				} catch (MqttException ex) {
+					//@TRACE 661=could not restore key={0}
+					LOGD(TAG, methodName+" 661", ex);
+				}
+				release(index, (message == null) ? FAILED : message);
+			}
+		} finally {
+			synchronized (loaded) {
+				running--;
+			}
+		}
+	}
+
+	/**
+	 * Records a loaded publish, and hands over those that are now next in
+	 * order. Only one thread hands publishes over at a time.
+	 */
+	private void release(int index, Object message) {
+		synchronized (loaded) {
+			loaded[index] = message;
+			if (releasing) {
+				return;
+			}
+			releasing = true;
+		}
+		while (true) {
+			Object released;
+			int position;
+			synchronized (loaded) {
+				if (this.released == keys.length || loaded[this.released] == null || cancelled) {
+					releasing = false;
+					return;
+				}
+				position = this.released++;
+				released = loaded[position];
+				loaded[position] = null;
+			}
+			if (released == FAILED) {
+				clientState.restoreFailed(this, keys[position]);
+			} else {
+				clientState.restored(this, (MqttWireMessage) released, confirmed[position]);
+			}
+			if (position == keys.length - 1) {
+				clientState.restoreComplete(this);
+			}
+		}
+	}
+}
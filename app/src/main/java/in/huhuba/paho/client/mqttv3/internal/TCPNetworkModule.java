@@ -22,6 +22,8 @@ import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
 
 import javax.net.SocketFactory;
 
@@ -79,6 +81,19 @@ public class TCPNetworkModule implements NetworkModule {
 	public OutputStream getOutputStream() throws IOException {
 		return socket.getOutputStream();
 	}
+	
+	/**
+	 * Returns a channel that writes to the same connection as the output
+	 * stream, or <code>null</code> if the socket factory did not supply a
+	 * socket with a blocking channel.
+	 */
+	public GatheringByteChannel getOutputChannel() {
+		SocketChannel channel = socket.getChannel();
+		if (channel != null && channel.isBlocking()) {
+			return channel;
+		}
+		return null;
+	}
 
 	/**
 	 * Stops the module, by closing the TCP socket.
@@ -16,6 +16,8 @@
 
 package in.huhuba.paho.client.mqttv3.internal;
 
+import java.util.Vector;
+
 import in.huhuba.paho.client.mqttv3.IMqttActionListener;
 import in.huhuba.paho.client.mqttv3.IMqttAsyncClient;
 import in.huhuba.paho.client.mqttv3.MqttException;
@@ -51,6 +53,14 @@ public class Token {
 	
 	private int messageID = 0;
 	private boolean notified = false;
+	// System.nanoTime() when the message was last sent, or 0
+	private volatile long sentTime = 0;
+	// The persistence record that must be committed before completing
+	private volatile long commitSequence = 0;
+	// Run once the action has finished, successfully or not. Guarded by
+	// responseLock, as is finished.
+	private Vector<Runnable> completionHooks = null;
+	private boolean finished = false;
 	
 	public Token(String logContext) {
 
@@ -63,6 +73,22 @@ public class Token {
 	public void setMessageID(int messageID) {
 		this.messageID = messageID;
 	}
+
+	public long getSentTime() {
+		return sentTime;
+	}
+
+	public void setSentTime(long sentTime) {
+		this.sentTime = sentTime;
+	}
+
+	public long getCommitSequence() {
+		return commitSequence;
+	}
+
+	public void setCommitSequence(long commitSequence) {
+		this.commitSequence = commitSequence;
+	}
 	
 	public boolean checkResult() throws MqttException {
 		if ( getException() != null)  {
@@ -192,6 +218,7 @@ public class Token {
 			final String methodName = "notifyComplete";
 			//@TRACE 411=>key={0} response={1} excep={2}
             LOGD(TAG, methodName+" 404");
+			Vector<Runnable> hooks = null;
 
 			synchronized (responseLock) {
 				// If pending complete is set then normally the token can be marked
@@ -206,12 +233,39 @@ public class Token {
 				}
 				
 				responseLock.notifyAll();
+				if (completed || exception != null) {
+					finished = true;
+					hooks = completionHooks;
+					completionHooks = null;
+				}
 			}
 			synchronized (sentLock) {
 				sent=true;	
 				sentLock.notifyAll();
 			}
+			if (hooks != null) {
+				for (int i = 0; i < hooks.size(); i++) {
+					hooks.elementAt(i).run();
+				}
+			}
+		}
+
+	/**
+	 * Runs the given hook once the action has finished, successfully or
+	 * not, on the thread that finishes it, or now if it already has.
+	 */
+	public void addCompletionHook(Runnable hook) {
+		synchronized (responseLock) {
+			if (!finished) {
+				if (completionHooks == null) {
+					completionHooks = new Vector<Runnable>();
+				}
+				completionHooks.addElement(hook);
+				return;
+			}
 		}
+		hook.run();
+	}
 	
 //	/**
 //	 * Notifies this token that an exception has occurred.  This is only
@@ -256,18 +310,26 @@ public class Token {
 		}
 	}
 	
+	/**
+	 * Notifies this token that the associated message is about to be
+	 * written, before any response to it can be received.
+	 */
+	protected void notifySending() {
+		synchronized (responseLock) {
+			this.response = null;
+			this.completed = false;
+		}
+	}
+	
 	/**
 	 * Notifies this token that the associated message has been sent
-	 * (i.e. written to the TCP/IP socket).
+	 * (i.e. written to the TCP/IP socket). Its response may already have
+	 * been received.
 	 */
 	protected void notifySent() {
 		final String methodName = "notifySent";
 		//@TRACE 403=> key={0}
         LOGD(TAG, methodName+" 403");
-		synchronized (responseLock) {
-			this.response = null;
-			this.completed = false;
-		}
 		synchronized (sentLock) {
 			sent = true;
 			sentLock.notifyAll();
@@ -293,6 +355,9 @@ public class Token {
 		
 		client = null;
 		completed = false;
+		synchronized (responseLock) {
+			finished = false;
+		}
 		response = null;
 		sent = false;
 		exception = null;
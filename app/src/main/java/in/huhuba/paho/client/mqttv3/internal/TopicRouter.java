@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.internal;
+
+import java.util.Hashtable;
+
+import in.huhuba.paho.client.mqttv3.IMqttMessageListener;
+import in.huhuba.paho.client.mqttv3.MqttMessage;
+import in.huhuba.paho.client.mqttv3.MqttTopic;
+
+/**
+ * Holds the message listeners subscribed with topic filters, and gives
+ * arrived messages to those whose filters match their topics.
+ * <p>
+ * The filters are kept in a tree with a node for each topic level, so a
+ * topic is matched by walking down it a level at a time, rather than by
+ * testing it against every filter. Only the branches for the topic's own
+ * levels and for wildcards are visited, however many filters there are.</p>
+ * <p>
+ * Listeners are added and removed one at a time, but messages are matched
+ * without locking, so that listeners can be changed from within one.</p>
+ */
+public class TopicRouter {
+	private static final char SEPARATOR = MqttTopic.TOPIC_LEVEL_SEPARATOR.charAt(0);
+
+	private Node root = new Node();
+	volatile private int size = 0;
+
+	/**
+	 * A topic level. Its listener, if any, is for the filter that ends here.
+	 */
+	private static class Node {
+		// Levels below named in full, by name
+		Hashtable<String, Node> children = new Hashtable<String, Node>();
+		volatile Node singleLevel;
+		volatile Node multiLevel;
+		volatile IMqttMessageListener listener;
+
+		boolean isEmpty() {
+			return listener == null && singleLevel == null && multiLevel == null && children.isEmpty();
+		}
+	}
+
+	/**
+	 * Sets the listener for a topic filter, in place of any already set.
+	 * @param topicFilter a valid topic filter
+	 * @param listener the listener
+	 * @return the listener replaced, or null if none was set
+	 */
+	public synchronized IMqttMessageListener put(String topicFilter, IMqttMessageListener listener) {
+		Node node = root;
+		int start = 0;
+		while (start <= topicFilter.length()) {
+			int end = topicFilter.indexOf(SEPARATOR, start);
+			if (end < 0) {
+				end = topicFilter.length();
+			}
+			String level = topicFilter.substring(start, end);
+			Node next;
+			if (level.equals(MqttTopic.SINGLE_LEVEL_WILDCARD)) {
+				next = node.singleLevel;
+				if (next == null) {
+					next = node.singleLevel = new Node();
+				}
+			} else if (level.equals(MqttTopic.MULTI_LEVEL_WILDCARD)) {
+				next = node.multiLevel;
+				if (next == null) {
+					next = node.multiLevel = new Node();
+				}
+			} else {
+				next = node.children.get(level);
+				if (next == null) {
+					next = new Node();
+					node.children.put(level, next);
+				}
+			}
+			node = next;
+			start = end + 1;
+		}
+		IMqttMessageListener previous = node.listener;
+		if (previous == null) {
+			size++;
+		}
+		node.listener = listener;
+		return previous;
+	}
+
+	/**
+	 * Removes the listener for a topic filter.
+	 * @param topicFilter the topic filter the listener was set for
+	 * @return the listener removed, or null if none was set
+	 */
+	public synchronized IMqttMessageListener remove(String topicFilter) {
+		return remove(root, topicFilter, 0);
+	}
+
+	/**
+	 * Removes the listener for the rest of the filter from below the given
+	 * node, and any nodes left empty by doing so.
+	 */
+	private IMqttMessageListener remove(Node node, String topicFilter, int start) {
+		if (start > topicFilter.length()) {
+			IMqttMessageListener listener = node.listener;
+			if (listener != null) {
+				node.listener = null;
+				size--;
+			}
+			return listener;
+		}
+		int end = topicFilter.indexOf(SEPARATOR, start);
+		if (end < 0) {
+			end = topicFilter.length();
+		}
+		String level = topicFilter.substring(start, end);
+		Node next;
+		if (level.equals(MqttTopic.SINGLE_LEVEL_WILDCARD)) {
+			next = node.singleLevel;
+		} else if (level.equals(MqttTopic.MULTI_LEVEL_WILDCARD)) {
+			next = node.multiLevel;
+		} else {
+			next = node.children.get(level);
+		}
+		if (next == null) {
+			return null;
+		}
+		IMqttMessageListener listener = remove(next, topicFilter, end + 1);
+		if (next.isEmpty()) {
+			if (next == node.singleLevel) {
+				node.singleLevel = null;
+			} else if (next == node.multiLevel) {
+				node.multiLevel = null;
+			} else {
+				node.children.remove(level);
+			}
+		}
+		return listener;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gives a message to every listener whose topic filter matches its
+	 * topic.
+	 * @param topicName the topic the message arrived on
+	 * @param message the message
+	 * @return the number of listeners the message was given to
+	 * @throws Exception if a listener throws one, in which case the
+	 * listeners after it are not called
+	 */
+	public int deliver(String topicName, MqttMessage message) throws Exception {
+		if (size == 0) {
+			return 0;
+		}
+		// Wildcards at the first level do not match topics starting with $
+		boolean system = topicName.length() > 0 && topicName.charAt(0) == '$';
+		return deliver(root, topicName, 0, system, message);
+	}
+
+	private int deliver(Node node, String topicName, int start, boolean system, MqttMessage message)
+			throws Exception {
+		visited();
+		int delivered = 0;
+		boolean wildcards = !(system && start == 0);
+		Node multiLevel = node.multiLevel;
+		if (wildcards && multiLevel != null) {
+			// Matches this level and all below, or none at all
+			IMqttMessageListener listener = multiLevel.listener;
+			if (listener != null) {
+				listener.messageArrived(topicName, message);
+				delivered++;
+			}
+		}
+		if (start > topicName.length()) {
+			IMqttMessageListener listener = node.listener;
+			if (listener != null) {
+				listener.messageArrived(topicName, message);
+				delivered++;
+			}
+			return delivered;
+		}
+		int end = topicName.indexOf(SEPARATOR, start);
+		if (end < 0) {
+			end = topicName.length();
+		}
+		if (!node.children.isEmpty()) {
+			Node child = node.children.get(topicName.substring(start, end));
+			if (child != null) {
+				delivered += deliver(child, topicName, end + 1, system, message);
+			}
+		}
+		Node singleLevel = node.singleLevel;
+		if (wildcards && singleLevel != null) {
+			delivered += deliver(singleLevel, topicName, end + 1, system, message);
+		}
+		return delivered;
+	}
+
+	/**
+	 * Called for each node a delivery visits. Does nothing, but lets tests
+	 * count the nodes.
+	 */
+	void visited() {
+	}
+}
@@ -16,6 +16,7 @@
 package in.huhuba.paho.client.mqttv3.internal.wire;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import in.huhuba.paho.client.mqttv3.MqttException;
 
@@ -40,6 +41,20 @@ public class MqttDisconnect extends MqttWireMessage {
 	protected byte[] getVariableHeader() throws MqttException {
 		return new byte[0];
 	}
+	
+	protected int getVariableHeaderLength() {
+		return 0;
+	}
+	
+	protected void encodeVariableHeaderTo(ByteBuffer buffer) {
+	}
+	
+	protected int getEncodedPayloadLength() {
+		return 0;
+	}
+	
+	protected void encodePayloadTo(ByteBuffer buffer) {
+	}
 
 	/**
 	 * Returns whether or not this message needs to include a message ID.
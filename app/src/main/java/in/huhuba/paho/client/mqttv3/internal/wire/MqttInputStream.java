@@ -15,88 +15,245 @@
  */
 package in.huhuba.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Vector;
 
 import in.huhuba.paho.client.mqttv3.MqttException;
 import in.huhuba.paho.client.mqttv3.internal.ClientState;
 import in.huhuba.paho.client.mqttv3.internal.ExceptionHelper;
+import in.huhuba.paho.client.mqttv3.logging.LogUtils;
+
+import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
 
 
 /**
  * An <code>MqttInputStream</code> lets applications read instances of
- * <code>MqttWireMessage</code>. 
+ * <code>MqttWireMessage</code>.
+ * <p>
+ * Bytes are pulled from the underlying stream into a reusable read buffer,
+ * as many as the stream has available per read, and every complete packet in
+ * the buffer is decoded in one pass. A packet that is only partially received
+ * stays at the front of the buffer until the rest of it arrives.</p>
+ * <p>
+ * Large received PUBLISH packets are not copied out of the read buffer. Once
+ * one has been decoded from it, the decoded part of the buffer belongs to
+ * the messages and is never overwritten: reading carries on into the free
+ * space after it, and moves to a fresh buffer when that space runs low.
+ * Smaller packets are copied out, as otherwise each would keep the whole
+ * buffer alive for as long as the application holds on to it.</p>
  */
 public class MqttInputStream extends InputStream {
-	private static final String CLASS_NAME = MqttInputStream.class.getName();
-	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+	private static final String TAG = LogUtils.makeLogTag(MqttInputStream.class);
+
+	// Initial size of the read buffer. The buffer grows to hold a single
+	// packet larger than this and shrinks back once that packet is decoded.
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	// Least free space worth issuing a read into before moving to a new buffer
+	private static final int MIN_READ_SPACE = 1024;
+	// Smallest PUBLISH left in the read buffer rather than copied out of it,
+	// so that a shared buffer is mostly taken up by the messages it holds
+	private static final int MIN_SHARED_PUBLISH = READ_BUFFER_SIZE / 4;
+	// The remaining length field is at most four bytes long
+	private static final int MAX_MBI_LENGTH = 4;
 
 	private ClientState clientState = null;
-	private DataInputStream in;
+	private InputStream in;
+	// Received bytes. Those from readStart up to position() have not been
+	// decoded yet, new bytes are read in after position().
+	private ByteBuffer readBuffer;
+	private int readStart = 0;
+	// Whether decoded messages refer to bytes held in readBuffer
+	private boolean shared = false;
+	// Messages decoded but not yet handed out by readMqttWireMessage()
+	private Vector<MqttWireMessage> pending = new Vector<MqttWireMessage>();
 
 	public MqttInputStream(ClientState clientState, InputStream in) {
 		this.clientState = clientState;
-		this.in = new DataInputStream(in);
+		this.in = in;
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
 	}
-	
+
 	public int read() throws IOException {
+		if (readBuffer.position() > readStart) {
+			return readBuffer.get(readStart++) & 0xFF;
+		}
 		return in.read();
 	}
-	
+
 	public int available() throws IOException {
-		return in.available();
+		return (readBuffer.position() - readStart) + in.available();
 	}
-	
+
 	public void close() throws IOException {
 		in.close();
 	}
-	
+
 	/**
 	 * Reads an <code>MqttWireMessage</code> from the stream.
 	 */
 	public MqttWireMessage readMqttWireMessage() throws IOException, MqttException {
-		final String methodName ="readMqttWireMessage";
-		ByteArrayOutputStream bais = new ByteArrayOutputStream();
-		byte first = in.readByte();
-		clientState.notifyReceivedBytes(1);
-		
+		if (pending.isEmpty()) {
+			readMqttWireMessages(pending);
+		}
+		return pending.remove(0);
+	}
+
+	/**
+	 * Reads every complete <code>MqttWireMessage</code> currently available
+	 * and appends them, in arrival order, to the supplied batch. This call
+	 * blocks until at least one message has been read.
+	 * @param batch the vector to add the decoded messages to
+	 * @return the number of messages added to the batch
+	 */
+	public int readMqttWireMessages(Vector<MqttWireMessage> batch) throws IOException, MqttException {
+		int start = batch.size();
+		if (!pending.isEmpty()) {
+			batch.addAll(pending);
+			pending.clear();
+		}
+
+		int needed = decodeFrames(batch);
+		while (batch.size() == start) {
+			makeRoom(needed);
+			fill();
+			needed = decodeFrames(batch);
+		}
+		return batch.size() - start;
+	}
+
+	/**
+	 * Decodes all complete packets held in the read buffer.
+	 * @return the length of the incomplete packet left undecoded, or -1 if
+	 * its length is not yet known.
+	 */
+	private int decodeFrames(Vector<MqttWireMessage> batch) throws MqttException {
+		final String methodName = "decodeFrames";
+		int needed = -1;
+		int end = readBuffer.position();
+		readBuffer.limit(end);
+		readBuffer.position(readStart);
+		try {
+			while (readBuffer.hasRemaining()) {
+				int start = readBuffer.position();
+				int frameLength = getFrameLength(readBuffer);
+				if (frameLength < 0 || readBuffer.remaining() < frameLength) {
+					needed = frameLength;
+					break;
+				}
+				byte[] bytes = readBuffer.array();
+				int offset = readBuffer.arrayOffset() + start;
+				boolean publish = ((bytes[offset] >>> 4) & 0x0F) == MqttWireMessage.MESSAGE_TYPE_PUBLISH;
+				if (publish && frameLength < MIN_SHARED_PUBLISH) {
+					bytes = Arrays.copyOfRange(bytes, offset, offset + frameLength);
+					offset = 0;
+				} else if (publish) {
+					// The payload is a view of the read buffer
+					shared = true;
+				}
+				MqttWireMessage message = MqttWireMessage.createWireMessage(bytes, offset, frameLength);
+				readBuffer.position(start + frameLength);
+				// @TRACE 501= received {0}
+				LOGD(TAG, methodName+" 501");
+				batch.addElement(message);
+			}
+		} finally {
+			readStart = readBuffer.position();
+			readBuffer.limit(readBuffer.capacity());
+			readBuffer.position(end);
+		}
+
+		if (readStart == end) {
+			if (shared || readBuffer.capacity() > READ_BUFFER_SIZE) {
+				// Either messages own this buffer, or it was enlarged for a
+				// single oversized packet that we should not hang on to
+				readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+				shared = false;
+			}
+			readBuffer.clear();
+			readStart = 0;
+		}
+		return needed;
+	}
+
+	/**
+	 * Works out the total length of the packet starting at the current
+	 * position of the buffer, without consuming any bytes.
+	 * @return the length of the fixed header plus the remaining length, or
+	 * -1 if the fixed header has not been completely received.
+	 */
+	private static int getFrameLength(ByteBuffer buffer) throws MqttException {
+		int pos = buffer.position();
+		int limit = buffer.limit();
+
+		byte first = buffer.get(pos);
 		byte type = (byte) ((first >>> 4) & 0x0F);
 		if ((type < MqttWireMessage.MESSAGE_TYPE_CONNECT) ||
 			(type > MqttWireMessage.MESSAGE_TYPE_DISCONNECT)) {
 			// Invalid MQTT message type...
 			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
 		}
-		long remLen = MqttWireMessage.readMBI(in).getValue();
-		bais.write(first);
-		// bit silly, we decode it then encode it
-		bais.write(MqttWireMessage.encodeMBI(remLen));
-		byte[] packet = new byte[(int)(bais.size()+remLen)];
-		readFully(packet,bais.size(),packet.length - bais.size());
-		
-		byte[] header = bais.toByteArray();
-		System.arraycopy(header,0,packet,0, header.length);
-		MqttWireMessage message = MqttWireMessage.createWireMessage(packet);
-		// @TRACE 501= received {0} 
-		log.fine(CLASS_NAME, methodName, "501",new Object[] {message});
-		return message;
-	}
 
+		long remLen = 0;
+		int multiplier = 1;
+		int count = 0;
+		byte digit;
+		do {
+			if (count == MAX_MBI_LENGTH) {
+				throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+			}
+			if (pos + 1 + count >= limit) {
+				return -1;
+			}
+			digit = buffer.get(pos + 1 + count);
+			count++;
+			remLen += ((digit & 0x7F) * multiplier);
+			multiplier *= 128;
+		} while ((digit & 0x80) != 0);
 
-    private void readFully(byte b[], int off, int len) throws IOException {
-    	if (len < 0)
-    		throw new IndexOutOfBoundsException();
-    	int n = 0;
-    	while (n < len) {
-    		int count = in.read(b, off + n, len - n);
-    		clientState.notifyReceivedBytes(count);
+		return (int) (1 + count + remLen);
+	}
 
-    		if (count < 0)
-    			throw new EOFException();
-    		n += count;
-    	}
-    }
-}
+	/**
+	 * Makes sure there is space after the undecoded bytes for the rest of a
+	 * packet of the given length, and for a worthwhile read.
+	 */
+	private void makeRoom(int frameLength) {
+		int undecoded = readBuffer.position() - readStart;
+		int required = Math.max(frameLength, undecoded + MIN_READ_SPACE);
+		if (readStart + required <= readBuffer.capacity()) {
+			return;
+		}
+		if (!shared && required <= readBuffer.capacity()) {
+			// Nothing refers to the decoded bytes, so move the undecoded
+			// ones down to the start of the buffer
+			System.arraycopy(readBuffer.array(), readBuffer.arrayOffset() + readStart,
+					readBuffer.array(), readBuffer.arrayOffset(), undecoded);
+		} else {
+			ByteBuffer fresh = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, required));
+			fresh.put(readBuffer.array(), readBuffer.arrayOffset() + readStart, undecoded);
+			readBuffer = fresh;
+			shared = false;
+		}
+		readBuffer.position(undecoded);
+		readStart = 0;
+	}
 
+	/**
+	 * Reads as many bytes as the underlying stream will give in a single
+	 * read into the free space of the read buffer. Blocks until at least one
+	 * byte is available.
+	 */
+	private void fill() throws IOException {
+		int count = in.read(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(),
+				readBuffer.remaining());
+		if (count < 0) {
+			throw new EOFException();
+		}
+		clientState.notifyReceivedBytes(count);
+		readBuffer.position(readBuffer.position() + count);
+	}
+}
@@ -15,50 +15,94 @@
  */
 package in.huhuba.paho.client.mqttv3.internal.wire;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 
 import in.huhuba.paho.client.mqttv3.MqttException;
 import in.huhuba.paho.client.mqttv3.internal.ClientState;
+import in.huhuba.paho.client.mqttv3.logging.LogUtils;
+
+import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
 
 
 /**
  * An <code>MqttOutputStream</code> lets applications write instances of
  * <code>MqttWireMessage</code>. 
+ * <p>
+ * Messages are encoded straight into a send buffer that is reused for the
+ * life of the connection, so writing a message does not allocate. The
+ * buffer is handed to the underlying stream when it fills up or when the
+ * stream is flushed. A payload too large for the buffer is written to the
+ * underlying stream directly after its header.</p>
+ * <p>
+ * When the connection exposes a channel, such a payload is instead written
+ * together with the buffered bytes in a single gathering write, straight
+ * from the message's payload array.</p>
  */
 public class MqttOutputStream extends OutputStream {
-	private static final String CLASS_NAME = MqttOutputStream.class.getName();
-	private static final Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+	private static final String TAG = LogUtils.makeLogTag(MqttOutputStream.class);
+
+	private static final int SEND_BUFFER_SIZE = 8 * 1024;
+	private static final int CHUNK_SIZE = 1024;
 
 	private ClientState clientState = null;
-	private BufferedOutputStream out;
+	private OutputStream out;
+	// Channel onto the same connection as out, or null if there is none
+	private GatheringByteChannel channel;
+	// Encoded bytes not yet written to the underlying stream
+	private ByteBuffer sendBuffer;
+	private ByteBuffer[] gather = new ByteBuffer[2];
 	
 	public MqttOutputStream(ClientState clientState, OutputStream out) {
+		this(clientState, out, null);
+	}
+	
+	/**
+	 * Constructs an <code>MqttOutputStream</code> that writes large payloads
+	 * through the supplied channel. The channel must be in blocking mode and
+	 * write to the same connection as <code>out</code>.
+	 */
+	public MqttOutputStream(ClientState clientState, OutputStream out, GatheringByteChannel channel) {
 		this.clientState = clientState;
-		this.out = new BufferedOutputStream(out);
+		this.out = out;
+		this.channel = channel;
+		this.sendBuffer = ByteBuffer.allocate(SEND_BUFFER_SIZE);
 	}
 	
 	public void close() throws IOException {
-		out.close();
+		try {
+			flushBuffer();
+		} finally {
+			out.close();
+		}
 	}
 	
 	public void flush() throws IOException {
+		flushBuffer();
 		out.flush();
 	}
 	
 	public void write(byte[] b) throws IOException {
-		out.write(b);
-		clientState.notifySentBytes(b.length);
+		write(b, 0, b.length);
 	}
 	
 	public void write(byte[] b, int off, int len) throws IOException {
-		out.write(b, off, len);
+		if (len <= sendBuffer.remaining()) {
+			sendBuffer.put(b, off, len);
+		} else {
+			flushBuffer();
+			out.write(b, off, len);
+		}
 		clientState.notifySentBytes(len);
 	}
 	
 	public void write(int b) throws IOException {
-		out.write(b);
+		if (!sendBuffer.hasRemaining()) {
+			flushBuffer();
+		}
+		sendBuffer.put((byte) b);
 	}
 
 	/**
@@ -66,24 +110,79 @@ public class MqttOutputStream extends OutputStream {
 	 */
 	public void write(MqttWireMessage message) throws IOException, MqttException {
 		final String methodName = "write";
-		byte[] bytes = message.getHeader();
-		byte[] pl = message.getPayload();
-//		out.write(message.getHeader());
-//		out.write(message.getPayload());
-		out.write(bytes,0,bytes.length);
-		clientState.notifySentBytes(bytes.length);
-		
-        int offset = 0;
-        int chunckSize = 1024;
-        while (offset < pl.length) {
-        	int length = Math.min(chunckSize, pl.length - offset);
-        	out.write(pl, offset, length);
-        	offset += chunckSize;
-        	clientState.notifySentBytes(length);
-        }		
+		int length = message.getEncodedLength();
+		if (length > sendBuffer.remaining()) {
+			flushBuffer();
+		}
+		if (length <= sendBuffer.remaining()) {
+			message.encodeTo(sendBuffer);
+			clientState.notifySentBytes(length);
+		} else if (channel != null && message.getEncodedHeaderLength() <= sendBuffer.capacity()) {
+			writeGathering(message);
+		} else {
+			// Too big for the send buffer: write the header and then the
+			// payload straight from the message
+			int headerLength = message.getEncodedHeaderLength();
+			if (headerLength <= sendBuffer.remaining()) {
+				message.encodeHeaderTo(sendBuffer);
+				clientState.notifySentBytes(headerLength);
+			} else {
+				write(message.getHeader());
+			}
+			flushBuffer();
+
+			byte[] pl = message.getPayload();
+			int offset = 0;
+			while (offset < pl.length) {
+				int chunk = Math.min(CHUNK_SIZE, pl.length - offset);
+				out.write(pl, offset, chunk);
+				offset += chunk;
+				clientState.notifySentBytes(chunk);
+			}
+		}
 		
 		// @TRACE 500= sent {0}
-    	log.fine(CLASS_NAME, methodName, "500", new Object[]{message});
+		LOGD(TAG, methodName+" 500");
 	}
-}
 
+	/**
+	 * Writes the message header, preceded by anything already in the send
+	 * buffer, and the payload to the channel without copying the payload.
+	 */
+	private void writeGathering(MqttWireMessage message) throws IOException, MqttException {
+		int headerLength = message.getEncodedHeaderLength();
+		if (headerLength > sendBuffer.remaining()) {
+			flushBuffer();
+		}
+		message.encodeHeaderTo(sendBuffer);
+		clientState.notifySentBytes(headerLength);
+
+		ByteBuffer payload = ByteBuffer.wrap(message.getPayload());
+		sendBuffer.flip();
+		gather[0] = sendBuffer;
+		gather[1] = payload;
+		try {
+			while (payload.hasRemaining()) {
+				int before = payload.position();
+				channel.write(gather);
+				int sent = payload.position() - before;
+				if (sent > 0) {
+					clientState.notifySentBytes(sent);
+				}
+			}
+		} finally {
+			gather[1] = null;
+			sendBuffer.clear();
+		}
+	}
+
+	/**
+	 * Writes the contents of the send buffer to the underlying stream.
+	 */
+	private void flushBuffer() throws IOException {
+		if (sendBuffer.position() > 0) {
+			out.write(sendBuffer.array(), sendBuffer.arrayOffset(), sendBuffer.position());
+			sendBuffer.clear();
+		}
+	}
+}
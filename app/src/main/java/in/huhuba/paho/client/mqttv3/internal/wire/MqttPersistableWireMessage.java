@@ -36,7 +36,12 @@ public abstract class MqttPersistableWireMessage extends MqttWireMessage
 	}
 	
 	public int getHeaderLength() throws MqttPersistenceException {
-		return getHeaderBytes().length;
+		try {
+			return getEncodedHeaderLength();
+		}
+		catch (MqttException ex) {
+			throw new MqttPersistenceException(ex.getCause());
+		}
 	}
 
 	public int getHeaderOffset() throws MqttPersistenceException{
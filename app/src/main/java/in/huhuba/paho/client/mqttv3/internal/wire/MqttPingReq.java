@@ -16,6 +16,7 @@
 package in.huhuba.paho.client.mqttv3.internal.wire;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import in.huhuba.paho.client.mqttv3.MqttException;
 
@@ -45,6 +46,20 @@ public class MqttPingReq extends MqttWireMessage {
 		return new byte[0];
 	}
 	
+	protected int getVariableHeaderLength() {
+		return 0;
+	}
+	
+	protected void encodeVariableHeaderTo(ByteBuffer buffer) {
+	}
+	
+	protected int getEncodedPayloadLength() {
+		return 0;
+	}
+	
+	protected void encodePayloadTo(ByteBuffer buffer) {
+	}
+	
 	protected byte getMessageInfo() {
 		return 0;
 	}
@@ -18,6 +18,7 @@ package in.huhuba.paho.client.mqttv3.internal.wire;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import in.huhuba.paho.client.mqttv3.MqttException;
 
@@ -42,4 +43,19 @@ public class MqttPubAck extends MqttAck {
 	protected byte[] getVariableHeader() throws MqttException {
 		return encodeMessageId();
 	}
+	
+	protected int getVariableHeaderLength() {
+		return 2;
+	}
+	
+	protected void encodeVariableHeaderTo(ByteBuffer buffer) {
+		encodeMessageId(buffer);
+	}
+	
+	protected int getEncodedPayloadLength() {
+		return 0;
+	}
+	
+	protected void encodePayloadTo(ByteBuffer buffer) {
+	}
 }
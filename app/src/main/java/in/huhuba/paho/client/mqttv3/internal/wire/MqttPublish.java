@@ -15,11 +15,11 @@
  */
 package in.huhuba.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import in.huhuba.paho.client.mqttv3.MqttException;
 import in.huhuba.paho.client.mqttv3.MqttMessage;
@@ -41,40 +41,67 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	}
 	
 	/**
-	 * Constructs a new MqttPublish object.
+	 * Constructs a new MqttPublish object. The payload is copied, so the
+	 * caller may reuse <code>data</code> afterwards.
 	 * @param info the message info byte
 	 * @param data the variable header and payload bytes
 	 */
 	public MqttPublish(byte info, byte[] data) throws MqttException, IOException {
+		this(info, data.clone(), 0, data.length);
+	}
+
+	/**
+	 * Constructs a new MqttPublish object from a region of a larger array.
+	 * The payload is not copied: the message refers to the bytes within
+	 * <code>data</code>, which must therefore not be reused afterwards.
+	 * @param info the message info byte
+	 * @param data the array holding the variable header and payload bytes
+	 * @param offset the start of the variable header within <code>data</code>
+	 * @param length the number of variable header and payload bytes
+	 */
+	public MqttPublish(byte info, byte[] data, int offset, int length) throws MqttException, IOException {
 		super(MESSAGE_TYPE_PUBLISH);
-		message = new MqttReceivedMessage();
+		MqttReceivedMessage received = new MqttReceivedMessage();
+		message = received;
 		message.setQos((info >> 1) & 0x03);
 		if ((info & 0x01) == 0x01) {
 			message.setRetained(true);
 		}
 		if ((info & 0x08) == 0x08) {
-			((MqttReceivedMessage) message).setDuplicate(true);
+			received.setDuplicate(true);
 		}
 		
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		CountingInputStream counter = new CountingInputStream(bais);
-		DataInputStream dis = new DataInputStream(counter);
-		topicName = decodeUTF8(dis);
+		int pos = offset;
+		int end = offset + length;
+		if (end - pos < 2) {
+			throw new EOFException();
+		}
+		int topicLength = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+		pos += 2;
+		if (end - pos < topicLength) {
+			throw new EOFException();
+		}
+		topicName = new String(data, pos, topicLength, STRING_ENCODING);
+		pos += topicLength;
 		if (message.getQos() > 0) {
-			msgId = dis.readUnsignedShort();
+			if (end - pos < 2) {
+				throw new EOFException();
+			}
+			msgId = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+			pos += 2;
 		}
-		byte[] payload = new byte[data.length-counter.getCounter()];
-		dis.readFully(payload);
-		dis.close();
-		message.setPayload(payload);
+		received.setPayload(ByteBuffer.wrap(data, pos, end - pos));
 	}
 
 	public String toString() {
 
 		// Convert the first few bytes of the payload into a hex string
 		StringBuffer hex = new StringBuffer();
-		byte[] payload = message.getPayload();
-		int limit = Math.min(payload.length, 20);
+		ByteBuffer view = message.getPayloadBuffer();
+		int length = view.remaining();
+		int limit = Math.min(length, 20);
+		byte[] payload = new byte[limit];
+		view.get(payload);
 		for (int i = 0; i < limit; i++) {
 			byte b = payload[i];
 			String ch = Integer.toHexString(b);
@@ -105,7 +132,7 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		sb.append(" topic:\"").append(topicName).append("\"");
 		sb.append(" payload:[hex:").append(hex);
 		sb.append(" utf8:\"").append(string).append("\"");
-		sb.append(" length:").append(payload.length).append("]");
+		sb.append(" length:").append(length).append("]");
 
 		return sb.toString();
 	}
@@ -172,6 +199,21 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		}
 	}
 	
+	protected int getVariableHeaderLength() {
+		int length = getUTF8Length(topicName);
+		if (message.getQos() > 0) {
+			length += 2;
+		}
+		return length;
+	}
+	
+	protected void encodeVariableHeaderTo(ByteBuffer buffer) {
+		encodeUTF8(buffer, topicName);
+		if (message.getQos() > 0) {
+			encodeMessageId(buffer);
+		}
+	}
+	
 	public boolean isMessageIdRequired() {
 		// all publishes require a message ID as it's used as the key to the token store
 		return true;
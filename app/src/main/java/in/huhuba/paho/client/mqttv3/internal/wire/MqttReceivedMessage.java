@@ -15,6 +15,8 @@
  */
 package in.huhuba.paho.client.mqttv3.internal.wire;
 
+import java.nio.ByteBuffer;
+
 import in.huhuba.paho.client.mqttv3.MqttMessage;
 
 public class MqttReceivedMessage extends MqttMessage {
@@ -34,4 +36,8 @@ public class MqttReceivedMessage extends MqttMessage {
 	public void setDuplicate(boolean value) {
 		super.setDuplicate(value);
 	}
+
+	public void setPayload(ByteBuffer payload) {
+		super.setPayload(payload);
+	}
 }
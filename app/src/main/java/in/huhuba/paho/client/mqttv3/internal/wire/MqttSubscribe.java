@@ -20,6 +20,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import in.huhuba.paho.client.mqttv3.MqttException;
 import in.huhuba.paho.client.mqttv3.MqttMessage;
@@ -134,6 +135,29 @@ public class MqttSubscribe extends MqttWireMessage {
 		}
 	}
 	
+	protected int getVariableHeaderLength() {
+		return 2;
+	}
+	
+	protected void encodeVariableHeaderTo(ByteBuffer buffer) {
+		encodeMessageId(buffer);
+	}
+	
+	protected int getEncodedPayloadLength() {
+		int length = 0;
+		for (int i=0; i<names.length; i++) {
+			length += getUTF8Length(names[i]) + 1;
+		}
+		return length;
+	}
+	
+	protected void encodePayloadTo(ByteBuffer buffer) {
+		for (int i=0; i<names.length; i++) {
+			encodeUTF8(buffer, names[i]);
+			buffer.put((byte) qos[i]);
+		}
+	}
+	
 	public boolean isRetryable() {
 		return true;
 	}
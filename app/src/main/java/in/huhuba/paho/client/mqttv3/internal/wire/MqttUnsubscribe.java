@@ -20,6 +20,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import in.huhuba.paho.client.mqttv3.MqttException;
 
@@ -107,6 +108,28 @@ public class MqttUnsubscribe extends MqttWireMessage {
 		return baos.toByteArray();
 	}
 
+	protected int getVariableHeaderLength() {
+		return 2;
+	}
+	
+	protected void encodeVariableHeaderTo(ByteBuffer buffer) {
+		encodeMessageId(buffer);
+	}
+	
+	protected int getEncodedPayloadLength() {
+		int length = 0;
+		for (int i=0; i<names.length; i++) {
+			length += getUTF8Length(names[i]);
+		}
+		return length;
+	}
+	
+	protected void encodePayloadTo(ByteBuffer buffer) {
+		for (int i=0; i<names.length; i++) {
+			encodeUTF8(buffer, names[i]);
+		}
+	}
+	
 	public boolean isRetryable() {
 		return true;
 	}
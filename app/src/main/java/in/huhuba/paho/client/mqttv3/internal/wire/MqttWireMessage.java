@@ -19,9 +19,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import in.huhuba.paho.client.mqttv3.MqttException;
 import in.huhuba.paho.client.mqttv3.MqttPersistable;
@@ -113,21 +115,78 @@ public abstract class MqttWireMessage {
 	}
 	
 	public byte[] getHeader() throws MqttException {
-	    try {
-	        int first = ((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f);
-	        byte[] varHeader = getVariableHeader();
-	        int remLen = varHeader.length + getPayload().length;
-
-	        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-	        DataOutputStream dos = new DataOutputStream(baos);
-	        dos.writeByte(first);
-	        dos.write(encodeMBI(remLen));
-	        dos.write(varHeader);
-	        dos.flush();
-	        return baos.toByteArray();
-	    } catch(IOException ioe) {
-	        throw new MqttException(ioe);
-	    }
+		byte[] header = new byte[getEncodedHeaderLength()];
+		encodeHeaderTo(ByteBuffer.wrap(header));
+		return header;
+	}
+	
+	/**
+	 * Returns the number of bytes {@link #encodeTo(ByteBuffer)} will write.
+	 */
+	public int getEncodedLength() throws MqttException {
+		return getEncodedHeaderLength() + getEncodedPayloadLength();
+	}
+	
+	/**
+	 * Returns the length of the fixed and variable headers.
+	 */
+	public int getEncodedHeaderLength() throws MqttException {
+		int varHeaderLength = getVariableHeaderLength();
+		int remLen = varHeaderLength + getEncodedPayloadLength();
+		return 1 + getMBILength(remLen) + varHeaderLength;
+	}
+	
+	/**
+	 * Serializes the whole packet into the supplied buffer, starting at its
+	 * current position, without allocating any intermediate arrays.
+	 * @throws java.nio.BufferOverflowException if the buffer has fewer than
+	 * {@link #getEncodedLength()} bytes remaining.
+	 */
+	public void encodeTo(ByteBuffer buffer) throws MqttException {
+		encodeHeaderTo(buffer);
+		encodePayloadTo(buffer);
+	}
+	
+	/**
+	 * Serializes the fixed and variable headers into the supplied buffer.
+	 */
+	public void encodeHeaderTo(ByteBuffer buffer) throws MqttException {
+		int first = ((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f);
+		int remLen = getVariableHeaderLength() + getEncodedPayloadLength();
+		buffer.put((byte) first);
+		encodeMBI(remLen, buffer);
+		encodeVariableHeaderTo(buffer);
+	}
+	
+	/**
+	 * Returns the length of the variable header. Sub-classes that override
+	 * {@link #encodeVariableHeaderTo(ByteBuffer)} should override this too.
+	 */
+	protected int getVariableHeaderLength() throws MqttException {
+		return getVariableHeader().length;
+	}
+	
+	/**
+	 * Writes the variable header into the supplied buffer. By default this
+	 * copies the array built by {@link #getVariableHeader()}; message types
+	 * that are sent often override it to write their fields directly.
+	 */
+	protected void encodeVariableHeaderTo(ByteBuffer buffer) throws MqttException {
+		buffer.put(getVariableHeader());
+	}
+	
+	/**
+	 * Returns the length of the payload.
+	 */
+	protected int getEncodedPayloadLength() throws MqttException {
+		return getPayload().length;
+	}
+	
+	/**
+	 * Writes the payload into the supplied buffer.
+	 */
+	protected void encodePayloadTo(ByteBuffer buffer) throws MqttException {
+		buffer.put(getPayload());
 	}
 	
 	protected abstract byte[] getVariableHeader() throws MqttException;
@@ -145,8 +204,10 @@ public abstract class MqttWireMessage {
 		// The persistable interface allows a message to be restored entirely in the header array
 		// Need to treat these two arrays as a single array of bytes and use the decoding
 		// logic to identify the true header/payload split
-		if (payload == null) {
-			payload = new byte[0];
+		if (payload == null || data.getPayloadLength() == 0) {
+			// All in the header array, which can be decoded in place
+			return createWireMessage(ByteBuffer.wrap(data.getHeaderBytes(),
+					data.getHeaderOffset(), data.getHeaderLength()));
 		}
 		MultiByteArrayInputStream mbais = new MultiByteArrayInputStream(
 				data.getHeaderBytes(),
@@ -158,11 +219,69 @@ public abstract class MqttWireMessage {
 		return createWireMessage(mbais);
 	}
 	
+	/**
+	 * Decodes a complete packet held in a buffer, from its position to its
+	 * limit, such as one returned by a persistence. A PUBLISH in a heap
+	 * buffer is decoded in place, one in a direct buffer is copied out once.
+	 * @throws MqttException with an {@link EOFException} as its cause if
+	 * the packet is incomplete
+	 */
+	public static MqttWireMessage createWireMessage(ByteBuffer buffer) throws MqttException {
+		// Check the packet is all there before decoding in place
+		int pos = buffer.position();
+		long remLen = 0;
+		int multiplier = 1;
+		byte digit;
+		do {
+			if (++pos >= buffer.limit()) {
+				throw new MqttException(new EOFException());
+			}
+			digit = buffer.get(pos);
+			remLen += ((digit & 0x7F) * multiplier);
+			multiplier *= 128;
+		} while ((digit & 0x80) != 0);
+		if ((pos + 1 - buffer.position()) + remLen > buffer.remaining()) {
+			throw new MqttException(new EOFException());
+		}
+		int length = (int) ((pos + 1 - buffer.position()) + remLen);
+
+		if (buffer.hasArray()) {
+			return createWireMessage(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+		}
+		byte[] bytes = new byte[length];
+		buffer.duplicate().get(bytes);
+		return createWireMessage(bytes, 0, length);
+	}
+	
 	public static MqttWireMessage createWireMessage(byte[] bytes) throws MqttException {
 		ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
 		return createWireMessage(bais);
 	}
 
+	/**
+	 * Decodes a complete packet held in a region of a larger array, such as a
+	 * network read buffer holding several packets.
+	 * A PUBLISH is decoded in place: its payload refers to the bytes within
+	 * <code>bytes</code> rather than a copy of them.
+	 */
+	public static MqttWireMessage createWireMessage(byte[] bytes, int offset, int length) throws MqttException {
+		byte type = (byte) ((bytes[offset] >> 4) & 0x0f);
+		if (type != MqttWireMessage.MESSAGE_TYPE_PUBLISH) {
+			ByteArrayInputStream bais = new ByteArrayInputStream(bytes, offset, length);
+			return createWireMessage(bais);
+		}
+		try {
+			byte info = (byte) (bytes[offset] & 0x0f);
+			// Skip over the remaining length, the caller has already framed the packet
+			int pos = offset + 1;
+			while ((bytes[pos++] & 0x80) != 0) {
+			}
+			return new MqttPublish(info, bytes, pos, offset + length - pos);
+		} catch(IOException io) {
+			throw new MqttException(io);
+		}
+	}
+
 	private static MqttWireMessage createWireMessage(InputStream inputStream) throws MqttException {
 		try {
 			CountingInputStream counter = new CountingInputStream(inputStream);
@@ -186,7 +305,8 @@ public abstract class MqttWireMessage {
 				result = new MqttConnect(info, data);
 			}
 			else if (type == MqttWireMessage.MESSAGE_TYPE_PUBLISH) {
-				result = new MqttPublish(info, data);
+				// The array was read for this packet alone, so need not be copied
+				result = new MqttPublish(info, data, 0, data.length);
 			}
 			else if (type == MqttWireMessage.MESSAGE_TYPE_PUBACK) {
 				result = new MqttPubAck(info, data);
@@ -234,9 +354,17 @@ public abstract class MqttWireMessage {
 	}
 		
 	protected static byte[] encodeMBI( long number) {
+		byte[] bytes = new byte[getMBILength(number)];
+		encodeMBI(number, ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+	
+	/**
+	 * Encodes an MQTT Multi-Byte Integer into the supplied buffer.
+	 */
+	protected static void encodeMBI(long number, ByteBuffer buffer) {
 		int numBytes = 0;
 		long no = number;
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		// Encode the remaining length fields in the four bytes
 		do {
 			byte digit = (byte)(no % 128);
@@ -244,11 +372,23 @@ public abstract class MqttWireMessage {
 			if (no > 0) {
 				digit |= 0x80;
 			}
-			bos.write(digit);
+			buffer.put(digit);
 			numBytes++;
 		} while ( (no > 0) && (numBytes<4) );
-		
-		return bos.toByteArray();
+	}
+	
+	/**
+	 * Returns the number of bytes needed to encode the given value as an
+	 * MQTT Multi-Byte Integer.
+	 */
+	protected static int getMBILength(long number) {
+		int numBytes = 1;
+		long no = number / 128;
+		while ((no > 0) && (numBytes < 4)) {
+			no = no / 128;
+			numBytes++;
+		}
+		return numBytes;
 	}
 	
 	/**
@@ -283,6 +423,13 @@ public abstract class MqttWireMessage {
 		}
 	}
 	
+	/**
+	 * Writes the message ID into the supplied buffer as two bytes.
+	 */
+	protected void encodeMessageId(ByteBuffer buffer) {
+		buffer.putShort((short) msgId);
+	}
+	
 	public boolean isRetryable() {
 		return false;
 	}
@@ -321,6 +468,70 @@ public abstract class MqttWireMessage {
 		}
 	}
 	
+	/**
+	 * Returns the number of bytes {@link #encodeUTF8(ByteBuffer, String)}
+	 * writes for the given string, including the two byte length prefix.
+	 */
+	protected static int getUTF8Length(String stringToEncode) {
+		int length = 0;
+		int count = stringToEncode.length();
+		for (int i = 0; i < count; i++) {
+			char c = stringToEncode.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < count
+					&& Character.isLowSurrogate(stringToEncode.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				// Unpaired surrogates are replaced by '?', as String.getBytes does
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return 2 + length;
+	}
+
+	/**
+	 * Encodes a String into UTF-8 directly into the supplied buffer, preceded by
+	 * the length of the encoded string in two bytes. Produces the same bytes as
+	 * {@link #encodeUTF8(DataOutputStream, String)} without allocating.
+	 * 
+	 * @param buffer The buffer to write the encoded UTF-8 String to.
+	 * @param stringToEncode The String to be encoded
+	 */
+	protected static void encodeUTF8(ByteBuffer buffer, String stringToEncode) {
+		int encodedLength = getUTF8Length(stringToEncode) - 2;
+		buffer.put((byte) ((encodedLength >>> 8) & 0xFF));
+		buffer.put((byte) ((encodedLength >>> 0) & 0xFF));
+		int count = stringToEncode.length();
+		for (int i = 0; i < count; i++) {
+			char c = stringToEncode.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < count
+					&& Character.isLowSurrogate(stringToEncode.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, stringToEncode.charAt(++i));
+				buffer.put((byte) (0xF0 | (codePoint >> 18)));
+				buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				buffer.put((byte) '?');
+			} else {
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+	
 	/**
 	 * Decodes a UTF-8 string from the DataInputStream provided. @link(DataInoutStream#readUTF()) should be no longer used, because  @link(DataInoutStream#readUTF()) 
 	 * does not decode UTF-16 surrogate characters correctly.
@@ -0,0 +1,994 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.persist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import in.huhuba.paho.client.mqttv3.MqttClientPersistence;
+import in.huhuba.paho.client.mqttv3.MqttCommitListener;
+import in.huhuba.paho.client.mqttv3.MqttGroupCommitPersistence;
+import in.huhuba.paho.client.mqttv3.MqttPersistable;
+import in.huhuba.paho.client.mqttv3.MqttPersistenceException;
+import in.huhuba.paho.client.mqttv3.internal.FileLock;
+import in.huhuba.paho.client.mqttv3.internal.MqttPersistentData;
+import in.huhuba.paho.client.mqttv3.logging.LogUtils;
+
+import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
+import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGE;
+
+/**
+ * An implementation of the {@link MqttClientPersistence} interface that
+ * appends all data to a log kept in a few large files, rather than writing
+ * a file per message as {@link MqttDefaultFilePersistence} does.
+ * <p>
+ * Storing a message appends one record and syncs it to disk; removing one
+ * appends a small tombstone record. Neither creates, renames or deletes a
+ * file. The location of the latest record for each key is kept in memory,
+ * so reads need a single file read and listing the keys none.</p>
+ * <p>
+ * The log is split into segment files of a fixed size, allocated in full
+ * when created. Once most of the records in a segment have been removed or
+ * overwritten, a background thread copies the rest to the end of the log
+ * and deletes the segment. Every record carries a CRC, so when the
+ * persistence is opened after a crash the log is replayed up to the last
+ * complete record and anything after it is discarded.</p>
+ * <p>
+ * The directory layout follows {@link MqttDefaultFilePersistence}: the
+ * segments are kept in a sub-directory of the given directory named after
+ * the client ID and connection, and any message files left there by
+ * {@link MqttDefaultFilePersistence} are moved into the log when it is
+ * opened.</p>
+ * <p>
+ * How soon records reach the disk is set with {@link #setDurability(int)}:
+ * each one is synced before <code>put</code> returns, records are synced
+ * in groups, or they are left for the operating system to write. With
+ * group commit the client sends each message while its record is being
+ * synced, and reports it as delivered once the record has been.</p>
+ */
+public class MqttLogFilePersistence implements MqttGroupCommitPersistence {
+	private static final String TAG = LogUtils.makeLogTag(MqttLogFilePersistence.class);
+
+	/**
+	 * The default size of each segment file
+	 */
+	public static final int SEGMENT_SIZE_DEFAULT = 1024 * 1024;
+	/**
+	 * Sync every record to disk before <code>put</code> returns
+	 */
+	public static final int DURABILITY_SYNC = 0;
+	/**
+	 * Sync records to disk in groups
+	 * @see #setGroupCommit(int, int)
+	 */
+	public static final int DURABILITY_GROUP_COMMIT = 1;
+	/**
+	 * Leave the operating system to write records to disk. Records survive
+	 * the process being killed but not the device losing power.
+	 */
+	public static final int DURABILITY_OS_BUFFERED = 2;
+	/**
+	 * The default greatest number of records in a group commit
+	 */
+	public static final int GROUP_COMMIT_SIZE_DEFAULT = 64;
+	/**
+	 * The default longest time in milliseconds a record waits for a group
+	 * commit
+	 */
+	public static final int GROUP_COMMIT_DELAY_DEFAULT = 5;
+
+	private static final String SEGMENT_FILE_EXTENSION = ".log";
+	private static final String MESSAGE_FILE_EXTENSION = ".msg";
+	private static final String LOCK_FILENAME = ".lck";
+
+	// Each record is the CRC and length, followed by that many bytes of
+	// type, key length, key and data. The CRC covers the length and all
+	// that follows it. Unwritten space is zero, which ends the log.
+	private static final int RECORD_HEADER_LENGTH = 8;
+	private static final int RECORD_KEY_OFFSET = RECORD_HEADER_LENGTH + 3;
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+
+	private static final FilenameFilter SEGMENT_FILTER = new FilenameFilter() {
+		public boolean accept(File dir, String name) { return name.endsWith(SEGMENT_FILE_EXTENSION); }
+		};
+	private static final FilenameFilter MESSAGE_FILTER = new FilenameFilter() {
+		public boolean accept(File dir, String name) { return name.endsWith(MESSAGE_FILE_EXTENSION); }
+		};
+
+	private File dataDir;
+	private int segmentSize;
+	private int durability = DURABILITY_SYNC;
+	private int groupCommitSize = GROUP_COMMIT_SIZE_DEFAULT;
+	private int groupCommitDelay = GROUP_COMMIT_DELAY_DEFAULT;
+	private File clientDir = null;
+	private FileLock fileLock = null;
+
+	// The segments in the order they were written, the last one the one
+	// being appended to
+	private Vector<Segment> segments = new Vector<Segment>();
+	private Segment active = null;
+	private long nextSequence = 1;
+	// The latest record of every key that has not been removed
+	private Hashtable<String, Entry> index = new Hashtable<String, Entry>();
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+	private CRC32 crc = new CRC32();
+
+	// Sealed segments waiting to be compacted, and the thread that does it
+	private Vector<Segment> compactionQueue = new Vector<Segment>();
+	private Thread compactor = null;
+
+	// Records put are numbered from 1, and committed in that order
+	private long putSequence = 0;
+	volatile private long committedSequence = 0;
+	// When the oldest record not yet committed was put, or 0
+	private long uncommittedSince = 0;
+	// Threads blocked in put(), which are not kept waiting for a group
+	private int commitWaiters = 0;
+	private IOException commitFailure = null;
+	private MqttCommitListener commitListener = null;
+	private Thread committer = null;
+
+	public MqttLogFilePersistence() {
+		this(System.getProperty("user.dir"));
+	}
+
+	/**
+	 * Create a log based persistent data store within the specified directory.
+	 * @param directory the directory to use.
+	 */
+	public MqttLogFilePersistence(String directory) {
+		this(directory, SEGMENT_SIZE_DEFAULT);
+	}
+
+	/**
+	 * Create a log based persistent data store within the specified directory.
+	 * @param directory the directory to use.
+	 * @param segmentSize the size of each segment file in bytes. Larger
+	 * segments are compacted less often, but take longer to compact.
+	 */
+	public MqttLogFilePersistence(String directory, int segmentSize) {
+		if (segmentSize < 1024) {
+			throw new IllegalArgumentException();
+		}
+		this.dataDir = new File(directory);
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Sets when records are synced to disk. This must be called before the
+	 * persistence is opened.
+	 * <p>The default is {@link #DURABILITY_SYNC}.</p>
+	 * @param durability one of {@link #DURABILITY_SYNC},
+	 * {@link #DURABILITY_GROUP_COMMIT} or {@link #DURABILITY_OS_BUFFERED}
+	 */
+	public void setDurability(int durability) throws IllegalArgumentException {
+		if (durability != DURABILITY_SYNC &&
+			durability != DURABILITY_GROUP_COMMIT &&
+			durability != DURABILITY_OS_BUFFERED) {
+			throw new IllegalArgumentException();
+		}
+		this.durability = durability;
+	}
+
+	public int getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets how records are grouped with {@link #DURABILITY_GROUP_COMMIT}.
+	 * Records are synced once this many are waiting, or once the oldest of
+	 * them has waited this long, whichever comes first.
+	 * <p>The defaults are 64 records and 5 milliseconds.</p>
+	 * @param size the greatest number of records in a group, must be > 0
+	 * @param delay the longest time in milliseconds a record waits, must
+	 * be >= 0
+	 */
+	public void setGroupCommit(int size, int delay) throws IllegalArgumentException {
+		if (size <= 0 || delay < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.groupCommitSize = size;
+		this.groupCommitDelay = delay;
+	}
+
+	public void open(String clientId, String theConnection) throws MqttPersistenceException {
+		if (dataDir.exists() && !dataDir.isDirectory()) {
+			throw new MqttPersistenceException();
+		} else if (!dataDir.exists() ) {
+			if (!dataDir.mkdirs()) {
+				throw new MqttPersistenceException();
+			}
+		}
+		if (!dataDir.canWrite()) {
+			throw new MqttPersistenceException();
+		}
+
+		StringBuffer keyBuffer = new StringBuffer();
+		for (int i=0;i<clientId.length();i++) {
+			char c = clientId.charAt(i);
+			if (isSafeChar(c)) {
+				keyBuffer.append(c);
+			}
+		}
+		keyBuffer.append("-");
+		for (int i=0;i<theConnection.length();i++) {
+			char c = theConnection.charAt(i);
+			if (isSafeChar(c)) {
+				keyBuffer.append(c);
+			}
+		}
+
+		synchronized (this) {
+			if (clientDir == null) {
+				clientDir = new File(dataDir, keyBuffer.toString());
+				if (!clientDir.exists()) {
+					clientDir.mkdir();
+				}
+			}
+
+			try {
+				fileLock = new FileLock(clientDir, LOCK_FILENAME);
+			} catch (Exception e) {
+				throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+			}
+
+			try {
+				recover();
+				importMessageFiles();
+			} catch (IOException ex) {
+				closeSegments();
+				throw new MqttPersistenceException(ex);
+			}
+
+			compactor = new Thread(new Runnable() {
+				public void run() {
+					compactSegments();
+				}
+			}, "MQTT Log Compactor: " + clientId);
+			compactor.setDaemon(true);
+			compactor.start();
+
+			commitFailure = null;
+			if (durability == DURABILITY_GROUP_COMMIT) {
+				committer = new Thread(new Runnable() {
+					public void run() {
+						commitGroups();
+					}
+				}, "MQTT Log Committer: " + clientId);
+				committer.setDaemon(true);
+				committer.start();
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the persistence has been opened.
+	 * @throws MqttPersistenceException if the persistence has not been opened.
+	 */
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (clientDir == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	public void close() throws MqttPersistenceException {
+		Thread[] threads;
+		synchronized (this) {
+			threads = new Thread[] {compactor, committer};
+			compactor = null;
+			committer = null;
+			compactionQueue.removeAllElements();
+			notifyAll();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			if (threads[i] != null && threads[i] != Thread.currentThread()) {
+				try {
+					threads[i].join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		MqttCommitListener listener;
+		long sequence;
+		synchronized (this) {
+			if (clientDir == null) {
+				return;
+			}
+			boolean empty = index.isEmpty();
+			// Closing the segments syncs whatever is left, though after a
+			// failed commit that cannot be relied on
+			closeSegments();
+			sequence = committed(putSequence);
+			listener = (commitFailure == null) ? commitListener : null;
+			index.clear();
+			if (fileLock != null) {
+				fileLock.release();
+				fileLock = null;
+			}
+			if (empty) {
+				deleteSegmentFiles();
+				clientDir.delete();
+			}
+			clientDir = null;
+		}
+		if (listener != null) {
+			listener.committed(sequence);
+		}
+	}
+
+	/**
+	 * Appends the specified persistent data to the log, and returns once it
+	 * has been committed as the durability setting requires.
+	 * @param message
+	 * @throws MqttPersistenceException
+	 */
+	public void put(String key, MqttPersistable message) throws MqttPersistenceException {
+		long sequence = putUncommitted(key, message);
+		synchronized (this) {
+			if (committedSequence >= sequence) {
+				return;
+			}
+			commitWaiters++;
+			notifyAll();
+			try {
+				while (committedSequence < sequence) {
+					if (commitFailure != null) {
+						throw new MqttPersistenceException(commitFailure);
+					}
+					checkIsOpen();
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new MqttPersistenceException(e);
+					}
+				}
+			} finally {
+				commitWaiters--;
+			}
+		}
+	}
+
+	public long putUncommitted(String key, MqttPersistable message) throws MqttPersistenceException {
+		long sequence;
+		MqttCommitListener listener = null;
+		synchronized (this) {
+			checkIsOpen();
+			if (commitFailure != null) {
+				// It could never be committed
+				throw new MqttPersistenceException(commitFailure);
+			}
+			try {
+				byte[] payload = message.getPayloadBytes();
+				int payloadLength = (payload == null) ? 0 : message.getPayloadLength();
+				ByteBuffer record = encodeRecord(RECORD_PUT, key, message.getHeaderLength() + payloadLength);
+				record.put(message.getHeaderBytes(), message.getHeaderOffset(), message.getHeaderLength());
+				if (payloadLength > 0) {
+					record.put(payload, message.getPayloadOffset(), payloadLength);
+				}
+				Entry entry = append(record);
+				if (durability == DURABILITY_SYNC) {
+					active.channel.force(false);
+				}
+				release(index.put(key, entry));
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+
+			sequence = ++putSequence;
+			if (durability == DURABILITY_GROUP_COMMIT) {
+				if (uncommittedSince == 0) {
+					// Start timing the group
+					uncommittedSince = System.currentTimeMillis();
+					notifyAll();
+				} else if (sequence - committedSequence >= groupCommitSize) {
+					notifyAll();
+				}
+			} else {
+				committed(sequence);
+				listener = commitListener;
+			}
+		}
+		if (listener != null) {
+			listener.committed(sequence);
+		}
+		return sequence;
+	}
+
+	public long getCommittedSequence() {
+		return committedSequence;
+	}
+
+	public synchronized void setCommitListener(MqttCommitListener listener) {
+		this.commitListener = listener;
+	}
+
+	public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		Entry entry = index.get(key);
+		if (entry == null) {
+			throw new MqttPersistenceException();
+		}
+		try {
+			int dataOffset = RECORD_KEY_OFFSET + entry.keyLength;
+			byte[] data = new byte[entry.length - dataOffset];
+			read(entry.segment, entry.offset + dataOffset, data);
+			return new MqttPersistentData(key, data, 0, data.length, null, 0, 0);
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+	}
+
+	/**
+	 * Appends a tombstone for the data with the specified key. The
+	 * tombstone is not synced to disk, so after a crash the data may
+	 * reappear, as a message file could after a crash of
+	 * {@link MqttDefaultFilePersistence}.
+	 */
+	public synchronized void remove(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		Entry entry = index.remove(key);
+		if (entry != null) {
+			try {
+				append(encodeRecord(RECORD_REMOVE, key, 0));
+			} catch (IOException ex) {
+				index.put(key, entry);
+				throw new MqttPersistenceException(ex);
+			}
+			release(entry);
+		}
+	}
+
+	public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+		checkIsOpen();
+		Vector<String> result = new Vector<String>(index.size());
+		Enumeration<String> keys = index.keys();
+		while (keys.hasMoreElements()) {
+			result.addElement(keys.nextElement());
+		}
+		return result.elements();
+	}
+
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		return index.containsKey(key);
+	}
+
+	public synchronized void clear() throws MqttPersistenceException {
+		checkIsOpen();
+		closeSegments();
+		deleteSegmentFiles();
+		index.clear();
+		compactionQueue.removeAllElements();
+		// Nothing is left to commit
+		committed(putSequence);
+		try {
+			startSegment(0);
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+	}
+
+	/**
+	 * Builds a record in the write buffer, ready for its data to be added.
+	 * @return the write buffer, positioned after the key
+	 */
+	private ByteBuffer encodeRecord(byte type, String key, int dataLength) throws IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		int recordLength = RECORD_KEY_OFFSET + keyBytes.length + dataLength;
+		if (writeBuffer.capacity() < recordLength) {
+			writeBuffer = ByteBuffer.allocate(Math.max(recordLength, writeBuffer.capacity() * 2));
+		}
+		writeBuffer.clear();
+		writeBuffer.limit(recordLength);
+		writeBuffer.putInt(0);
+		writeBuffer.putInt(recordLength - RECORD_HEADER_LENGTH);
+		writeBuffer.put(type);
+		writeBuffer.putShort((short) keyBytes.length);
+		writeBuffer.put(keyBytes);
+		return writeBuffer;
+	}
+
+	/**
+	 * Fills in the CRC of the full record in the buffer and writes it at
+	 * the end of the log.
+	 * @return where the record was written
+	 */
+	private Entry append(ByteBuffer record) throws IOException {
+		byte[] bytes = record.array();
+		int length = record.limit();
+		crc.reset();
+		crc.update(bytes, 4, length - 4);
+		record.putInt(0, (int) crc.getValue());
+		record.position(0);
+
+		if (active.end + length > active.capacity) {
+			startSegment(length);
+		}
+		Segment segment = active;
+		int offset = segment.end;
+		long position = offset;
+		while (record.hasRemaining()) {
+			position += segment.channel.write(record, position);
+		}
+		segment.end += length;
+
+		Entry entry = new Entry();
+		entry.segment = segment;
+		entry.offset = offset;
+		entry.length = length;
+		entry.keyLength = record.getShort(RECORD_HEADER_LENGTH + 1);
+		if (bytes[RECORD_HEADER_LENGTH] == RECORD_PUT) {
+			segment.liveBytes += length;
+		}
+		return entry;
+	}
+
+	/**
+	 * Called when a record is no longer the latest for its key.
+	 */
+	private void release(Entry entry) {
+		if (entry != null) {
+			entry.segment.liveBytes -= entry.length;
+			checkCompaction(entry.segment);
+		}
+	}
+
+	/**
+	 * Queues a sealed segment for compaction once fewer than half of its
+	 * bytes belong to records still in use.
+	 */
+	private void checkCompaction(Segment segment) {
+		if (segment != active && !segment.queued && segment.liveBytes * 2 < segment.end) {
+			segment.queued = true;
+			compactionQueue.addElement(segment);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Seals the active segment and starts a new one.
+	 * @param recordLength the length of the record that is to be written
+	 * next, which may need a segment larger than usual
+	 */
+	private void startSegment(int recordLength) throws IOException {
+		Segment previous = active;
+		if (previous != null) {
+			previous.channel.force(false);
+		}
+		long sequence = nextSequence++;
+		File file = new File(clientDir, Long.toString(sequence) + SEGMENT_FILE_EXTENSION);
+		Segment segment = new Segment(file);
+		segment.capacity = Math.max(segmentSize, recordLength);
+		segment.file.setLength(segment.capacity);
+		segments.addElement(segment);
+		active = segment;
+		if (previous != null) {
+			checkCompaction(previous);
+		}
+	}
+
+	/**
+	 * Rebuilds the index by replaying every segment, oldest first. A record
+	 * that is incomplete or fails its CRC marks the end of a segment, and
+	 * the space from there on is zeroed so that it is reused cleanly.
+	 */
+	private void recover() throws IOException {
+		File[] files = clientDir.listFiles(SEGMENT_FILTER);
+		if (files == null) {
+			throw new IOException(clientDir.getPath());
+		}
+		long[] sequences = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			try {
+				sequences[i] = Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_EXTENSION.length()));
+			} catch (NumberFormatException e) {
+				sequences[i] = -1;
+			}
+		}
+		java.util.Arrays.sort(sequences);
+
+		for (int i = 0; i < sequences.length; i++) {
+			if (sequences[i] < 0) {
+				continue;
+			}
+			File file = new File(clientDir, Long.toString(sequences[i]) + SEGMENT_FILE_EXTENSION);
+			Segment segment = new Segment(file);
+			segment.capacity = (int) segment.file.length();
+			segments.addElement(segment);
+			Segment previous = active;
+			active = segment;
+			nextSequence = sequences[i] + 1;
+			if (previous != null) {
+				checkCompaction(previous);
+			}
+
+			byte[] data = new byte[segment.capacity];
+			read(segment, 0, data);
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			int offset = 0;
+			while (offset + RECORD_HEADER_LENGTH <= data.length) {
+				int length = checkRecord(buffer, offset);
+				if (length <= 0) {
+					break;
+				}
+				Entry entry = new Entry();
+				entry.segment = segment;
+				entry.offset = offset;
+				entry.length = length;
+				entry.keyLength = buffer.getShort(offset + RECORD_HEADER_LENGTH + 1);
+				String key = new String(data, offset + RECORD_KEY_OFFSET, entry.keyLength, "UTF-8");
+				if (data[offset + RECORD_HEADER_LENGTH] == RECORD_PUT) {
+					segment.liveBytes += length;
+					release(index.put(key, entry));
+				} else {
+					release(index.remove(key));
+				}
+				offset += length;
+			}
+			segment.end = offset;
+
+			if (!isZero(data, offset)) {
+				//@TRACE 701=discarding the incomplete tail of a log segment
+				LOGD(TAG, "recover 701");
+				ByteBuffer zeros = ByteBuffer.allocate(data.length - offset);
+				long position = offset;
+				while (zeros.hasRemaining()) {
+					position += segment.channel.write(zeros, position);
+				}
+				segment.channel.force(false);
+			}
+		}
+
+		if (active == null) {
+			startSegment(0);
+		}
+	}
+
+	private static boolean isZero(byte[] data, int offset) {
+		for (int i = offset; i < data.length; i++) {
+			if (data[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that a complete, intact record starts at the given offset.
+	 * @return the length of the record, or 0 if there is none
+	 */
+	private int checkRecord(ByteBuffer buffer, int offset) {
+		int storedCrc = buffer.getInt(offset);
+		int length = buffer.getInt(offset + 4);
+		if (length < 3 || length > buffer.capacity() - offset - RECORD_HEADER_LENGTH) {
+			return 0;
+		}
+		int keyLength = buffer.getShort(offset + RECORD_HEADER_LENGTH + 1);
+		if (keyLength < 0 || keyLength > length - 3) {
+			return 0;
+		}
+		crc.reset();
+		crc.update(buffer.array(), offset + 4, length + 4);
+		if ((int) crc.getValue() != storedCrc) {
+			return 0;
+		}
+		byte type = buffer.get(offset + RECORD_HEADER_LENGTH);
+		if (type != RECORD_PUT && type != RECORD_REMOVE) {
+			return 0;
+		}
+		return length + RECORD_HEADER_LENGTH;
+	}
+
+	/**
+	 * Marks the records up to the given one as committed, and wakes any
+	 * threads waiting for them. Must be called holding the lock.
+	 * @return the sequence number of the last record committed
+	 */
+	private long committed(long sequence) {
+		if (sequence > committedSequence) {
+			committedSequence = sequence;
+		}
+		uncommittedSince = (putSequence > committedSequence) ? System.currentTimeMillis() : 0;
+		notifyAll();
+		return committedSequence;
+	}
+
+	/**
+	 * Runs on the committer thread until the persistence is closed, syncing
+	 * the records put since the last commit whenever enough of them are
+	 * waiting, the oldest of them has waited long enough, or a thread is
+	 * blocked in put(). The sync is done without holding the lock, so
+	 * records keep being appended while it is in progress, ready for the
+	 * next commit.
+	 */
+	private void commitGroups() {
+		final String methodName = "commitGroups";
+		Thread thread = Thread.currentThread();
+		while (true) {
+			long target;
+			FileChannel channel;
+			synchronized (this) {
+				try {
+					while (committer == thread && putSequence == committedSequence) {
+						wait();
+					}
+					long wait;
+					while (committer == thread && commitWaiters == 0 &&
+							putSequence - committedSequence < groupCommitSize &&
+							(wait = uncommittedSince + groupCommitDelay - System.currentTimeMillis()) > 0) {
+						wait(wait);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (committer != thread) {
+					// close() commits what is left
+					return;
+				}
+				target = putSequence;
+				channel = active.channel;
+			}
+
+			IOException failure = null;
+			try {
+				channel.force(false);
+			} catch (java.nio.channels.ClosedChannelException e) {
+				// The segment was sealed, which synced it, and then compacted
+			} catch (IOException e) {
+				//@TRACE 704=failed to commit the log
+				LOGE(TAG, methodName+" 704", e);
+				failure = e;
+			}
+
+			MqttCommitListener listener;
+			synchronized (this) {
+				listener = commitListener;
+				if (failure != null) {
+					commitFailure = failure;
+					notifyAll();
+				} else {
+					committed(target);
+				}
+			}
+			if (failure != null) {
+				// Nothing more is committed, so whatever waits for it must give up
+				if (listener != null) {
+					listener.commitFailed(new MqttPersistenceException(failure));
+				}
+				return;
+			}
+			if (listener != null) {
+				listener.committed(target);
+			}
+		}
+	}
+
+	/**
+	 * Moves any message files written by {@link MqttDefaultFilePersistence}
+	 * into the log.
+	 */
+	private void importMessageFiles() throws IOException {
+		File[] files = clientDir.listFiles(MESSAGE_FILTER);
+		if (files == null || files.length == 0) {
+			return;
+		}
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			String key = name.substring(0, name.length() - MESSAGE_FILE_EXTENSION.length());
+			byte[] data = new byte[(int) files[i].length()];
+			FileInputStream fis = new FileInputStream(files[i]);
+			try {
+				int read = 0;
+				while (read < data.length) {
+					int count = fis.read(data, read, data.length - read);
+					if (count < 0) {
+						throw new IOException(name);
+					}
+					read += count;
+				}
+			} finally {
+				fis.close();
+			}
+			ByteBuffer record = encodeRecord(RECORD_PUT, key, data.length);
+			record.put(data);
+			release(index.put(key, append(record)));
+		}
+		active.channel.force(false);
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+	}
+
+	/**
+	 * Runs on the compactor thread until the persistence is closed.
+	 */
+	private void compactSegments() {
+		final String methodName = "compactSegments";
+		Thread thread = Thread.currentThread();
+		while (true) {
+			Segment segment;
+			synchronized (this) {
+				while (compactor == thread && compactionQueue.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (compactor != thread) {
+					return;
+				}
+				segment = compactionQueue.remove(0);
+			}
+			try {
+				compact(segment);
+			} catch (IOException ex) {
+				//@TRACE 702=failed to compact a log segment
+				LOGE(TAG, methodName+" 702", ex);
+			}
+		}
+	}
+
+	/**
+	 * Copies the records of a sealed segment that are still needed to the
+	 * end of the log, then deletes the segment. The segment is read without
+	 * holding the lock, as nothing writes to it once sealed.
+	 */
+	private void compact(Segment segment) throws IOException {
+		byte[] data = new byte[segment.end];
+		synchronized (this) {
+			if (!segments.contains(segment)) {
+				return;
+			}
+		}
+		read(segment, 0, data);
+
+		synchronized (this) {
+			if (!segments.contains(segment)) {
+				// Cleared or closed in the meantime
+				return;
+			}
+			// A tombstone only needs keeping while an older segment may
+			// still hold a record it hides
+			boolean older = segments.indexOf(segment) > 0;
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			int copied = 0;
+			int offset = 0;
+			while (offset < data.length) {
+				int length = buffer.getInt(offset + 4) + RECORD_HEADER_LENGTH;
+				int keyLength = buffer.getShort(offset + RECORD_HEADER_LENGTH + 1);
+				String key = new String(data, offset + RECORD_KEY_OFFSET, keyLength, "UTF-8");
+				Entry entry = index.get(key);
+				boolean copy;
+				if (data[offset + RECORD_HEADER_LENGTH] == RECORD_PUT) {
+					copy = entry != null && entry.segment == segment && entry.offset == offset;
+				} else {
+					copy = older && entry == null;
+				}
+				if (copy) {
+					if (writeBuffer.capacity() < length) {
+						writeBuffer = ByteBuffer.allocate(length);
+					}
+					writeBuffer.clear();
+					writeBuffer.put(data, offset, length);
+					writeBuffer.flip();
+					Entry moved = append(writeBuffer);
+					if (entry != null) {
+						index.put(key, moved);
+					}
+					copied++;
+				}
+				offset += length;
+			}
+			if (copied > 0) {
+				active.channel.force(false);
+			}
+			//@TRACE 703=compacted a log segment
+			LOGD(TAG, "compact 703");
+			segments.removeElement(segment);
+			segment.close();
+			segment.path.delete();
+		}
+	}
+
+	private static void read(Segment segment, int offset, byte[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		long position = offset;
+		while (buffer.hasRemaining()) {
+			int count = segment.channel.read(buffer, position);
+			if (count < 0) {
+				throw new IOException(segment.path.getName());
+			}
+			position += count;
+		}
+	}
+
+	private void closeSegments() {
+		for (int i = 0; i < segments.size(); i++) {
+			segments.elementAt(i).close();
+		}
+		segments.removeAllElements();
+		active = null;
+	}
+
+	private void deleteSegmentFiles() {
+		File[] files = clientDir.listFiles(SEGMENT_FILTER);
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+		nextSequence = 1;
+	}
+
+	private boolean isSafeChar(char c) {
+		return Character.isJavaIdentifierPart(c) || c=='-';
+	}
+
+	/**
+	 * One of the files that make up the log.
+	 */
+	private static class Segment {
+		final File path;
+		final RandomAccessFile file;
+		final FileChannel channel;
+		int capacity;
+		// Where the next record goes
+		int end = 0;
+		// The bytes taken by records that are the latest for their key
+		int liveBytes = 0;
+		boolean queued = false;
+
+		Segment(File path) throws IOException {
+			this.path = path;
+			this.file = new RandomAccessFile(path, "rw");
+			this.channel = file.getChannel();
+		}
+
+		void close() {
+			try {
+				channel.force(false);
+				file.close();
+			} catch (IOException e) {
+				// Nothing more can be done with it
+			}
+		}
+	}
+
+	/**
+	 * Where the latest record for a key is.
+	 */
+	private static class Entry {
+		Segment segment;
+		int offset;
+		int length;
+		int keyLength;
+	}
+}
@@ -0,0 +1,879 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import in.huhuba.paho.client.mqttv3.MqttBufferPersistence;
+import in.huhuba.paho.client.mqttv3.MqttClientPersistence;
+import in.huhuba.paho.client.mqttv3.MqttPersistable;
+import in.huhuba.paho.client.mqttv3.MqttPersistenceException;
+import in.huhuba.paho.client.mqttv3.internal.FileLock;
+import in.huhuba.paho.client.mqttv3.internal.MqttPersistentData;
+import in.huhuba.paho.client.mqttv3.logging.LogUtils;
+
+import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
+
+/**
+ * An implementation of the {@link MqttClientPersistence} interface that
+ * keeps all data in a single file of a fixed size, mapped into memory and
+ * used as a circular log. It suits devices that must bound the memory and
+ * storage the client uses.
+ * <p>
+ * Storing a message writes one record at the tail of the log straight from
+ * the message's own bytes, with no file created and nothing copied on the
+ * heap. Removing one marks its record dead in place. Space is reclaimed
+ * from the head of the log: dead records are skipped, and a record still
+ * in use is moved to the tail so the space behind it can be reused.</p>
+ * <p>
+ * As a {@link MqttBufferPersistence} it writes data straight from the
+ * buffers given and copies data straight out of the file, and a batch of
+ * puts is synced to disk once. {@link #getView(String)} reads data without
+ * copying it at all.</p>
+ * <p>
+ * When the log has no room for a record, what happens is set with
+ * {@link #setFullPolicy(int)}: either the <code>put</code> fails with
+ * {@link MqttPersistenceException#REASON_CODE_PERSISTENCE_FULL}, or QoS 1
+ * publishes that reach the head of the log are discarded to make room.</p>
+ * <p>
+ * Every record carries a sequence number and a CRC, so when the
+ * persistence is opened after a crash the log is replayed from its head up
+ * to the last complete record. The file is kept in a sub-directory of the
+ * given directory named after the client ID and connection, as
+ * {@link MqttDefaultFilePersistence} does.</p>
+ */
+public class MqttMappedFilePersistence implements MqttBufferPersistence {
+	private static final String TAG = LogUtils.makeLogTag(MqttMappedFilePersistence.class);
+
+	/**
+	 * The default size of the file
+	 */
+	public static final int RING_SIZE_DEFAULT = 1024 * 1024;
+	/**
+	 * Fail a <code>put</code> for which there is no room
+	 */
+	public static final int FULL_REJECT = 0;
+	/**
+	 * Make room by discarding the oldest QoS 1 publishes
+	 */
+	public static final int FULL_DISCARD_OLDEST_QOS1 = 1;
+
+	private static final String RING_FILENAME = "persistence.ring";
+	private static final String LOCK_FILENAME = ".lck";
+
+	// The file starts with a magic number, the offset of the head of the
+	// log and the sequence number of the record there
+	private static final int MAGIC = 0x4D515452;
+	private static final int HEADER_HEAD_OFFSET = 4;
+	private static final int HEADER_SEQUENCE_OFFSET = 8;
+	private static final int DATA_START = 16;
+
+	// Each record is its length, the CRC, the sequence number, the state,
+	// the key length, the key and the data. The CRC covers the sequence
+	// number and all that follows the state. A record that does not fit
+	// before the end of the file goes at the start, after a wrap marker.
+	private static final int RECORD_CRC_OFFSET = 4;
+	private static final int RECORD_SEQUENCE_OFFSET = 8;
+	private static final int RECORD_STATE_OFFSET = 16;
+	private static final int RECORD_KEY_LENGTH_OFFSET = 17;
+	private static final int RECORD_KEY_OFFSET = 19;
+	private static final int WRAP = -1;
+	private static final byte STATE_LIVE = 1;
+	private static final byte STATE_DEAD = 2;
+
+	private static final int PUBLISH_TYPE = 3;
+
+	private File dataDir;
+	private int ringSize;
+	private int fullPolicy = FULL_REJECT;
+	private boolean sync = true;
+	private File clientDir = null;
+	private FileLock fileLock = null;
+	private RandomAccessFile file = null;
+	private MappedByteBuffer map = null;
+
+	// The oldest record in the log and where the next one goes. The log is
+	// empty when they are equal.
+	private int head;
+	private int tail;
+	private long headSequence;
+	private long nextSequence;
+	// The bytes taken by records in use
+	private int liveBytes = 0;
+	private long discarded = 0;
+	// The longest record written, which is how much room is kept free so
+	// that the record at the head can always be moved
+	private int largest = 0;
+	// The record of every key that has not been removed
+	private Hashtable<String, Entry> index = new Hashtable<String, Entry>();
+	private CRC32 crc = new CRC32();
+	private byte[] keyBuffer = new byte[32];
+	// Used to check records when opening and to move them
+	private byte[] recordBuffer = new byte[1024];
+
+	public MqttMappedFilePersistence() {
+		this(System.getProperty("user.dir"));
+	}
+
+	/**
+	 * Create a memory mapped persistent data store within the specified
+	 * directory.
+	 * @param directory the directory to use.
+	 */
+	public MqttMappedFilePersistence(String directory) {
+		this(directory, RING_SIZE_DEFAULT);
+	}
+
+	/**
+	 * Create a memory mapped persistent data store within the specified
+	 * directory.
+	 * @param directory the directory to use.
+	 * @param ringSize the size of the file in bytes. This only applies when
+	 * the file is created; an existing file keeps its size.
+	 */
+	public MqttMappedFilePersistence(String directory, int ringSize) {
+		if (ringSize < 1024) {
+			throw new IllegalArgumentException();
+		}
+		this.dataDir = new File(directory);
+		this.ringSize = ringSize;
+	}
+
+	/**
+	 * Sets what happens when there is no room for a record. QoS 1 publishes
+	 * are only discarded once they reach the head of the log, so a
+	 * <code>put</code> can still fail if the records ahead of them cannot
+	 * be moved.
+	 * <p>The default is {@link #FULL_REJECT}.</p>
+	 * @param fullPolicy {@link #FULL_REJECT} or
+	 * {@link #FULL_DISCARD_OLDEST_QOS1}
+	 */
+	public synchronized void setFullPolicy(int fullPolicy) throws IllegalArgumentException {
+		if (fullPolicy != FULL_REJECT && fullPolicy != FULL_DISCARD_OLDEST_QOS1) {
+			throw new IllegalArgumentException();
+		}
+		this.fullPolicy = fullPolicy;
+	}
+
+	public int getFullPolicy() {
+		return fullPolicy;
+	}
+
+	/**
+	 * Sets whether the file is synced to disk before each <code>put</code>
+	 * returns. When not, the operating system writes the changed pages in
+	 * its own time, and records survive the process being killed but not
+	 * the device losing power.
+	 * <p>The default value is true.</p>
+	 * @param sync true to sync each record.
+	 */
+	public synchronized void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * Returns the number of QoS 1 publishes discarded to make room.
+	 * @see #FULL_DISCARD_OLDEST_QOS1
+	 */
+	public synchronized long getDiscardedCount() {
+		return discarded;
+	}
+
+	public void open(String clientId, String theConnection) throws MqttPersistenceException {
+		if (dataDir.exists() && !dataDir.isDirectory()) {
+			throw new MqttPersistenceException();
+		} else if (!dataDir.exists() ) {
+			if (!dataDir.mkdirs()) {
+				throw new MqttPersistenceException();
+			}
+		}
+		if (!dataDir.canWrite()) {
+			throw new MqttPersistenceException();
+		}
+
+		StringBuffer keyBuffer = new StringBuffer();
+		for (int i=0;i<clientId.length();i++) {
+			char c = clientId.charAt(i);
+			if (isSafeChar(c)) {
+				keyBuffer.append(c);
+			}
+		}
+		keyBuffer.append("-");
+		for (int i=0;i<theConnection.length();i++) {
+			char c = theConnection.charAt(i);
+			if (isSafeChar(c)) {
+				keyBuffer.append(c);
+			}
+		}
+
+		synchronized (this) {
+			if (clientDir == null) {
+				clientDir = new File(dataDir, keyBuffer.toString());
+				if (!clientDir.exists()) {
+					clientDir.mkdir();
+				}
+			}
+
+			try {
+				fileLock = new FileLock(clientDir, LOCK_FILENAME);
+			} catch (Exception e) {
+				throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+			}
+
+			try {
+				file = new RandomAccessFile(new File(clientDir, RING_FILENAME), "rw");
+				if (file.length() < 1024) {
+					file.setLength(ringSize);
+				}
+				map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+				recover();
+			} catch (IOException ex) {
+				closeFile();
+				throw new MqttPersistenceException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the persistence has been opened.
+	 * @throws MqttPersistenceException if the persistence has not been opened.
+	 */
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (map == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	public synchronized void close() throws MqttPersistenceException {
+		if (clientDir == null) {
+			return;
+		}
+		boolean empty = index.isEmpty();
+		if (map != null) {
+			map.force();
+		}
+		closeFile();
+		index.clear();
+		if (fileLock != null) {
+			fileLock.release();
+			fileLock = null;
+		}
+		if (empty) {
+			new File(clientDir, RING_FILENAME).delete();
+			clientDir.delete();
+		}
+		clientDir = null;
+	}
+
+	/**
+	 * Writes the specified persistent data at the tail of the log, making
+	 * room for it first if need be.
+	 * @param message
+	 * @throws MqttPersistenceException
+	 */
+	public synchronized void put(String key, MqttPersistable message) throws MqttPersistenceException {
+		checkIsOpen();
+		write(key, message.getHeaderBytes(), message.getHeaderOffset(), message.getHeaderLength(),
+				message.getPayloadBytes(), message.getPayloadOffset(), message.getPayloadLength());
+		if (sync) {
+			map.force();
+		}
+	}
+
+	public synchronized void putBuffer(String key, ByteBuffer header, ByteBuffer payload) throws MqttPersistenceException {
+		checkIsOpen();
+		write(key, header, payload);
+		if (sync) {
+			map.force();
+		}
+	}
+
+	/**
+	 * Writes the records for all the data and then syncs the file once.
+	 */
+	public synchronized void putAll(String[] keys, ByteBuffer[] headers, ByteBuffer[] payloads) throws MqttPersistenceException {
+		checkIsOpen();
+		try {
+			for (int i = 0; i < keys.length; i++) {
+				write(keys[i], headers[i], payloads[i]);
+			}
+		} finally {
+			if (sync) {
+				map.force();
+			}
+		}
+	}
+
+	/**
+	 * Writes a record holding the given parts of the arrays at the tail of
+	 * the log and indexes it, without syncing the file.
+	 */
+	private void write(String key, byte[] header, int headerOffset, int headerLength,
+			byte[] payload, int payloadOffset, int payloadLength) throws MqttPersistenceException {
+		if (payload == null) {
+			payloadLength = 0;
+		}
+		int keyLength = encodeKey(key);
+		int length = RECORD_KEY_OFFSET + keyLength + headerLength + payloadLength;
+		int offset = beginRecord(keyLength, length);
+		map.put(header, headerOffset, headerLength);
+		crc.update(header, headerOffset, headerLength);
+		if (payloadLength > 0) {
+			map.put(payload, payloadOffset, payloadLength);
+			crc.update(payload, payloadOffset, payloadLength);
+		}
+		endRecord(key, offset, length, keyLength);
+	}
+
+	/**
+	 * Writes a record holding the bytes remaining in the buffers at the tail
+	 * of the log and indexes it, without syncing the file.
+	 */
+	private void write(String key, ByteBuffer header, ByteBuffer payload) throws MqttPersistenceException {
+		int headerLength = header.remaining();
+		int payloadLength = (payload == null) ? 0 : payload.remaining();
+		int keyLength = encodeKey(key);
+		int length = RECORD_KEY_OFFSET + keyLength + headerLength + payloadLength;
+		int offset = beginRecord(keyLength, length);
+		map.put(header.duplicate());
+		updateCrc(header);
+		if (payloadLength > 0) {
+			map.put(payload.duplicate());
+			updateCrc(payload);
+		}
+		endRecord(key, offset, length, keyLength);
+	}
+
+	/**
+	 * Makes room for a record at the tail of the log and writes its fields
+	 * and the key in the key buffer. The map is left positioned for the
+	 * header, and the CRC covering all that precedes it.
+	 * @return the offset of the record
+	 */
+	private int beginRecord(int keyLength, int length) throws MqttPersistenceException {
+		if (length > map.capacity() - DATA_START) {
+			throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_FULL);
+		}
+
+		int offset = makeSpace(length);
+		long sequence = nextSequence++;
+		map.putInt(offset, length);
+		map.putLong(offset + RECORD_SEQUENCE_OFFSET, sequence);
+		map.put(offset + RECORD_STATE_OFFSET, STATE_LIVE);
+		map.putShort(offset + RECORD_KEY_LENGTH_OFFSET, (short) keyLength);
+		map.position(offset + RECORD_KEY_OFFSET);
+		map.put(keyBuffer, 0, keyLength);
+
+		crc.reset();
+		updateCrc(sequence, keyLength);
+		crc.update(keyBuffer, 0, keyLength);
+		return offset;
+	}
+
+	/**
+	 * Writes the CRC of a record whose data has been written, and indexes
+	 * it in place of any older record with the same key.
+	 */
+	private void endRecord(String key, int offset, int length, int keyLength) {
+		map.putInt(offset + RECORD_CRC_OFFSET, (int) crc.getValue());
+		appended(offset, length);
+
+		Entry entry = index.get(key);
+		if (entry == null) {
+			entry = new Entry();
+			index.put(key, entry);
+		} else {
+			map.put(entry.offset + RECORD_STATE_OFFSET, STATE_DEAD);
+			liveBytes -= entry.length;
+		}
+		entry.offset = offset;
+		entry.length = length;
+		entry.keyLength = keyLength;
+		liveBytes += length;
+		reclaim();
+	}
+
+	public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		Entry entry = index.get(key);
+		if (entry == null) {
+			throw new MqttPersistenceException();
+		}
+		int dataOffset = RECORD_KEY_OFFSET + entry.keyLength;
+		byte[] data = new byte[entry.length - dataOffset];
+		map.position(entry.offset + dataOffset);
+		map.get(data);
+		return new MqttPersistentData(key, data, 0, data.length, null, 0, 0);
+	}
+
+	/**
+	 * Returns the data stored with the specified key in a heap buffer,
+	 * copied straight out of the file. A client can decode it in place.
+	 * @see #getView(String)
+	 */
+	public synchronized ByteBuffer getBuffer(String key) throws MqttPersistenceException {
+		ByteBuffer view = getView(key);
+		if (view == null) {
+			return null;
+		}
+		ByteBuffer data = ByteBuffer.allocate(view.remaining());
+		data.put(view);
+		data.flip();
+		return data;
+	}
+
+	/**
+	 * Returns a read only view of the data stored with the specified key,
+	 * the header followed by the payload, without copying it out of the
+	 * file. The view is only valid until the persistence is next changed:
+	 * records still in use are moved when space is reclaimed, after which
+	 * the view's content may change.
+	 * @param key the key for the data.
+	 * @return the data, or null if there is none with the key.
+	 */
+	public synchronized ByteBuffer getView(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		Entry entry = index.get(key);
+		if (entry == null) {
+			return null;
+		}
+		ByteBuffer view = map.duplicate();
+		view.limit(entry.offset + entry.length);
+		view.position(entry.offset + RECORD_KEY_OFFSET + entry.keyLength);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Marks the record of the data with the specified key dead. The change
+	 * is not synced to disk, so after a crash the data may reappear, as a
+	 * message file could after a crash of {@link MqttDefaultFilePersistence}.
+	 */
+	public synchronized void remove(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		Entry entry = index.remove(key);
+		if (entry != null) {
+			map.put(entry.offset + RECORD_STATE_OFFSET, STATE_DEAD);
+			liveBytes -= entry.length;
+			reclaim();
+		}
+	}
+
+	/**
+	 * Marks the records of all the keys dead, and then reclaims the space
+	 * they leave at the head of the log.
+	 */
+	public synchronized void removeAll(String[] keys) throws MqttPersistenceException {
+		checkIsOpen();
+		for (int i = 0; i < keys.length; i++) {
+			Entry entry = index.remove(keys[i]);
+			if (entry != null) {
+				map.put(entry.offset + RECORD_STATE_OFFSET, STATE_DEAD);
+				liveBytes -= entry.length;
+			}
+		}
+		reclaim();
+	}
+
+	public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+		checkIsOpen();
+		Vector<String> result = new Vector<String>(index.size());
+		Enumeration<String> keys = index.keys();
+		while (keys.hasMoreElements()) {
+			result.addElement(keys.nextElement());
+		}
+		return result.elements();
+	}
+
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		return index.containsKey(key);
+	}
+
+	public synchronized void clear() throws MqttPersistenceException {
+		checkIsOpen();
+		index.clear();
+		liveBytes = 0;
+		head = DATA_START;
+		tail = DATA_START;
+		headSequence = nextSequence;
+		writeHead();
+		map.force();
+	}
+
+	/**
+	 * Reclaims space from the head of the log until there is room for a
+	 * record of the given length, and if possible room left over to move
+	 * the longest record.
+	 * @return where the record goes
+	 */
+	private int makeSpace(int length) throws MqttPersistenceException {
+		final String methodName = "makeSpace";
+		largest = Math.max(largest, length);
+		int moved = 0;
+		while (head != tail && findSpace(length + largest) < 0) {
+			// The record at the head is in use, as reclaim() has skipped
+			// any dead ones
+			int headLength = map.getInt(head);
+			String key = readKey(head);
+			if (fullPolicy == FULL_DISCARD_OLDEST_QOS1 && isQoS1Publish(head)) {
+				//@TRACE 711=discarding the oldest QoS 1 publish key={0}
+				LOGD(TAG, methodName+" 711");
+				index.remove(key);
+				map.put(head + RECORD_STATE_OFFSET, STATE_DEAD);
+				liveBytes -= headLength;
+				discarded++;
+				reclaim();
+				continue;
+			}
+
+			int target = findSpace(headLength);
+			if (target < 0 || moved >= liveBytes) {
+				// Nothing more can be reclaimed
+				break;
+			}
+			move(key, head, target, headLength);
+			moved += headLength;
+			reclaim();
+		}
+		int offset = findSpace(length);
+		if (offset < 0) {
+			throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_FULL);
+		}
+		return offset;
+	}
+
+	/**
+	 * Copies the record at the head of the log to the tail, giving it the
+	 * next sequence number, and marks the original dead.
+	 */
+	private void move(String key, int from, int to, int length) {
+		if (recordBuffer.length < length) {
+			recordBuffer = new byte[Math.max(length, recordBuffer.length * 2)];
+		}
+		map.position(from);
+		map.get(recordBuffer, 0, length);
+		long sequence = nextSequence++;
+		ByteBuffer record = ByteBuffer.wrap(recordBuffer, 0, length);
+		record.putLong(RECORD_SEQUENCE_OFFSET, sequence);
+		int keyLength = record.getShort(RECORD_KEY_LENGTH_OFFSET) & 0xFFFF;
+		crc.reset();
+		updateCrc(sequence, keyLength);
+		crc.update(recordBuffer, RECORD_KEY_OFFSET, length - RECORD_KEY_OFFSET);
+		record.putInt(RECORD_CRC_OFFSET, (int) crc.getValue());
+		map.position(to);
+		map.put(recordBuffer, 0, length);
+		appended(to, length);
+
+		map.put(from + RECORD_STATE_OFFSET, STATE_DEAD);
+		Entry entry = index.get(key);
+		entry.offset = to;
+	}
+
+	/**
+	 * Finds room for a record of the given length at the tail of the log,
+	 * wrapping round to the start of the file if need be. The tail never
+	 * catches up with the head, as that would make the log look empty.
+	 * @return where the record can go, or -1 if there is no room
+	 */
+	private int findSpace(int length) {
+		if (tail >= head) {
+			if (map.capacity() - tail >= length) {
+				return tail;
+			}
+			if (head - DATA_START > length) {
+				return DATA_START;
+			}
+			return -1;
+		}
+		return (head - tail > length) ? tail : -1;
+	}
+
+	/**
+	 * Moves the tail past a record written at the given offset, leaving a
+	 * wrap marker at the old tail if the record went at the start.
+	 */
+	private void appended(int offset, int length) {
+		if (offset != tail && map.capacity() - tail >= RECORD_KEY_OFFSET) {
+			map.putInt(tail, WRAP);
+		}
+		tail = offset + length;
+	}
+
+	/**
+	 * Moves the head of the log past dead records.
+	 */
+	private void reclaim() {
+		int start = head;
+		while (head != tail) {
+			int offset = normalize(head);
+			if (offset == tail) {
+				head = offset;
+				break;
+			}
+			if (map.get(offset + RECORD_STATE_OFFSET) == STATE_LIVE) {
+				head = offset;
+				break;
+			}
+			headSequence = map.getLong(offset + RECORD_SEQUENCE_OFFSET) + 1;
+			head = offset + map.getInt(offset);
+		}
+		if (head == tail) {
+			// Start again at the beginning of the file, where there is the
+			// most room
+			head = DATA_START;
+			tail = DATA_START;
+			headSequence = nextSequence;
+		}
+		if (head != start) {
+			writeHead();
+		}
+	}
+
+	/**
+	 * Returns where the record at the given offset really starts, which is
+	 * the start of the file if the log wraps round there.
+	 */
+	private int normalize(int offset) {
+		if (map.capacity() - offset < RECORD_KEY_OFFSET || map.getInt(offset) == WRAP) {
+			return DATA_START;
+		}
+		return offset;
+	}
+
+	private void writeHead() {
+		map.putInt(HEADER_HEAD_OFFSET, head);
+		map.putLong(HEADER_SEQUENCE_OFFSET, headSequence);
+	}
+
+	/**
+	 * Rebuilds the index by replaying the log from its head, following the
+	 * sequence numbers to the last complete record.
+	 */
+	private void recover() {
+		final String methodName = "recover";
+		int capacity = map.capacity();
+		index.clear();
+		liveBytes = 0;
+		if (map.getInt(0) != MAGIC) {
+			map.putInt(0, MAGIC);
+			head = DATA_START;
+			headSequence = 1;
+			writeHead();
+		} else {
+			head = map.getInt(HEADER_HEAD_OFFSET);
+			headSequence = map.getLong(HEADER_SEQUENCE_OFFSET);
+			if (head < DATA_START || head >= capacity) {
+				head = DATA_START;
+			}
+		}
+
+		int offset = head;
+		long sequence = headSequence;
+		boolean wrapped = false;
+		while (true) {
+			int start = normalize(offset);
+			if (start != offset) {
+				if (wrapped) {
+					break;
+				}
+				wrapped = true;
+			}
+			int length = checkRecord(start, sequence);
+			if (length < 0 || (wrapped && start + length > head)) {
+				break;
+			}
+			offset = start;
+			if (map.get(offset + RECORD_STATE_OFFSET) == STATE_LIVE) {
+				String key = readKey(offset);
+				Entry entry = index.get(key);
+				if (entry == null) {
+					entry = new Entry();
+					index.put(key, entry);
+				} else {
+					// Replaced before the old record could be marked dead
+					map.put(entry.offset + RECORD_STATE_OFFSET, STATE_DEAD);
+					liveBytes -= entry.length;
+				}
+				entry.offset = offset;
+				entry.length = length;
+				entry.keyLength = map.getShort(offset + RECORD_KEY_LENGTH_OFFSET) & 0xFFFF;
+				liveBytes += length;
+			}
+			offset += length;
+			sequence++;
+		}
+		tail = offset;
+		nextSequence = sequence;
+		//@TRACE 710=recovered {0} records
+		LOGD(TAG, methodName+" 710");
+		reclaim();
+	}
+
+	/**
+	 * Checks that a complete record with the expected sequence number is at
+	 * the given offset.
+	 * @return the length of the record, or -1 if there is none
+	 */
+	private int checkRecord(int offset, long sequence) {
+		int length = map.getInt(offset);
+		if (length < RECORD_KEY_OFFSET || length > map.capacity() - offset) {
+			return -1;
+		}
+		if (map.getLong(offset + RECORD_SEQUENCE_OFFSET) != sequence) {
+			return -1;
+		}
+		byte state = map.get(offset + RECORD_STATE_OFFSET);
+		int keyLength = map.getShort(offset + RECORD_KEY_LENGTH_OFFSET) & 0xFFFF;
+		if ((state != STATE_LIVE && state != STATE_DEAD) || RECORD_KEY_OFFSET + keyLength > length) {
+			return -1;
+		}
+		if (recordBuffer.length < length) {
+			recordBuffer = new byte[Math.max(length, recordBuffer.length * 2)];
+		}
+		map.position(offset);
+		map.get(recordBuffer, 0, length);
+		crc.reset();
+		updateCrc(sequence, keyLength);
+		crc.update(recordBuffer, RECORD_KEY_OFFSET, length - RECORD_KEY_OFFSET);
+		if (map.getInt(offset + RECORD_CRC_OFFSET) != (int) crc.getValue()) {
+			return -1;
+		}
+		return length;
+	}
+
+	/**
+	 * Adds the sequence number and key length to the CRC, which cover the
+	 * part of the record that precedes the key.
+	 */
+	private void updateCrc(long sequence, int keyLength) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int) (sequence >>> shift) & 0xFF);
+		}
+		crc.update((keyLength >>> 8) & 0xFF);
+		crc.update(keyLength & 0xFF);
+	}
+
+	/**
+	 * Adds the bytes remaining in the buffer to the CRC. The bytes of a
+	 * direct buffer are copied through the record buffer.
+	 */
+	private void updateCrc(ByteBuffer data) {
+		if (data.hasArray()) {
+			crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		data = data.duplicate();
+		while (data.hasRemaining()) {
+			int count = Math.min(data.remaining(), recordBuffer.length);
+			data.get(recordBuffer, 0, count);
+			crc.update(recordBuffer, 0, count);
+		}
+	}
+
+	/**
+	 * Puts the key into the key buffer as UTF-8. The keys the client uses
+	 * are ASCII, which is copied without creating any objects.
+	 * @return the length of the key in bytes
+	 */
+	private int encodeKey(String key) throws MqttPersistenceException {
+		int length = key.length();
+		if (keyBuffer.length < length) {
+			keyBuffer = new byte[length];
+		}
+		for (int i = 0; i < length; i++) {
+			char c = key.charAt(i);
+			if (c >= 0x80) {
+				try {
+					byte[] bytes = key.getBytes("UTF-8");
+					if (bytes.length > 0xFFFF) {
+						throw new MqttPersistenceException();
+					}
+					keyBuffer = (keyBuffer.length < bytes.length) ? bytes : keyBuffer;
+					System.arraycopy(bytes, 0, keyBuffer, 0, bytes.length);
+					return bytes.length;
+				} catch (UnsupportedEncodingException ex) {
+					throw new MqttPersistenceException(ex);
+				}
+			}
+			keyBuffer[i] = (byte) c;
+		}
+		if (length > 0xFFFF) {
+			throw new MqttPersistenceException();
+		}
+		return length;
+	}
+
+	private String readKey(int offset) {
+		int keyLength = map.getShort(offset + RECORD_KEY_LENGTH_OFFSET) & 0xFFFF;
+		byte[] bytes = new byte[keyLength];
+		map.position(offset + RECORD_KEY_OFFSET);
+		map.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			return new String(bytes);
+		}
+	}
+
+	/**
+	 * Checks whether the record at the given offset holds a QoS 1 publish,
+	 * from the first byte of its MQTT header.
+	 */
+	private boolean isQoS1Publish(int offset) {
+		int keyLength = map.getShort(offset + RECORD_KEY_LENGTH_OFFSET) & 0xFFFF;
+		int dataOffset = RECORD_KEY_OFFSET + keyLength;
+		if (dataOffset >= map.getInt(offset)) {
+			return false;
+		}
+		byte first = map.get(offset + dataOffset);
+		return ((first >>> 4) & 0x0F) == PUBLISH_TYPE && ((first >>> 1) & 0x03) == 1;
+	}
+
+	private void closeFile() {
+		map = null;
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// Nothing more can be done with it
+			}
+			file = null;
+		}
+	}
+
+	private boolean isSafeChar(char c) {
+		return Character.isJavaIdentifierPart(c) || c=='-';
+	}
+
+	/**
+	 * Where the record for a key is.
+	 */
+	private static class Entry {
+		int offset;
+		int length;
+		int keyLength;
+	}
+}
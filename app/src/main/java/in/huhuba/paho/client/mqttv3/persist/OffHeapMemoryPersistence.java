@@ -0,0 +1,438 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * Contributors:
+ *    agent - initial API and implementation
+ */
+package in.huhuba.paho.client.mqttv3.persist;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.Vector;
+
+import in.huhuba.paho.client.mqttv3.MqttClientPersistence;
+import in.huhuba.paho.client.mqttv3.MqttPersistable;
+import in.huhuba.paho.client.mqttv3.MqttPersistenceException;
+import in.huhuba.paho.client.mqttv3.internal.MqttPersistentData;
+import in.huhuba.paho.client.mqttv3.logging.LogUtils;
+
+import static in.huhuba.paho.client.mqttv3.logging.LogUtils.LOGD;
+
+/**
+ * Persistence that uses memory outside the Java heap, up to a fixed budget.
+ * 
+ * Like {@link MemoryPersistence} it is for cases where reliability is not
+ * required across client or device restarts, but it keeps the data in
+ * direct buffers rather than as heap objects, so a large backlog of
+ * messages, such as builds up while the server cannot be reached, does
+ * not exhaust the heap.
+ * <p>
+ * Data is copied into slabs of direct memory, each filled in turn and
+ * reused once nothing in it is still stored. When the budget is used up
+ * the oldest data is moved to a spill persistence, by default a
+ * {@link MqttLogFilePersistence} in the temporary directory, and read from
+ * there when asked for. The data left in the spill persistence is cleared
+ * when this persistence is opened and closed.</p>
+ */
+public class OffHeapMemoryPersistence implements MqttClientPersistence {
+	private static final String TAG = LogUtils.makeLogTag(OffHeapMemoryPersistence.class);
+
+	/**
+	 * The default number of bytes of direct memory to use
+	 */
+	public static final int BUDGET_DEFAULT = 4 * 1024 * 1024;
+	// Data is copied into slabs of this size, or a slab of its own if larger
+	private static final int SLAB_SIZE = 64 * 1024;
+
+	private int budget;
+	private int slabSize;
+	private MqttClientPersistence spill;
+	private boolean spillOpen = false;
+	private String clientId;
+	private String serverURI;
+
+	private Hashtable<String, Entry> data = new Hashtable<String, Entry>();
+	// The data held in memory from the oldest to the newest, to be spilled
+	// in that order
+	private Entry oldest = null;
+	private Entry newest = null;
+	private Slab current = null;
+	private Vector<Slab> freeSlabs = new Vector<Slab>();
+	// The direct memory held in slabs, and how much of it holds data
+	private int allocated = 0;
+	private int used = 0;
+
+	private long memoryHits = 0;
+	private long spillHits = 0;
+	private long spillCount = 0;
+
+	public OffHeapMemoryPersistence() {
+		this(BUDGET_DEFAULT);
+	}
+
+	/**
+	 * Create a persistence that uses the given amount of direct memory and
+	 * spills to a {@link MqttLogFilePersistence} in the temporary directory.
+	 * @param budget the most direct memory to use, in bytes.
+	 */
+	public OffHeapMemoryPersistence(int budget) {
+		this(budget, null);
+	}
+
+	/**
+	 * Create a persistence that uses the given amount of direct memory and
+	 * spills to the given persistence.
+	 * @param budget the most direct memory to use, in bytes.
+	 * @param spill where to keep the data that does not fit in the budget,
+	 * or null for a {@link MqttLogFilePersistence} in the temporary directory.
+	 */
+	public OffHeapMemoryPersistence(int budget, MqttClientPersistence spill) {
+		if (budget < 1024) {
+			throw new IllegalArgumentException();
+		}
+		if (spill == null) {
+			MqttLogFilePersistence log = new MqttLogFilePersistence(
+					new File(System.getProperty("java.io.tmpdir"), "paho-spill").getPath());
+			log.setDurability(MqttLogFilePersistence.DURABILITY_OS_BUFFERED);
+			spill = log;
+		}
+		this.budget = budget;
+		this.slabSize = Math.min(SLAB_SIZE, budget);
+		this.spill = spill;
+	}
+
+	/* (non-Javadoc)
+	 * @see MqttClientPersistence#open(java.lang.String, java.lang.String)
+	 */
+	public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+		this.clientId = clientId;
+		this.serverURI = serverURI;
+		clearMemory();
+	}
+
+	/* (non-Javadoc)
+	 * @see MqttClientPersistence#close()
+	 */
+	public synchronized void close() throws MqttPersistenceException {
+		clearMemory();
+		freeSlabs.removeAllElements();
+		allocated = 0;
+		if (spillOpen) {
+			spillOpen = false;
+			spill.clear();
+			spill.close();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see MqttClientPersistence#put(java.lang.String, MqttPersistable)
+	 */
+	public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		remove(key);
+
+		byte[] header = persistable.getHeaderBytes();
+		byte[] payload = persistable.getPayloadBytes();
+		int headerLength = persistable.getHeaderLength();
+		int payloadLength = (payload == null) ? 0 : persistable.getPayloadLength();
+		int length = headerLength + payloadLength;
+
+		Slab slab = (length > budget) ? null : allocate(length);
+		if (slab == null) {
+			// Too large to ever be held in memory
+			openSpill().put(key, persistable);
+			data.put(key, new Entry(key, null, 0, 0, 0));
+			spillCount++;
+			return;
+		}
+
+		int offset = slab.end;
+		slab.buffer.position(offset);
+		slab.buffer.put(header, persistable.getHeaderOffset(), headerLength);
+		if (payloadLength > 0) {
+			slab.buffer.put(payload, persistable.getPayloadOffset(), payloadLength);
+		}
+		slab.end += length;
+		slab.live++;
+		used += length;
+
+		Entry entry = new Entry(key, slab, offset, headerLength, payloadLength);
+		data.put(key, entry);
+		link(entry);
+	}
+
+	/* (non-Javadoc)
+	 * @see MqttClientPersistence#get(java.lang.String)
+	 */
+	public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+		Entry entry = data.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.slab == null) {
+			spillHits++;
+			return spill.get(key);
+		}
+		memoryHits++;
+		return copy(entry);
+	}
+
+	/* (non-Javadoc)
+	 * @see MqttClientPersistence#remove(java.lang.String)
+	 */
+	public synchronized void remove(String key) throws MqttPersistenceException {
+		Entry entry = data.remove(key);
+		if (entry == null) {
+			return;
+		}
+		if (entry.slab == null) {
+			spill.remove(key);
+		} else {
+			unlink(entry);
+			release(entry);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see MqttClientPersistence#keys()
+	 */
+	public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+		Vector<String> result = new Vector<String>(data.size());
+		Enumeration<String> keys = data.keys();
+		while (keys.hasMoreElements()) {
+			result.addElement(keys.nextElement());
+		}
+		return result.elements();
+	}
+
+	/* (non-Javadoc)
+	 * @see MqttClientPersistence#clear()
+	 */
+	public synchronized void clear() throws MqttPersistenceException {
+		clearMemory();
+		if (spillOpen) {
+			spill.clear();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see MqttClientPersistence#containsKey(java.lang.String)
+	 */
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		return data.containsKey(key);
+	}
+
+	/**
+	 * Returns the number of gets answered from memory.
+	 */
+	public synchronized long getMemoryHitCount() {
+		return memoryHits;
+	}
+
+	/**
+	 * Returns the number of gets answered from the spill persistence.
+	 */
+	public synchronized long getSpillHitCount() {
+		return spillHits;
+	}
+
+	/**
+	 * Returns the number of times data has been put in the spill
+	 * persistence rather than kept in memory.
+	 */
+	public synchronized long getSpillCount() {
+		return spillCount;
+	}
+
+	/**
+	 * Returns the number of bytes of data held in memory.
+	 */
+	public synchronized int getMemoryUsed() {
+		return used;
+	}
+
+	public synchronized Properties getDebug() {
+		Properties props = new Properties();
+		props.put("budget", new Integer(budget));
+		props.put("allocated", new Integer(allocated));
+		props.put("used", new Integer(used));
+		props.put("entries", new Integer(data.size()));
+		props.put("memoryHits", new Long(memoryHits));
+		props.put("spillHits", new Long(spillHits));
+		props.put("spills", new Long(spillCount));
+		return props;
+	}
+
+	/**
+	 * Finds room for data of the given length in a slab, spilling the
+	 * oldest data until there is room within the budget.
+	 * @return the slab to put the data at the end of, or null if the data
+	 * itself has to be spilled
+	 */
+	private Slab allocate(int length) throws MqttPersistenceException {
+		if (current != null && current.buffer.capacity() - current.end >= length) {
+			return current;
+		}
+		int capacity = Math.max(length, slabSize);
+		while (true) {
+			if (capacity == slabSize && !freeSlabs.isEmpty()) {
+				current = freeSlabs.remove(freeSlabs.size() - 1);
+				return current;
+			}
+			if (allocated + capacity <= budget) {
+				Slab slab = new Slab(ByteBuffer.allocateDirect(capacity));
+				allocated += capacity;
+				if (capacity == slabSize) {
+					current = slab;
+				}
+				return slab;
+			}
+			if (oldest == null) {
+				return null;
+			}
+			spillOldest();
+			if (current != null && current.buffer.capacity() - current.end >= length) {
+				// Spilling emptied the current slab
+				return current;
+			}
+		}
+	}
+
+	/**
+	 * Moves the oldest data held in memory to the spill persistence.
+	 */
+	private void spillOldest() throws MqttPersistenceException {
+		final String methodName = "spillOldest";
+		Entry entry = oldest;
+		//@TRACE 720=spilling the oldest data key={0}
+		LOGD(TAG, methodName+" 720");
+		openSpill().put(entry.key, copy(entry));
+		unlink(entry);
+		release(entry);
+		entry.slab = null;
+		spillCount++;
+	}
+
+	private MqttClientPersistence openSpill() throws MqttPersistenceException {
+		if (!spillOpen) {
+			spill.open(clientId, serverURI);
+			// Anything left from before is not ours to restore
+			spill.clear();
+			spillOpen = true;
+		}
+		return spill;
+	}
+
+	private MqttPersistable copy(Entry entry) {
+		byte[] bytes = new byte[entry.headerLength + entry.payloadLength];
+		ByteBuffer buffer = entry.slab.buffer;
+		buffer.position(entry.offset);
+		buffer.get(bytes);
+		return new MqttPersistentData(entry.key, bytes, 0, entry.headerLength,
+				bytes, entry.headerLength, entry.payloadLength);
+	}
+
+	/**
+	 * Frees the space taken by data held in memory. A slab is reused once
+	 * nothing in it is still stored, except one larger than the usual size
+	 * which is given up.
+	 */
+	private void release(Entry entry) {
+		Slab slab = entry.slab;
+		used -= entry.headerLength + entry.payloadLength;
+		if (--slab.live > 0) {
+			return;
+		}
+		slab.end = 0;
+		if (slab.buffer.capacity() != slabSize) {
+			allocated -= slab.buffer.capacity();
+		} else if (slab != current) {
+			freeSlabs.addElement(slab);
+		}
+	}
+
+	private void clearMemory() {
+		data.clear();
+		oldest = null;
+		newest = null;
+		used = 0;
+		if (current != null) {
+			current.end = 0;
+			current.live = 0;
+		}
+		// Only the free slabs and the current one are kept
+		allocated = (freeSlabs.size() + (current == null ? 0 : 1)) * slabSize;
+	}
+
+	private void link(Entry entry) {
+		entry.previous = newest;
+		entry.next = null;
+		if (newest == null) {
+			oldest = entry;
+		} else {
+			newest.next = entry;
+		}
+		newest = entry;
+	}
+
+	private void unlink(Entry entry) {
+		if (entry.previous == null) {
+			oldest = entry.next;
+		} else {
+			entry.previous.next = entry.next;
+		}
+		if (entry.next == null) {
+			newest = entry.previous;
+		} else {
+			entry.next.previous = entry.previous;
+		}
+		entry.previous = null;
+		entry.next = null;
+	}
+
+	/**
+	 * A block of direct memory that data is added to the end of.
+	 */
+	private static class Slab {
+		final ByteBuffer buffer;
+		// Where the next data goes, and how many pieces of data are stored
+		int end = 0;
+		int live = 0;
+
+		Slab(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * Where the data for a key is. Data that has been spilled has no slab.
+	 */
+	private static class Entry {
+		final String key;
+		Slab slab;
+		int offset;
+		int headerLength;
+		int payloadLength;
+		Entry previous = null;
+		Entry next = null;
+
+		Entry(String key, Slab slab, int offset, int headerLength, int payloadLength) {
+			this.key = key;
+			this.slab = slab;
+			this.offset = offset;
+			this.headerLength = headerLength;
+			this.payloadLength = payloadLength;
+		}
+	}
+}
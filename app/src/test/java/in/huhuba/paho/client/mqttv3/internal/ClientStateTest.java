@@ -0,0 +1,167 @@
+package in.huhuba.paho.client.mqttv3.internal;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import in.huhuba.paho.client.mqttv3.MqttException;
+import in.huhuba.paho.client.mqttv3.MqttMessage;
+import in.huhuba.paho.client.mqttv3.MqttPingSender;
+import in.huhuba.paho.client.mqttv3.MqttToken;
+import in.huhuba.paho.client.mqttv3.internal.wire.MqttPublish;
+import in.huhuba.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import in.huhuba.paho.client.mqttv3.persist.MemoryPersistence;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends publishes through the outbound queues of a {@link ClientState},
+ * taking them as the sender thread does.
+ */
+public class ClientStateTest {
+	private static final int PRODUCERS = 4;
+	private static final int PUBLISHES = 10000;
+	private static final int MAX_INFLIGHT = 50;
+
+	private CommsTokenStore tokenStore = new CommsTokenStore("test");
+
+	@Test
+	public void sendFailsOnceQueuedAndInFlightReachMaxInflight() throws Exception {
+		ClientState state = newConnectedState(10);
+		for (int i = 0; i < 10; i++) {
+			state.send(publish(0, i), new MqttToken("test"));
+		}
+		try {
+			state.send(publish(0, 10), new MqttToken("test"));
+			fail("expected the queue to be full");
+		} catch (MqttException ex) {
+			assertEquals(MqttException.REASON_CODE_MAX_INFLIGHT, ex.getReasonCode());
+		}
+
+		// Taking a publish moves it in flight, which still leaves no room
+		MqttWireMessage message = state.get();
+		try {
+			state.send(publish(0, 10), new MqttToken("test"));
+			fail("expected the queue to be full");
+		} catch (MqttException ex) {
+			assertEquals(MqttException.REASON_CODE_MAX_INFLIGHT, ex.getReasonCode());
+		}
+
+		// Once it has been sent, a QoS 0 publish is done with
+		sent(state, message);
+		state.send(publish(0, 10), new MqttToken("test"));
+	}
+
+	@Test(timeout = 60000)
+	public void concurrentSendersKeepTheirOrderWithinMaxInflight() throws Exception {
+		final ClientState state = newConnectedState(MAX_INFLIGHT);
+		final AtomicInteger inFlight = counter(state, "actualInFlight");
+		final AtomicInteger queued = counter(state, "queuedMessages");
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int[] next = new int[PRODUCERS];
+		final int[] highest = new int[1];
+		Thread sender = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < PRODUCERS * PUBLISHES; i++) {
+						MqttPublish message = (MqttPublish) state.get();
+						// Only this thread takes publishes off the queue or
+						// out of flight, so the sum cannot be caught half
+						// way through a move from one to the other
+						highest[0] = Math.max(highest[0], inFlight.get() + queued.get());
+						byte[] payload = message.getMessage().getPayload();
+						int producer = payload[0];
+						int sequence = ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+						assertEquals(next[producer]++, sequence);
+						sent(state, message);
+					}
+				} catch (Throwable ex) {
+					failure.set(ex);
+				}
+			}
+		};
+		sender.start();
+
+		Thread[] producers = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			producers[p] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < PUBLISHES; ) {
+							try {
+								state.send(publish(producer, i), new MqttToken("test"));
+								i++;
+							} catch (MqttException ex) {
+								assertEquals(MqttException.REASON_CODE_MAX_INFLIGHT, ex.getReasonCode());
+								Thread.yield();
+							}
+						}
+					} catch (Throwable ex) {
+						failure.set(ex);
+					}
+				}
+			};
+			producers[p].start();
+		}
+		for (int p = 0; p < PRODUCERS; p++) {
+			producers[p].join();
+		}
+		sender.join();
+
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		for (int p = 0; p < PRODUCERS; p++) {
+			assertEquals(PUBLISHES, next[p]);
+		}
+		assertTrue("queued and in flight reached " + highest[0], highest[0] <= MAX_INFLIGHT);
+	}
+
+	/**
+	 * Does what the sender thread does once it has written a message.
+	 */
+	private void sent(ClientState state, MqttWireMessage message) throws MqttException {
+		MqttToken token = tokenStore.getToken(message);
+		state.notifySending(message, token);
+		state.notifySent(message, token);
+	}
+
+	private static AtomicInteger counter(ClientState state, String name) throws Exception {
+		Field field = ClientState.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return (AtomicInteger) field.get(state);
+	}
+
+	private static MqttPublish publish(int producer, int sequence) {
+		byte[] payload = {(byte) producer, (byte) (sequence >> 16), (byte) (sequence >> 8), (byte) sequence};
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(0);
+		return new MqttPublish("test", message);
+	}
+
+	private ClientState newConnectedState(int maxInflight) throws MqttException {
+		MemoryPersistence persistence = new MemoryPersistence();
+		persistence.open("test", "tcp://localhost");
+		CommsCallback callback = new CommsCallback(null);
+		ClientState state = new ClientState(persistence, tokenStore, callback, null, new MqttPingSender() {
+			public void init(ClientComms comms) {
+			}
+
+			public void start() {
+			}
+
+			public void stop() {
+			}
+
+			public void schedule(long delayInMilliseconds) {
+			}
+		});
+		callback.setClientState(state);
+		state.setMaxInflight(maxInflight, false);
+		state.connected();
+		return state;
+	}
+}
@@ -0,0 +1,112 @@
+package in.huhuba.paho.client.mqttv3.internal;
+
+import java.lang.reflect.Field;
+import java.util.Vector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stores and removes entries in an {@link InflightTable}, across the whole
+ * range of message IDs.
+ */
+public class InflightTableTest {
+
+	@Test
+	public void putGetAndRemove() {
+		InflightTable table = new InflightTable();
+		assertNull(table.get(1));
+		assertEquals(0, table.getState(1));
+
+		assertNull(table.put(1, "one", 2));
+		assertEquals("one", table.get(1));
+		assertEquals(2, table.getState(1));
+		assertEquals(1, table.size());
+
+		// Replacing an entry does not change the size
+		assertEquals("one", table.put(1, "uno"));
+		assertEquals(0, table.getState(1));
+		assertEquals(1, table.size());
+
+		assertEquals("uno", table.remove(1));
+		assertNull(table.remove(1));
+		assertNull(table.get(1));
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void coversTheWholeIdRange() {
+		InflightTable table = new InflightTable();
+		table.put(MessageIdAllocator.MIN_MSG_ID, "min");
+		table.put(255, "255");
+		table.put(256, "256");
+		table.put(MessageIdAllocator.MAX_MSG_ID, "max");
+		assertEquals("min", table.get(MessageIdAllocator.MIN_MSG_ID));
+		assertEquals("255", table.get(255));
+		assertEquals("256", table.get(256));
+		assertEquals("max", table.get(MessageIdAllocator.MAX_MSG_ID));
+		assertEquals(4, table.size());
+	}
+
+	@Test
+	public void valuesAreInMessageIdOrder() {
+		InflightTable table = new InflightTable();
+		int[] ids = {60000, 3, 700, 2, 65535, 256};
+		for (int i = 0; i < ids.length; i++) {
+			table.put(ids[i], new Integer(ids[i]), ids[i] % 2);
+		}
+		Vector<Object> values = table.values();
+		assertEquals(ids.length, values.size());
+		int last = 0;
+		for (int i = 0; i < values.size(); i++) {
+			int id = ((Integer) values.elementAt(i)).intValue();
+			assertTrue(id > last);
+			last = id;
+		}
+
+		Vector<Object> odd = table.values(1);
+		assertEquals(2, odd.size());
+		assertEquals(new Integer(3), odd.elementAt(0));
+		assertEquals(new Integer(65535), odd.elementAt(1));
+	}
+
+	@Test
+	public void emptyPageIsReleased() throws Exception {
+		InflightTable table = new InflightTable();
+		table.put(300, "a");
+		table.put(301, "b");
+		Object[][] pages = pages(table);
+		assertNotNull(pages[1]);
+
+		table.remove(300);
+		assertNotNull(pages[1]);
+		table.remove(301);
+		assertNull(pages[1]);
+
+		// The page comes back, empty, when it is next needed
+		table.put(302, "c");
+		assertNotNull(pages[1]);
+		assertNull(table.get(300));
+		assertEquals(0, table.getState(301));
+	}
+
+	@Test
+	public void clearRemovesEverything() {
+		InflightTable table = new InflightTable();
+		for (int id = 1; id < 2000; id += 7) {
+			table.put(id, "x", 1);
+		}
+		table.clear();
+		assertEquals(0, table.size());
+		assertTrue(table.values().isEmpty());
+		assertNull(table.get(8));
+		assertEquals(0, table.getState(8));
+	}
+
+	private static Object[][] pages(InflightTable table) throws Exception {
+		Field field = InflightTable.class.getDeclaredField("values");
+		field.setAccessible(true);
+		return (Object[][]) field.get(table);
+	}
+}
@@ -0,0 +1,122 @@
+package in.huhuba.paho.client.mqttv3.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives an {@link InflightWindow} with made up send and ack times, so that
+ * its response to the round trip time can be checked without a network.
+ */
+public class InflightWindowTest {
+	private static final long MILLIS = 1000000L;
+	private static final long BASE_RTT = 10 * MILLIS;
+
+	@Test
+	public void fixedWindowStaysAtMaximum() {
+		InflightWindow window = new InflightWindow(50, false);
+		assertEquals(50, window.getWindow());
+		long now = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			now += BASE_RTT * (1 + i % 7);
+			window.onAck(now - BASE_RTT * (1 + i % 7), now);
+		}
+		window.onConnectionLost(true);
+		assertEquals(50, window.getWindow());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void windowMustHoldAMessage() {
+		new InflightWindow(0, true);
+	}
+
+	@Test
+	public void adaptiveWindowStartsSmallAndGrows() {
+		InflightWindow window = new InflightWindow(100, true);
+		assertEquals(10, window.getWindow());
+		assertEquals(3, new InflightWindow(3, true).getWindow());
+
+		// Acks as fast as ever double the window in a round trip
+		long now = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			window.onAck(now, now + BASE_RTT);
+		}
+		assertEquals(20, window.getWindow());
+
+		// but never past the maximum
+		for (int i = 0; i < 200; i++) {
+			window.onAck(now, now + BASE_RTT);
+		}
+		assertEquals(100, window.getWindow());
+	}
+
+	@Test
+	public void slowAckHalvesTheWindowOncePerRoundTrip() {
+		InflightWindow window = new InflightWindow(100, true);
+		long now = System.nanoTime();
+		for (int i = 0; i < 30; i++) {
+			now += BASE_RTT;
+			window.onAck(now - BASE_RTT, now);
+		}
+		int before = window.getWindow();
+
+		now += 500 * MILLIS;
+		window.onAck(now - 500 * MILLIS, now);
+		assertEquals(before / 2, window.getWindow());
+
+		// Acks for the rest of the same burst are as late, but do not halve
+		// it again
+		window.onAck(now - 500 * MILLIS, now);
+		window.onAck(now - 500 * MILLIS, now);
+		assertTrue(window.getWindow() >= before / 2 - 1);
+		assertEquals(new Long(1), window.getDebug().get("timeouts"));
+	}
+
+	@Test
+	public void connectionLossHalvesTheWindowOnlyWithMessagesInFlight() {
+		InflightWindow window = new InflightWindow(100, true);
+		window.onConnectionLost(false);
+		assertEquals(10, window.getWindow());
+		window.onConnectionLost(true);
+		assertEquals(5, window.getWindow());
+		for (int i = 0; i < 10; i++) {
+			window.onConnectionLost(true);
+		}
+		assertEquals(1, window.getWindow());
+	}
+
+	@Test
+	public void acksFromAnEarlierConnectionAreIgnored() {
+		InflightWindow window = new InflightWindow(100, true);
+		long sent = System.nanoTime();
+		window.onConnectionLost(false);
+		window.onAck(sent, sent + BASE_RTT);
+		window.onAck(0, sent + BASE_RTT);
+		assertEquals(10, window.getWindow());
+		assertEquals(new Long(0), window.getDebug().get("samples"));
+	}
+
+	@Test
+	public void settlesJustAboveWhatThePathCarries() {
+		// A path that carries 20 messages a round trip, and queues any more,
+		// adding to the round trip time of each
+		int pathCapacity = 20;
+		InflightWindow window = new InflightWindow(200, true);
+		long now = System.nanoTime();
+		int largest = 0;
+		for (int round = 0; round < 300; round++) {
+			int inFlight = window.getWindow();
+			largest = Math.max(largest, inFlight);
+			long rtt = BASE_RTT * Math.max(inFlight, pathCapacity) / pathCapacity;
+			now += rtt;
+			for (int i = 0; i < inFlight; i++) {
+				window.onAck(now - rtt, now);
+			}
+		}
+		// Slow start overshoots, then the window comes back down to leave
+		// only a few messages queued
+		assertTrue(largest >= 2 * pathCapacity);
+		assertTrue(window.getWindow() >= pathCapacity);
+		assertTrue(window.getWindow() <= pathCapacity + 5);
+	}
+}
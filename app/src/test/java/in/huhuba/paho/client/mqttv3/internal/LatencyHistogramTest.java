@@ -0,0 +1,88 @@
+package in.huhuba.paho.client.mqttv3.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records latencies in a {@link LatencyHistogram} and checks the
+ * percentiles read back against the exact values.
+ */
+public class LatencyHistogramTest {
+	private static final long MICROS = 1000L;
+	private static final long MILLIS = 1000000L;
+
+	@Test
+	public void emptyHistogramReportsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50), 0);
+		assertEquals(new Double(0), histogram.getDebug().get("min"));
+		assertEquals(new Double(0), histogram.getDebug().get("mean"));
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int us = 1; us <= 63; us++) {
+			histogram.record(us * MICROS);
+		}
+		assertEquals(0.001, histogram.getPercentile(0), 0);
+		assertEquals(0.032, histogram.getPercentile(50), 0);
+		assertEquals(0.063, histogram.getPercentile(100), 0);
+	}
+
+	@Test
+	public void bucketsSplitEachPowerOfTwo() {
+		// From 64 up each bucket is 1/32 of its power of two wide, so 64
+		// and 65 share a bucket and 66 starts the next
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(64 * MICROS);
+		histogram.record(66 * MICROS);
+		histogram.record(10000 * MICROS);
+		assertEquals(0.065, histogram.getPercentile(33), 0);
+		assertEquals(0.067, histogram.getPercentile(66), 0);
+		// The top bucket is reported no higher than what was recorded
+		assertEquals(10.0, histogram.getPercentile(100), 0);
+	}
+
+	@Test
+	public void percentilesAreWithinThreePercent() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i * 37 * MICROS);
+		}
+		assertEquals(10000, histogram.getCount());
+		double[] percentiles = {1, 10, 50, 90, 99, 99.9};
+		for (int i = 0; i < percentiles.length; i++) {
+			double exact = Math.ceil(percentiles[i] * 100) * 37 / 1000.0;
+			double reported = histogram.getPercentile(percentiles[i]);
+			assertTrue(percentiles[i] + ": " + reported + " below " + exact, reported >= exact);
+			assertTrue(percentiles[i] + ": " + reported + " above " + exact, reported <= exact * 1.03);
+		}
+		assertEquals(370.0, histogram.getPercentile(100), 0);
+	}
+
+	@Test
+	public void outOfRangeValuesAreClamped() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5 * MILLIS);
+		assertEquals(0, histogram.getPercentile(100), 0);
+
+		histogram.record(Long.MAX_VALUE);
+		double max = ((1L << 36) - 1) / 1000.0;
+		assertEquals(max, histogram.getPercentile(100), 0);
+		assertEquals(new Double(max), histogram.getDebug().get("max"));
+	}
+
+	@Test
+	public void resetForgetsEverything() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(5 * MILLIS);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		histogram.record(2 * MILLIS);
+		assertEquals(2.0, histogram.getPercentile(50), 0);
+		assertEquals(new Double(2.0), histogram.getDebug().get("min"));
+	}
+}
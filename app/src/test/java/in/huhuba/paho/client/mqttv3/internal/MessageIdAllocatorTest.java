@@ -0,0 +1,120 @@
+package in.huhuba.paho.client.mqttv3.internal;
+
+import org.junit.Test;
+
+import in.huhuba.paho.client.mqttv3.MqttException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Allocates and releases message IDs with {@link MessageIdAllocator},
+ * including wrapping round and running out.
+ */
+public class MessageIdAllocatorTest {
+
+	@Test
+	public void allocatesInAscendingOrder() throws Exception {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		for (int i = MessageIdAllocator.MIN_MSG_ID; i <= 200; i++) {
+			assertEquals(i, ids.allocate());
+			assertTrue(ids.isInUse(i));
+		}
+		assertEquals(200, ids.getInUseCount());
+		assertEquals(200, ids.getAllocationCount());
+	}
+
+	@Test
+	public void releasedIdIsNotReusedStraightAway() throws Exception {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		int first = ids.allocate();
+		int second = ids.allocate();
+		ids.release(first);
+		assertFalse(ids.isInUse(first));
+		assertEquals(second + 1, ids.allocate());
+	}
+
+	@Test
+	public void wrapsRoundAfterHighestId() throws Exception {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		ids.setLastMsgId(MessageIdAllocator.MAX_MSG_ID - 1);
+		assertEquals(MessageIdAllocator.MAX_MSG_ID, ids.allocate());
+		assertEquals(MessageIdAllocator.MIN_MSG_ID, ids.allocate());
+		assertEquals(MessageIdAllocator.MIN_MSG_ID + 1, ids.allocate());
+	}
+
+	@Test
+	public void wrapsRoundPastIdsInUse() throws Exception {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		// Everything from 1 to 199 is taken, leaving the scan to carry on
+		// from the end of the range into a later word
+		for (int i = MessageIdAllocator.MIN_MSG_ID; i < 200; i++) {
+			ids.markInUse(i);
+		}
+		ids.setLastMsgId(MessageIdAllocator.MAX_MSG_ID - 1);
+		assertEquals(MessageIdAllocator.MAX_MSG_ID, ids.allocate());
+		assertEquals(200, ids.allocate());
+	}
+
+	@Test
+	public void findsTheOnlyFreeIdBehindTheStart() throws Exception {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		for (int i = MessageIdAllocator.MIN_MSG_ID; i <= MessageIdAllocator.MAX_MSG_ID; i++) {
+			ids.markInUse(i);
+		}
+		// The free ID is earlier in the same word as the starting point, so
+		// is only found after going all the way round
+		ids.release(1000);
+		ids.setLastMsgId(1010);
+		assertEquals(1000, ids.allocate());
+	}
+
+	@Test
+	public void failsOnceEveryIdIsInUse() throws Exception {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		for (int i = MessageIdAllocator.MIN_MSG_ID; i <= MessageIdAllocator.MAX_MSG_ID; i++) {
+			assertEquals(i, ids.allocate());
+		}
+		assertEquals(MessageIdAllocator.MAX_MSG_ID, ids.getInUseCount());
+		try {
+			ids.allocate();
+			fail("expected no message IDs to be available");
+		} catch (MqttException ex) {
+			assertEquals(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE, ex.getReasonCode());
+		}
+		assertEquals(1, ids.getExhaustionCount());
+
+		ids.release(12345);
+		assertEquals(12345, ids.allocate());
+	}
+
+	@Test
+	public void markInUseAndReleaseAreIdempotent() throws Exception {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		ids.markInUse(7);
+		ids.markInUse(7);
+		assertEquals(1, ids.getInUseCount());
+		ids.release(7);
+		ids.release(7);
+		assertEquals(0, ids.getInUseCount());
+
+		// IDs outside the MQTT range are ignored
+		ids.markInUse(0);
+		ids.release(0);
+		ids.markInUse(MessageIdAllocator.MAX_MSG_ID + 1);
+		assertEquals(0, ids.getInUseCount());
+		assertTrue(ids.isInUse(0));
+	}
+
+	@Test
+	public void clearReleasesEveryIdButKeepsCounts() throws Exception {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		for (int i = 0; i < 10; i++) {
+			ids.allocate();
+		}
+		ids.clear();
+		assertEquals(0, ids.getInUseCount());
+		assertFalse(ids.isInUse(5));
+		assertEquals(10, ids.getAllocationCount());
+		assertEquals(11, ids.allocate());
+	}
+}
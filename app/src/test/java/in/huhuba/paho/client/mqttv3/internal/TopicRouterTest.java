@@ -0,0 +1,219 @@
+package in.huhuba.paho.client.mqttv3.internal;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import in.huhuba.paho.client.mqttv3.IMqttMessageListener;
+import in.huhuba.paho.client.mqttv3.MqttMessage;
+import in.huhuba.paho.client.mqttv3.MqttTopic;
+
+import static org.junit.Assert.*;
+
+/**
+ * Matches topics against filters with {@link TopicRouter} and
+ * {@link MqttTopic#isMatched(String, String)}, which must agree.
+ */
+public class TopicRouterTest {
+	// Filter, topic and whether they match, mostly from the examples in
+	// section 4.7 of the MQTT 3.1.1 specification
+	private static final Object[][] CASES = {
+			{"sport/tennis/player1", "sport/tennis/player1", Boolean.TRUE},
+			{"sport/tennis/player1", "sport/tennis/player2", Boolean.FALSE},
+			{"sport/tennis/player1", "sport/tennis", Boolean.FALSE},
+			{"sport/tennis/player1/#", "sport/tennis/player1", Boolean.TRUE},
+			{"sport/tennis/player1/#", "sport/tennis/player1/ranking", Boolean.TRUE},
+			{"sport/tennis/player1/#", "sport/tennis/player1/score/wimbledon", Boolean.TRUE},
+			{"sport/#", "sport", Boolean.TRUE},
+			{"sport/#", "sports", Boolean.FALSE},
+			{"#", "sport/tennis", Boolean.TRUE},
+			{"#", "/", Boolean.TRUE},
+			{"sport/tennis/+", "sport/tennis/player1", Boolean.TRUE},
+			{"sport/tennis/+", "sport/tennis/player1/ranking", Boolean.FALSE},
+			{"sport/+", "sport", Boolean.FALSE},
+			{"sport/+", "sport/", Boolean.TRUE},
+			{"+/+", "/finance", Boolean.TRUE},
+			{"/+", "/finance", Boolean.TRUE},
+			{"+", "/finance", Boolean.FALSE},
+			{"+", "finance", Boolean.TRUE},
+			{"a/+/c", "a//c", Boolean.TRUE},
+			{"a/b", "a/b/", Boolean.FALSE},
+			{"a/b/", "a/b", Boolean.FALSE},
+			{"+/b/#", "x/b", Boolean.TRUE},
+			{"+/+/#", "x", Boolean.FALSE},
+			// Wildcards at the first level do not match topics starting
+			// with $, but can further down
+			{"#", "$SYS/broker/clients", Boolean.FALSE},
+			{"+/broker/clients", "$SYS/broker/clients", Boolean.FALSE},
+			{"+", "$SYS", Boolean.FALSE},
+			{"$SYS/#", "$SYS/broker/clients", Boolean.TRUE},
+			{"$SYS/+/clients", "$SYS/broker/clients", Boolean.TRUE},
+			{"$SYS/broker/+", "$SYS/broker/clients", Boolean.TRUE},
+			{"$SYS", "$SYS", Boolean.TRUE},
+			{"a/$b", "a/$b", Boolean.TRUE},
+			{"a/+", "a/$b", Boolean.TRUE},
+			{"a/#", "a/$b/c", Boolean.TRUE},
+	};
+
+	@Test
+	public void isMatchedFollowsTheSpecification() {
+		for (int i = 0; i < CASES.length; i++) {
+			String filter = (String) CASES[i][0];
+			String topic = (String) CASES[i][1];
+			assertEquals(filter + " " + topic, CASES[i][2], Boolean.valueOf(MqttTopic.isMatched(filter, topic)));
+		}
+	}
+
+	@Test
+	public void routerFollowsTheSpecification() throws Exception {
+		for (int i = 0; i < CASES.length; i++) {
+			String filter = (String) CASES[i][0];
+			String topic = (String) CASES[i][1];
+			TopicRouter router = new TopicRouter();
+			CountingListener listener = new CountingListener();
+			router.put(filter, listener);
+			boolean expected = ((Boolean) CASES[i][2]).booleanValue();
+			assertEquals(filter + " " + topic, expected ? 1 : 0, router.deliver(topic, new MqttMessage()));
+			assertEquals(filter + " " + topic, expected ? 1 : 0, listener.count);
+		}
+	}
+
+	@Test
+	public void routerAgreesWithIsMatched() throws Exception {
+		String[] levels = {"a", "b", "", "$c"};
+		Random random = new Random(1);
+		String[] filters = new String[300];
+		HashSet<String> distinct = new HashSet<String>();
+		TopicRouter router = new TopicRouter();
+		for (int i = 0; i < filters.length; i++) {
+			do {
+				filters[i] = randomName(random, levels, true);
+			} while (!distinct.add(filters[i]));
+			router.put(filters[i], new CountingListener());
+		}
+		for (int i = 0; i < 2000; i++) {
+			String topic = randomName(random, levels, false);
+			int expected = 0;
+			for (int f = 0; f < filters.length; f++) {
+				if (MqttTopic.isMatched(filters[f], topic)) {
+					expected++;
+				}
+			}
+			assertEquals(topic, expected, router.deliver(topic, new MqttMessage()));
+		}
+	}
+
+	@Test
+	public void putReplacesAndRemoveClearsListeners() throws Exception {
+		TopicRouter router = new TopicRouter();
+		assertTrue(router.isEmpty());
+		CountingListener first = new CountingListener();
+		CountingListener second = new CountingListener();
+		assertNull(router.put("a/+", first));
+		assertSame(first, router.put("a/+", second));
+		assertEquals(1, router.size());
+
+		assertEquals(1, router.deliver("a/b", new MqttMessage()));
+		assertEquals(0, first.count);
+		assertEquals(1, second.count);
+
+		assertNull(router.remove("a/#"));
+		assertNull(router.remove("a"));
+		assertSame(second, router.remove("a/+"));
+		assertNull(router.remove("a/+"));
+		assertTrue(router.isEmpty());
+		assertEquals(0, router.deliver("a/b", new MqttMessage()));
+	}
+
+	@Test
+	public void removingOneFilterKeepsThoseBelowAndBeside() throws Exception {
+		TopicRouter router = new TopicRouter();
+		router.put("a", new CountingListener());
+		router.put("a/b", new CountingListener());
+		router.put("a/#", new CountingListener());
+		router.remove("a");
+		assertEquals(2, router.size());
+		assertEquals(2, router.deliver("a/b", new MqttMessage()));
+		assertEquals(1, router.deliver("a", new MqttMessage()));
+	}
+
+	@Test
+	public void listenerCanUnsubscribeWhileMessageIsDelivered() throws Exception {
+		final TopicRouter router = new TopicRouter();
+		router.put("a/#", new IMqttMessageListener() {
+			public void messageArrived(String topic, MqttMessage message) {
+				router.remove("a/#");
+			}
+		});
+		router.put("a/b", new CountingListener());
+		assertEquals(2, router.deliver("a/b", new MqttMessage()));
+		assertEquals(1, router.deliver("a/b", new MqttMessage()));
+	}
+
+	@Test
+	public void deliveryVisitsTheSameNodesHoweverManyFiltersThereAre() throws Exception {
+		CountingRouter few = new CountingRouter();
+		CountingRouter many = new CountingRouter();
+		for (int i = 0; i < 10000; i++) {
+			if (i < 10) {
+				few.put("device/" + i + "/+", new CountingListener());
+			}
+			many.put("device/" + i + "/+", new CountingListener());
+		}
+		few.put("sensor/+/temperature", new CountingListener());
+		many.put("sensor/+/temperature", new CountingListener());
+
+		String[] topics = {"sensor/7/temperature", "device/3/status", "device/3", "other"};
+		for (int i = 0; i < topics.length; i++) {
+			few.nodes = 0;
+			many.nodes = 0;
+			assertEquals(topics[i], few.deliver(topics[i], new MqttMessage()),
+					many.deliver(topics[i], new MqttMessage()));
+			assertEquals(topics[i], few.nodes, many.nodes);
+			// No more than the root and one node for each level, as these
+			// filters never offer a level both by name and as +
+			int levels = topics[i].split("/").length;
+			assertTrue(topics[i] + " visited " + many.nodes, many.nodes <= levels + 1);
+		}
+	}
+
+	/**
+	 * Returns a topic name, or a filter with wildcards, of one to four
+	 * levels.
+	 */
+	private static String randomName(Random random, String[] levels, boolean filter) {
+		StringBuffer name = new StringBuffer();
+		int count = 1 + random.nextInt(4);
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				name.append(MqttTopic.TOPIC_LEVEL_SEPARATOR);
+			}
+			int choice = random.nextInt(filter ? levels.length + 2 : levels.length);
+			if (choice < levels.length) {
+				name.append(levels[choice]);
+			} else if (choice == levels.length || i < count - 1) {
+				name.append(MqttTopic.SINGLE_LEVEL_WILDCARD);
+			} else {
+				name.append(MqttTopic.MULTI_LEVEL_WILDCARD);
+			}
+		}
+		return name.toString();
+	}
+
+	private static class CountingRouter extends TopicRouter {
+		int nodes = 0;
+
+		void visited() {
+			nodes++;
+		}
+	}
+
+	private static class CountingListener implements IMqttMessageListener {
+		int count = 0;
+
+		public void messageArrived(String topic, MqttMessage message) {
+			count++;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package in.huhuba.paho.client.mqttv3.internal.wire;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import in.huhuba.paho.client.mqttv3.MqttException;
+import in.huhuba.paho.client.mqttv3.MqttMessage;
+import in.huhuba.paho.client.mqttv3.internal.ClientState;
+import in.huhuba.paho.client.mqttv3.internal.CommsTokenStore;
+import in.huhuba.paho.client.mqttv3.persist.MemoryPersistence;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encodes packets with {@link MqttWireMessage#encodeTo(ByteBuffer)} and
+ * decodes them again with {@link MqttInputStream}.
+ */
+public class MqttWireMessageTest {
+	// Payload lengths either side of where the remaining length needs
+	// another byte, and of the input stream's read buffer
+	private static final int[] PAYLOAD_LENGTHS = {0, 1, 100, 117, 118, 16000, 16500, 40000};
+
+	@Test
+	public void encodeToMatchesHeaderAndPayload() throws Exception {
+		for (int i = 0; i < PAYLOAD_LENGTHS.length; i++) {
+			MqttPublish publish = publish("a/b", PAYLOAD_LENGTHS[i], i % 3, i);
+			byte[] encoded = encode(publish);
+			assertEquals(publish.getEncodedLength(), encoded.length);
+
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			expected.write(publish.getHeader());
+			expected.write(publish.getPayload());
+			assertArrayEquals(expected.toByteArray(), encoded);
+		}
+	}
+
+	@Test
+	public void encodeToStartsAtBufferPosition() throws Exception {
+		MqttPublish publish = publish("t", 10, 1, 7);
+		ByteBuffer buffer = ByteBuffer.allocate(publish.getEncodedLength() + 5);
+		buffer.position(3);
+		publish.encodeTo(buffer);
+		assertEquals(3 + publish.getEncodedLength(), buffer.position());
+		assertArrayEquals(encode(publish), Arrays.copyOfRange(buffer.array(), 3, buffer.position()));
+	}
+
+	@Test
+	public void publishesRoundTrip() throws Exception {
+		MqttPublish[] sent = new MqttPublish[PAYLOAD_LENGTHS.length];
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < sent.length; i++) {
+			sent[i] = publish("topic/" + i, PAYLOAD_LENGTHS[i], i % 3, i + 1);
+			sent[i].getMessage().setRetained(i % 2 == 0);
+			stream.write(encode(sent[i]));
+		}
+
+		// Read in small pieces, so that packets arrive split across reads
+		MqttInputStream in = newInputStream(new TrickleInputStream(stream.toByteArray(), 1000));
+		for (int i = 0; i < sent.length; i++) {
+			MqttPublish received = (MqttPublish) in.readMqttWireMessage();
+			MqttMessage message = received.getMessage();
+			assertEquals(sent[i].getTopicName(), received.getTopicName());
+			assertEquals(sent[i].getMessage().getQos(), message.getQos());
+			assertEquals(sent[i].getMessage().isRetained(), message.isRetained());
+			if (message.getQos() > 0) {
+				assertEquals(sent[i].getMessageId(), received.getMessageId());
+			}
+			assertArrayEquals(sent[i].getMessage().getPayload(), message.getPayload());
+		}
+	}
+
+	@Test
+	public void controlPacketsRoundTrip() throws Exception {
+		MqttPublish publish = publish("t", 4, 2, 42);
+		MqttWireMessage[] sent = {
+				new MqttSubscribe(new String[] {"a/+", "b/#"}, new int[] {1, 2}),
+				new MqttUnsubscribe(new String[] {"a/+"}),
+				new MqttPubAck(publish),
+				new MqttPubRec(publish),
+				new MqttPubRel(new MqttPubRec(publish)),
+				new MqttPubComp(42),
+				new MqttPingReq(),
+				new MqttDisconnect()
+		};
+		sent[0].setMessageId(5);
+		sent[1].setMessageId(6);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < sent.length; i++) {
+			stream.write(encode(sent[i]));
+		}
+
+		MqttInputStream in = newInputStream(new ByteArrayInputStream(stream.toByteArray()));
+		for (int i = 0; i < sent.length; i++) {
+			MqttWireMessage received = in.readMqttWireMessage();
+			assertEquals(sent[i].getType(), received.getType());
+			assertEquals(sent[i].getMessageId(), received.getMessageId());
+			if (received instanceof MqttSubscribe || received instanceof MqttUnsubscribe) {
+				// Only a server receives these, and their decoders do not
+				// keep enough to encode them again
+				continue;
+			}
+			// Encoding what was decoded gives the same bytes again
+			assertArrayEquals(encode(sent[i]), encode(received));
+		}
+	}
+
+	@Test
+	public void receivedPayloadIsNotChangedByLaterReads() throws Exception {
+		MqttPublish first = publish("t", 50, 0, 0);
+		MqttPublish second = publish("t", 50, 0, 0);
+		Arrays.fill(second.getMessage().getPayload(), (byte) 0x55);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(encode(first));
+		stream.write(encode(second));
+
+		MqttInputStream in = newInputStream(new TrickleInputStream(stream.toByteArray(), 1));
+		MqttMessage received = ((MqttPublish) in.readMqttWireMessage()).getMessage();
+		in.readMqttWireMessage();
+		assertArrayEquals(first.getMessage().getPayload(), received.getPayload());
+	}
+
+	@Test
+	public void encodingIntoTheSendBufferDoesNotAllocate() throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+		allocations.setThreadAllocatedMemoryEnabled(true);
+
+		MqttPublish publish = publish("sensor/7/temperature", 100, 1, 42);
+		MqttWireMessage[] messages = {
+				publish,
+				new MqttPubAck(publish),
+				new MqttPubRec(publish),
+				new MqttPubRel(new MqttPubRec(publish)),
+				new MqttPubComp(42),
+				new MqttPingReq(),
+				new MqttDisconnect()
+		};
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		// Once first, so that loading and initializing classes is not counted
+		encodeAll(messages, buffer, 1);
+
+		long id = Thread.currentThread().getId();
+		long before = allocations.getThreadAllocatedBytes(id);
+		long overhead = allocations.getThreadAllocatedBytes(id) - before;
+		before = allocations.getThreadAllocatedBytes(id);
+		encodeAll(messages, buffer, 1000);
+		long allocated = allocations.getThreadAllocatedBytes(id) - before - overhead;
+		// Anything allocated for each packet would come to many kilobytes
+		assertTrue(allocated + " bytes allocated", allocated < 1000);
+	}
+
+	private static void encodeAll(MqttWireMessage[] messages, ByteBuffer buffer, int times) throws MqttException {
+		for (int t = 0; t < times; t++) {
+			for (int i = 0; i < messages.length; i++) {
+				buffer.clear();
+				messages[i].getEncodedLength();
+				messages[i].encodeTo(buffer);
+			}
+		}
+	}
+
+	private static MqttPublish publish(String topic, int length, int qos, int msgId) {
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) (i * 31 + length);
+		}
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(qos);
+		MqttPublish publish = new MqttPublish(topic, message);
+		if (qos > 0) {
+			publish.setMessageId(msgId);
+		}
+		return publish;
+	}
+
+	private static byte[] encode(MqttWireMessage message) throws MqttException {
+		ByteBuffer buffer = ByteBuffer.allocate(message.getEncodedLength());
+		message.encodeTo(buffer);
+		assertFalse(buffer.hasRemaining());
+		return buffer.array();
+	}
+
+	private static MqttInputStream newInputStream(InputStream in) throws MqttException {
+		MemoryPersistence persistence = new MemoryPersistence();
+		persistence.open("test", "tcp://localhost");
+		ClientState state = new ClientState(persistence, new CommsTokenStore("test"), null, null, null) {
+		};
+		return new MqttInputStream(state, in);
+	}
+
+	/**
+	 * Returns no more than a set number of bytes from each read.
+	 */
+	private static class TrickleInputStream extends ByteArrayInputStream {
+		private final int chunk;
+
+		TrickleInputStream(byte[] data, int chunk) {
+			super(data);
+			this.chunk = chunk;
+		}
+
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, chunk));
+		}
+
+		public synchronized int available() {
+			return Math.min(super.available(), chunk);
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package in.huhuba.paho.client.mqttv3.persist;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import in.huhuba.paho.client.mqttv3.MqttCommitListener;
+import in.huhuba.paho.client.mqttv3.MqttPersistable;
+import in.huhuba.paho.client.mqttv3.MqttPersistenceException;
+import in.huhuba.paho.client.mqttv3.internal.MqttPersistentData;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stores messages with {@link MqttLogFilePersistence}, and opens the log
+ * again after it has been closed or damaged as a crash would leave it.
+ */
+public class MqttLogFilePersistenceTest {
+	private static final String CLIENT_ID = "client";
+	private static final String SERVER_URI = "tcp://localhost:1883";
+	private static final int SEGMENT_SIZE = 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MqttLogFilePersistence persistence;
+
+	@Before
+	public void setUp() throws Exception {
+		persistence = open();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		persistence.close();
+	}
+
+	@Test
+	public void putGetAndRemoveSurviveReopening() throws Exception {
+		persistence.put("s-1", data("s-1", 100));
+		persistence.put("s-2", data("s-2", 100));
+		persistence.put("s-1", data("s-1", 30));
+		persistence.remove("s-2");
+		assertData("s-1", 30, persistence.get("s-1"));
+		assertFalse(persistence.containsKey("s-2"));
+
+		reopen();
+		assertEquals(Collections.singletonList("s-1"), Collections.list(persistence.keys()));
+		assertData("s-1", 30, persistence.get("s-1"));
+	}
+
+	@Test(expected = MqttPersistenceException.class)
+	public void getOfMissingKeyFails() throws Exception {
+		persistence.get("s-1");
+	}
+
+	@Test
+	public void recoversFromTruncatedTailRecord() throws Exception {
+		persistence.put("s-1", data("s-1", 100));
+		persistence.put("s-2", data("s-2", 100));
+		persistence.close();
+
+		// Lose the end of the last record, as a write cut short would
+		File segment = newestSegment();
+		int end = endOfData(segment);
+		writeZeros(segment, end - 40, 40);
+
+		persistence = open();
+		assertTrue(persistence.containsKey("s-1"));
+		assertFalse(persistence.containsKey("s-2"));
+		assertData("s-1", 100, persistence.get("s-1"));
+
+		// What was left of the damaged record has been cleared, so records
+		// written after it are found on the next recovery
+		persistence.put("s-3", data("s-3", 10));
+		reopen();
+		assertTrue(persistence.containsKey("s-1"));
+		assertFalse(persistence.containsKey("s-2"));
+		assertData("s-3", 10, persistence.get("s-3"));
+	}
+
+	@Test
+	public void recoversFromCorruptTailRecord() throws Exception {
+		persistence.put("s-1", data("s-1", 100));
+		persistence.put("s-2", data("s-2", 100));
+		persistence.close();
+
+		File segment = newestSegment();
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek(endOfData(segment) - 3);
+			file.write(0x55);
+		} finally {
+			file.close();
+		}
+
+		persistence = open();
+		assertTrue(persistence.containsKey("s-1"));
+		assertFalse(persistence.containsKey("s-2"));
+	}
+
+	@Test
+	public void recoversAcrossSegments() throws Exception {
+		// Several records to a segment, so these take a good many. Removing
+		// only a third of them leaves the segments short of compaction.
+		for (int i = 0; i < 50; i++) {
+			persistence.put("s-" + i, data("s-" + i, 200));
+		}
+		for (int i = 0; i < 50; i += 3) {
+			persistence.remove("s-" + i);
+		}
+		persistence.put("s-tail", data("s-tail", 200));
+		persistence.close();
+		assertTrue(segments().length > 10);
+		File segment = newestSegment();
+		writeZeros(segment, endOfData(segment) - 1, 1);
+
+		persistence = open();
+		for (int i = 0; i < 50; i++) {
+			if (i % 3 == 0) {
+				assertFalse(persistence.containsKey("s-" + i));
+			} else {
+				assertData("s-" + i, 200, persistence.get("s-" + i));
+			}
+		}
+		assertFalse(persistence.containsKey("s-tail"));
+	}
+
+	@Test
+	public void compactsSegmentsOnceTheirRecordsAreRemoved() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			persistence.put("s-" + i, data("s-" + i, 200));
+		}
+		int written = segments().length;
+		for (int i = 0; i < 95; i++) {
+			persistence.remove("s-" + i);
+		}
+		// Sealing another segment queues the old ones for compaction
+		for (int i = 0; i < 10; i++) {
+			persistence.put("t-" + i, data("t-" + i, 200));
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (segments().length >= written && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(segments().length < written);
+
+		reopen();
+		assertEquals(15, Collections.list(persistence.keys()).size());
+		assertData("s-99", 200, persistence.get("s-99"));
+		assertData("t-9", 200, persistence.get("t-9"));
+	}
+
+	@Test
+	public void groupCommitReportsCommittedRecords() throws Exception {
+		persistence.close();
+		persistence = new MqttLogFilePersistence(folder.getRoot().getPath(), SEGMENT_SIZE);
+		persistence.setDurability(MqttLogFilePersistence.DURABILITY_GROUP_COMMIT);
+		persistence.setGroupCommit(8, 1);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		final long[] reported = new long[1];
+		persistence.setCommitListener(new MqttCommitListener() {
+			public void committed(long sequence) {
+				synchronized (reported) {
+					reported[0] = Math.max(reported[0], sequence);
+					reported.notifyAll();
+				}
+			}
+
+			public void commitFailed(MqttPersistenceException cause) {
+			}
+		});
+
+		long last = 0;
+		for (int i = 0; i < 20; i++) {
+			last = persistence.putUncommitted("s-" + i, data("s-" + i, 50));
+		}
+		synchronized (reported) {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (reported[0] < last && System.currentTimeMillis() < deadline) {
+				reported.wait(100);
+			}
+		}
+		assertEquals(last, reported[0]);
+		assertEquals(last, persistence.getCommittedSequence());
+
+		// put() waits for its own record to be committed
+		persistence.put("s-20", data("s-20", 50));
+		assertEquals(last + 1, persistence.getCommittedSequence());
+	}
+
+	private MqttLogFilePersistence open() throws MqttPersistenceException {
+		MqttLogFilePersistence log = new MqttLogFilePersistence(folder.getRoot().getPath(), SEGMENT_SIZE);
+		log.open(CLIENT_ID, SERVER_URI);
+		return log;
+	}
+
+	private void reopen() throws MqttPersistenceException {
+		persistence.close();
+		persistence = open();
+	}
+
+	private File[] segments() {
+		File[] dirs = folder.getRoot().listFiles();
+		assertEquals(1, dirs.length);
+		File[] files = dirs[0].listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".log");
+			}
+		});
+		return files;
+	}
+
+	private File newestSegment() {
+		File[] files = segments();
+		long newest = -1;
+		File result = null;
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			long sequence = Long.parseLong(name.substring(0, name.length() - 4));
+			if (sequence > newest) {
+				newest = sequence;
+				result = files[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the offset just past the last record, as the payloads never
+	 * end in a zero byte.
+	 */
+	private static int endOfData(File segment) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try {
+			byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			int end = data.length;
+			while (end > 0 && data[end - 1] == 0) {
+				end--;
+			}
+			return end;
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void writeZeros(File segment, int offset, int length) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek(offset);
+			file.write(new byte[length]);
+		} finally {
+			file.close();
+		}
+	}
+
+	static MqttPersistable data(String key, int payloadLength) {
+		byte[] header = (key + ":header").getBytes();
+		byte[] payload = new byte[payloadLength];
+		for (int i = 0; i < payloadLength; i++) {
+			payload[i] = (byte) (1 + (i + key.length()) % 200);
+		}
+		return new MqttPersistentData(key, header, 0, header.length, payload, 0, payloadLength);
+	}
+
+	static void assertData(String key, int payloadLength, MqttPersistable stored) throws Exception {
+		MqttPersistable expected = data(key, payloadLength);
+		byte[] all = new byte[expected.getHeaderLength() + payloadLength];
+		System.arraycopy(expected.getHeaderBytes(), 0, all, 0, expected.getHeaderLength());
+		System.arraycopy(expected.getPayloadBytes(), 0, all, expected.getHeaderLength(), payloadLength);
+
+		byte[] actual = new byte[stored.getHeaderLength() + stored.getPayloadLength()];
+		System.arraycopy(stored.getHeaderBytes(), stored.getHeaderOffset(), actual, 0, stored.getHeaderLength());
+		if (stored.getPayloadLength() > 0) {
+			System.arraycopy(stored.getPayloadBytes(), stored.getPayloadOffset(), actual,
+					stored.getHeaderLength(), stored.getPayloadLength());
+		}
+		assertTrue(key, Arrays.equals(all, actual));
+	}
+}
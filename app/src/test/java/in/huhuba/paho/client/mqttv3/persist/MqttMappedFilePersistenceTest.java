@@ -0,0 +1,298 @@
+package in.huhuba.paho.client.mqttv3.persist;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import in.huhuba.paho.client.mqttv3.MqttMessage;
+import in.huhuba.paho.client.mqttv3.MqttPersistable;
+import in.huhuba.paho.client.mqttv3.MqttPersistenceException;
+import in.huhuba.paho.client.mqttv3.internal.MqttPersistentData;
+import in.huhuba.paho.client.mqttv3.internal.wire.MqttPublish;
+
+import static in.huhuba.paho.client.mqttv3.persist.MqttLogFilePersistenceTest.assertData;
+import static in.huhuba.paho.client.mqttv3.persist.MqttLogFilePersistenceTest.data;
+import static org.junit.Assert.*;
+
+/**
+ * Stores messages with {@link MqttMappedFilePersistence}, letting the log
+ * wrap round the end of the file, and opens it again after it has been
+ * closed or damaged as a crash would leave it.
+ */
+public class MqttMappedFilePersistenceTest {
+	private static final String CLIENT_ID = "client";
+	private static final String SERVER_URI = "tcp://localhost:1883";
+	private static final int RING_SIZE = 2048;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MqttMappedFilePersistence persistence;
+
+	@Before
+	public void setUp() throws Exception {
+		persistence = open(RING_SIZE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		persistence.close();
+	}
+
+	@Test
+	public void putGetAndRemoveSurviveReopening() throws Exception {
+		persistence.put("s-1", data("s-1", 100));
+		persistence.put("s-2", data("s-2", 100));
+		persistence.put("s-1", data("s-1", 30));
+		persistence.remove("s-2");
+		assertData("s-1", 30, persistence.get("s-1"));
+		assertFalse(persistence.containsKey("s-2"));
+		assertNull(persistence.getView("s-2"));
+
+		reopen();
+		assertEquals(Collections.singletonList("s-1"), Collections.list(persistence.keys()));
+		assertData("s-1", 30, persistence.get("s-1"));
+		ByteBuffer view = persistence.getView("s-1");
+		assertEquals(persistence.get("s-1").getHeaderLength(), view.remaining());
+		assertTrue(view.isReadOnly());
+	}
+
+	@Test
+	public void arraysAndBuffersAreWrittenAlike() throws Exception {
+		// Header and payload part way through larger arrays
+		MqttPersistable one = data("s-1", 100);
+		byte[] header = new byte[one.getHeaderLength() + 8];
+		System.arraycopy(one.getHeaderBytes(), 0, header, 3, one.getHeaderLength());
+		byte[] payload = new byte[108];
+		System.arraycopy(one.getPayloadBytes(), 0, payload, 5, 100);
+		persistence.put("s-1", new MqttPersistentData("s-1", header, 3, one.getHeaderLength(), payload, 5, 100));
+
+		// A payload in a direct buffer
+		MqttPersistable two = data("s-2", 100);
+		ByteBuffer direct = ByteBuffer.allocateDirect(100);
+		direct.put(two.getPayloadBytes()).flip();
+		persistence.putBuffer("s-2", ByteBuffer.wrap(two.getHeaderBytes()), direct);
+		assertEquals(100, direct.remaining());
+
+		MqttPersistable three = data("s-3", 50);
+		persistence.putAll(new String[] {"s-3", "s-4"},
+				new ByteBuffer[] {ByteBuffer.wrap(three.getHeaderBytes()), ByteBuffer.wrap(data("s-4", 0).getHeaderBytes())},
+				new ByteBuffer[] {ByteBuffer.wrap(three.getPayloadBytes()), null});
+
+		// Reopening checks each record's CRC
+		reopen();
+		assertData("s-1", 100, persistence.get("s-1"));
+		assertData("s-2", 100, persistence.get("s-2"));
+		assertData("s-3", 50, persistence.get("s-3"));
+		assertData("s-4", 0, persistence.get("s-4"));
+	}
+
+	@Test
+	public void recoversFromTruncatedTailRecord() throws Exception {
+		persistence.put("s-1", data("s-1", 100));
+		persistence.put("s-2", data("s-2", 100));
+		persistence.put("s-3", data("s-3", 100));
+		persistence.close();
+
+		damageRecord("s-3", 100);
+
+		persistence = open(RING_SIZE);
+		assertData("s-1", 100, persistence.get("s-1"));
+		assertData("s-2", 100, persistence.get("s-2"));
+		assertFalse(persistence.containsKey("s-3"));
+
+		// The next record takes the damaged one's place, and is found on
+		// the next recovery
+		persistence.put("s-4", data("s-4", 50));
+		reopen();
+		assertEquals(new HashSet<String>(Arrays.asList("s-1", "s-2", "s-4")),
+				new HashSet<String>(Collections.list(persistence.keys())));
+		assertData("s-4", 50, persistence.get("s-4"));
+	}
+
+	@Test
+	public void wrapsRoundTheEndOfTheFile() throws Exception {
+		// Keep a few records in use, so that the log never empties and has
+		// to wrap round rather than start again at the beginning
+		int live = 3;
+		int i = 0;
+		boolean wrapped = false;
+		for (; i < 200 && !(wrapped && i > 50); i++) {
+			persistence.put("s-" + i, data("s-" + i, 200));
+			if (i >= live) {
+				persistence.remove("s-" + (i - live));
+			}
+			wrapped = intField("tail") < intField("head");
+		}
+		assertTrue(wrapped);
+		int newest = i - 1;
+		for (int k = newest - live + 1; k <= newest; k++) {
+			assertData("s-" + k, 200, persistence.get("s-" + k));
+		}
+
+		reopen();
+		assertEquals(live, Collections.list(persistence.keys()).size());
+		for (int k = newest - live + 1; k <= newest; k++) {
+			assertData("s-" + k, 200, persistence.get("s-" + k));
+		}
+
+		// Damage the newest record, which lies behind the head at the start
+		// of the file, and the older ones past it are still recovered
+		persistence.close();
+		damageRecord("s-" + newest, 200);
+		persistence = open(RING_SIZE);
+		assertFalse(persistence.containsKey("s-" + newest));
+		for (int k = newest - live + 1; k < newest; k++) {
+			assertData("s-" + k, 200, persistence.get("s-" + k));
+		}
+	}
+
+	@Test
+	public void matchesAModelThroughWrapsAndReopens() throws Exception {
+		persistence.close();
+		persistence = open(8192);
+		Random random = new Random(1);
+		Hashtable<String, byte[]> model = new Hashtable<String, byte[]>();
+		for (int step = 1; step <= 20000; step++) {
+			String key = "s-" + random.nextInt(30);
+			if (random.nextInt(3) > 0) {
+				byte[] header = new byte[2 + random.nextInt(300)];
+				random.nextBytes(header);
+				try {
+					persistence.put(key, new MqttPersistentData(key, header, 0, header.length, null, 0, 0));
+					model.put(key, header);
+				} catch (MqttPersistenceException ex) {
+					assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_FULL, ex.getReasonCode());
+				}
+			} else {
+				persistence.remove(key);
+				model.remove(key);
+			}
+			if (step % 997 == 0) {
+				persistence.close();
+				persistence = open(8192);
+			}
+			if (step % 500 == 0) {
+				assertMatches(model);
+			}
+		}
+	}
+
+	@Test
+	public void rejectsPutWhenFull() throws Exception {
+		int i = 0;
+		try {
+			for (; i < 100; i++) {
+				persistence.put("s-" + i, data("s-" + i, 200));
+			}
+			fail("expected the persistence to fill up");
+		} catch (MqttPersistenceException ex) {
+			assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_FULL, ex.getReasonCode());
+		}
+		assertTrue(i > 0);
+		assertFalse(persistence.containsKey("s-" + i));
+		for (int k = 0; k < i; k++) {
+			assertData("s-" + k, 200, persistence.get("s-" + k));
+		}
+	}
+
+	@Test
+	public void discardsOldestQoS1PublishesWhenFull() throws Exception {
+		persistence.setFullPolicy(MqttMappedFilePersistence.FULL_DISCARD_OLDEST_QOS1);
+		persistence.put("r-1", publish(2, 100));
+		for (int i = 0; i < 50; i++) {
+			persistence.put("s-" + i, publish(1, 200));
+		}
+		assertTrue(persistence.getDiscardedCount() > 0);
+		assertTrue(persistence.containsKey("r-1"));
+		assertTrue(persistence.containsKey("s-49"));
+		assertFalse(persistence.containsKey("s-0"));
+		assertEquals(51 - persistence.getDiscardedCount(), Collections.list(persistence.keys()).size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownFullPolicy() {
+		persistence.setFullPolicy(5);
+	}
+
+	private MqttMappedFilePersistence open(int ringSize) throws MqttPersistenceException {
+		MqttMappedFilePersistence ring = new MqttMappedFilePersistence(folder.getRoot().getPath(), ringSize);
+		ring.setSync(false);
+		ring.open(CLIENT_ID, SERVER_URI);
+		return ring;
+	}
+
+	private void reopen() throws MqttPersistenceException {
+		persistence.close();
+		persistence = open(RING_SIZE);
+	}
+
+	private void assertMatches(Hashtable<String, byte[]> model) throws Exception {
+		assertEquals(model.keySet(), new HashSet<String>(Collections.list(persistence.keys())));
+		for (String key : model.keySet()) {
+			byte[] expected = model.get(key);
+			ByteBuffer view = persistence.getView(key);
+			byte[] actual = new byte[view.remaining()];
+			view.get(actual);
+			assertArrayEquals(key, expected, actual);
+		}
+	}
+
+	private int intField(String name) throws Exception {
+		Field field = MqttMappedFilePersistence.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return field.getInt(persistence);
+	}
+
+	/**
+	 * Zeroes the last few bytes of the newest record with the given key, as
+	 * a write cut short by a crash would leave it.
+	 */
+	private void damageRecord(String key, int payloadLength) throws Exception {
+		File[] dirs = folder.getRoot().listFiles();
+		assertEquals(1, dirs.length);
+		RandomAccessFile file = new RandomAccessFile(new File(dirs[0], "persistence.ring"), "rw");
+		try {
+			byte[] ring = new byte[(int) file.length()];
+			file.readFully(ring);
+			// The key is followed by the header, which starts with it again
+			byte[] pattern = (key + key + ":header").getBytes("UTF-8");
+			int found = -1;
+			for (int i = 0; i + pattern.length <= ring.length; i++) {
+				int j = 0;
+				while (j < pattern.length && ring[i + j] == pattern[j]) {
+					j++;
+				}
+				if (j == pattern.length) {
+					found = i;
+				}
+			}
+			assertTrue(found >= 0);
+			int end = found + pattern.length + payloadLength;
+			file.seek(end - 10);
+			file.write(new byte[10]);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static MqttPublish publish(int qos, int payloadLength) throws Exception {
+		MqttMessage message = new MqttMessage(new byte[payloadLength]);
+		message.setQos(qos);
+		MqttPublish publish = new MqttPublish("t", message);
+		publish.setMessageId(1);
+		return publish;
+	}
+}